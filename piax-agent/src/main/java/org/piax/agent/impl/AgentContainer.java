@@ -34,6 +34,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.ObjectStreamException;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.piax.agent.Agent;
 import org.piax.agent.AgentException;
@@ -81,6 +83,10 @@ public class AgentContainer {
     private String agentName;
     private Agent agent;
 
+    /** 型名ごとの、agentのclassがその型に代入可能かどうかのcache */
+    private final ConcurrentMap<String, Boolean> typeMatches =
+            new ConcurrentHashMap<String, Boolean>();
+
     // public as called by musasabi
     public AgentContainer(AgentHomeImpl home, LoadImage image) {
         this.home = home;
@@ -95,6 +101,7 @@ public class AgentContainer {
     public void reload(LoadImage image) {
         this.image = image;
         agent = image.agent;
+        typeMatches.clear();
     }
 
     // public as called by musasabi
@@ -171,6 +178,28 @@ public class AgentContainer {
     ClassLoader getAgentClassLoader() {
         return image.loader;
     }
+
+    /**
+     * agentのclassが、agentのclass loaderで解決した型名clazzの型に代入可能か
+     * どうかを判定する。型名が解決できない場合は false を返す。
+     * RPCのたびにClass.forNameを呼ばないよう、結果はcacheしておく。
+     * 
+     * @param clazz 型名
+     * @return 代入可能な場合 true
+     */
+    boolean isInstanceOf(String clazz) {
+        Boolean matched = typeMatches.get(clazz);
+        if (matched == null) {
+            try {
+                Class<?> cls = Class.forName(clazz, false, getAgentClassLoader());
+                matched = cls.isAssignableFrom(agentClass);
+            } catch (ClassNotFoundException e) {
+                matched = false;
+            }
+            typeMatches.put(clazz, matched);
+        }
+        return matched;
+    }
     
     public void destroy() throws IllegalAgentModeException {
         if (isSleeping()) {
@@ -916,19 +916,8 @@ public class AgentHomeImpl implements AgentHome, OverlayListener<Destination, Ke
             // in case of detach agent
             throw new NoSuchAgentException("detached agent");
         }
-        Class<?> agClass = null;
-        if (agCall.clazz != null) {
-            try {
-                agClass = Class.forName(agCall.clazz, false, agc.getAgentClassLoader());
-            } catch (ClassNotFoundException e) {
-                throw new NoSuchAgentException("type mismatch");
-            }
-        }
-        if (agClass != null) {
-            Class<?> tClass = agc.getAgentClass();
-            if (!agClass.isAssignableFrom(tClass)) {
-                throw new NoSuchAgentException("type mismatch");
-            }
+        if (agCall.clazz != null && !agc.isInstanceOf(agCall.clazz)) {
+            throw new NoSuchAgentException("type mismatch");
         }
         // RPCHook patch by sho (13/10/10)
         if (RPCHook.hook != null) {
@@ -109,7 +109,7 @@ public class SkipGraphStrategy extends NodeStrategy {
         return base.leave().thenRun(() -> {
             // SetRAckを受信した場合の処理
             logger.debug("{}: mode=grace", n);
-            n.mode = NodeMode.DELETED;
+            n.setMode(NodeMode.DELETED);
             for (int i = 1; i < height(); i++) {
                 LocalNode left = table.getLeftNeighbor(i);
                 LocalNode right = table.getRightNeighbor(i);
@@ -194,6 +194,11 @@ public class SkipGraphStrategy extends NodeStrategy {
         return table.getRoutingEntries();
     }
 
+    @Override
+    public boolean notifiesRoutingChange() {
+        return false;
+    }
+
     /**
      * ノードが持つ各レベルの情報を出力する．
      */
@@ -143,8 +143,11 @@ public class Sim {
     @SuppressWarnings("unused")
     private static IntegerOption seedOption = new IntegerOption(-1, "-seed", val -> {
         if (val == -1) {
+            RandomUtil.seed = null;
             RandomUtil.setSharedRandom(new MersenneTwister());
         } else {
+            // EventExecutor.reset() renews the shared random using the seed
+            RandomUtil.seed = (long) val;
             RandomUtil.setSharedRandom(new MersenneTwister(val));
         }
     });
@@ -261,15 +264,33 @@ public class Sim {
             Runnable callback, FailureCallback failure) {
         CompletableFuture<Void> future = n.joinAsync(introducer);
         future.handle((rc, exc) -> {
-            if (exc != null) {
-                failure.run((EventException)exc);
-            } else {
-                callback.run();
-            }
+            // the callbacks may access other nodes
+            runExclusively("sim.joinAsync.callback", () -> {
+                if (exc != null) {
+                    failure.run((EventException)exc);
+                } else {
+                    callback.run();
+                }
+            });
             return false;
         });
     }
 
+    /**
+     * run a job that may access any node.  in parallel simulation,
+     * the job is executed when no other event is being executed.
+     *
+     * @param name the name of the job
+     * @param job the job
+     */
+    private static void runExclusively(String name, Runnable job) {
+        if (EventExecutor.isParallelSimulation()) {
+            EventExecutor.runNow((LocalNode) null, name, job);
+        } else {
+            job.run();
+        }
+    }
+
     public static void dump(LocalNode start) {
         System.out.println("node dump:");
         LocalNode x = start;
@@ -451,7 +472,7 @@ public class Sim {
             Consumer<LocalNode> insertCallback) {
         List<Integer> order = new ArrayList<>();
         IntStream.range(from, to).forEach(order::add);
-        Collections.shuffle(order, RandomUtil.getSharedRandom());
+        Collections.shuffle(order, EventExecutor.random());
         insertSeq(nodes, order, 0, delay1, delay2, after, insertCallback);
         return order;
     }
@@ -511,7 +532,7 @@ public class Sim {
         Arrays.sort(nodes);
         dump(nodes);
         startSim(nodes, 5000);
-        EventExecutor.nmsgs = 0;
+        EventExecutor.resetNumMessages();
         System.out.println("*****************************");
         dump(nodes);
         System.out.println("*****************************");
@@ -552,7 +573,7 @@ public class Sim {
     private void distLookupTest(LocalNode[] nodes, LookupStat s, long tFrom,
             int tWidth, boolean[] ignFrom, boolean[] ignTo, int nquery) {
         for (int i = 0; i < nquery; i++) {
-            long t = tFrom + (tWidth > 0 ? RandomUtil.getSharedRandom().nextInt(tWidth) : 0);
+            long t = tFrom + (tWidth > 0 ? EventExecutor.random().nextInt(tWidth) : 0);
             EventExecutor.sched("sim.distLookup.lookup", t, () -> {
                 lookup1(nodes, s, ignFrom, ignTo);
             });
@@ -563,11 +584,11 @@ public class Sim {
             boolean[] ignFrom, boolean[] ignTo) {
         int from, dest;
         do {
-            from = RandomUtil.getSharedRandom().nextInt(nodes.length);
+            from = EventExecutor.random().nextInt(nodes.length);
         } while (nodes[from].mode != NodeMode.INSERTED
                 || (ignFrom != null && ignFrom[from]));
         do {
-            dest = RandomUtil.getSharedRandom().nextInt(nodes.length);
+            dest = EventExecutor.random().nextInt(nodes.length);
         } while (nodes[dest].mode != NodeMode.INSERTED
                 || (ignTo != null && ignTo[dest]));
         lookup(nodes[from], nodes[dest].key, s);
@@ -659,7 +680,7 @@ public class Sim {
                         for (int i = 0; i < nFail; i++) {
                             int r;
                             do {
-                                r = RandomUtil.getSharedRandom().nextInt(num);
+                                r = EventExecutor.random().nextInt(num);
                             } while (failed[r]);
                             failed[r] = true; 
                             //nodes[r].fail();
@@ -743,7 +764,7 @@ public class Sim {
                 for (int i = 0; i < ndel; i++) {
                     int r;
                     do {
-                        r = RandomUtil.getSharedRandom().nextInt(ndel);
+                        r = EventExecutor.random().nextInt(ndel);
                     } while (failed[r]);
                     failed[r] = true; 
                     CompletableFuture<Void> future = nodes[delStart + r].leaveAsync();
@@ -853,7 +874,7 @@ public class Sim {
         for (int i = 1; i < num; i++) {
             rest.add(i);
         }
-        Collections.shuffle(rest, RandomUtil.getSharedRandom());
+        Collections.shuffle(rest, EventExecutor.random());
         ArrayList<Integer> inserted = new ArrayList<>();
         int base = 1;
         for (int i = base; i < initial; i++) {
@@ -866,7 +887,7 @@ public class Sim {
         for (int j = 1; j < 10; j += 2) {
             for (int i = 0; i < diff; i++) {
                 if (inserted.size() > 0) {
-                    int r = RandomUtil.getSharedRandom().nextInt(inserted.size());
+                    int r = EventExecutor.random().nextInt(inserted.size());
                     int index = inserted.get(r);
                     inserted.remove(r);
                     long t = j * 10 * T;
@@ -928,7 +949,7 @@ public class Sim {
         nodes[0].joinInitialNode();
         List<Integer> order = new ArrayList<>();
         IntStream.range(1, NEND).forEach(order::add);
-        Collections.shuffle(order, RandomUtil.getSharedRandom());
+        Collections.shuffle(order, EventExecutor.random());
         for (int i = 0; i < order.size(); i++) {
             joinLater(nodes[order.get(i)], nodes[0], i * DELTA, null);
         }
@@ -1008,13 +1029,13 @@ public class Sim {
         boolean[] graceful = new boolean[num];
         for (int i = 0; i < nodes.length; i++) {
             nodes[i] = createNode(factory, i * 10, NetworkParams.HALFWAY_DELAY);
-            graceful[i]= RandomUtil.getSharedRandom().nextDouble() > failRate.value();
+            graceful[i]= EventExecutor.random().nextDouble() > failRate.value();
         }
         nodes[0].joinInitialNode();
         long T = convertSecondsToVTime(60); // 1分
         for (int i = 1; i < nodes.length; i++) {
             long s, e;
-            s = (long)(RandomUtil.getSharedRandom().nextDouble() * 100 * T);
+            s = (long)(EventExecutor.random().nextDouble() * 100 * T);
             double dur = exponentialDist(1.0/(aveLifeTime.value()));
             e = s + (long)dur;
             LocalNode x = nodes[i];
@@ -1271,7 +1292,7 @@ public class Sim {
      * 指数分布に従う乱数を返す
      */
     private static double exponentialDist(double lambda) {
-        return -Math.log(1.0 - RandomUtil.getSharedRandom().nextDouble()) / lambda;
+        return -Math.log(1.0 - EventExecutor.random().nextDouble()) / lambda;
     }
 
     /**
@@ -1506,7 +1527,7 @@ public class Sim {
         for (int i = 0; i < n; i++) {
             int r;
             do {
-                r = RandomUtil.getSharedRandom().nextInt(MAXID);
+                r = EventExecutor.random().nextInt(MAXID);
             } while (iset.contains(r));
             iset.add(r);
             if (i < nSlowNodes) {
@@ -1543,9 +1564,9 @@ public class Sim {
         long end = EventExecutor.getVTime();
         System.out.println("start = " + start + ", end = " + end
                 + ", elapsed = " + (end - start));
-        System.out.println("#msg = " + EventExecutor.nmsgs);
+        System.out.println("#msg = " + EventExecutor.getNumMessages());
         time.addSample(end - start);
-        msg.addSample(EventExecutor.nmsgs);
+        msg.addSample(EventExecutor.getNumMessages());
         if (!isFinished()) {
             System.err.println("Inconsisntent!");
         }
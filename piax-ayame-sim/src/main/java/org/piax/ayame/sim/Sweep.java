@@ -0,0 +1,245 @@
+/*
+ * Sweep.java - A parameter sweep runner for the Ayame Simulator
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame.sim;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.piax.ayame.sim.stats.StatReport;
+
+/**
+ * runs {@link Sim} for every combination of a grid of options in parallel
+ * and merges the basic statistics of the runs into one CSV or JSON report.
+ *
+ * <p>the arguments are the same as {@link Sim}, except that an option
+ * value may be a comma-separated list, which makes the option a dimension
+ * of the grid.  e.g.,
+ * <pre>
+ * java org.piax.ayame.sim.Sweep -type NODESVSHOPS -algorithm SUZAKU,CHORD
+ *     -nodes 10000,100000 -seed 1,2,3 -parallel 8 -report out.csv
+ * </pre>
+ *
+ * <p>the options of the simulator (and the strategies) are global to a
+ * JVM.  therefore each combination runs in its own JVM, which is started
+ * with the same java command and class path as this process.
+ *
+ * <p>options of Sweep itself:
+ * <dl>
+ * <dt>-parallel N</dt><dd>the number of concurrent runs (default: the
+ *   number of available processors)</dd>
+ * <dt>-report FILE</dt><dd>the report file.  JSON if the name ends with
+ *   ".json", CSV otherwise.  the report is printed to the standard output
+ *   if omitted.</dd>
+ * <dt>-logdir DIR</dt><dd>the directory to save the output of each
+ *   run</dd>
+ * <dt>-J OPT</dt><dd>an option passed to the child JVMs (e.g., -J
+ *   -Xmx8g)</dd>
+ * </dl>
+ */
+public class Sweep {
+    int parallel = Runtime.getRuntime().availableProcessors();
+    File report;
+    File logdir;
+    List<String> jvmOpts = new ArrayList<>();
+    // option name -> values.  an option without values is a flag.
+    Map<String, List<String>> grid = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Sweep sweep = new Sweep();
+        try {
+            sweep.parse(new ArrayList<>(Arrays.asList(args)));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        int failed = sweep.run();
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    void parse(List<String> args) {
+        while (!args.isEmpty()) {
+            String name = args.remove(0);
+            if (!name.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown argument: " + name);
+            }
+            List<String> values = new ArrayList<>();
+            if (!args.isEmpty() && !isOptionName(args.get(0))) {
+                values.addAll(Arrays.asList(args.remove(0).split(",")));
+            }
+            switch (name) {
+            case "-parallel":
+                parallel = Integer.parseInt(single(name, values));
+                break;
+            case "-report":
+                report = new File(single(name, values));
+                break;
+            case "-logdir":
+                logdir = new File(single(name, values));
+                break;
+            case "-J":
+                // JVM options may start with '-'
+                if (values.isEmpty() && !args.isEmpty()) {
+                    values.add(args.remove(0));
+                }
+                jvmOpts.add(single(name, values));
+                break;
+            default:
+                grid.put(name, values);
+            }
+        }
+    }
+
+    private static boolean isOptionName(String arg) {
+        // negative numbers are values
+        return arg.startsWith("-") && !arg.matches("-[0-9.].*");
+    }
+
+    private static String single(String name, List<String> values) {
+        if (values.size() != 1) {
+            throw new IllegalArgumentException(name + ": specify one value");
+        }
+        return values.get(0);
+    }
+
+    /**
+     * enumerate the combinations of the grid.
+     *
+     * @return the list of the parameters of each run
+     */
+    List<Map<String, String>> combinations() {
+        List<Map<String, String>> combs = new ArrayList<>();
+        combs.add(new LinkedHashMap<>());
+        for (Map.Entry<String, List<String>> ent : grid.entrySet()) {
+            List<String> values = ent.getValue().isEmpty()
+                    ? Arrays.asList("") : ent.getValue();
+            List<Map<String, String>> next = new ArrayList<>();
+            for (Map<String, String> c : combs) {
+                for (String v : values) {
+                    Map<String, String> c2 = new LinkedHashMap<>(c);
+                    c2.put(ent.getKey(), v);
+                    next.add(c2);
+                }
+            }
+            combs = next;
+        }
+        return combs;
+    }
+
+    /**
+     * run all the combinations and write the report.
+     *
+     * @return the number of failed runs
+     * @throws Exception if an error occurred
+     */
+    int run() throws Exception {
+        List<Map<String, String>> combs = combinations();
+        if (logdir != null) {
+            Files.createDirectories(logdir.toPath());
+        }
+        StatReport rep = new StatReport();
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(parallel);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < combs.size(); i++) {
+            int id = i;
+            Map<String, String> params = combs.get(i);
+            futures.add(pool.submit(() -> {
+                boolean ok = runOne(id, params, rep);
+                if (!ok) {
+                    failed.incrementAndGet();
+                }
+                System.err.println("Sweep: " + done.incrementAndGet() + "/"
+                        + combs.size() + (ok ? " done: " : " FAILED: ")
+                        + params);
+                return null;
+            }));
+        }
+        for (Future<?> f : futures) {
+            f.get();
+        }
+        pool.shutdown();
+        if (report == null) {
+            rep.printCSV(System.out);
+        } else {
+            try (PrintStream out = new PrintStream(
+                    new FileOutputStream(report), false, "UTF-8")) {
+                if (report.getName().endsWith(".json")) {
+                    rep.printJSON(out);
+                } else {
+                    rep.printCSV(out);
+                }
+            }
+        }
+        return failed.get();
+    }
+
+    private boolean runOne(int id, Map<String, String> params,
+            StatReport rep) throws IOException, InterruptedException {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        cmd.addAll(jvmOpts);
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(Sim.class.getName());
+        for (Map.Entry<String, String> ent : params.entrySet()) {
+            cmd.add(ent.getKey());
+            if (!ent.getValue().isEmpty()) {
+                cmd.add(ent.getValue());
+            }
+        }
+        ProcessBuilder pb = new ProcessBuilder(cmd);
+        pb.redirectErrorStream(true);
+        Process proc = pb.start();
+        String output;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                proc.getInputStream(), StandardCharsets.UTF_8))) {
+            output = in.lines().collect(Collectors.joining("\n"));
+        }
+        int rc = proc.waitFor();
+        if (logdir != null) {
+            Files.write(new File(logdir, "run-" + id + ".log").toPath(),
+                    (String.join(" ", cmd) + "\n" + output + "\n")
+                    .getBytes(StandardCharsets.UTF_8));
+        }
+        if (rc != 0) {
+            return false;
+        }
+        // tag the rows with the parameters that vary
+        Map<String, String> tags = new LinkedHashMap<>();
+        params.forEach((k, v) -> {
+            if (grid.get(k).size() > 1) {
+                tags.put(k.substring(1), v);
+            }
+        });
+        rep.parse(tags, new BufferedReader(new StringReader(output)));
+        return true;
+    }
+}
@@ -30,12 +30,12 @@ public class Stat {
      * 
      * @param value 計測値
      */
-    public void addSample(double value) {
+    public synchronized void addSample(double value) {
         list.add(value);
         sorted = false;
     }
 
-    public void addStat(Stat stat) {
+    public synchronized void addStat(Stat stat) {
         list.addAll(stat.list);
         sorted = false;
     }
@@ -72,7 +72,7 @@ public class Stat {
         return Math.sqrt(sum);
     }
 
-    protected void sort() {
+    protected synchronized void sort() {
         if (!sorted) {
             Collections.sort(list);
             sorted = true;
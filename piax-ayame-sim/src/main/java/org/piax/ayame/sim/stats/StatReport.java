@@ -0,0 +1,191 @@
+/*
+ * StatReport.java - A merged report of statistics
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame.sim.stats;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * a report that merges the basic statistics of several simulation runs.
+ * each row of the report is a line printed by
+ * {@link StatSet#printBasicStat(String)} (or
+ * {@link MultiStatSet#printBasicStatAll()}), tagged with the parameters
+ * of the run.
+ */
+public class StatReport {
+    static final String[] COLUMNS = {
+            "average", "pct50", "pct75", "pct90", "pct99", "max", "stdev",
+            "size"
+    };
+
+    public static class Row {
+        public final Map<String, String> params;
+        public final String title;
+        public final int index;
+        public final double[] values;
+
+        Row(Map<String, String> params, String title, int index,
+                double[] values) {
+            this.params = params;
+            this.title = title;
+            this.index = index;
+            this.values = values;
+        }
+    }
+
+    private final List<Row> rows = Collections.synchronizedList(
+            new ArrayList<>());
+
+    /**
+     * parse the output of a simulation run and add the basic statistics
+     * found in it.
+     *
+     * @param params the parameters of the run
+     * @param in the output of the run
+     * @return the number of rows added
+     * @throws IOException if an I/O error occurred
+     */
+    public int parse(Map<String, String> params, BufferedReader in)
+            throws IOException {
+        List<Row> found = new ArrayList<>();
+        String title = null;
+        boolean basic = false;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#begin#")) {
+                title = line.substring("#begin#".length());
+                basic = false;
+            } else if (line.startsWith("#end")) {
+                title = null;
+            } else if (title != null && line.startsWith(" #index")) {
+                // the header printed by Stat#printBasicStatHeader()
+                basic = true;
+            } else if (title != null && basic) {
+                Row row = parseBody(params, title, line.trim());
+                if (row != null) {
+                    found.add(row);
+                }
+            }
+        }
+        rows.addAll(found);
+        return found.size();
+    }
+
+    // parse a line printed by Stat#printBasicStatBody()
+    private static Row parseBody(Map<String, String> params, String title,
+            String line) {
+        String[] f = line.split("\\s+");
+        if (f.length != COLUMNS.length + 1) {
+            return null;
+        }
+        try {
+            int index = Integer.parseInt(f[0]);
+            double[] values = new double[COLUMNS.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Double.parseDouble(f[i + 1]);
+            }
+            return new Row(params, title, index, values);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public List<Row> getRows() {
+        synchronized (rows) {
+            return new ArrayList<>(rows);
+        }
+    }
+
+    private Set<String> paramNames(List<Row> rs) {
+        Set<String> names = new LinkedHashSet<>();
+        rs.forEach(r -> names.addAll(r.params.keySet()));
+        return names;
+    }
+
+    public void printCSV(PrintStream out) {
+        List<Row> rs = getRows();
+        Set<String> names = paramNames(rs);
+        List<String> header = new ArrayList<>(names);
+        header.add("title");
+        header.add("index");
+        Collections.addAll(header, COLUMNS);
+        out.println(header.stream().map(StatReport::quoteCSV)
+                .collect(Collectors.joining(",")));
+        for (Row r : rs) {
+            List<String> cols = new ArrayList<>();
+            names.forEach(n -> cols.add(quoteCSV(r.params.getOrDefault(n, ""))));
+            cols.add(quoteCSV(r.title));
+            cols.add(Integer.toString(r.index));
+            for (double v : r.values) {
+                cols.add(Double.toString(v));
+            }
+            out.println(String.join(",", cols));
+        }
+    }
+
+    public void printJSON(PrintStream out) {
+        List<Row> rs = getRows();
+        out.println("[");
+        for (int i = 0; i < rs.size(); i++) {
+            Row r = rs.get(i);
+            Map<String, String> obj = new LinkedHashMap<>();
+            r.params.forEach((k, v) -> obj.put(k, quoteJSON(v)));
+            obj.put("title", quoteJSON(r.title));
+            obj.put("index", Integer.toString(r.index));
+            for (int j = 0; j < COLUMNS.length; j++) {
+                double v = r.values[j];
+                obj.put(COLUMNS[j], Double.isFinite(v)
+                        ? Double.toString(v) : "null");
+            }
+            out.print(obj.entrySet().stream()
+                    .map(e -> quoteJSON(e.getKey()) + ":" + e.getValue())
+                    .collect(Collectors.joining(",", "  {", "}")));
+            out.println(i < rs.size() - 1 ? "," : "");
+        }
+        out.println("]");
+    }
+
+    private static String quoteCSV(String s) {
+        if (s.contains(",") || s.contains("\"")) {
+            return "\"" + s.replace("\"", "\"\"") + "\"";
+        }
+        return s;
+    }
+
+    private static String quoteJSON(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+            case '"': sb.append("\\\""); break;
+            case '\\': sb.append("\\\\"); break;
+            case '\n': sb.append("\\n"); break;
+            case '\t': sb.append("\\t"); break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -21,12 +21,7 @@ public class StatSet {
             new ConcurrentSkipListMap<>();
 
     public Stat getStat(int key) {
-        Stat s = statset.get(key);
-        if (s == null) {
-            s = new Stat();
-            statset.put(key, s);
-        }
-        return s;
+        return statset.computeIfAbsent(key, k -> new Stat());
     }
 
     public void printBasicStat(String title) {
@@ -12,16 +12,16 @@
 
 package org.piax.ayame;
 
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Counters {
-    private Map<String, Integer> map = new HashMap<>();
+    // concurrent because counters may be updated by multiple executor threads
+    private Map<String, Integer> map = new ConcurrentHashMap<>();
     
     public void add(String name, int delta) {
-        int v =  map.computeIfAbsent(name, s -> 0);
-        map.put(name, v + delta);
+        map.merge(name, delta, Integer::sum);
     }
 
     public Integer get(String name) {
@@ -40,7 +40,13 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
     public Node receiver;
 
     public long vtime;
-    int serial; // filled by EventExecutor#enqueue();
+    long serial; // filled by EventExecutor#enqueue();
+    transient int shard; // filled by EventExecutor#enqueue();
+    transient EventEngine engine; // filled by EventExecutor#enqueue();
+    // links for TimingWheel
+    transient TimingWheel wheel;
+    transient Event wheelPrev, wheelNext;
+    transient long wheelTick;
 
     // private int eventId = System.identityHashCode(this);
     private static AtomicInteger nextEventId = new AtomicInteger(0x10000000);
@@ -50,6 +56,9 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
     transient public FailureCallback failureCallback;    // run at sender node
     public List<Node> route = new ArrayList<>();
     public List<Node> routeWithFailed = new ArrayList<>();
+    // the number of hops that are not recorded in route.
+    // the route is not sent over the network unless it is traced.
+    public int omittedHops;
 
     public Event(Node receiver) {
         this(receiver, Node.NETWORK_LATENCY);
@@ -74,6 +83,8 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
     protected Event clone() {
         try {
             Event copy = (Event) super.clone();
+            copy.wheel = null;
+            copy.wheelPrev = copy.wheelNext = null;
             return copy;
         } catch (CloneNotSupportedException e) {
             throw new Error(e);
@@ -123,7 +134,7 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
     }
 
     public int hops() {
-        return route.size() - 1;
+        return omittedHops + route.size() - 1;
     }
 
     public void beforeSendHook(LocalNode n) {
@@ -146,13 +157,15 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
         if (x != 0) {
             return x;
         }
-        return Integer.compare(serial, o.serial);
+        return Long.compare(serial, o.serial);
     }
 
     public static class TimerEvent extends Event {
         final String name;
         final Consumer<TimerEvent> job;
         final long period;
+        // the LocalNode on behalf of which this timer runs
+        transient LocalNode owner;
         private boolean canceled = false;
         private boolean executed = false;
         public TimerEvent(String name, long initial, long period, 
@@ -180,8 +193,8 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
             } finally {
                 if (!canceled && period > 0) {
                     executed = false;
-                    vtime = EventExecutor.getVTime() + period;
-                    EventExecutor.enqueue(this);
+                    vtime = engine.getVTime() + period;
+                    engine.enqueue(this);
                 }
             }
             
@@ -460,7 +473,7 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
                 registerNotAckedEvent(n, this);
                 cleanup.add(() -> removeNotAckedEvent(n, getEventId()));
                 assert this.failureCallback != null;
-                this.ackTimeoutEvent = EventExecutor.sched(
+                this.ackTimeoutEvent = EventExecutor.sched(n,
                         "acktimer-" + getEventId(),
                         acktimeout,
                         () -> {
@@ -484,7 +497,7 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
             if (replytimeout != 0) {
                 registerRequestEvent(n, this);
                 cleanup.add(() -> removeRequestEvent(n, getEventId()));
-                this.replyTimeoutEvent = EventExecutor.sched(
+                this.replyTimeoutEvent = EventExecutor.sched(n,
                         "replyTimer-" + getEventId(),
                         replytimeout,
                         () -> {
@@ -557,8 +570,14 @@ public abstract class Event implements Comparable<Event>, Serializable, Cloneabl
             this.req = req;
             this.reqEventId = req.getEventId();
             this.route.addAll(req.route);
-            this.route.remove(this.route.size() - 1);
             this.routeWithFailed.addAll(req.routeWithFailed);
+            this.omittedHops = req.omittedHops;
+            if (!this.route.isEmpty()) {
+                this.route.remove(this.route.size() - 1);
+            } else if (this.omittedHops > 0) {
+                // the route of the request is not received yet
+                this.omittedHops--;
+            }
         }
 
         @SuppressWarnings("unchecked")
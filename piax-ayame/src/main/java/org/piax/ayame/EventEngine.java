@@ -0,0 +1,950 @@
+/*
+ * EventEngine.java - An instance of the event executor
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.piax.ayame.Event.TimerEvent;
+import org.piax.ayame.EventSender.EventSenderSim;
+import org.piax.common.PeerId;
+import org.piax.util.RandomUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * an independent ayame world: an event executor with its own virtual time,
+ * time queues, message counters, random number generator, interned Node
+ * instances and LocalNodes.
+ *
+ * <p>the static API of {@link EventExecutor} operates on the engine bound
+ * to the current thread (see {@link #execute(Runnable)}), or on the default
+ * engine if no engine is bound.  several engines can run concurrently in
+ * one JVM, e.g., to run simulations in parallel.
+ *
+ * <p>Node instances received from the network are deserialized by the
+ * transport threads, which are not bound to any engine.  therefore an
+ * engine used with a real network must share the Node table with the
+ * default engine (see {@link #EventEngine(boolean)}).
+ */
+public class EventEngine {
+    private static final Logger logger = LoggerFactory.getLogger(EventEngine.class);
+    // the number of slots of the timing wheel (1 slot = 1 vtime unit)
+    private static final int TIMING_WHEEL_SLOTS = 8192;
+
+    // the engine bound to the current thread
+    private static final ThreadLocal<EventEngine> bound = new ThreadLocal<>();
+    // the LocalNode whose event is being executed by the current thread
+    private static final ThreadLocal<LocalNode> currentNode =
+            new ThreadLocal<>();
+    // the shard executed by the current thread in parallel simulation
+    private static final ThreadLocal<Shard> currentShard =
+            new ThreadLocal<>();
+
+    private final String name;
+    // null means that this engine follows EventExecutor.realtime
+    private Boolean realtime;
+    private long startTime; // init by reset();
+    private long vtime; // init by reset();
+    int nmsgs; // init by reset();
+    private Shard[] shards = new Shard[] { new Shard(0) };
+    private final Counters counters = new Counters();
+    private volatile boolean terminateExecutor = false;
+    private Random random;
+    private LatencyProvider latencyProvider;
+
+    // for parallel simulation (see runParallel())
+    // the events that do not belong to any LocalNode
+    private TimingWheel globalq = new TimingWheel(TIMING_WHEEL_SLOTS);
+    private long nextGlobalSerial;
+    private final AtomicInteger nextNodeOrdinal = new AtomicInteger();
+    // true while the shards are executed in parallel
+    private volatile boolean inRound;
+
+    // interned Node instances
+    final NodeTable nodeTable;
+    // to support multi-keys
+    final Map<PeerId, SortedSet<LocalNode>> localNodeMap
+        = new ConcurrentHashMap<>();
+    // versions of the routing entries of each peer (see LocalNode)
+    final Map<PeerId, AtomicLong> routingVersions = new ConcurrentHashMap<>();
+
+    /**
+     * a shard of the event executor.  each shard has its own time queue
+     * and is executed by a dedicated thread in real-time mode.
+     */
+    private static class Shard {
+        final int index;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition cond = lock.newCondition();
+        final TimingWheel timeq = new TimingWheel(TIMING_WHEEL_SLOTS);
+        long nextEventSerial;
+        Thread thread;
+        long now; // for parallel simulation
+        // the number of messages executed by this shard.  written only by
+        // the thread that executes this shard (see getNumMessages()).
+        int nmsgs;
+        // events for other LocalNodes, delivered at the end of the round
+        final List<Event> outbox = new ArrayList<>();
+        final List<Event> cancels = new ArrayList<>();
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                return "Shard" + index + ":" + timeq;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * create an engine that is fully isolated from other engines.
+     */
+    public EventEngine() {
+        this(false);
+    }
+
+    /**
+     * create an engine.
+     *
+     * @param sharedNodes true if this engine shares the interned Node
+     *        instances with the default engine.  this is required to
+     *        receive events from the network.
+     */
+    public EventEngine(boolean sharedNodes) {
+        this("EventEngine", false, sharedNodes
+                ? EventExecutor.getDefaultEngine().nodeTable
+                : newNodeTable());
+    }
+
+    EventEngine(String name, Boolean realtime,
+            NodeTable nodeTable) {
+        this.name = name;
+        this.realtime = realtime;
+        this.nodeTable = nodeTable;
+        reset();
+    }
+
+    static NodeTable newNodeTable() {
+        return new NodeTable();
+    }
+
+    /**
+     * returns the engine bound to the current thread, or the default engine.
+     *
+     * @return the engine
+     */
+    public static EventEngine current() {
+        EventEngine e = bound.get();
+        return e != null ? e : EventExecutor.getDefaultEngine();
+    }
+
+    /**
+     * run the job with binding this engine to the current thread.
+     *
+     * @param job the job
+     */
+    public void execute(Runnable job) {
+        call(() -> {
+            job.run();
+            return null;
+        });
+    }
+
+    /**
+     * call the job with binding this engine to the current thread.
+     *
+     * @param <T> the type of the result
+     * @param job the job
+     * @return the result of the job
+     */
+    public <T> T call(Supplier<T> job) {
+        EventEngine prev = bound.get();
+        bound.set(this);
+        try {
+            return job.get();
+        } finally {
+            if (prev == null) {
+                bound.remove();
+            } else {
+                bound.set(prev);
+            }
+        }
+    }
+
+    private boolean isDefault() {
+        // the default engine is null while EventExecutor is initialized
+        EventEngine def = EventExecutor.getDefaultEngine();
+        return def == null || def == this;
+    }
+
+    public void setLatencyProvider(LatencyProvider p) {
+        latencyProvider = p;
+    }
+
+    public LatencyProvider getLatencyProvider() {
+        return latencyProvider;
+    }
+
+    /**
+     * returns true if a simulation (i.e., not real-time) is executed by
+     * {@link #runParallel(long)}.  the result of a parallel simulation
+     * is the same as that of the sequential simulation, regardless of the
+     * number of threads (see {@link #runParallel(long)}).
+     *
+     * @return true if parallel simulation is enabled
+     */
+    public boolean isParallelSimulation() {
+        return !isRealtime() && EventExecutor.PARALLEL_SIM_THREADS.value() > 0;
+    }
+
+    int nextNodeOrdinal() {
+        return nextNodeOrdinal.getAndIncrement();
+    }
+
+    /**
+     * returns the minimum latency between distinct peers, which is
+     * used as the lookahead of parallel simulation.
+     *
+     * @return the minimum latency, or 0 if unknown
+     */
+    long getLookahead() {
+        return latencyProvider == null ? EventSenderSim.DEFAULT_LATENCY
+                : latencyProvider.minLatency();
+    }
+
+    public boolean isRealtime() {
+        return realtime != null ? realtime : EventExecutor.realtime.value();
+    }
+
+    public void setRealtime(boolean realtime) {
+        if (isDefault()) {
+            EventExecutor.realtime.set(realtime);
+        } else {
+            this.realtime = realtime;
+        }
+    }
+
+    public void reset() {
+        assert !isRunning() : "cannot reset while executor is running";
+        startTime = System.currentTimeMillis();
+        vtime = 0;
+        nmsgs = 0;
+        int n = Math.max(1, Math.max(EventExecutor.EXECUTOR_THREADS.value(),
+                EventExecutor.PARALLEL_SIM_THREADS.value()));
+        shards = new Shard[n];
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(i);
+        }
+        globalq = new TimingWheel(TIMING_WHEEL_SLOTS);
+        nextGlobalSerial = 0;
+        nextNodeOrdinal.set(0);
+        if (isDefault()) {
+            RandomUtil.renewSharedRandom();
+        } else {
+            random = RandomUtil.newCollisionlessRandom();
+        }
+        localNodeMap.clear();
+        routingVersions.clear();
+        EventEngine def = EventExecutor.getDefaultEngine();
+        if (def == null || def == this || def.nodeTable != nodeTable) {
+            nodeTable.clear();
+        }
+    }
+
+    /**
+     * returns the shard that should execute the specified event.
+     * an event for a LocalNode is always executed in the shard that the
+     * LocalNode is assigned to.  a timer event is executed in the shard of
+     * the LocalNode that scheduled it.
+     * the LocalNodes of a peer are assigned to the same shard, as they
+     * access the routing tables of each other (e.g., SuzakuStrategy).
+     */
+    private Shard shardOf(Event ev) {
+        if (shards.length == 1 || !isRealtime()) {
+            return shards[0];
+        }
+        return shardOf(localNodeOf(ev));
+    }
+
+    private Shard shardOf(LocalNode node) {
+        if (node == null || shards.length == 1) {
+            return shards[0];
+        }
+        return shards[Math.floorMod(node.peerId.hashCode(), shards.length)];
+    }
+
+    /**
+     * returns the LocalNode that executes the specified event, or null if
+     * the event does not belong to any LocalNode.
+     */
+    private LocalNode localNodeOf(Event ev) {
+        Node node = ev.receiver;
+        if (node != null && node.key == null) {
+            // wild card case.  resolve the receiver here so that
+            // the event is executed in the shard of the receiver.
+            LocalNode receiver = nodeTable.getAnyInserted(node.addr);
+            if (receiver != null) {
+                ev.receiver = receiver;
+                node = receiver;
+            }
+        }
+        if (node instanceof LocalNode) {
+            return (LocalNode) node;
+        }
+        if (node == null && ev instanceof TimerEvent) {
+            return ((TimerEvent)ev).owner;
+        }
+        return null;
+    }
+
+    public void enqueue(Event ev) {
+        if (isParallelSimulation()) {
+            enqueueParallel(ev);
+            return;
+        }
+        Shard s = shardOf(ev);
+        ev.engine = this;
+        ev.shard = s.index;
+        if (!isRealtime()) {
+            //assert ev.vtime != 0;
+            assignSerial(ev);
+            s.timeq.add(ev);
+        } else {
+            s.lock.lock();
+            ev.serial = s.nextEventSerial++;
+            s.timeq.add(ev);
+            s.cond.signal();
+            s.lock.unlock();
+        }
+        //System.out.println("enqueued: " + ev);
+    }
+
+    /**
+     * assign the serial number, which breaks ties of vtime, to a simulated
+     * event.  the serial number depends only on the LocalNode that creates
+     * the event, so that the order of events is the same in the sequential
+     * and the parallel simulation.
+     */
+    private void assignSerial(Event ev) {
+        LocalNode creator = currentNode.get();
+        if (creator == null) {
+            ev.serial = nextGlobalSerial++;
+        } else {
+            ev.serial = ((long) (creator.ordinal + 1) << 32)
+                    | (creator.nextEventSerial++ & 0xffffffffL);
+        }
+    }
+
+    private void enqueueParallel(Event ev) {
+        ev.engine = this;
+        LocalNode node = localNodeOf(ev);
+        assignSerial(ev);
+        Shard w = inRound ? currentShard.get() : null;
+        if (w != null && !isSamePeer(node, currentNode.get())) {
+            w.outbox.add(ev);
+        } else {
+            addParallel(ev, node);
+        }
+    }
+
+    // the LocalNodes of a peer are executed by the same shard
+    private static boolean isSamePeer(LocalNode a, LocalNode b) {
+        return a != null && b != null && a.peerId.equals(b.peerId);
+    }
+
+    private void addParallel(Event ev, LocalNode node) {
+        if (node == null) {
+            ev.shard = -1;
+            globalq.add(ev);
+        } else {
+            Shard s = shardOf(node);
+            ev.shard = s.index;
+            s.timeq.add(ev);
+        }
+    }
+
+    public Event dequeue() throws InterruptedException {
+        return dequeue(shards[0]);
+    }
+
+    private Event dequeue(Shard s) throws InterruptedException {
+        if (!isRealtime()) {
+            return s.timeq.poll();
+        }
+        // real-time version
+        Event ev;
+        s.lock.lock();
+        try {
+            while (true) {
+                ev = s.timeq.peek();
+                if (ev != null) {
+                    long rem = ev.vtime - getVTime();
+                    if (rem <= 0) {
+                        Event ev0 = s.timeq.poll();
+                        assert ev == ev0;
+                        return ev;
+                    }
+                    s.cond.await(rem, TimeUnit.MILLISECONDS);
+                } else {
+                    s.cond.await();
+                }
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public void cancelEvent(Event ev) {
+        if (isParallelSimulation()) {
+            Shard w = inRound ? currentShard.get() : null;
+            if (w != null && !isSamePeer(localNodeOf(ev), currentNode.get())) {
+                // the event may be in the queue of another thread
+                w.cancels.add(ev);
+            } else if (ev.shard == -1) {
+                globalq.remove(ev);
+            } else if (ev.shard < shards.length) {
+                shards[ev.shard].timeq.remove(ev);
+            }
+            return;
+        }
+        Shard[] ss = shards;
+        if (ev.shard >= ss.length) {
+            return;
+        }
+        Shard s = ss[ev.shard];
+        if (!isRealtime()) {
+            s.timeq.remove(ev);
+        } else {
+            s.lock.lock();
+            s.timeq.remove(ev);
+            s.lock.unlock();
+        }
+    }
+
+    public TimerEvent sched(String name, long delay, Runnable run) {
+        return sched(currentNode.get(), name, delay, 0, ev -> run.run());
+    }
+
+    public TimerEvent sched(String name, long delay, long period,
+            Consumer<TimerEvent> job) {
+        return sched(currentNode.get(), name, delay, period, job);
+    }
+
+    /**
+     * schedule a timer event on behalf of the specified LocalNode.
+     * the timer event is executed in the same thread as the events
+     * received by the node.
+     *
+     * @param owner the LocalNode that owns the timer event, or null
+     * @param name  the name of the timer event
+     * @param delay the delay
+     * @param run   the job to run
+     * @return the timer event
+     */
+    public TimerEvent sched(LocalNode owner, String name, long delay,
+            Runnable run) {
+        return sched(owner, name, delay, 0, ev -> run.run());
+    }
+
+    public TimerEvent sched(LocalNode owner, String name, long delay,
+            long period, Consumer<TimerEvent> job) {
+        TimerEvent ev = new TimerEvent(name, delay, period, job);
+        ev.owner = owner;
+        ev.vtime = getVTime() + delay;
+        enqueue(ev);
+        return ev;
+    }
+
+    public void runNow(LocalNode owner, String name, Runnable job) {
+        TimerEvent ev = new TimerEvent(name, 0, 0, (dummy) -> job.run());
+        ev.owner = owner;
+        ev.vtime = getVTime();
+        enqueue(ev);
+    }
+
+    public CompletableFuture<Void> delay(LocalNode owner, String name,
+            long delay) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        TimerEvent ev = new TimerEvent(name, delay, 0, (dummy) -> {
+            future.complete(null);
+        });
+        ev.owner = owner;
+        ev.vtime = getVTime();
+        enqueue(ev);
+        return future;
+    }
+
+    public CompletableFuture<Void> runNow(LocalNode owner, String name) {
+        return delay(owner, name, 0);
+    }
+
+    static LocalNode getCurrentNode() {
+        return currentNode.get();
+    }
+
+    public long getVTime() {
+        if (isRealtime()) {
+            return System.currentTimeMillis() - startTime;
+        }
+        if (inRound) {
+            Shard s = currentShard.get();
+            if (s != null) {
+                return s.now;
+            }
+        }
+        return vtime;
+    }
+
+    @Override
+    public String toString() {
+        List<String> qs = new ArrayList<>();
+        for (Shard s : shards) {
+            qs.add(s.toString());
+        }
+        return name + "[Queue:" + qs + "]";
+    }
+
+    /*
+     * Consistent Random
+     */
+    public Random random() {
+        if (!isRealtime()) {
+            // each LocalNode has its own random number generator so that
+            // the parallel simulation yields the same result as the
+            // sequential one.
+            LocalNode n = currentNode.get();
+            if (n != null && n.random != null) {
+                return n.random;
+            }
+        }
+        // the default engine uses the shared random for compatibility
+        return isDefault() ? RandomUtil.getSharedRandom() : random;
+    }
+
+    /**
+     * set the random number generator of this engine.  use this method to
+     * make a simulation reproducible.
+     *
+     * @param random the random number generator
+     */
+    public void setRandom(Random random) {
+        if (isDefault()) {
+            RandomUtil.setSharedRandom(random);
+        } else {
+            this.random = random;
+        }
+    }
+
+    /*
+     * Message Counters
+     */
+    public int getNumMessages() {
+        int n = nmsgs;
+        for (Shard s : shards) {
+            n += s.nmsgs;
+        }
+        return n;
+    }
+
+    public void resetNumMessages() {
+        nmsgs = 0;
+        for (Shard s : shards) {
+            s.nmsgs = 0;
+        }
+    }
+
+    public void resetMessageCounters() {
+        counters.clear();
+    }
+
+    public Counters getMessageCounters() {
+        return counters;
+    }
+
+    public void dumpMessageCounters() {
+        logger.debug("#message count");
+        for (Map.Entry<String, Integer> ent : counters.entrySet()) {
+            String name = ent.getKey();
+            Integer cnt = ent.getValue();
+            logger.debug("{}: {}", name, cnt);
+        }
+    }
+
+    public void addCounter(String name) {
+        counters.add(name, 1);
+    }
+
+    public int getCounter(String name) {
+        return counters.get(name);
+    }
+
+    /*
+     * Event Executor
+     */
+    public synchronized boolean isRunning() {
+        for (Shard s : shards) {
+            if (s.thread != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void startExecutorThread() {
+        if (!isRunning()) {
+            setRealtime(true);
+            terminateExecutor = false;
+            if (shards.length > 1) {
+                // events enqueued before starting the threads are all in
+                // the first shard.  redistribute them.
+                List<Event> pending = shards[0].timeq.toList();
+                shards[0].timeq.clear();
+                pending.stream().sorted().forEach(ev -> enqueue(ev));
+            }
+            for (Shard s : shards) {
+                s.thread = new Thread(() -> {
+                    execute(() -> run(s, 0));
+                    synchronized (this) {
+                        s.thread = null;
+                    }
+                }, name + "-" + s.index);
+                s.thread.start();
+            }
+        }
+    }
+
+    /**
+     * request termination of the event executor.
+     *
+     * this method blocks until the thread terminates if this method
+     * is not invoked from event executor context.
+     */
+    public void terminate() {
+        List<Thread> threads = new ArrayList<>();
+        synchronized (this) {
+            terminateExecutor = true;
+            for (Shard s : shards) {
+                if (s.thread != null) {
+                    threads.add(s.thread);
+                }
+            }
+        }
+        for (Thread t : threads) {
+            if (Thread.currentThread() != t) {
+                t.interrupt();
+            }
+        }
+        for (Thread t : threads) {
+            if (Thread.currentThread() != t) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {}
+            }
+        }
+    }
+
+    public void startSimulation(long duration) {
+        assert !isRunning();
+        // simulation is single-threaded; all events are in the first shard.
+        terminateExecutor = false;
+        if (isParallelSimulation()) {
+            execute(() -> runParallel(duration));
+        } else {
+            execute(() -> run(shards[0], duration));
+        }
+    }
+
+    private void run(Shard shard, long duration) {
+        logger.debug("Event Executor Started");
+        long limit = 0;
+        if (duration != 0) {
+            limit = getVTime() + duration;
+        }
+        while (true) {
+            if (terminateExecutor) {
+                logger.debug("event executor terminated: time={}, {} messages",
+                        getVTime(), getNumMessages());
+                return;
+            }
+            if (limit != 0 && getVTime() > limit) {
+                logger.debug(
+                        "*** execution time over: {} > {}", getVTime(), limit);
+                return;
+            }
+            Event ev;
+            try {
+                ev = dequeue(shard);
+            } catch (InterruptedException e) {
+                logger.trace("dequeue: interrupted");
+                continue;
+            }
+            if (ev == null) {
+                logger.debug("event executor terminated: time={}, {} messages",
+                        getVTime(), getNumMessages());
+                return;
+            }
+            if (!isRealtime() && vtime < ev.vtime) {
+                vtime = ev.vtime;
+            }
+            if (ev.sender != ev.receiver) {
+                // counted per shard, as the shards run in their own threads
+                shard.nmsgs++;
+                if (EventExecutor.SHOW_PROGRESS && shard.nmsgs % 10000 == 0) {
+                    System.err.println("EventExecutor: " + getNumMessages()
+                            + " msgs, T=" + getVTime());
+                }
+            }
+            addCounter(ev.getType());
+            dispatch(ev);
+        }
+    }
+
+    /**
+     * run a simulation in parallel (conservative parallel discrete event
+     * simulation).
+     *
+     * <p>each peer (i.e., the LocalNodes sharing a PeerId) is a logical
+     * process.  peers are partitioned into the shards, which are executed
+     * by their own threads in rounds.  in a round, each shard executes its
+     * events whose vtime is smaller than the end of the round, which is the
+     * earliest vtime of all the events plus the lookahead (the minimum
+     * latency between distinct peers).  events sent to other peers are
+     * delivered at the end of the round.  as such an event is sent with a
+     * delay not smaller than the lookahead, it is never executed before
+     * the end of the round.  an event that violates this causes an
+     * IllegalStateException.  if the lookahead is unknown (0), the events
+     * are executed one by one as in the sequential simulation.
+     *
+     * <p>events that do not belong to any LocalNode (e.g., timer events
+     * scheduled by a simulation scenario) may access any LocalNode.  they
+     * are executed exclusively between rounds.
+     *
+     * <p>each LocalNode has its own random number generator and its own
+     * event serial numbers (which break ties of vtime), in the sequential
+     * simulation as well.  therefore, each peer executes the same events
+     * in the same order as in the sequential simulation and the result is
+     * identical to the sequential one for any number of threads (given the
+     * same seed), provided that an event accesses only the state of its
+     * own peer.
+     */
+    private void runParallel(long duration) {
+        logger.debug("Parallel Event Executor Started: {} shards",
+                shards.length);
+        long limit = (duration != 0 ? vtime + duration : Long.MAX_VALUE);
+        long lookahead = getLookahead();
+        if (lookahead <= 0) {
+            logger.warn("no lookahead is available; "
+                    + "the simulation is executed sequentially");
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(shards.length,
+                r -> new Thread(() -> execute(r), name + "-parallel"));
+        try {
+            while (!terminateExecutor) {
+                Event g = globalq.peek();
+                Event first = g;
+                Shard from = null;
+                for (Shard s : shards) {
+                    Event ev = s.timeq.peek();
+                    if (ev != null
+                            && (first == null || ev.compareTo(first) < 0)) {
+                        first = ev;
+                        from = s;
+                    }
+                }
+                if (first == null) {
+                    break;
+                }
+                long end = first.vtime + Math.max(0, lookahead);
+                if (limit != Long.MAX_VALUE) {
+                    end = Math.min(end, limit + 1);
+                }
+                if (g != null) {
+                    end = Math.min(end, g.vtime);
+                }
+                if (first == g || end <= first.vtime) {
+                    // execute the earliest event exclusively
+                    if (from == null) {
+                        globalq.poll();
+                    } else {
+                        from.timeq.poll();
+                    }
+                    if (vtime < first.vtime) {
+                        vtime = first.vtime;
+                    }
+                    if (first.sender != first.receiver) {
+                        nmsgs++;
+                    }
+                    addCounter(first.getType());
+                    dispatch(first);
+                    // like run(), stop after the first event beyond the limit
+                    if (first.vtime > limit) {
+                        break;
+                    }
+                    if (from == null) {
+                        // the scenario may have added nodes
+                        lookahead = getLookahead();
+                    }
+                    continue;
+                }
+                runRound(pool, end);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        logger.debug("event executor terminated: time={}, {} messages",
+                getVTime(), getNumMessages());
+    }
+
+    private void runRound(ExecutorService pool, long end) {
+        List<Future<?>> futures = new ArrayList<>();
+        inRound = true;
+        try {
+            for (Shard s : shards) {
+                Event ev = s.timeq.peek();
+                if (ev != null && ev.vtime < end) {
+                    futures.add(pool.submit(() -> runShard(s, end)));
+                }
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new Error(e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new Error(cause);
+                }
+            }
+        } finally {
+            inRound = false;
+        }
+        // deliver the events sent to other LocalNodes
+        for (Shard s : shards) {
+            for (Event ev : s.outbox) {
+                if (ev.vtime < end) {
+                    throw new IllegalStateException("the delay of " + ev
+                            + " is smaller than the lookahead");
+                }
+                addParallel(ev, localNodeOf(ev));
+            }
+            s.outbox.clear();
+        }
+        for (Shard s : shards) {
+            for (Event ev : s.cancels) {
+                cancelEvent(ev);
+            }
+            s.cancels.clear();
+            nmsgs += s.nmsgs;
+            s.nmsgs = 0;
+            if (vtime < s.now) {
+                vtime = s.now;
+            }
+        }
+    }
+
+    private void runShard(Shard s, long end) {
+        currentShard.set(s);
+        try {
+            while (true) {
+                Event ev = s.timeq.peek();
+                if (ev == null || ev.vtime >= end) {
+                    return;
+                }
+                s.timeq.poll();
+                s.now = ev.vtime;
+                if (ev.sender != ev.receiver) {
+                    s.nmsgs++;
+                }
+                addCounter(ev.getType());
+                dispatch(ev);
+            }
+        } finally {
+            currentShard.remove();
+        }
+    }
+
+    private void dispatch(Event ev) {
+        if (logger.isTraceEnabled()) {
+            String s;
+            if (ev.receiver != null) {
+                s = ev.receiver + " receives " + ev + " from " + ev.sender;
+            } else {
+                s = ev.toString();
+            }
+            logger.trace("-----------------------------------------");
+            logger.trace("T{} {}", getVTime(), s);
+            if (ev.receiver != null) {
+                logger.trace("{}", ev.receiver.toStringDetail());
+            }
+        }
+        if (ev.receiver != null) {
+            LocalNode receiver = null;
+            if (ev.receiver instanceof LocalNode) {
+                receiver = (LocalNode) ev.receiver;
+            } else {
+                assert ev.receiver.key == null;
+                // wild card case
+                receiver = nodeTable.getAnyInserted(ev.receiver.addr);
+                if (receiver == null) {
+                    logger.debug("No valid LocalNode: {}", ev);
+                    return;
+                }
+                ev.receiver = receiver;
+            }
+            currentNode.set(receiver);
+            try {
+                receiver.receive(ev);
+            } finally {
+                currentNode.remove();
+            }
+        } else if (ev.beforeRunHook(null)) {
+            if (ev instanceof TimerEvent) {
+                currentNode.set(((TimerEvent)ev).owner);
+            }
+            try {
+                ev.run();
+            } finally {
+                currentNode.remove();
+            }
+        }
+    }
+}
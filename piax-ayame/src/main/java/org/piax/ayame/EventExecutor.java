@@ -11,106 +11,87 @@
  
 package org.piax.ayame;
 
-import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 
 import org.piax.ayame.Event.TimerEvent;
 import org.piax.common.Option.BooleanOption;
-import org.piax.util.RandomUtil;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.piax.common.Option.IntegerOption;
 
+/**
+ * the static interface to the event executor.
+ *
+ * <p>each method operates on the {@link EventEngine} bound to the current
+ * thread, or on the default engine if no engine is bound.  event executor
+ * threads of an engine are always bound to the engine.
+ */
 public class EventExecutor {
-    private static final Logger logger = LoggerFactory.getLogger(EventExecutor.class);
     // run in real-time
     public static BooleanOption realtime = new BooleanOption(false, "-realtime");
+    /**
+     * the number of executor threads used in real-time mode.
+     * when more than one thread is used, events are sharded by the peer of
+     * their receiving LocalNode so that the events for the LocalNodes of a
+     * peer are processed by a single thread in order.
+     */
+    public static IntegerOption EXECUTOR_THREADS =
+            new IntegerOption(1, "-executor-threads");
+    /**
+     * the number of threads used in simulation.  if positive, simulation
+     * is executed in parallel (see {@link EventEngine#isParallelSimulation()})
+     * and the result is the same as that of the sequential simulation,
+     * regardless of the number of threads.
+     * 0 means the conventional sequential simulation.
+     */
+    public static IntegerOption PARALLEL_SIM_THREADS =
+            new IntegerOption(0, "-parallel-sim");
     public static boolean SHOW_PROGRESS = false;
 
-    private static long startTime; // init by reset();
-    private static long vtime; // init by reset();
-    public static int nmsgs; // init by reset();
-    private static int nextEventSerial; // init by reset();
-    private static ReentrantLock lock = new ReentrantLock();
-    private static Condition cond = lock.newCondition();
-    private static PriorityQueue<Event> timeq = new PriorityQueue<>();
-    private static Counters counters = new Counters();
-    private static boolean terminateExecutor = false;
+    private static final EventEngine defaultEngine =
+            new EventEngine("EventExecutor", null, EventEngine.newNodeTable());
 
-    static {
-        reset();
+    public static void load() {
     }
 
-    public static void load() {
+    /**
+     * returns the default engine, which is used by threads that are not
+     * bound to any engine.
+     *
+     * @return the default engine
+     */
+    public static EventEngine getDefaultEngine() {
+        return defaultEngine;
+    }
+
+    /**
+     * returns the engine bound to the current thread, or the default engine.
+     *
+     * @return the engine
+     */
+    public static EventEngine current() {
+        return EventEngine.current();
     }
 
     public static void reset() {
-        assert thread == null : "cannot reset while executor is running";
-        startTime = System.currentTimeMillis();
-        vtime = 0;
-        nmsgs = 0;
-        nextEventSerial = 0;
-        timeq.clear();
-        RandomUtil.renewSharedRandom();
-        LocalNode.resetLocalNodeMap();
-        Node.resetInstances();
+        current().reset();
     }
 
     public static void enqueue(Event ev) {
-        if (!realtime.value()) {
-            //assert ev.vtime != 0;
-            ev.serial = nextEventSerial++;
-            timeq.add(ev);
-        } else {
-            lock.lock();
-            ev.serial = nextEventSerial++;
-            timeq.add(ev);
-            cond.signal();
-            lock.unlock();
-        }
-        //System.out.println("enqueued: " + ev);
+        current().enqueue(ev);
     }
 
     public static Event dequeue() throws InterruptedException {
-        if (!realtime.value()) {
-            return timeq.poll();
-        }
-        // real-time version
-        Event ev;
-        lock.lock();
-        try {
-            while (true) {
-                ev = timeq.peek();
-                if (ev != null) {
-                    long rem = ev.vtime - getVTime();
-                    if (rem <= 0) {
-                        Event ev0 = timeq.poll();
-                        assert ev == ev0;
-                        return ev;
-                    }
-                    cond.await(rem, TimeUnit.MILLISECONDS);
-                } else {
-                    cond.await();
-                }
-            }
-        } finally {
-            lock.unlock();
-        }
+        return current().dequeue();
     }
 
     public static void cancelEvent(Event ev) {
-        if (!realtime.value()) {
-            timeq.remove(ev);
-        } else {
-            lock.lock();
-            timeq.remove(ev);
-            lock.unlock();
+        EventEngine engine = ev.engine;
+        if (engine == null) {
+            // not enqueued yet
+            return;
         }
+        engine.cancelEvent(ev);
     }
 
     @Deprecated
@@ -139,95 +120,107 @@ public class EventExecutor {
 
     public static TimerEvent sched(String name, long delay, long period,
             Consumer<TimerEvent> job) {
-        TimerEvent ev = new TimerEvent(name, delay, period, job);
-        ev.vtime = getVTime() + delay;
-        enqueue(ev);
-        return ev;
+        return current().sched(name, delay, period, job);
+    }
+
+    /**
+     * schedule a timer event on behalf of the specified LocalNode.
+     * the timer event is executed in the same thread as the events
+     * received by the node.
+     *
+     * @param owner the LocalNode that owns the timer event, or null
+     * @param name  the name of the timer event
+     * @param delay the delay
+     * @param run   the job to run
+     * @return the timer event
+     */
+    public static TimerEvent sched(LocalNode owner, String name, long delay,
+            Runnable run) {
+        return sched(owner, name, delay, 0, ev -> run.run());
+    }
+
+    public static TimerEvent sched(LocalNode owner, String name, long delay,
+            long period, Consumer<TimerEvent> job) {
+        return engineOf(owner).sched(owner, name, delay, period, job);
     }
 
     public static void runNow(String name, Runnable job) {
-        TimerEvent ev = new TimerEvent(name, 0, 0, (dummy) -> job.run());
-        ev.vtime = getVTime();
-        enqueue(ev);
+        runNow(EventEngine.getCurrentNode(), name, job);
+    }
+
+    public static void runNow(LocalNode owner, String name, Runnable job) {
+        engineOf(owner).runNow(owner, name, job);
     }
 
     public static CompletableFuture<Void> delay(String name, long delay) {
-        CompletableFuture<Void> future = new CompletableFuture<>();
-        TimerEvent ev = new TimerEvent(name, delay, 0, (dummy) -> {
-            future.complete(null);
-        });
-        ev.vtime = getVTime();
-        enqueue(ev);
-        return future;
+        return delay(EventEngine.getCurrentNode(), name, delay);
+    }
+
+    public static CompletableFuture<Void> delay(LocalNode owner, String name,
+            long delay) {
+        return engineOf(owner).delay(owner, name, delay);
     }
 
     public static CompletableFuture<Void> runNow(String name) {
         return delay(name, 0);
     }
 
-    public static long getVTime() {
-        if (realtime.value()) {
-            return System.currentTimeMillis() - startTime;
-        } else {
-            return vtime;
-        }
+    public static CompletableFuture<Void> runNow(LocalNode owner,
+            String name) {
+        return delay(owner, name, 0);
     }
 
-    @Override
-    public String toString() {
-        lock.lock();
-        String s = "Queue:" + timeq;
-        lock.unlock();
-        return s;
+    private static EventEngine engineOf(LocalNode owner) {
+        return owner != null ? owner.getEngine() : current();
+    }
+
+    public static boolean isParallelSimulation() {
+        return current().isParallelSimulation();
+    }
+
+    public static long getVTime() {
+        return current().getVTime();
     }
 
     /*
      * Consistent Random
      */
     public static Random random() {
-        return RandomUtil.getSharedRandom();
+        return current().random();
     }
 
     /*
      * Message Counters
      */
+    public static int getNumMessages() {
+        return current().getNumMessages();
+    }
+
+    public static void resetNumMessages() {
+        current().resetNumMessages();
+    }
+
     public static void resetMessageCounters() {
-        counters.clear();
+        current().resetMessageCounters();
     }
 
     public static void dumpMessageCounters() {
-        logger.debug("#message count");
-        for (Map.Entry<String, Integer> ent : counters.entrySet()) {
-            String name = ent.getKey();
-            Integer cnt = ent.getValue();
-            logger.debug("{}: {}", name, cnt);
-        }
+        current().dumpMessageCounters();
     }
 
     public static void addCounter(String name) {
-        counters.add(name, 1);
+        current().addCounter(name);
     }
 
     public static int getCounter(String name) {
-        return counters.get(name);
+        return current().getCounter(name);
     }
 
     /*
      * Event Executor
      */
-    private static Thread thread;
-    public static synchronized void startExecutorThread() {
-        if (thread == null) {
-            realtime.set(true);
-            terminateExecutor = false;
-            thread = new Thread(() -> {
-                run(0);
-                synchronized (EventExecutor.class) {
-                    thread = null;
-                }
-            });
-            thread.start();
-        }
+    public static void startExecutorThread() {
+        current().startExecutorThread();
     }
 
     /**
@@ -237,96 +230,10 @@ public class EventExecutor {
      * is not invoked from event executor context. 
      */
     public static void terminate() {
-        Thread t;
-        synchronized (EventExecutor.class) {
-            terminateExecutor = true;
-            t = thread;
-        }
-        if (t != null && Thread.currentThread() != t) {
-            t.interrupt();
-            try {
-                t.join();
-            } catch (InterruptedException e) {}
-        }
+        current().terminate();
     }
 
     public static void startSimulation(long duration) {
-        assert thread == null;
-        terminateExecutor = false;
-        run(duration);
-    }
-
-    private static void run(long duration) {
-        logger.debug("Event Executor Started");
-        long limit = 0;
-        if (duration != 0) {
-            limit = getVTime() + duration;
-        }
-        while (true) {
-            if (terminateExecutor) {
-                logger.debug("event executor terminated: time={}, {} messages",
-                        getVTime(), nmsgs);
-                return;
-            }
-            if (limit != 0 && getVTime() > limit) {
-                logger.debug(
-                        "*** execution time over: {} > {}", getVTime(), limit);
-                return;
-            }
-            Event ev;
-            try {
-                ev = dequeue();
-            } catch (InterruptedException e) {
-                logger.trace("dequeue: interrupted");
-                continue;
-            }
-            if (ev == null) {
-                logger.debug("event executor terminated: time={}, {} messages",
-                        getVTime(), nmsgs);
-                return;
-            }
-            if (!realtime.value() && vtime < ev.vtime) {
-                vtime = ev.vtime;
-            }
-            if (ev.sender != ev.receiver) {
-                nmsgs++;
-                if (SHOW_PROGRESS && nmsgs % 10000 == 0) {
-                    System.err.println("EventExecutor: " + nmsgs+ " msgs, T="
-                            + getVTime());
-                }
-            }
-            addCounter(ev.getType());
-            if (logger.isTraceEnabled()) {
-                String s;
-                if (ev.receiver != null) {
-                    s = ev.receiver + " receives " + ev + " from " + ev.sender;
-                } else {
-                    s = ev.toString();
-                }
-                logger.trace("-----------------------------------------");
-                logger.trace("T{} {}", getVTime(), s);
-                if (ev.receiver != null) {
-                    logger.trace("{}", ev.receiver.toStringDetail());
-                }
-            }
-            if (ev.receiver != null) {
-                LocalNode receiver = null;
-                if (ev.receiver instanceof LocalNode) {
-                    receiver = (LocalNode) ev.receiver;
-                } else {
-                    assert ev.receiver.key == null;
-                    // wild card case
-                    receiver = Node.getAnyLocalNode(ev.receiver.addr);
-                    if (receiver == null) {
-                        logger.debug("No valid LocalNode: {}", ev);
-                        continue;
-                    }
-                    ev.receiver = receiver;
-                }
-                receiver.receive(ev);
-            } else if (ev.beforeRunHook(null)) {
-                ev.run();
-            }
-        }
+        current().startSimulation(duration);
     }
 }
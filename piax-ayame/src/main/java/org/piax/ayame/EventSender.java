@@ -23,9 +23,20 @@ public interface EventSender {
 
     Endpoint getEndpoint();
 
+    /**
+     * returns the engine that executes the events of LocalNodes using
+     * this sender.
+     *
+     * @return the engine
+     */
+    default EventEngine getEngine() {
+        return EventEngine.current();
+    }
+
     public static class EventSenderSim implements EventSender {
+        // the latency used if no LatencyProvider is specified
+        public static final long DEFAULT_LATENCY = 100;
         private static EventSenderSim instance = new EventSenderSim();
-        private static LatencyProvider latencyProvider;
 
         private EventSenderSim() {
         }
@@ -40,15 +51,18 @@ public interface EventSender {
         }
 
         public static void setLatencyProvider(LatencyProvider p) {
-            latencyProvider = p;
+            EventEngine.current().setLatencyProvider(p);
         }
 
         @Override
         public CompletableFuture<Void> send(Event ev) {
+            EventEngine engine = ev.sender instanceof LocalNode
+                    ? ((LocalNode)ev.sender).getEngine()
+                    : EventEngine.current();
             if (ev.delay == Node.NETWORK_LATENCY) {
-                ev.delay = latency(ev.sender, ev.receiver);
+                ev.delay = latency(engine, ev.sender, ev.receiver);
             }
-            ev.vtime = EventExecutor.getVTime() + ev.delay;
+            ev.vtime = engine.getVTime() + ev.delay;
             if (logger.isTraceEnabled()) {
                 if (ev.delay != 0) {
                     logger.trace("{} |send/forward event {}, (arrive at T{})", ev.sender, ev, ev.vtime);
@@ -65,21 +79,22 @@ public interface EventSender {
             // because sender Events and receiver Events are distinguished,
             // we have to clone the event even if sender == receiver.
             Event copy = ev.clone();
-            EventExecutor.enqueue(copy);
+            engine.enqueue(copy);
             return CompletableFuture.completedFuture(null);
         }
 
-        private static long latency(Node a, Node b) {
-            if (EventExecutor.realtime.value()) {
+        private static long latency(EventEngine engine, Node a, Node b) {
+            if (engine.isRealtime()) {
                 return 0;
             }
             if (a == b) {
                 return 0;
             }
-            if (latencyProvider == null) {
-                return 100;
+            LatencyProvider p = engine.getLatencyProvider();
+            if (p == null) {
+                return DEFAULT_LATENCY;
             }
-            return latencyProvider.latency(a, b);
+            return p.latency(a, b);
         }
     }
 /*
@@ -17,6 +17,16 @@ import java.util.Map;
 public abstract class LatencyProvider {
     abstract long latency(Node a, Node b);
 
+    /**
+     * returns the lower bound of the latency between distinct nodes.
+     * used as the lookahead of parallel simulation.
+     *
+     * @return the minimum latency, or 0 if unknown
+     */
+    public long minLatency() {
+        return 0;
+    }
+
     public static class StarLatencyProvider extends LatencyProvider {
         Map<Node, Long> map = new HashMap<>();
         
@@ -31,5 +41,24 @@ public abstract class LatencyProvider {
             //* 2 * NetworkParams.JITTER.value()) - NetworkParams.JITTER.value();
             return l1 + l2;
         }
+
+        @Override
+        public long minLatency() {
+            // the latency between distinct nodes is at least the sum of
+            // the two smallest latencies
+            if (map.size() < 2) {
+                return 0;
+            }
+            long min1 = Long.MAX_VALUE, min2 = Long.MAX_VALUE;
+            for (long l : map.values()) {
+                if (l < min1) {
+                    min2 = min1;
+                    min1 = l;
+                } else if (l < min2) {
+                    min2 = l;
+                }
+            }
+            return min1 + min2;
+        }
     }
 }
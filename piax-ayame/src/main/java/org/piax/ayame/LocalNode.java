@@ -13,20 +13,22 @@ package org.piax.ayame;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Random;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -45,6 +47,7 @@ import org.piax.common.Endpoint;
 import org.piax.common.PeerId;
 import org.piax.common.subspace.Range;
 import org.piax.gtrans.TransOptions;
+import org.piax.util.MersenneTwister;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -55,6 +58,11 @@ public class LocalNode extends Node {
     public long insertionEndTime;
 
     protected EventSender sender; // XXX used to be a final field
+    protected final EventEngine engine;
+    // for parallel simulation
+    final int ordinal;
+    long nextEventSerial;
+    Random random;
     public Node introducer;
     public Node succ, pred;
     public NodeMode mode = NodeMode.OUT;
@@ -63,10 +71,6 @@ public class LocalNode extends Node {
     // for statistics
     public Counters counters = new Counters();
 
-    // to support multi-keys
-    protected static Map<PeerId, SortedSet<LocalNode>> localNodeMap
-        = new ConcurrentHashMap<>();
-
     // stackable strategies
     ArrayList<NodeStrategy> strategies = new ArrayList<>();
     Map<Class<? extends NodeStrategy>, NodeStrategy> strategyMap = new HashMap<>();
@@ -84,18 +88,43 @@ public class LocalNode extends Node {
     public final static int PURGE_FAILED_NODE_TIME = 2*60*1000; 
     private Set<Node> possiblyFailedNodes = new HashSet<>();
 
+    // the version of the routing entries, shared by the siblings
+    private final AtomicLong routingVersion;
+    private volatile RoutingIndex routingIndex = RoutingIndex.EMPTY;
+
     public LocalNode(DdllKey ddllkey, Endpoint e) {
         this(EventSenderSim.getInstance(), ddllkey);
     }
 
     public LocalNode(EventSender sender, DdllKey ddllkey) {
-        super(ddllkey, sender.getEndpoint());
-        assert getInstance(ddllkey) == this; 
+        this(sender.getEngine(), sender, ddllkey);
+    }
+
+    private LocalNode(EventEngine engine, EventSender sender,
+            DdllKey ddllkey) {
+        super(engine, ddllkey, sender.getEndpoint());
+        this.engine = engine;
+        this.ordinal = engine.nextNodeOrdinal();
+        if (!engine.isRealtime()) {
+            this.random = new MersenneTwister(engine.random().nextLong());
+        }
+        assert engine.nodeTable.get(ddllkey) == this;
         // to support multi-keys
+        Map<PeerId, SortedSet<LocalNode>> localNodeMap = engine.localNodeMap;
+        this.routingVersion = engine.routingVersions.computeIfAbsent(peerId,
+                k -> new AtomicLong());
         localNodeMap.computeIfAbsent(peerId, k -> new ConcurrentSkipListSet<>())
             .add(this);
-        cleanup.add(() -> localNodeMap.get(peerId).remove(this));
-        cleanup.add(() -> possiblyFailedNodes.clear());
+        routingEntriesChanged();
+        cleanup.add(() -> {
+            localNodeMap.get(peerId).remove(this);
+            engine.nodeTable.remove(this);
+            routingEntriesChanged();
+        });
+        cleanup.add(() -> {
+            possiblyFailedNodes.clear();
+            routingEntriesChanged();
+        });
         this.sender = sender;
     }
 
@@ -165,6 +194,7 @@ public class LocalNode extends Node {
     public void setPred(Node newPred) {
         Node old = pred;
         pred = newPred;
+        routingEntriesChanged();
         if (pred != null && this.predChange != null) {
             this.predChange.run(old, newPred);
         }
@@ -173,17 +203,25 @@ public class LocalNode extends Node {
     public void setSucc(Node newSucc) {
         Node old = succ;
         succ = newSucc;
+        routingEntriesChanged();
         if (pred != null && this.predChange != null) {
             this.succChange.run(old, newSucc);
         }
     }
 
     public List<LocalNode> getSiblings() {
-        return localNodeMap.get(peerId).stream()
+        return engine.localNodeMap.get(peerId).stream()
                 .filter(v -> v.isInserted())
                 .collect(Collectors.toList());
     }
     
+    public void setMode(NodeMode mode) {
+        this.mode = mode;
+        // maintain the index for the wildcard receivers
+        engine.nodeTable.modeChanged(this, mode);
+        routingEntriesChanged();
+    }
+
     public boolean isInserted() {
         // GRACE状態のノードもルーティング可能とするために，GRACEも挿入状態とみなす．
         return mode == NodeMode.INSERTED || mode == NodeMode.DELETING
@@ -233,7 +271,7 @@ public class LocalNode extends Node {
                 if (e != null && ev.failureCallback != null) {
                     // It might be completed on the receiver transport thread.
                     // Ensure to run on the execution thread.
-                    EventExecutor.runNow("post: failureCallback", () -> {
+                    engine.runNow(this, "post: failureCallback", () -> {
                         ev.failureCallback.run(new NetEventException(e));
                     });
                 }
@@ -296,7 +334,7 @@ public class LocalNode extends Node {
                 if (e != null && ev.failureCallback != null) {
                     // It might be completed on the receiver transport thread.
                     // Ensure to run on the execution thread.
-                    EventExecutor.runNow("forward: failureCallback", () -> {
+                    engine.runNow(this, "forward: failureCallback", () -> {
                         ev.failureCallback.run(new NetEventException(e));
                     });
                 }
@@ -305,7 +343,7 @@ public class LocalNode extends Node {
     }
 
     private long getVTime() {
-        return EventExecutor.getVTime();
+        return engine.getVTime();
     }
 
     public long getInsertionTime() {
@@ -320,16 +358,18 @@ public class LocalNode extends Node {
         if (node != this) {
             if (!possiblyFailedNodes.contains(node)) {
                 possiblyFailedNodes.add(node);
+                routingEntriesChanged();
                 // schedule a purge event.
                 // the purge event is cancelled on cleanup but this cleanup
                 // is also cancelled on purge.... 
                 Indirect<Runnable> cancel = new Indirect<>();
-                Event purge = EventExecutor.sched("purge-failed-node",
+                Event purge = engine.sched(this, "purge-failed-node",
                         PURGE_FAILED_NODE_TIME, () -> {
                             possiblyFailedNodes.remove(node);
+                            routingEntriesChanged();
                             cleanup.remove(cancel.val);
                         });
-                cancel.val = () -> EventExecutor.cancelEvent(purge);
+                cancel.val = () -> engine.cancelEvent(purge);
                 cleanup.add(cancel.val);
             }
         }
@@ -383,7 +423,7 @@ public class LocalNode extends Node {
      */
     public void joinInitialNode() {
         getTopStrategy().initInitialNode();
-        mode = NodeMode.INSERTED;
+        setMode(NodeMode.INSERTED);
         insertionStartTime = insertionEndTime = getVTime();
     }
 
@@ -397,7 +437,7 @@ public class LocalNode extends Node {
      */
     public CompletableFuture<Void> joinAsync(Node introducer) { 
         CompletableFuture<Void> joinFuture = new CompletableFuture<>();
-        EventExecutor.runNow("joinAsync", () -> {
+        engine.runNow(this, "joinAsync", () -> {
             joinAsync(introducer, INSERTION_DELETION_RETRY, joinFuture);
         });
         return joinFuture;
@@ -414,7 +454,7 @@ public class LocalNode extends Node {
         if (insertionStartTime == -1) {
             insertionStartTime = getVTime();
         }
-        this.mode = NodeMode.INSERTING;
+        setMode(NodeMode.INSERTING);
         this.introducer = introducer;
         Consumer<Throwable> retry = (exc) -> {
             if (exc instanceof CompletionException) {
@@ -446,12 +486,12 @@ public class LocalNode extends Node {
                 .join(results)
                 .whenComplete((rc, exc2) -> {
                     if (exc2 != null) {
-                        mode = NodeMode.OUT;
+                        setMode(NodeMode.OUT);
                         retry.accept(exc2);
                         return;
                     }
                     insertionEndTime = getVTime();
-                    mode = NodeMode.INSERTED;
+                    setMode(NodeMode.INSERTED);
                     joinFuture.complete(null);
                 });
         });
@@ -465,8 +505,8 @@ public class LocalNode extends Node {
             f.completeExceptionally(new IllegalStateException("not inserted"));
             return f;
         }
-        mode = NodeMode.DELETING;
-        return EventExecutor.runNow("leaveAsync")
+        setMode(NodeMode.DELETING);
+        return engine.runNow(this, "leaveAsync")
             .thenCompose((success) -> {
                 return getTopStrategy().leave();
             }).thenRun(() -> {
@@ -498,44 +538,61 @@ public class LocalNode extends Node {
         return this.isFailed;
     }
 
+    /**
+     * notify that the routing entries of this node (or its siblings) may
+     * have been changed.  this method must be called when the finger
+     * tables, succ/pred, the mode or the possibly failed nodes are
+     * changed.
+     */
+    public void routingEntriesChanged() {
+        routingVersion.incrementAndGet();
+    }
+
+    /**
+     * returns the routing index.  the index is rebuilt if the routing
+     * entries have been changed since it was built.
+     *
+     * @return the routing index
+     */
+    RoutingIndex getRoutingIndex() {
+        if (!getTopStrategy().notifiesRoutingChange()) {
+            return RoutingIndex.build(this, -1);
+        }
+        RoutingIndex idx = routingIndex;
+        long v = routingVersion.get();
+        if (idx.version != v) {
+            // building the index may change the routing entries (e.g.,
+            // FingerTable#getFTEntry(int) updates the 0th entry).  in that
+            // case, the index is rebuilt on the next call.
+            idx = RoutingIndex.build(this, v);
+            routingIndex = idx;
+        }
+        return idx;
+    }
+
     /**
      * returns a stream of "active" nodes, that are nodes suitable for routing.
+     * the nodes are sorted by key.
+     * 
      * @return stream of active nodes
      */
     public Stream<Node> getActiveNodeStream() {
-        List<FTEntry> allNodes = getTopStrategy().getRoutingEntries();
-
-        // collect [me, successor)
-        List<Node> successors = new ArrayList<>();
-        for (LocalNode v : getSiblings()) {
-            successors.add(v.succ);
-        }
         // XXX: merge possiblyFailedNodes over siblings
-        return allNodes.stream()
-                .map(ent -> ent.allNodes())
-                .flatMap(list -> {
-                    Optional<Node> p = list.stream()
-                            .filter(node -> 
-                                (successors.contains(node)
-                                || !possiblyFailedNodes.contains(node))) 
-                            .findFirst();
-                    return streamopt(p);
-                })
-                .distinct();
-    }
-
-    private static <T> Stream<T> streamopt(Optional<T> opt) {
-        if (opt.isPresent()) {
-            return Stream.of(opt.get());
-        } else {
-            return Stream.empty();
-        }
+        return Arrays.stream(getRoutingIndex().active);
+    }
+
+    /**
+     * returns the "active" nodes sorted by key.
+     * 
+     * @return unmodifiable list of active nodes
+     */
+    public List<Node> getActiveNodes() {
+        return Collections.unmodifiableList(
+                Arrays.asList(getRoutingIndex().active));
     }
 
     public Node getClosestPredecessor(DdllKey k) {
-        Comparator<Node> comp = getComparator(k);
-        Optional<Node> n = getActiveNodeStream().max(comp);
-        return n.orElse(null);
+        return getRoutingIndex().closestPredecessor(k);
     }
 
     public static Comparator<Node> getComparator(DdllKey k) {
@@ -563,20 +620,8 @@ public class LocalNode extends Node {
      * @return List of Node
      */
     public List<Node> getNodesForFix(DdllKey k) {
-        Comparator<Node> comp = getComparator(k);
-        List<FTEntry> all = getTopStrategy().getRoutingEntries();
-        List<Node> cands = all.stream()
-            .map(ent -> ent.allNodes())
-            .flatMap(list -> list.stream())
-            .filter(p -> Node.isOrdered(this.key, true, p.key, k, false))
-            .distinct()
-            .sorted(comp)
-            .collect(Collectors.toCollection(ArrayList::new));
-        if (cands.size() > 0 && cands.get(cands.size() - 1) == this) {
-            cands.remove(cands.size() - 1);
-            cands.add(0, this);
-        }
-        return cands;
+        // the nodes in the ring order starting from myKey
+        return getRoutingIndex().nodesIn(this.key, k);
     }
 
     public void cleanup() {
@@ -584,8 +629,12 @@ public class LocalNode extends Node {
         cleanup.clear();
     }
 
-    // called from EventExecutor.reset()
+    public EventEngine getEngine() {
+        return engine;
+    }
+
+    // called from EventEngine.reset()
     public static void resetLocalNodeMap() {
-        localNodeMap.clear();
+        EventEngine.current().localNodeMap.clear();
     }
 }
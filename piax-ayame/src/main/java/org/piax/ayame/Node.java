@@ -13,13 +13,10 @@ package org.piax.ayame;
 
 import java.io.ObjectStreamException;
 import java.io.Serializable;
-import java.util.Map;
-import java.util.Optional;
 
 import org.piax.common.DdllKey;
 import org.piax.common.Endpoint;
 import org.piax.common.PeerId;
-import org.piax.util.ConcurrentReferenceHashMap;
 
 public class Node implements Comparable<Node>, Serializable {
     public static enum NodeMode {
@@ -38,57 +35,61 @@ public class Node implements Comparable<Node>, Serializable {
     public final Endpoint addr;
     public final PeerId peerId;
 
-    // we have to guard `instances' with synchronized block
-    private static Map<DdllKey, Node> instances
-        = new ConcurrentReferenceHashMap<>(16,
-                ConcurrentReferenceHashMap.ReferenceType.WEAK,
-                ConcurrentReferenceHashMap.ReferenceType.WEAK);
+    // the interned instances are held by the NodeTable of EventEngine.
 
-    public static synchronized void resetInstances() {
-        instances.clear();
+    public static void resetInstances() {
+        EventEngine.current().nodeTable.clear();
     }
 
-    public static synchronized Node getInstance(DdllKey ddllkey, Endpoint ep) {
-        Node n = instances.get(ddllkey);
+    public static Node getInstance(DdllKey ddllkey, Endpoint ep) {
+        if (ddllkey == null) {
+            return new Node(true, null, ep);
+        }
+        NodeTable table = EventEngine.current().nodeTable;
+        Node n = table.get(ddllkey);
         if (n == null) {
-            n = new Node(ddllkey, ep);
+            Node created = new Node(true, ddllkey, ep);
+            n = table.putIfAbsent(created);
+            if (n == null) {
+                n = created;
+            }
         }
         return n;
     }
 
-    public static synchronized Node getInstance(DdllKey ddllkey) {
-        return instances.get(ddllkey);
+    public static Node getInstance(DdllKey ddllkey) {
+        return EventEngine.current().nodeTable.get(ddllkey);
     }
 
     public static Node getWildcardInstance(Endpoint ep) {
         return new Node(null, ep);
     }
 
-    public static synchronized LocalNode getAnyLocalNode(Endpoint addr) {
-        Optional<Node> anyNode = instances.values().stream()
-                .filter(v -> (v instanceof LocalNode)
-                        && ((LocalNode)v).mode == NodeMode.INSERTED
-                        && ((LocalNode)v).addr.equals(addr))
-                .findFirst();
-        return (LocalNode) anyNode.orElse(null);
+    public static LocalNode getAnyLocalNode(Endpoint addr) {
+        return getAnyLocalNode(EventEngine.current(), addr);
     }
 
-    protected Node(DdllKey ddllkey, Endpoint ep) {
+    static LocalNode getAnyLocalNode(EventEngine engine, Endpoint addr) {
+        return engine.nodeTable.getAnyInserted(addr);
+    }
+
+    // private constructor that does not intern the instance
+    private Node(@SuppressWarnings("unused") boolean dummy,
+            DdllKey ddllkey, Endpoint ep) {
         this.key = ddllkey;
         this.addr = ep;
-        if (key != null) {
-            this.peerId = ddllkey.getPeerId();
-        } else {
-            this.peerId = null;
-        }
-        synchronized (Node.class) {
-            if (ddllkey != null) {
-                if (instances.containsKey(ddllkey)) {
-                    assert !(this instanceof LocalNode);
-                } else {
-                    instances.put(ddllkey, this);
-                }
-            }
+        this.peerId = ddllkey != null ? ddllkey.getPeerId() : null;
+    }
+
+    protected Node(DdllKey ddllkey, Endpoint ep) {
+        this(EventEngine.current(), ddllkey, ep);
+    }
+
+    protected Node(EventEngine engine, DdllKey ddllkey, Endpoint ep) {
+        this(true, ddllkey, ep);
+        if (ddllkey != null) {
+            Node prev = engine.nodeTable.putIfAbsent(this);
+            assert prev == null || !(this instanceof LocalNode);
         }
     }
     
@@ -46,6 +46,20 @@ public abstract class NodeStrategy {
         return getLower().getRoutingEntries();
     }
 
+    /**
+     * returns true if {@link LocalNode#routingEntriesChanged()} is called
+     * whenever the result of {@link #getRoutingEntries()} may change.
+     * if true, the LocalNode caches the routing entries in a sorted index.
+     * a strategy that overrides {@link #getRoutingEntries()} must also
+     * override this method.
+     * 
+     * @return true if changes of the routing entries are notified.
+     */
+    public boolean notifiesRoutingChange() {
+        NodeStrategy lower = getLower();
+        return lower != null && lower.notifiesRoutingChange();
+    }
+
     public boolean isResponsible(DdllKey key) {
         return Node.isIn2(key, n.key, getSuccessor().key);
     }
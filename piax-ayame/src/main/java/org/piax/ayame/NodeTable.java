@@ -0,0 +1,125 @@
+/*
+ * NodeTable.java - A table of interned Node instances
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.piax.ayame.Node.NodeMode;
+import org.piax.common.DdllKey;
+import org.piax.common.Endpoint;
+import org.piax.util.ConcurrentReferenceHashMap;
+
+/**
+ * the interned Node instances and an index of the inserted LocalNodes
+ * by endpoint.
+ * a NodeTable is shared by the engines that share the Node instances.
+ * <p>
+ * the table is accessed without a global lock.  an instance is interned
+ * by putIfAbsent, so that concurrent threads (e.g., the I/O threads that
+ * deserialize events) obtain the same instance for a key.
+ */
+class NodeTable {
+    // interned Node instances.  the unused ones are garbage collected.
+    private final Map<DdllKey, Node> instances =
+            new ConcurrentReferenceHashMap<>(16,
+                    ConcurrentReferenceHashMap.ReferenceType.WEAK,
+                    ConcurrentReferenceHashMap.ReferenceType.WEAK);
+    // endpoint -> the LocalNodes in INSERTED mode.
+    // the number of the endpoints is the number of the local transports.
+    private final Map<Endpoint, NavigableSet<LocalNode>> inserted =
+            new ConcurrentHashMap<>();
+
+    Node get(DdllKey key) {
+        return instances.get(key);
+    }
+
+    /**
+     * interns the specified node unless a node with the same key has been
+     * interned.
+     *
+     * @param node the node
+     * @return the interned node, or null if the node is interned
+     */
+    Node putIfAbsent(Node node) {
+        return instances.putIfAbsent(node.key, node);
+    }
+
+    /**
+     * called when the mode of a LocalNode is changed.
+     *
+     * @param node the LocalNode
+     * @param mode the new mode
+     */
+    void modeChanged(LocalNode node, NodeMode mode) {
+        if (node.addr == null) {
+            return;
+        }
+        if (mode == NodeMode.INSERTED) {
+            inserted.computeIfAbsent(node.addr,
+                    k -> new ConcurrentSkipListSet<>()).add(node);
+        } else {
+            remove(node);
+        }
+    }
+
+    /**
+     * removes a LocalNode from the index.
+     *
+     * @param node the LocalNode
+     */
+    void remove(LocalNode node) {
+        if (node.addr == null) {
+            return;
+        }
+        NavigableSet<LocalNode> nodes = inserted.get(node.addr);
+        if (nodes != null) {
+            nodes.remove(node);
+        }
+    }
+
+    /**
+     * returns an inserted LocalNode that has the specified endpoint.
+     *
+     * @param addr the endpoint
+     * @return the LocalNode, or null if there is no such LocalNode
+     */
+    LocalNode getAnyInserted(Endpoint addr) {
+        if (addr == null) {
+            return null;
+        }
+        // the endpoints are compared by equals instead of looking up the
+        // map, because a wildcard endpoint (e.g., a PrimaryKey without
+        // a key) equals an endpoint that has a different hash code.
+        for (Map.Entry<Endpoint, NavigableSet<LocalNode>> ent
+                : inserted.entrySet()) {
+            if (!ent.getKey().equals(addr)) {
+                continue;
+            }
+            // the index is maintained on mode changes, but check the mode
+            // in case the node is being removed concurrently.
+            for (LocalNode n : ent.getValue()) {
+                if (n.mode == NodeMode.INSERTED) {
+                    return n;
+                }
+            }
+        }
+        return null;
+    }
+
+    void clear() {
+        instances.clear();
+        inserted.clear();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * RoutingIndex.java - A sorted index of routing entries
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.piax.common.DdllKey;
+
+/**
+ * an immutable snapshot of the routing entries of a LocalNode, sorted by
+ * key.
+ *
+ * <p>a LocalNode keeps the latest snapshot and rebuilds it only when the
+ * version of the routing entries is changed (see
+ * {@link LocalNode#routingEntriesChanged()}), so that
+ * {@link LocalNode#getClosestPredecessor(DdllKey)} is a binary search.
+ */
+final class RoutingIndex {
+    static final RoutingIndex EMPTY = new RoutingIndex(-1, new Node[0],
+            new Node[0]);
+
+    // the version of the routing entries this index is built from
+    final long version;
+    // nodes suitable for routing, sorted by key
+    final Node[] active;
+    // all the nodes in the routing entries, sorted by key
+    final Node[] all;
+
+    private RoutingIndex(long version, Node[] active, Node[] all) {
+        this.version = version;
+        this.active = active;
+        this.all = all;
+    }
+
+    /**
+     * build an index from the routing entries of the top strategy of a
+     * LocalNode.
+     *
+     * <p>from each entry, the first node that is the successor of a sibling
+     * or is not possibly failed is taken as an active node.
+     *
+     * @param n the local node
+     * @param version the version of the routing entries
+     * @return the index
+     */
+    static RoutingIndex build(LocalNode n, long version) {
+        List<FTEntry> ents = n.getTopStrategy().getRoutingEntries();
+        // collect [me, successor)
+        Set<Node> successors = Collections.newSetFromMap(
+                new IdentityHashMap<>());
+        for (LocalNode v : n.getSiblings()) {
+            successors.add(v.succ);
+        }
+        Set<Node> active = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<Node> all = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Node> activeList = new ArrayList<>();
+        List<Node> allList = new ArrayList<>();
+        for (FTEntry ent : ents) {
+            boolean found = false;
+            for (Node node : ent.allNodes()) {
+                if (all.add(node)) {
+                    allList.add(node);
+                }
+                if (!found && (successors.contains(node)
+                        || !n.isPossiblyFailed(node))) {
+                    found = true;
+                    if (active.add(node)) {
+                        activeList.add(node);
+                    }
+                }
+            }
+        }
+        Node[] a = activeList.toArray(new Node[activeList.size()]);
+        Node[] b = allList.toArray(new Node[allList.size()]);
+        Arrays.sort(a);
+        Arrays.sort(b);
+        return new RoutingIndex(version, a, b);
+    }
+
+    /**
+     * returns the index of the node whose key is the largest one that is
+     * not greater than k.  if there is no such node, the index of the
+     * node that has the largest key is returned (i.e., wrap around).
+     */
+    private static int floor(Node[] nodes, DdllKey k) {
+        int lo = 0, hi = nodes.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = nodes[mid].key.compareTo(k);
+            if (c == 0) {
+                return mid;
+            } else if (c < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        // nodes[hi] < k < nodes[lo]
+        return hi >= 0 ? hi : nodes.length - 1;
+    }
+
+    /**
+     * returns the active node that is the closest predecessor of k.
+     * a node whose key equals to k is also a predecessor of k.
+     *
+     * @param k the key
+     * @return the node or null if there are no active nodes
+     */
+    Node closestPredecessor(DdllKey k) {
+        if (active.length == 0) {
+            return null;
+        }
+        return active[floor(active, k)];
+    }
+
+    /**
+     * returns the nodes whose keys are in [from, to), in the ring order
+     * starting from the node whose key is the first one at or after from.
+     * if from equals to to, all the nodes are returned.
+     *
+     * @param from the start key (inclusive)
+     * @param to the end key (exclusive)
+     * @return the list of nodes
+     */
+    List<Node> nodesIn(DdllKey from, DdllKey to) {
+        List<Node> list = new ArrayList<>();
+        int n = all.length;
+        if (n == 0) {
+            return list;
+        }
+        int start = floor(all, from);
+        if (all[start].key.compareTo(from) != 0) {
+            // the successor of from
+            start = (start + 1) % n;
+        }
+        for (int i = 0; i < n; i++) {
+            Node node = all[(start + i) % n];
+            if (!Node.isOrdered(from, true, node.key, to, false)) {
+                break;
+            }
+            list.add(node);
+        }
+        return list;
+    }
+}
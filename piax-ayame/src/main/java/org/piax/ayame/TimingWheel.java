@@ -0,0 +1,216 @@
+/*
+ * TimingWheel.java - A hashed timing wheel for Events
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.ayame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * a hashed timing wheel that holds events ordered by (vtime, serial).
+ *
+ * <p>an event is linked into the slot {@code tick % nslots}, where the tick
+ * of an event is its vtime (clamped to the current position of the wheel).
+ * each slot is a doubly-linked list sorted by (tick, serial), so that
+ * {@link #add(Event)} is O(1) for the usual case where the new event has
+ * the latest tick and the largest serial in its slot, and
+ * {@link #remove(Event)} is always O(1).
+ *
+ * <p>the order of events retrieved by {@link #poll()} is the same as that
+ * of a {@code PriorityQueue<Event>}, except that events whose vtime is in
+ * the past are treated as if they were scheduled at the current position.
+ *
+ * <p>this class is not thread-safe.
+ */
+public class TimingWheel {
+    private final int mask;
+    private final Event[] heads;
+    private final Event[] tails;
+    // bitmap of non-empty slots
+    private final long[] nonEmpty;
+    // the tick of the last polled event.  every event in the wheel has
+    // a tick that is not smaller than this value.
+    private long cursor;
+    private int size;
+
+    /**
+     * create a timing wheel.
+     *
+     * @param nslots the number of slots.  must be a power of two.
+     */
+    public TimingWheel(int nslots) {
+        if (nslots < 64 || Integer.bitCount(nslots) != 1) {
+            throw new IllegalArgumentException(
+                    "nslots must be a power of two not less than 64: "
+                            + nslots);
+        }
+        this.mask = nslots - 1;
+        this.heads = new Event[nslots];
+        this.tails = new Event[nslots];
+        this.nonEmpty = new long[nslots / 64];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void add(Event ev) {
+        assert ev.wheel == null : "already in a wheel: " + ev;
+        ev.wheel = this;
+        ev.wheelTick = Math.max(ev.vtime, cursor);
+        int slot = (int) (ev.wheelTick & mask);
+        // find the insertion point scanning from the tail
+        Event prev = tails[slot];
+        while (prev != null && compare(prev, ev) > 0) {
+            prev = prev.wheelPrev;
+        }
+        Event next = (prev == null ? heads[slot] : prev.wheelNext);
+        ev.wheelPrev = prev;
+        ev.wheelNext = next;
+        if (prev == null) {
+            heads[slot] = ev;
+        } else {
+            prev.wheelNext = ev;
+        }
+        if (next == null) {
+            tails[slot] = ev;
+        } else {
+            next.wheelPrev = ev;
+        }
+        nonEmpty[slot >>> 6] |= 1L << slot;
+        size++;
+    }
+
+    /**
+     * remove the specified event from the wheel.
+     *
+     * @param ev the event
+     * @return true if the event was in the wheel
+     */
+    public boolean remove(Event ev) {
+        if (ev.wheel != this) {
+            return false;
+        }
+        int slot = (int) (ev.wheelTick & mask);
+        Event prev = ev.wheelPrev, next = ev.wheelNext;
+        if (prev == null) {
+            heads[slot] = next;
+        } else {
+            prev.wheelNext = next;
+        }
+        if (next == null) {
+            tails[slot] = prev;
+        } else {
+            next.wheelPrev = prev;
+        }
+        if (heads[slot] == null) {
+            nonEmpty[slot >>> 6] &= ~(1L << slot);
+        }
+        ev.wheelPrev = ev.wheelNext = null;
+        ev.wheel = null;
+        size--;
+        return true;
+    }
+
+    /**
+     * returns the earliest event without removing it.
+     *
+     * @return the earliest event or null if the wheel is empty
+     */
+    public Event peek() {
+        if (size == 0) {
+            return null;
+        }
+        // scan the non-empty slots within one round from the cursor.
+        // the head of a slot is the earliest event if it belongs to the
+        // current round.
+        int start = (int) (cursor & mask);
+        int nslots = mask + 1;
+        Event min = null;
+        for (int i = 0; i < nslots; ) {
+            int slot = (start + i) & mask;
+            long bits = nonEmpty[slot >>> 6] >>> (slot & 63);
+            if (bits == 0) {
+                i += 64 - (slot & 63);
+                continue;
+            }
+            int skip = Long.numberOfTrailingZeros(bits);
+            i += skip;
+            if (i >= nslots) {
+                break;
+            }
+            slot = (start + i) & mask;
+            Event head = heads[slot];
+            if (head.wheelTick == cursor + i) {
+                return head;
+            }
+            if (min == null || compare(head, min) < 0) {
+                min = head;
+            }
+            i++;
+        }
+        // every event is scheduled beyond the current round
+        return min;
+    }
+
+    /**
+     * removes and returns the earliest event.
+     *
+     * @return the earliest event or null if the wheel is empty
+     */
+    public Event poll() {
+        Event ev = peek();
+        if (ev != null) {
+            remove(ev);
+            cursor = ev.wheelTick;
+        }
+        return ev;
+    }
+
+    public void clear() {
+        for (Event ev : toList()) {
+            remove(ev);
+        }
+        cursor = 0;
+    }
+
+    /**
+     * returns the events in the wheel, in no particular order.
+     *
+     * @return the list of events
+     */
+    public List<Event> toList() {
+        List<Event> list = new ArrayList<>(size);
+        for (int slot = 0; slot <= mask; slot++) {
+            for (Event ev = heads[slot]; ev != null; ev = ev.wheelNext) {
+                list.add(ev);
+            }
+        }
+        return list;
+    }
+
+    private static int compare(Event a, Event b) {
+        int x = Long.compare(a.wheelTick, b.wheelTick);
+        if (x != 0) {
+            return x;
+        }
+        return Long.compare(a.serial, b.serial);
+    }
+
+    @Override
+    public String toString() {
+        return toList().toString();
+    }
+}
@@ -41,7 +41,6 @@ import org.piax.ayame.ov.ddll.DdllEvent.SetRJob;
 import org.piax.ayame.ov.ddll.DdllEvent.SetRNak;
 import org.piax.common.Option.EnumOption;
 import org.piax.common.Option.IntegerOption;
-import org.piax.util.RandomUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -139,6 +138,12 @@ public class DdllStrategy extends NodeStrategy {
                 .collect(Collectors.toList());
     }
 
+    @Override
+    public boolean notifiesRoutingChange() {
+        // the routing entries depend only on succ and pred
+        return true;
+    }
+
     /**
      * returns true if this node is likely to be inserted.
      * 
@@ -152,6 +157,7 @@ public class DdllStrategy extends NodeStrategy {
     public void initInitialNode() {
         n.succ = n;
         n.pred = n;
+        n.routingEntriesChanged();
         setStatus(DdllStatus.IN);
         schedNextPing();
     }
@@ -164,6 +170,7 @@ public class DdllStrategy extends NodeStrategy {
     private CompletableFuture<Void> join(Node pred, Node succ, SetRJob setRjob) {
         n.pred = pred;
         n.succ = succ;
+        n.routingEntriesChanged();
         setStatus(DdllStatus.INS);
         SetR ev = new SetR(n.pred, SetRType.NORMAL, n, n.succ,
                 new LinkSeq(0, 0), setRjob);
@@ -212,7 +219,7 @@ public class DdllStrategy extends NodeStrategy {
                         break;
                     case RANDOM:
                         // I don't remember why HALFWAY_DELAY is used (k-abe)
-                        delay = RandomUtil.getSharedRandom().nextInt(JOIN_RETRY_DELAY)
+                        delay = EventExecutor.random().nextInt(JOIN_RETRY_DELAY)
                                 * NetworkParams.HALFWAY_DELAY;
                         break;
                     case CONST:
@@ -282,7 +289,7 @@ public class DdllStrategy extends NodeStrategy {
                 logger.debug("pred: {}", getPredecessor().toStringDetail());
                 long delay =
                         (long) (NetworkParams.ONEWAY_DELAY
-                                * RandomUtil.getSharedRandom().nextDouble());
+                                * EventExecutor.random().nextDouble());
                 return EventExecutor.delay("ddll.leaveretry", delay)
                         .thenCompose(dummy -> leave(setRjob));
             }
@@ -71,7 +71,9 @@ public abstract class RQAdapter<T> implements Serializable {
         // If the original range is set, the receiver need to execute 'get'
         // only if the key is included in the original range.
         if (range == null ||
-                (originalRange != null && originalRange.contains(localNode.key.getRawKey())) ||
+                (originalRange != null && originalRange.contains(
+                        originalRange.from instanceof DdllKey ? localNode.key
+                                : localNode.key.getRawKey())) ||
                 range.contains(localNode.key)) {
             return get(received, localNode.key);
         }
@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -43,7 +44,6 @@ import org.piax.gtrans.ReturnValue;
 import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.TransOptions.ResponseType;
 import org.piax.gtrans.TransOptions.RetransMode;
-import org.piax.util.RandomUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -122,7 +122,7 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             assert false;
         });
 
-        this.qid = RandomUtil.getSharedRandom().nextLong();
+        this.qid = EventExecutor.random().nextLong();
         this.root = null;  // overridden by DirectResponder at root node
         this.rootEventId = 0; // overridden by DirectResponder at root node
         this.targetRanges = Collections.unmodifiableCollection(ranges);
@@ -239,7 +239,7 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             // note that catcher is transient
             this.catcher = new RQCatcher(filtered);
         }
-        catcher.rqDisseminate(catcher.gaps);
+        catcher.rqDisseminate(new ArrayList<>(catcher.gaps.values()));
     }
  
     public void receiveReply(RQReplyDirect<T> rep) {
@@ -297,8 +297,11 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
         /** messages sent to children */
         public final Set<RQRequest<T>> childMsgs = new HashSet<>();
 
-        /** subranges that have not yet received any return values */
-        final List<RQRange> gaps;
+        /**
+         * subranges that have not yet received any return values.
+         * the key is the start key of each subrange.
+         */
+        final NavigableMap<DdllKey, RQRange> gaps;
 
         int retransCount = 0;
 
@@ -308,7 +311,10 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
 
         public RQCatcher(Collection<RQRange> ranges) {
             this.rvals = new ConcurrentSkipListMap<>();
-            this.gaps = new ArrayList<>(ranges);
+            this.gaps = new ConcurrentSkipListMap<>();
+            for (RQRange r : ranges) {
+                gaps.put(r.from, r);
+            }
             if (isRoot) {
                 results = new RQResults<T>(this);
             } else {
@@ -337,7 +343,7 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             + ", rvals="
             + (rvals.size() > 10 ? "(" + rvals.size() + " entries)"
                     : rvals.values())
-            + ", gaps=" + gaps + ", childMsgs="
+            + ", gaps=" + gaps.values() + ", childMsgs="
             + childMsgs
             + ", retrans=" + retransCount + "]";
         }
@@ -447,31 +453,31 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             LocalNode local = getLocalNode(); 
             // collect [me, successor)
             List<RQRange> succRanges = new ArrayList<>();
-            local.getSiblings().stream()
-                .forEach(v -> succRanges.add(new RQRange(v, v.key, v.succ.key)));
-            List<Node> actives = local.getActiveNodeStream()
-                    .collect(Collectors.toList());
+            for (LocalNode v : local.getSiblings()) {
+                succRanges.add(new RQRange(v, v.key, v.succ.key));
+            }
+            // sorted by key
+            List<Node> actives = local.getActiveNodes();
             logger.debug("actives={}", actives);
-            return ranges.stream()
-                    .flatMap(range -> assignDelegate(range, actives, succRanges)
-                            .stream())
-                    .collect(Collectors.groupingBy((RQRange range)
-                            -> range.getNode().key.getPeerId()
-                            ));
+            Map<Id, List<RQRange>> map = new HashMap<>();
+            for (RQRange range : ranges) {
+                assignDelegate(range, actives, succRanges, map);
+            }
+            return map;
         }
 
         /**
          * split the query range and assign a delegate node to each subrange.
+         * the subranges are added to the map, grouped by the PeerId of the
+         * delegate node.
          *  
          * @param queryRange    query range
-         * @param actives
+         * @param actives       active nodes sorted by key
          * @param succRanges
-         * @return list of RQRange
+         * @param map           the map to add the subranges
          */
-        private List<RQRange> assignDelegate(RQRange queryRange,
-                List<Node> actives, List<RQRange> succRanges) {
-            List<RQRange> list = new ArrayList<>();
-
+        private void assignDelegate(RQRange queryRange, List<Node> actives,
+                List<RQRange> succRanges, Map<Id, List<RQRange>> map) {
             // QR から [自ノード, successor) を削除し，自ノードを担当ノードとする
             //      [======QR======]
             //   [-----)
@@ -484,26 +490,38 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
                     RQRange sub = new RQRange(range.getNode(),
                             queryRange.from, succ);
                     sub.assignSubId(queryRange);
-                    list.add(sub);
+                    addDelegate(map, sub);
                     queryRange = new RQRange(null, succ, queryRange.to,
                             queryRange.ids);
                 }
             }
-            logger.debug("succRanges={}, list={}", succRanges, list);
 
-            RQRange qr = queryRange;  // make effectively final
-            // included = nodes that are contained in the queryRange
-            List<Node> included = actives.stream()
-                    .filter(node -> qr.contains(node.key))
-                    .sorted()
-                    .collect(Collectors.toList());
-            logger.debug("included={}", included);
+            // walk the active nodes that are contained in the queryRange,
+            // in the ring order starting from queryRange.from.
+            int n = actives.size();
+            int start = ceiling(actives, queryRange.from);
+            // the closest predecessor of queryRange.from
+            Node d = null;
+            if (n > 0) {
+                boolean exact = actives.get(start).key
+                        .compareTo(queryRange.from) == 0;
+                d = exact ? actives.get(start)
+                        : actives.get((start + n - 1) % n);
+                if (exact && !queryRange.contains(queryRange.from)) {
+                    // queryRange.from is exclusive
+                    start = (start + 1) % n;
+                }
+            }
+            int count = 0;
+            while (count < n
+                    && queryRange.contains(actives.get((start + count) % n).key)) {
+                count++;
+            }
 
             // 左端の担当ノードを決める
-            Node first = included.isEmpty() ? null : included.get(0);
+            Node first = count == 0 ? null : actives.get(start);
             if (first == null || queryRange.from.compareTo(first.key) != 0) {
                 // includedが空，もしくはincludedの最初のエントリがqueryRangeの途中
-                Node d = getLocalNode().getClosestPredecessor(queryRange.from);
                 RQRange r;
                 if (first == null) {
                     // OK: covers the case where queryRange is just a point
@@ -511,20 +529,46 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
                 } else {
                     r = new RQRange(d, queryRange.from, first.key, queryRange.ids);
                 }
-                list.add(r);
+                addDelegate(map, r);
             }
 
-            for (int i = 0; i < included.size(); i++) {
-                Node ent = included.get(i);
-                Node next = (i == included.size() - 1) ? null : included.get(i + 1);
+            for (int i = 0; i < count; i++) {
+                Node ent = actives.get((start + i) % n);
+                Node next = (i == count - 1) ? null
+                        : actives.get((start + i + 1) % n);
                 DdllKey from = ent.key;
                 DdllKey to = (next == null ? queryRange.to: next.key); 
                 RQRange r = new RQRange(ent, from, to);
                 r.assignSubId(queryRange);
-                list.add(r);
+                addDelegate(map, r);
             }
-            logger.debug("assignDelegate: returns {}", list);
-            return list;
+        }
+
+        private void addDelegate(Map<Id, List<RQRange>> map, RQRange r) {
+            logger.debug("assignDelegate: {}", r);
+            map.computeIfAbsent(r.getNode().key.getPeerId(),
+                    k -> new ArrayList<>()).add(r);
+        }
+
+        /**
+         * returns the index of the first node whose key is not less than k
+         * in a list sorted by key.  if there is no such node, 0 is returned
+         * (i.e., wrap around).
+         */
+        private int ceiling(List<Node> nodes, DdllKey k) {
+            int lo = 0, hi = nodes.size() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int c = nodes.get(mid).key.compareTo(k);
+                if (c == 0) {
+                    return mid;
+                } else if (c < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo < nodes.size() ? lo : 0;
         }
 
         /**
@@ -572,24 +616,23 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             }
 
             // find the gap that contains range.from 
-            RQRange gap = gaps.stream()
-                .filter(e -> e.contains(range.from))
-                .findAny()
-                .orElse(null);
+            RQRange gap = findGap(range.from);
             if (gap == null) {
                 logger.info("no gap instance: {} in {}", range.from, this);
                 return;
             }
             // delete the range r from gaps
-            gaps.remove(gap);
+            gaps.remove(gap.from);
             List<Range<DdllKey>> retains = gap.retain(range, null);
             // add the remaining ranges to gaps
             for (Range<DdllKey> p : retains) {
                 RQRange s = new RQRange(gap.getNode(), p.from, p.to, gap.ids);
-                gaps.add(s);
+                gaps.put(s.from, s);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("addRV: gap={}, r={}, retains={}, gaps={}", gap,
+                        range, retains, gaps.values());
             }
-            logger.debug("addRV: gap={}, r={}, retains={}, gaps={}", gap, range,
-                    retains, gaps);
             rvals.put(range.from, new DKRangeRValue<>(rval, range));
 
             // when response type is NO_RESPONSE, no value is returned to the 
@@ -613,6 +656,26 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
             }
         }
         
+        /**
+         * find the gap that contains the specified key.
+         * because the gaps are disjoint, the gap is the one that starts at
+         * or before the key, or the last one that may wrap around.
+         * 
+         * @param key the key
+         * @return the gap or null if no gap contains the key
+         */
+        private RQRange findGap(DdllKey key) {
+            Map.Entry<DdllKey, RQRange> ent = gaps.floorEntry(key);
+            if (ent != null && ent.getValue().contains(key)) {
+                return ent.getValue();
+            }
+            ent = gaps.lastEntry();
+            if (ent != null && ent.getValue().contains(key)) {
+                return ent.getValue();
+            }
+            return null;
+        }
+
         private void notifyResult(RemoteValue<T> rval) {
             assert isRoot;
             if (rval == null || rval.getValue() != SPECIAL.PADDING) {
@@ -695,7 +758,7 @@ public class RQRequest<T> extends StreamingRequestEvent<RQRequest<T>, RQReply<T>
                             "slowretrans-" + getEventId(),
                             retrans, retrans, () -> {
                                 // reassign ID!
-                                List<RQRange> subst = gaps.stream().map(r -> 
+                                List<RQRange> subst = gaps.values().stream().map(r -> 
                                         new RQRange(r.getNode(), r.from, r.to)
                                         .assignId())
                                         .collect(Collectors.toList());
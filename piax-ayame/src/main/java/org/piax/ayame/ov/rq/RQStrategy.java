@@ -47,7 +47,6 @@ import org.piax.gtrans.RemoteValue;
 import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.TransOptions.ResponseType;
 import org.piax.gtrans.TransOptions.RetransMode;
-import org.piax.util.RandomUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -145,14 +144,20 @@ public class RQStrategy extends NodeStrategy {
 
     public <T> void rangeQueryRQRange(Collection<RQRange> ranges,
             RQAdapter<T> adapter, TransOptions opts) {
-        EventExecutor.runNow("rangeQueryRQRange", () -> {
+        EventExecutor.runNow(n, "rangeQueryRQRange", () -> {
             RQRequest<T> root = new RQRequest<>(n, ranges, adapter, opts);
             root.run();
         });
     }
     
+    @SuppressWarnings("unchecked")
     private static RQRange convertToRQRange(
             Range<? extends Comparable<?>> range) {
+        if (range.from instanceof DdllKey && range.to instanceof DdllKey) {
+            // already a range of DdllKeys (e.g., to page through nodes
+            // that share the same raw key)
+            return new RQRange(null, (Range<DdllKey>) range);
+        }
         PeerId id0 = (range.fromInclusive
                 ? PeerId.MINUS_INFINITY : PeerId.PLUS_INFINITY);
         PeerId id1 = (range.toInclusive
@@ -282,7 +287,7 @@ public class RQStrategy extends NodeStrategy {
         else {
             FQLParams<T> p = new FQLParams<>();
             {
-                p.qid = RandomUtil.getSharedRandom().nextLong();
+                p.qid = EventExecutor.random().nextLong();
                 p.num = num;
                 p.rq = convertToRQRange(range);
                 p.adapter = adapter;
@@ -412,7 +417,7 @@ public class RQStrategy extends NodeStrategy {
         // thread handle the successive jobs.
         CompletableFuture<RemoteValue<T>> ret = new CompletableFuture<>();
         f.whenComplete((T val, Throwable exc) -> {
-            EventExecutor.runNow("getLocalValue-finish", () -> {
+            EventExecutor.runNow(getLocalNode(), "getLocalValue-finish", () -> {
                 RemoteValue<T> rval;
                 if (exc != null) {
                     rval = new RemoteValue<>(getLocalNode().peerId, exc);
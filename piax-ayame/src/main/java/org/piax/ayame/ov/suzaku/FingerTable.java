@@ -62,6 +62,7 @@ public class FingerTable {
 
     public void set(int index, FTEntry ent, boolean addtorev) {
         table.set(index, ent);
+        vnode.routingEntriesChanged();
         ent.time = EventExecutor.getVTime();
         // XXX: should replace other entries that points to the same node
         if (addtorev && ent != null && ent.getNode() != null) {
@@ -160,6 +161,7 @@ public class FingerTable {
             }
         }
         table.shrink(index);
+        vnode.routingEntriesChanged();
     }
 
     public static int getFTIndex(int i, int j) {
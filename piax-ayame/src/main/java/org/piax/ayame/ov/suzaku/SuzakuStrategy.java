@@ -272,7 +272,7 @@ public class SuzakuStrategy extends NodeStrategy {
         logger.debug("{}: start DDLL deletion", n);
         return ddll.leave(job).thenCompose(dummy -> {
             // 以下，SetRAckを受信した場合の処理
-            n.mode = NodeMode.GRACE;
+            n.setMode(NodeMode.GRACE);
             logger.debug("{}: mode=grace", n);
             if (updateSchedEvent != null) {
                 logger.debug("{}: remove schedEvent: {}", n,
@@ -283,7 +283,7 @@ public class SuzakuStrategy extends NodeStrategy {
             return EventExecutor.delay("suzaku.leave.grace",
                     NetworkParams.ONEWAY_DELAY);
         }).thenRun(() -> {
-            n.mode = NodeMode.DELETED;
+            n.setMode(NodeMode.DELETED);
             logger.debug("{}: mode=deleted", n);
         });
     }
@@ -447,6 +447,12 @@ public class SuzakuStrategy extends NodeStrategy {
         return getValidFTEntries();
     }
 
+    @Override
+    public boolean notifiesRoutingChange() {
+        // FingerTable notifies the changes of the entries
+        return true;
+    }
+
     /**
      * get valid finger table entries from all inserted nodes
      * 
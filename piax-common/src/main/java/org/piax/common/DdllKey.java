@@ -115,6 +115,31 @@ public class DdllKey implements Comparable<DdllKey>, Serializable, Cloneable {
         return id;
     }
 
+    /**
+     * get the nonce portion of the key
+     * 
+     * @return the nonce
+     */
+    public int getNonce() {
+        return nonce;
+    }
+
+    /**
+     * create a DdllKey from its portions without checking them.
+     * used for deserializing a key.
+     * 
+     * @param key the raw key
+     * @param peerId the PeerID
+     * @param id the id
+     * @param nonce the nonce
+     * @param appData the application supplied data
+     * @return the DdllKey
+     */
+    public static DdllKey newKey(Comparable<?> key, PeerId peerId, String id,
+            int nonce, Object appData) {
+        return new DdllKey(true, key, peerId, id, nonce, appData);
+    }
+
     public int compareTo(DdllKey o) {
         int cmp = keyComp.compare(rawKey, o.rawKey);
         if (cmp != 0) {
@@ -131,7 +131,7 @@ public class KeyComparator implements Comparator<Comparable<?>> {
         if (key2 instanceof Infinity) {
             logger.debug("key2:{}", key2);
             Infinity k2 = (Infinity) key2;
-            if (k2.clazz == null || k2.getClass() == k2.clazz) {
+            if (k2.clazz == null || key1.getClass() == k2.clazz) {
                 return k2.isPlus ? -1 : 1;
             }
             return key1.getClass().getName().compareTo(k2.clazz.getName());
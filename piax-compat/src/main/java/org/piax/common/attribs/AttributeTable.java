@@ -19,6 +19,7 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.piax.common.Destination;
 import org.piax.common.Id;
@@ -47,6 +48,7 @@ public class AttributeTable {
 
     final Map<String, Attribute> attribs = new LinkedHashMap<String, Attribute>();
     final Map<Id, RowData> rows = new LinkedHashMap<Id, RowData>();
+    final List<CompositeIndex> compositeIndexes = new CopyOnWriteArrayList<CompositeIndex>();
 
     public AttributeTable(PeerId peerId, ObjectId tableId) {
         this.peerId = peerId;
@@ -63,6 +65,10 @@ public class AttributeTable {
             }
             attribs.clear();
         }
+        for (CompositeIndex cidx : compositeIndexes) {
+            cidx.clear();
+        }
+        compositeIndexes.clear();
     }
     
     /**
@@ -181,11 +187,138 @@ public class AttributeTable {
         return mrows;
     }
     
+    /**
+     * 指定された属性の値がvalueに一致し、かつcondsを満たす候補のRowDataを返す。
+     * <p>
+     * attribNameをfirstに持つCompositeIndexのうち、condsの中にsecondに対する条件が
+     * あるものについて候補の数を見積もり、Attributeのindexより候補を絞り込める
+     * 場合は、最も候補の少ないCompositeIndexを使う。
+     * 返されるRowDataがcondsを満たすかどうかは、呼び出し側で改めて判定する必要がある。
+     * 
+     * @param attribName 属性名
+     * @param value 属性値
+     * @param conds 2番目以降の条件
+     * @return 候補のRowDataの集合
+     * @throws IllegalArgumentException 該当するAttributeが存在しない場合
+     * @throws IllegalStateException Attributeがindexを持たない場合
+     */
+    public Set<RowData> getMatchedRows(String attribName, Object value,
+            List<VarDestinationPair> conds) throws IllegalArgumentException,
+            IllegalStateException {
+        Attribute attrib = getAttrib(attribName);
+        if (conds == null || conds.isEmpty() || compositeIndexes.isEmpty()
+                || attrib == null || !(value instanceof Comparable<?>)) {
+            return getMatchedRows(attribName, value);
+        }
+        synchronized (superRowLock) {
+            // superRowの属性値はCompositeIndexに反映されないため使わない
+            if (superRow != null) {
+                return getMatchedRows(attribName, value);
+            }
+        }
+        int limit = attrib.getMatchedRows(value).size();
+        CompositeIndex best = null;
+        Destination bestDst = null;
+        for (CompositeIndex cidx : compositeIndexes) {
+            if (!cidx.first.equals(attribName)) continue;
+            for (VarDestinationPair pair : conds) {
+                if (!cidx.second.equals(pair.var)) continue;
+                int n = cidx.count(value, pair.destination, limit);
+                if (n >= 0 && n < limit) {
+                    best = cidx;
+                    bestDst = pair.destination;
+                    limit = n;
+                }
+            }
+        }
+        if (best == null) {
+            return getMatchedRows(attribName, value);
+        }
+        return best.getMatchedRows(value, bestDst);
+    }
+
+    /**
+     * 属性の組 (first, second) に対するCompositeIndexを作成する。
+     * すでに存在する場合は、そのCompositeIndexを返す。
+     * 
+     * @param first 1番目の属性名
+     * @param second 2番目の属性名
+     * @return CompositeIndex
+     * @throws IllegalArgumentException firstとsecondが同じ場合
+     */
+    public CompositeIndex declareCompositeIndex(String first, String second)
+            throws IllegalArgumentException {
+        CompositeIndex cidx;
+        synchronized (compositeIndexes) {
+            for (CompositeIndex c : compositeIndexes) {
+                if (c.first.equals(first) && c.second.equals(second)) {
+                    return c;
+                }
+            }
+            cidx = new CompositeIndex(first, second);
+            compositeIndexes.add(cidx);
+        }
+        // 既存のrowを登録する。並行するsetAttribとの重複登録は問題ない
+        for (RowData row : getRows()) {
+            synchronized (row) {
+                if (row.isBoundToAttribute) {
+                    cidx.add(row);
+                }
+            }
+        }
+        return cidx;
+    }
+
+    /**
+     * 属性の組 (first, second) に対するCompositeIndexを削除する。
+     * 
+     * @param first 1番目の属性名
+     * @param second 2番目の属性名
+     * @return 削除した場合 true
+     */
+    public boolean removeCompositeIndex(String first, String second) {
+        synchronized (compositeIndexes) {
+            for (CompositeIndex c : compositeIndexes) {
+                if (c.first.equals(first) && c.second.equals(second)) {
+                    compositeIndexes.remove(c);
+                    c.clear();
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public List<CompositeIndex> getCompositeIndexes() {
+        return new ArrayList<CompositeIndex>(compositeIndexes);
+    }
+
+    /*
+     * 以下の2つはRowDataから、RowDataのlockを保持した状態で呼ばれる。
+     * attribNameがnullの場合はすべてのCompositeIndexが対象となる。
+     */
+    void indexComposite(RowData row, String attribName) {
+        for (CompositeIndex cidx : compositeIndexes) {
+            if (cidx.covers(attribName)) cidx.add(row);
+        }
+    }
+
+    void unindexComposite(RowData row, String attribName) {
+        for (CompositeIndex cidx : compositeIndexes) {
+            if (cidx.covers(attribName)) cidx.remove(row);
+        }
+    }
+
     public boolean satisfies(RowData row, List<VarDestinationPair> conds) {
         if (conds == null || conds.size() == 0) return true;
         return row.satisfies(conds);
     }
 
+    public boolean satisfies(RowData row, RowPredicate pred) {
+        if (pred == RowPredicate.TRUE) return true;
+        return row.satisfies(pred);
+    }
+
     /**
      * 指定されたrowIdを持つRowDataをsuperRowとしてセットする。
      * すでにRowDataが存在する場合はIdConflictExceptionがthrowされる。
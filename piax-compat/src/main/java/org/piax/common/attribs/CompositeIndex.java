@@ -0,0 +1,194 @@
+/*
+ * CompositeIndex.java - A secondary index over a pair of attributes
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ */
+
+package org.piax.common.attribs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.piax.common.Destination;
+import org.piax.common.subspace.KeyRange;
+import org.piax.common.wrapper.WrappedComparableKey;
+import org.piax.util.KeyComparator;
+
+/**
+ * 2つの属性の組 (first, second) を (firstの値, secondの値) の順でソートした
+ * 複合indexを管理するクラス。
+ * <p>
+ * Attributeのindexが1つの属性値からRowDataを引くのに対し、CompositeIndexは
+ * firstの値が一致し、secondの値がDCLの条件（値または範囲）を満たすRowDataを、
+ * secondの条件を満たさないRowDataに触れることなく引くことができる。
+ * CombinedOverlayでは、firstにoverlayをbindした属性、secondに2番目以降の条件で
+ * よく使われる属性を指定することを想定している。
+ * <p>
+ * index化の対象は、Attributeの管理下（bound）にあり、firstの属性値がindex化され、
+ * かつsecondの属性値を持つRowDataである。secondの属性値はindex化されていなくてもよい。
+ * 属性値の順序はKeyComparatorによるため、型の異なる属性値が混在してもよい。
+ * <p>
+ * CompositeIndexは候補となるRowDataを絞り込むためのものであり、返されるRowDataが
+ * 条件を満たすかどうかは、呼び出し側で改めて判定する必要がある。
+ */
+public class CompositeIndex {
+    private static final KeyComparator keyComp = KeyComparator.getInstance();
+
+    public final String first;
+    public final String second;
+
+    private final ConcurrentNavigableMap<Comparable<?>, ConcurrentNavigableMap<Comparable<?>, Set<RowData>>> index =
+            new ConcurrentSkipListMap<Comparable<?>, ConcurrentNavigableMap<Comparable<?>, Set<RowData>>>(keyComp);
+
+    CompositeIndex(String first, String second) {
+        if (first.equals(second)) {
+            throw new IllegalArgumentException("attributes should be different");
+        }
+        this.first = first;
+        this.second = second;
+    }
+
+    boolean covers(String attribName) {
+        return attribName == null || first.equals(attribName)
+                || second.equals(attribName);
+    }
+
+    /**
+     * RowDataの (first, second) の属性値をindexに登録する。
+     * RowDataのlockを保持した状態で呼び出す必要がある。
+     *
+     * @param row RowData
+     */
+    void add(RowData row) {
+        Object v1 = row.getIndexedValue(first);
+        Object v2 = row.getOwnValue(second);
+        if (!(v1 instanceof Comparable<?>) || !(v2 instanceof Comparable<?>)) {
+            return;
+        }
+        synchronized (this) {
+            ConcurrentNavigableMap<Comparable<?>, Set<RowData>> sub = index.get(v1);
+            if (sub == null) {
+                sub = new ConcurrentSkipListMap<Comparable<?>, Set<RowData>>(keyComp);
+                index.put((Comparable<?>) v1, sub);
+            }
+            Set<RowData> rows = sub.get(v2);
+            if (rows == null) {
+                rows = new HashSet<RowData>();
+                sub.put((Comparable<?>) v2, rows);
+            }
+            rows.add(row);
+        }
+    }
+
+    /**
+     * RowDataの (first, second) の属性値をindexから削除する。
+     * 属性値が変更される前に、RowDataのlockを保持した状態で呼び出す必要がある。
+     *
+     * @param row RowData
+     */
+    void remove(RowData row) {
+        Object v1 = row.getIndexedValue(first);
+        Object v2 = row.getOwnValue(second);
+        if (!(v1 instanceof Comparable<?>) || !(v2 instanceof Comparable<?>)) {
+            return;
+        }
+        synchronized (this) {
+            ConcurrentNavigableMap<Comparable<?>, Set<RowData>> sub = index.get(v1);
+            if (sub == null) return;
+            Set<RowData> rows = sub.get(v2);
+            if (rows == null) return;
+            rows.remove(row);
+            if (rows.isEmpty()) {
+                sub.remove(v2);
+                if (sub.isEmpty()) {
+                    index.remove(v1);
+                }
+            }
+        }
+    }
+
+    synchronized void clear() {
+        index.clear();
+    }
+
+    /**
+     * firstの値がvalueで、secondの値がdstに含まれる候補のRowDataの集合の列を返す。
+     * dstがこのindexで扱えない条件の場合は null を返す。
+     */
+    private Collection<Set<RowData>> select(Object value, Destination dst) {
+        if (dst instanceof WrappedComparableKey<?>) {
+            Object raw = RowPredicate.unwrap((WrappedComparableKey<?>) dst);
+            if (raw == null) return null;
+            NavigableMap<Comparable<?>, Set<RowData>> sub = index.get(value);
+            Set<RowData> rows = sub == null ? null : sub.get(raw);
+            return rows == null ? Collections.<Set<RowData>>emptyList()
+                    : Collections.singletonList(rows);
+        }
+        if (dst instanceof KeyRange<?>) {
+            RowPredicate.RawRange r = RowPredicate.rawRange((KeyRange<?>) dst);
+            if (r == null) return null;
+            NavigableMap<Comparable<?>, Set<RowData>> sub = index.get(value);
+            if (sub == null) return Collections.emptyList();
+            if (r.from != null) {
+                sub = sub.tailMap(r.from, r.fromInclusive);
+            }
+            if (r.to != null) {
+                sub = sub.headMap(r.to, r.toInclusive);
+            }
+            return sub.values();
+        }
+        return null;
+    }
+
+    /**
+     * firstの値がvalueで、secondの値がdstに含まれる候補のRowDataの数を数える。
+     * 数がlimitに達した時点で数えるのをやめる。
+     *
+     * @param value firstの値
+     * @param dst secondに対する条件
+     * @param limit 数える上限
+     * @return 候補の数（limit以上の場合はlimit以上の値）。dstを扱えない場合は -1
+     */
+    synchronized int count(Object value, Destination dst, int limit) {
+        Collection<Set<RowData>> sets = select(value, dst);
+        if (sets == null) return -1;
+        int n = 0;
+        for (Set<RowData> rows : sets) {
+            n += rows.size();
+            if (n >= limit) break;
+        }
+        return n;
+    }
+
+    /**
+     * firstの値がvalueで、secondの値がdstに含まれる候補のRowDataを返す。
+     *
+     * @param value firstの値
+     * @param dst secondに対する条件
+     * @return 候補のRowDataの集合。dstを扱えない場合は null
+     */
+    public synchronized Set<RowData> getMatchedRows(Object value,
+            Destination dst) {
+        Collection<Set<RowData>> sets = select(value, dst);
+        if (sets == null) return null;
+        Set<RowData> mrows = new HashSet<RowData>();
+        for (Set<RowData> rows : sets) {
+            mrows.addAll(rows);
+        }
+        return mrows;
+    }
+
+    @Override
+    public String toString() {
+        return "CompositeIndex [" + first + ", " + second + "]";
+    }
+}
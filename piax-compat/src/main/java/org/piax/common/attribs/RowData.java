@@ -19,11 +19,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import org.piax.common.ComparableKey;
 import org.piax.common.Id;
 import org.piax.common.Key;
-import org.piax.common.subspace.KeyContainable;
-import org.piax.common.wrapper.Keys;
 import org.piax.common.wrapper.WrappedComparableKey;
 import org.piax.gtrans.dcl.VarDestinationPair;
 import org.slf4j.Logger;
@@ -149,11 +146,13 @@ public class RowData implements Key {
             }
         }
         isBoundToAttribute = true;
+        table.indexComposite(this, null);
         return true;
     }
     
     public synchronized boolean unbindToAttribute() {
         if (!isBoundToAttribute) return false;
+        table.unindexComposite(this, null);
         for (Map.Entry<String, ValueEntry> ent : values.entrySet()) {
             Attribute attrib = table.getAttrib(ent.getKey());
             if (attrib == null) {
@@ -229,12 +228,18 @@ public class RowData implements Key {
                 }
             }
             values.put(name, new ValueEntry(value, true));
+            if (isBoundToAttribute) {
+                table.indexComposite(this, name);
+            }
             return true;
         } else {
             if (isBoundToAttribute) {
                 attrib.ref();  // 参照だけ増やしておく
             }
             values.put(name, new ValueEntry(value, false));
+            if (isBoundToAttribute) {
+                table.indexComposite(this, name);
+            }
             return false;
         }
     }
@@ -264,6 +269,7 @@ public class RowData implements Key {
                     + "\" is zombi attribute?");
         }
         if (isBoundToAttribute) {
+            table.unindexComposite(this, name);
             if (vEnt.indexed) {
                 try {
                     boolean ok = attrib.unindexingValue(vEnt.value, this);
@@ -304,6 +310,23 @@ public class RowData implements Key {
         return val;
     }
     
+    /**
+     * 指定されたnameの属性値を返す。superRowの属性値はチェックしない。
+     */
+    synchronized Object getOwnValue(String attribName) {
+        ValueEntry vEnt = values.get(attribName);
+        return vEnt == null ? null : vEnt.value;
+    }
+
+    /**
+     * 指定されたnameのindex化された属性値を返す。
+     * index化されていない場合は null を返す。
+     */
+    synchronized Object getIndexedValue(String attribName) {
+        ValueEntry vEnt = values.get(attribName);
+        return vEnt == null || !vEnt.indexed ? null : vEnt.value;
+    }
+    
     public synchronized List<Object> getAttribValues() {
         List<Object> vals = new ArrayList<Object>();
         for (ValueEntry vEnt : values.values()) {
@@ -375,37 +398,17 @@ public class RowData implements Key {
      * @return リストの要素であるVarSubsetPairをすべて満たした場合true
      */
     public synchronized boolean satisfies(List<VarDestinationPair> conds) {
-        for (VarDestinationPair pair : conds) {
-            Object value = getAttribValue(pair.var);
-            if (value == null) return false;
-            Key _value = null;
-            if (value instanceof ComparableKey<?>) {
-                _value = (ComparableKey<?>) value;
-            } else if (value instanceof Comparable<?>) {
-                _value = Keys.newWrappedKey((Comparable<?>) value);
-            } else if (value instanceof Key) {
-                _value = (Key) value;
-            } else {
-                logger.warn("{} type of value is not supperted in current DCL",
-                        value.getClass().getName());
-                return false;
-            }
-            
-            if (pair.destination instanceof Key) {
-                return pair.destination.equals(_value);
-            } else if (pair.destination instanceof KeyContainable<?>) {
-                @SuppressWarnings("unchecked")
-                KeyContainable<Key> container = (KeyContainable<Key>) pair.destination;
-                if (!container.contains(_value)) {
-                    return false;
-                }
-            } else {
-                logger.warn("{} type of destination is not supperted in current DCL",
-                        pair.destination.getClass().getName());
-                return false;
-            }
-        }
-        return true;
+        return RowPredicate.compile(conds).test(this);
+    }
+
+    /**
+     * RowDataがコンパイル済みの条件を満たすかどうかを判定する。
+     * 
+     * @param pred コンパイル済みの条件
+     * @return 条件をすべて満たした場合true
+     */
+    public synchronized boolean satisfies(RowPredicate pred) {
+        return pred.test(this);
     }
 
     @Override
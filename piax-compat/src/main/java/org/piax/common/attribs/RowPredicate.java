@@ -0,0 +1,250 @@
+/*
+ * RowPredicate.java - A compiled form of DCL conditions on a row data
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ */
+
+package org.piax.common.attribs;
+
+import java.util.List;
+
+import org.piax.common.ComparableKey;
+import org.piax.common.Destination;
+import org.piax.common.Key;
+import org.piax.common.subspace.KeyContainable;
+import org.piax.common.subspace.KeyRange;
+import org.piax.common.wrapper.Keys;
+import org.piax.common.wrapper.WrappedComparableKey;
+import org.piax.gtrans.dcl.VarDestinationPair;
+import org.piax.util.KeyComparator.Infinity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * VarDestinationPairのリストを、RowDataを判定する述語にコンパイルしたもの。
+ * <p>
+ * RowData.satisfies(List) は、rowごと、条件ごとに属性値を WrappedComparableKey で
+ * 包んでから destination と比較する。RowPredicateは、destination が
+ * WrappedComparableKey の値、またはその範囲（KeyRange）の場合、包まれた値を
+ * コンパイル時に取り出しておき、同じ型の属性値とは包まずに直接比較する。
+ * それ以外の destination や型の異なる属性値については RowData.satisfies(List) と
+ * 同じ判定を行う。
+ * <p>
+ * RowPredicateは不変であり、複数のスレッドから共有してよい。
+ */
+public class RowPredicate {
+    /*--- logger ---*/
+    private static final Logger logger =
+        LoggerFactory.getLogger(RowPredicate.class);
+
+    /** 常にtrueを返す述語 */
+    public static final RowPredicate TRUE = new RowPredicate(new String[0],
+            new Tester[0]);
+
+    /**
+     * 1つの属性値に対する条件。
+     */
+    interface Tester {
+        boolean test(Object value);
+    }
+
+    private final String[] vars;
+    private final Tester[] testers;
+
+    private RowPredicate(String[] vars, Tester[] testers) {
+        this.vars = vars;
+        this.testers = testers;
+    }
+
+    /**
+     * VarDestinationPairのリストをコンパイルする。
+     *
+     * @param conds VarDestinationPairのリスト
+     * @return リストの要素をすべて満たすときにtrueとなる述語
+     */
+    public static RowPredicate compile(List<VarDestinationPair> conds) {
+        if (conds == null || conds.isEmpty()) return TRUE;
+        String[] vars = new String[conds.size()];
+        Tester[] testers = new Tester[conds.size()];
+        for (int i = 0; i < vars.length; i++) {
+            VarDestinationPair pair = conds.get(i);
+            vars[i] = pair.var;
+            testers[i] = compile(pair.destination);
+        }
+        return new RowPredicate(vars, testers);
+    }
+
+    static Tester compile(Destination dst) {
+        if (dst instanceof WrappedComparableKey<?>) {
+            Object raw = unwrap((WrappedComparableKey<?>) dst);
+            if (raw != null) {
+                Class<?> clazz = raw.getClass();
+                Tester generic = new GenericTester(dst);
+                return value -> value.getClass() == clazz ? raw.equals(value)
+                        : generic.test(value);
+            }
+        } else if (dst instanceof KeyRange<?>) {
+            Tester t = compileRange((KeyRange<?>) dst);
+            if (t != null) return t;
+        }
+        return new GenericTester(dst);
+    }
+
+    /**
+     * Keys.newWrappedKeyで包まれた値を取り出す。
+     * 属性値を同じ型で包み直すことができない場合は null を返す。
+     */
+    static Object unwrap(WrappedComparableKey<?> key) {
+        Comparable<?> raw = key.getKey();
+        if (raw instanceof Key) return null;
+        if (Keys.newWrappedKey(raw).getClass() != key.getClass()) return null;
+        return raw;
+    }
+
+    /**
+     * 端を包まれていない値で表したKeyRange。端がない場合、from, to は null である。
+     */
+    @SuppressWarnings("rawtypes")
+    static class RawRange {
+        final Class<?> clazz;
+        final Comparable from;
+        final boolean fromInclusive;
+        final Comparable to;
+        final boolean toInclusive;
+
+        RawRange(Class<?> clazz, Comparable from, boolean fromInclusive,
+                Comparable to, boolean toInclusive) {
+            this.clazz = clazz;
+            this.from = from;
+            this.fromInclusive = fromInclusive;
+            this.to = to;
+            this.toInclusive = toInclusive;
+        }
+
+        /**
+         * valueがこの範囲に含まれるかどうかを判定する。
+         * valueは clazz 型でなければならない。
+         */
+        @SuppressWarnings("unchecked")
+        boolean contains(Object value) {
+            if (from != null) {
+                int c = from.compareTo(value);
+                if (c > 0 || c == 0 && !fromInclusive) return false;
+            }
+            if (to != null) {
+                int c = ((Comparable) value).compareTo(to);
+                if (c > 0 || c == 0 && !toInclusive) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * WrappedComparableKey の範囲であるKeyRangeを RawRange に変換する。
+     * 変換できない場合は null を返す。
+     */
+    @SuppressWarnings("rawtypes")
+    static RawRange rawRange(KeyRange<?> range) {
+        Class<?> wrapper = null;
+        Comparable from = null;
+        Comparable to = null;
+        if (range.from instanceof WrappedComparableKey<?>) {
+            from = (Comparable) unwrap((WrappedComparableKey<?>) range.from);
+            if (from == null) return null;
+            wrapper = range.from.getClass();
+        }
+        if (range.to instanceof WrappedComparableKey<?>) {
+            to = (Comparable) unwrap((WrappedComparableKey<?>) range.to);
+            if (to == null) return null;
+            if (wrapper != null && wrapper != range.to.getClass()) return null;
+            wrapper = range.to.getClass();
+        }
+        if (wrapper == null) return null;
+        // 無限大の端は、同じ型の値に対してのみ端がないとみなせる
+        if (from == null && !isInfinityOf(range.from, wrapper, false)) return null;
+        if (to == null && !isInfinityOf(range.to, wrapper, true)) return null;
+        return new RawRange((from != null ? from : to).getClass(), from,
+                range.fromInclusive, to, range.toInclusive);
+    }
+
+    private static Tester compileRange(KeyRange<?> range) {
+        RawRange r = rawRange(range);
+        if (r == null) return null;
+        Tester generic = new GenericTester(range);
+        return value -> value.getClass() == r.clazz ? r.contains(value)
+                : generic.test(value);
+    }
+
+    private static boolean isInfinityOf(ComparableKey<?> key, Class<?> clazz,
+            boolean isPlus) {
+        if (!(key instanceof Infinity)) return false;
+        Infinity inf = (Infinity) key;
+        return inf.clazz == clazz && inf.isPlus == isPlus;
+    }
+
+    /**
+     * 属性値を WrappedComparableKey で包んで destination と比較する、
+     * RowData.satisfies(List) と同じ判定。
+     */
+    static class GenericTester implements Tester {
+        final Destination dst;
+
+        GenericTester(Destination dst) {
+            this.dst = dst;
+        }
+
+        @Override
+        public boolean test(Object value) {
+            Key _value = null;
+            if (value instanceof ComparableKey<?>) {
+                _value = (ComparableKey<?>) value;
+            } else if (value instanceof Comparable<?>) {
+                _value = Keys.newWrappedKey((Comparable<?>) value);
+            } else if (value instanceof Key) {
+                _value = (Key) value;
+            } else {
+                logger.warn("{} type of value is not supperted in current DCL",
+                        value.getClass().getName());
+                return false;
+            }
+            if (dst instanceof Key) {
+                return dst.equals(_value);
+            } else if (dst instanceof KeyContainable<?>) {
+                @SuppressWarnings("unchecked")
+                KeyContainable<Key> container = (KeyContainable<Key>) dst;
+                return container.contains(_value);
+            }
+            logger.warn("{} type of destination is not supperted in current DCL",
+                    dst.getClass().getName());
+            return false;
+        }
+    }
+
+    /**
+     * RowDataが条件をすべて満たすかどうかを判定する。
+     *
+     * @param row RowData
+     * @return 条件をすべて満たす場合true
+     */
+    public boolean test(RowData row) {
+        for (int i = 0; i < vars.length; i++) {
+            Object value = row.getAttribValue(vars[i]);
+            if (value == null || !testers[i].test(value)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("RowPredicate[");
+        for (int i = 0; i < vars.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(vars[i]);
+        }
+        return sb.append("]").toString();
+    }
+}
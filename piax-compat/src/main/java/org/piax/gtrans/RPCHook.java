@@ -20,7 +20,7 @@ public abstract class RPCHook {
     public static RPCHook hook = null;
 
     public enum CallType {
-        SYNC, ONEWAY, DC_SYNC, DC_ASYNC, DC_ONEWAY
+        SYNC, ONEWAY, ASYNC, DC_SYNC, DC_ASYNC, DC_ONEWAY
     }
 
     public class RValue {
@@ -21,7 +21,13 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Proxy;
 import java.nio.channels.ClosedChannelException;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.piax.common.CalleeId;
@@ -113,8 +119,19 @@ import org.slf4j.LoggerFactory;
  * <li>AUTOならば、Annotationにより決定する(デフォルト)
  * <li>SYNCならば、常に同期型である
  * <li>ONEWAYならば、常にOnewayである
+ * <li>ASYNCならば、常に非同期型である
  * </ul>
  * 詳細は、各メソッドの説明を見て欲しい。
+ * <p>
+ * 非同期RPC
+ * </p>
+ * 返り値の型がCompletableFuture (あるいはCompletionStage, Future)である
+ * メソッドは、AUTOでは非同期型RPCとして呼ばれ、呼び出し側はすぐに
+ * CompletableFutureを受け取る。非同期型RPCでは、呼び出しごとにChannelを
+ * 作らず、呼び出しIDによって返り値を対応づけるので、同じピアに対する
+ * 多数の呼び出しがトランスポートのコネクションを共有する。
+ * 呼び出される側のメソッドがCompletionStageを返す場合は、その完了を
+ * 待って返り値が送られる。
  * 
  */
 public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
@@ -127,6 +144,18 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
     public Map<E, ChannelPoolEntry> channelPool;
     // Experimental
     public static boolean USE_CHANNEL_FOR_ONEWAY = false;
+
+    // the timer of the asynchronous calls, shared by all the invokers.
+    private static final ScheduledThreadPoolExecutor timeoutScheduler;
+    static {
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "RPCTimeout");
+            t.setDaemon(true);
+            return t;
+        });
+        // the timers of the completed calls do not stay in the queue.
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+    }
     
     class ChannelPoolEntry {
         public long timestamp;
@@ -166,6 +195,11 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
         
     }
     
+    // pending asynchronous calls (call ID -> future)
+    private final Map<Integer, CompletableFuture<ReturnValue<?>>> pendingCalls
+            = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCallId = new AtomicInteger(0);
+
     /**
      * RPCで呼ばれた際の呼び出し側を保存する
      */
@@ -190,6 +224,8 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
         protected String method;
         protected Object[] args;
         protected PeerId srcPeerId;
+        // the ID of an asynchronous call. 0 if not asynchronous.
+        protected int callId;
         
         protected MethodCall(ObjectId target, PeerId srcPeerId, boolean oneway, String method,
                 Object... args) {
@@ -204,6 +240,25 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
         }
     }
 
+    /**
+     * the reply of an asynchronous call.
+     */
+    public static class AsyncReturn implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final int callId;
+        protected final ReturnValue<?> ret;
+
+        protected AsyncReturn(int callId, ReturnValue<?> ret) {
+            this.callId = callId;
+            this.ret = ret;
+        }
+
+        public String toString() {
+            return "[async return:" + callId + " " + ret + "]";
+        }
+    }
+
     protected final TransportId transId;
     protected final ObjectId objId;
     
@@ -273,6 +328,9 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
             });
             channelPool.clear();
         }
+        RPCException e = new RPCException("this RPCInvoker is already finished");
+        pendingCalls.values().forEach(f -> f.completeExceptionally(e));
+        pendingCalls.clear();
     }
 
     /**
@@ -881,6 +939,64 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
         }
     }
 
+    /**
+     * send an asynchronous RPC invocation message.
+     * <p>
+     * unlike {@link #sendInvoke(ObjectId, Endpoint, int, String, Object...)},
+     * no channel is created for the call.  the message is sent through the
+     * transport and the reply is correlated by the call ID, so that
+     * concurrent calls to the same peer share the connection of the
+     * transport.
+     * 
+     * @param target the target object ID.
+     * @param remotePeer the endpoint of the remote peer.
+     * @param timeout the timeout (msec).
+     * @param method the name of the method.
+     * @param args the arguments of the method.
+     * @return the future of the return value. it is completed exceptionally
+     *         with an RPCException if the call is failed or timed out.
+     */
+    public CompletableFuture<ReturnValue<?>> sendInvokeAsync(ObjectId target,
+            E remotePeer, int timeout, String method, Object... args) {
+        CompletableFuture<ReturnValue<?>> future = new CompletableFuture<>();
+        if (!isActive) {
+            future.completeExceptionally(
+                    new RPCException("this RPCInvoker is already finished"));
+            return future;
+        }
+        int callId;
+        do {
+            callId = nextCallId.incrementAndGet();
+        } while (callId == 0 || pendingCalls.putIfAbsent(callId, future) != null);
+        int id = callId;
+        future.whenComplete((r, e) -> pendingCalls.remove(id));
+        MethodCall mc = newMethodCall(target, remotePeer, false, method, args);
+        mc.callId = callId;
+        try {
+            trans.send(transId, remotePeer, mc);
+        } catch (IOException e) {
+            logger.warn("sendInvokeAsync \"{}\" got an exception: {}, remote={}",
+                    method, e, remotePeer);
+            future.completeExceptionally(new RPCException(e));
+            return future;
+        }
+        if (timeout > 0) {
+            ScheduledFuture<?> timer = timeoutScheduler.schedule(
+                    () -> future.completeExceptionally(new RPCException(
+                            new NetworkTimeoutException(method + " call timed out"))),
+                    timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((r, e) -> timer.cancel(false));
+        }
+        return future;
+    }
+
+    // CompletableFuture.failedFuture is not available in Java 8.
+    private static <U> CompletableFuture<U> failedFuture(Throwable e) {
+        CompletableFuture<U> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
     protected Object invokeInReceive(boolean isOneway, RPCIf obj, MethodCall mc)
             throws NoSuchMethodException, InvocationTargetException {
         if (RPCHook.hook != null) {
@@ -922,7 +1038,16 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
                         new NoSuchRemoteObjectException(
                                 "target object of ID not found: " + mc.target)));
             } else {
-                ret = new ReturnValue<Object>(invokeInReceive(false, obj, mc));
+                Object r = invokeInReceive(false, obj, mc);
+                if (r instanceof CompletionStage<?>) {
+                    // the callee is asynchronous. wait for the result.
+                    try {
+                        r = ((CompletionStage<?>) r).toCompletableFuture().join();
+                    } catch (CompletionException e) {
+                        throw new InvocationTargetException(e.getCause());
+                    }
+                }
+                ret = new ReturnValue<Object>(r);
             }
         } catch (InvocationTargetException e) {
             ret = new ReturnValue<Object>(e.getCause());
@@ -934,14 +1059,77 @@ public class RPCInvoker<T extends RPCIf, E extends Endpoint> implements RPCIf {
         return ret;
     }
 
+    /**
+     * invoke the method of an asynchronous call and send the return value
+     * when the invocation is completed.
+     * 
+     * @param mc the method call
+     * @param caller the endpoint of the caller
+     */
+    protected void receiveAsync(MethodCall mc, E caller) {
+        CompletionStage<?> result;
+        try {
+            RPCIf obj = getRPCObject(mc.target);
+            if (obj == null) {
+                result = failedFuture(new RPCException(
+                        new NoSuchRemoteObjectException(
+                                "target object of ID not found: " + mc.target)));
+            } else {
+                Object r = invokeInReceive(false, obj, mc);
+                if (r instanceof CompletionStage<?>) {
+                    result = (CompletionStage<?>) r;
+                } else {
+                    result = CompletableFuture.completedFuture(r);
+                }
+            }
+        } catch (InvocationTargetException e) {
+            result = failedFuture(e.getCause());
+        } catch (Throwable e) {
+            // any Exception or Error except for InvocationTargetException
+            logger.info("", e);
+            result = failedFuture(e);
+        }
+        result.whenComplete((r, e) -> {
+            if (e instanceof CompletionException
+                    && e.getCause() != null) {
+                e = e.getCause();
+            }
+            ReturnValue<?> ret = (e == null) ? new ReturnValue<Object>(r)
+                    : new ReturnValue<Object>(e);
+            try {
+                trans.send(transId, caller, new AsyncReturn(mc.callId, ret));
+            } catch (IOException ex) {
+                logger.info("caller could not receive the return of \"{}\" method: {}",
+                        mc.method, ex);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
     private void _onReceive(ReceivedMessage rmsg) {
-        MethodCall mc = (MethodCall) rmsg.getMessage();
-        if (mc == null) {
+        Object msg = rmsg.getMessage();
+        if (msg == null) {
             logger.info("null message received");
             return;
         }
-        // case of call oneway
+        if (msg instanceof AsyncReturn) {
+            AsyncReturn ar = (AsyncReturn) msg;
+            CompletableFuture<ReturnValue<?>> future = pendingCalls.get(ar.callId);
+            if (future == null) {
+                logger.debug("the reply is received after the call is finished: {}", ar);
+                return;
+            }
+            future.complete(ar.ret);
+            return;
+        }
+        MethodCall mc = (MethodCall) msg;
         srcPeerId.set(mc.srcPeerId);
+        if (mc.callId != 0 && !mc.oneway) {
+            // case of call async
+            receiveAsync(mc, (E) rmsg.getSource());
+            return;
+        }
+        // case of call oneway
         receiveOneway(mc);
     }
     
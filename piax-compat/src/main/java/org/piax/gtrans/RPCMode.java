@@ -20,6 +20,7 @@ public enum RPCMode {
      * 呼び出し方は呼ばれる方のRemoteCallableアノテーションの
      * 引数により決定される。
      * 引数指定がSYNCならば同期呼び出し、ONEWAYならばoneway呼び出しとなる。
+     * ただし、SYNCでも返り値の型がCompletableFutureならば非同期呼び出しとなる。
      */
     AUTO,
     /**
@@ -28,6 +29,8 @@ public enum RPCMode {
     SYNC,
     /**
      * 非同期呼び出し
+     * 返り値の型がCompletableFutureであるメソッドにのみ使用でき、
+     * 呼び出し側はすぐにCompletableFutureを受け取る。
      */
     ASYNC,
     /**
@@ -16,6 +16,9 @@ package org.piax.gtrans.impl;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import org.piax.common.Endpoint;
 import org.piax.common.ObjectId;
 import org.piax.gtrans.DynamicStub;
@@ -44,9 +47,6 @@ public class RPCInvocationHandler<E extends Endpoint> implements InvocationHandl
 
     public RPCInvocationHandler(RPCInvoker<?, E> invoker, ObjectId target,
             E remotePeer, int timeout, RPCMode syncMode) {
-        if (syncMode == RPCMode.ASYNC) {
-            throw new UnsupportedOperationException("ASYNC mode is not supported yet.");
-        }
         this.invoker = invoker;
         this.target = target;
         this.remotePeer = remotePeer;
@@ -109,6 +109,67 @@ public class RPCInvocationHandler<E extends Endpoint> implements InvocationHandl
     
 
     
+    /**
+     * async呼び出し
+     * @param onlyLocalCall
+     * @param methodName
+     * @param args
+     * @return the future of the return value
+     */
+    private CompletableFuture<Object> callAsync(boolean onlyLocalCall,
+            String methodName, Object[] args) {
+        // case of local call
+        if (invoker.getEndpoint().equals(remotePeer)) {
+            try {
+                Object result = call(onlyLocalCall, methodName, args);
+                if (result instanceof CompletionStage<?>) {
+                    return ((CompletionStage<?>) result).toCompletableFuture()
+                            .thenApply(r -> (Object) r);
+                }
+                return CompletableFuture.completedFuture(result);
+            } catch (Throwable e) {
+                return failedFuture(e);
+            }
+        }
+        // case of remote call without RemoteCallable annotation
+        if (onlyLocalCall) {
+            return failedFuture(new IllegalRPCAccessException(
+                    "could not call remotely without RemoteCallable annotation"));
+        }
+        // case of remote call
+        if (RPCHook.hook != null) {
+            RPCHook.RValue rv = RPCHook.hook.callerHook(RPCHook.CallType.ASYNC,
+                    target, remotePeer.toString(), methodName, args);
+            methodName = rv.method;
+            args = rv.args;
+        }
+        return invoker.sendInvokeAsync(target, remotePeer, timeout,
+                methodName, args).thenCompose(returnValue -> {
+                    Throwable e = returnValue.getException();
+                    if (e != null) {
+                        return failedFuture(e);
+                    }
+                    return CompletableFuture.completedFuture(
+                            (Object) returnValue.getValue());
+                });
+    }
+
+    // CompletableFuture.failedFuture is not available in Java 8.
+    private static CompletableFuture<Object> failedFuture(Throwable e) {
+        CompletableFuture<Object> f = new CompletableFuture<>();
+        f.completeExceptionally(e);
+        return f;
+    }
+
+    /**
+     * returns true if a CompletableFuture can be returned from the method.
+     */
+    static boolean returnsFuture(Method method) {
+        Class<?> type = method.getReturnType();
+        return type != Object.class
+                && type.isAssignableFrom(CompletableFuture.class);
+    }
+
     /**
      * sync呼びだし
      * @param methodName
@@ -168,10 +229,14 @@ public class RPCInvocationHandler<E extends Endpoint> implements InvocationHandl
             /*
              *  インターフェースが指定されていないので
              *  AUTO場合は、SYNCと同等
+             *  ASYNCの場合は、CompletableFutureを返す
              */
             if (mode == RPCMode.AUTO) {
                 mode = RPCMode.SYNC;
             }
+            if (mode == RPCMode.ASYNC) {
+                return callAsync(onlyLocalCall, methodName, args);
+            }
         } else {
             methodName = method.getName();
             RemoteCallable anno = method.getAnnotation(RemoteCallable.class);
@@ -179,6 +244,8 @@ public class RPCInvocationHandler<E extends Endpoint> implements InvocationHandl
                 if (mode == RPCMode.AUTO) {
                     if (anno.value() == RemoteCallable.Type.ONEWAY) {
                         mode = RPCMode.ONEWAY;
+                    } else if (returnsFuture(method)) {
+                        mode = RPCMode.ASYNC;
                     } else {
                         mode = RPCMode.SYNC;
                     }
@@ -195,6 +262,13 @@ public class RPCInvocationHandler<E extends Endpoint> implements InvocationHandl
         if (mode == RPCMode.ONEWAY) {
             callOneway(onlyLocalCall,methodName, args);
             return null;
+        } else if (mode == RPCMode.ASYNC) {
+            if (!returnsFuture(method)) {
+                throw new UnsupportedOperationException(
+                        "ASYNC mode requires a method that returns CompletableFuture: "
+                                + methodName);
+            }
+            return callAsync(onlyLocalCall, methodName, args);
         } else {
             /* SYNC */
             return call(onlyLocalCall, methodName, args);
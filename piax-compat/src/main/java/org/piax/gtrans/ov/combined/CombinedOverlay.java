@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -30,6 +31,7 @@ import org.piax.common.TransportIdPath;
 import org.piax.common.attribs.AttributeTable;
 import org.piax.common.attribs.IncompatibleTypeException;
 import org.piax.common.attribs.RowData;
+import org.piax.common.attribs.RowPredicate;
 import org.piax.common.wrapper.WrappedComparableKey;
 import org.piax.gtrans.FutureQueue;
 import org.piax.gtrans.IdConflictException;
@@ -63,8 +65,26 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
     private static final Logger logger = 
         LoggerFactory.getLogger(CombinedOverlay.class);
 
+    /** parse済みのDCLを保持する数 */
+    public static int DCL_CACHE_SIZE = 256;
+
     public final AttributeTable table;
     final DCLTranslator parser = new DCLTranslator();
+
+    /**
+     * DCL文字列からparse済みのDestinationConditionを引くためのLRU cache。
+     * DestinationConditionは送信後に変更されないため、同じ式の送信で共有できる。
+     */
+    private final Map<String, DestinationCondition> dclCache =
+            new LinkedHashMap<String, DestinationCondition>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, DestinationCondition> eldest) {
+                    return size() > DCL_CACHE_SIZE;
+                }
+            };
     
     /** オーバーレイのtransIdPathから元の属性名を引くためのmap */
     /*
@@ -95,6 +115,25 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
         }
     }
 
+    /**
+     * DCL文字列をparseする。同じ文字列に対してはcacheした結果を返す。
+     * 
+     * @param dstExp DCL文字列
+     * @return DestinationCondition
+     * @throws ParseException DCL文字列が不正な場合
+     */
+    DestinationCondition parseDCL(String dstExp) throws ParseException {
+        // DCLTranslatorはthread-safeではないため、parseもcacheと同じlockで行う
+        synchronized (dclCache) {
+            DestinationCondition dst = dclCache.get(dstExp);
+            if (dst == null) {
+                dst = parser.parseDCL(dstExp);
+                dclCache.put(dstExp, dst);
+            }
+            return dst;
+        }
+    }
+
     @Override
     public void send(ObjectId sender, ObjectId receiver, String dstExp,
             Object msg) throws ParseException, ProtocolUnsupportedException,
@@ -103,7 +142,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
          * OverlayImplでは、dstExpをDestinationとして解釈するが、CombinedOverlayでは、
          * DestinationCondition、つまり、DCLとして扱うため、parserの起動を変える必要がある。
          */
-        DestinationCondition dst = parser.parseDCL(dstExp);
+        DestinationCondition dst = parseDCL(dstExp);
         send(sender, receiver, dst, msg);
     }
     
@@ -115,7 +154,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
          * OverlayImplでは、dstExpをDestinationとして解釈するが、CombinedOverlayでは、
          * DestinationCondition、つまり、DCLとして扱うため、parserの起動を変える必要がある。
          */
-        DestinationCondition dst = parser.parseDCL(dstExp);
+        DestinationCondition dst = parseDCL(dstExp);
         return request(sender, receiver, dst, msg, opts);
     }
     
@@ -126,7 +165,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
         /*
          * Ditto.
          */
-        DestinationCondition dst = parser.parseDCL(dstExp);
+        DestinationCondition dst = parseDCL(dstExp);
         return request(sender, receiver, dst, msg, timeout);
     }
 
@@ -167,6 +206,8 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
 
         String attribName = ((DestinationCondition) nmsg.option).getFirst().var;
         List<VarDestinationPair> secondDconds = ((DestinationCondition) nmsg.option).getSeconds();
+        // 2番目以降の条件は、rowごとに判定するためコンパイルしておく
+        RowPredicate secondPred = RowPredicate.compile(secondDconds);
 
         logger.debug("ov:{} attrib:{}", trans.getTransportId(), attribName);
         
@@ -176,7 +217,8 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
                 @SuppressWarnings("rawtypes")
                 Object key = (k instanceof WrappedComparableKey) ? 
                         ((WrappedComparableKey) k).getKey() : k;
-                rows.addAll(table.getMatchedRows(attribName, key));
+                // 2番目以降の条件に使えるCompositeIndexがあれば、それで候補を絞り込む
+                rows.addAll(table.getMatchedRows(attribName, key, secondDconds));
             } catch (IllegalArgumentException e) {
                 logger.error("", e);
             } catch (IllegalStateException e) {
@@ -192,7 +234,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
         // 2番目以降の条件で、さらにrowdataを絞り込む
         List<Key> _rows = new ArrayList<Key>();
         for (RowData row : rows) {
-            if (!table.satisfies(row, secondDconds)) continue;
+            if (!table.satisfies(row, secondPred)) continue;
             _rows.add(row);
         }
         if (_rows.isEmpty()) {
@@ -225,6 +267,8 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
 //        String attribName = invMap.get(ov.getServiceId());
         String attribName = ((DestinationCondition) nmsg.option).getFirst().var;
         List<VarDestinationPair> secondDconds = ((DestinationCondition) nmsg.option).getSeconds();
+        // 2番目以降の条件は、rowごとに判定するためコンパイルしておく
+        RowPredicate secondPred = RowPredicate.compile(secondDconds);
 
         logger.debug("ov:{} attrib:{}", trans.getTransportId(), attribName);
         
@@ -239,7 +283,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
                  */
                 Object key = (k instanceof WrappedComparableKey) ? 
                         ((WrappedComparableKey) k).getKey() : k;
-                rows.addAll(table.getMatchedRows(attribName, key));
+                rows.addAll(table.getMatchedRows(attribName, key, secondDconds));
             } catch (IllegalArgumentException e) {
                 logger.error("", e);
             } catch (IllegalStateException e) {
@@ -252,7 +296,7 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
         // 2番目以降の条件で、さらにrowdataを絞り込む
         List<Key> _rows = new ArrayList<Key>();
         for (RowData row : rows) {
-            if (!table.satisfies(row, secondDconds)) continue;
+            if (!table.satisfies(row, secondPred)) continue;
             _rows.add(row);
         }
         if (_rows.isEmpty()) {
@@ -300,6 +344,19 @@ public class CombinedOverlay extends OverlayImpl<Destination, Key> implements
         return table.getDeclaredAttribNames();
     }
 
+    /**
+     * 属性の組 (first, second) に対するCompositeIndexを作成する。
+     * firstを最初の条件、secondを2番目以降の条件に持つDCLの受信処理で使われる。
+     * 
+     * @param first 1番目の属性名
+     * @param second 2番目の属性名
+     * @throws IllegalArgumentException firstとsecondが同じ場合
+     */
+    public void declareCompositeIndex(String first, String second)
+            throws IllegalArgumentException {
+        table.declareCompositeIndex(first, second);
+    }
+
     /**
      * 指定されたattribNameを持つAttributeに、
      * 指定されたTransportIdPathをsuffixとして持ち、型の互換性のあるOverlayをbindさせる。
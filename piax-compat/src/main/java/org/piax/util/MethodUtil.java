@@ -29,13 +29,18 @@
 
 package org.piax.util;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.piax.gtrans.IllegalRPCAccessException;
 import org.piax.gtrans.RemoteCallable;
@@ -52,12 +57,10 @@ public class MethodUtil {
     
     /** key object for cache map */
     private static class MethodKey {
-        final Class<?> clazz;
         final Class<?> superIf;
         final String methodName;
         final int paramNum;
-        MethodKey(Class<?> clazz, Class<?> superIf, String methodName, int paramNum) {
-            this.clazz = clazz;
+        MethodKey(Class<?> superIf, String methodName, int paramNum) {
             this.superIf = superIf;
             this.methodName = methodName;
             this.paramNum = paramNum;
@@ -68,23 +71,170 @@ public class MethodUtil {
             if (o == null || !(o instanceof MethodKey)) 
                 return false;
             MethodKey mkey = (MethodKey) o;
-            return clazz == mkey.clazz
-                && superIf == mkey.superIf
+            return superIf == mkey.superIf
                 && methodName.equals(mkey.methodName)
                 && paramNum == mkey.paramNum;
         }
         
         @Override
         public int hashCode() {
-            return clazz.hashCode() 
-                ^ ((superIf == null) ? 0 : superIf.hashCode()) 
+            return ((superIf == null) ? 0 : superIf.hashCode()) 
                 ^ methodName.hashCode() ^ paramNum;
         }
     }
 
-    /** map for cache use */
-    private static WeakHashMap<MethodKey, Method[]> methodCache =
-        new WeakHashMap<MethodKey, Method[]>();
+    /** key object for the resolved targets: the classes of the arguments */
+    private static class ArgTypes {
+        final Class<?>[] types;
+        ArgTypes(Class<?>[] types) {
+            this.types = types;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArgTypes
+                    && Arrays.equals(types, ((ArgTypes) o).types);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(types);
+        }
+    }
+
+    private static Class<?>[] argTypes(Object[] args) {
+        Class<?>[] types = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i++) {
+            types[i] = args[i] == null ? null : args[i].getClass();
+        }
+        return types;
+    }
+
+    /**
+     * 引数の型の列に対して解決されたメソッド。
+     * 可能な場合は、Method.invokeの代わりにMethodHandleを使って呼び出す。
+     */
+    private static class Target {
+        final Class<?>[] argTypes;
+        final Method method;
+        /** (Object, Object[])Object 型のMethodHandle。作れない場合は null */
+        final MethodHandle handle;
+        final boolean remoteCallable;
+        /** 可変長引数部を配列にpackする位置。packしない場合は -1 */
+        final int packFrom;
+
+        Target(Class<?>[] argTypes, Method method, int packFrom) {
+            this.argTypes = argTypes;
+            this.method = method;
+            this.handle = toHandle(method);
+            this.remoteCallable = method.getAnnotation(RemoteCallable.class) != null;
+            this.packFrom = packFrom;
+        }
+
+        /** 実引数の型がargTypesと完全に一致する場合 true。argTypesがnullの場合は常に true */
+        boolean matches(Object[] args) {
+            if (argTypes == null) return true;
+            if (args.length != argTypes.length) return false;
+            for (int i = 0; i < args.length; i++) {
+                Class<?> type = args[i] == null ? null : args[i].getClass();
+                if (type != argTypes[i]) return false;
+            }
+            return true;
+        }
+
+        Object invoke(Object target, Object[] args)
+                throws IllegalAccessException, InvocationTargetException {
+            Object[] _args = packFrom < 0 ? args : pack(args);
+            if (handle == null) {
+                return method.invoke(target, _args);
+            }
+            try {
+                return (Object) handle.invokeExact(target, _args);
+            } catch (Throwable e) {
+                // Method.invokeと同様に、呼び出し先の例外はすべてwrapする
+                throw new InvocationTargetException(e);
+            }
+        }
+
+        /*
+         * 可変数引数を扱う場合、配列として扱うため、引数要素が代入可能であっても
+         * 配列としてcastできない。このため、配列を別に用意し、互換性を保つ
+         */
+        private Object[] pack(Object[] args) {
+            Class<?>[] ptypes = method.getParameterTypes();
+            Object arr = Array.newInstance(
+                    ptypes[packFrom].getComponentType(),
+                    args.length - packFrom);
+            for (int i = 0; i < args.length - packFrom; i++) {
+                Array.set(arr, i, args[i + packFrom]);
+            }
+            Object[] args1 = new Object[packFrom + 1];
+            System.arraycopy(args, 0, args1, 0, packFrom);
+            args1[packFrom] = arr;
+            return args1;
+        }
+    }
+
+    private static MethodHandle toHandle(Method method) {
+        try {
+            MethodHandle h = MethodHandles.publicLookup().unreflect(method)
+                    .asFixedArity();
+            if (Modifier.isStatic(method.getModifiers())) {
+                h = MethodHandles.dropArguments(h, 0, Object.class);
+            }
+            int n = method.getParameterCount();
+            return h.asType(MethodType.genericMethodType(n + 1))
+                    .asSpreader(Object[].class, n);
+        } catch (IllegalAccessException e) {
+            logger.debug("use reflection for {}: {}", method, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * class, superIf, method名, 引数の数で決まるmethodの候補と、
+     * 実引数の型ごとに解決したTargetを保持する。
+     */
+    private static class Dispatch {
+        final Method[] methods;
+        final ConcurrentMap<ArgTypes, Target> targets =
+                new ConcurrentHashMap<ArgTypes, Target>();
+        final ConcurrentMap<ArgTypes, Target> strictTargets =
+                new ConcurrentHashMap<ArgTypes, Target>();
+        /** 直前に解決したTarget。同じ型の引数での呼び出しが続く場合の近道 */
+        volatile Target last;
+        volatile Target strictLast;
+
+        Dispatch(Method[] methods) {
+            this.methods = methods;
+        }
+    }
+
+    /**
+     * classごとの呼び出し表。
+     * ClassValueを使うことで、agentのclassのunloadを妨げずにlockなしで参照できる。
+     */
+    private static final ClassValue<ConcurrentMap<MethodKey, Dispatch>> dispatchTables =
+            new ClassValue<ConcurrentMap<MethodKey, Dispatch>>() {
+                @Override
+                protected ConcurrentMap<MethodKey, Dispatch> computeValue(
+                        Class<?> type) {
+                    return new ConcurrentHashMap<MethodKey, Dispatch>();
+                }
+            };
+
+    private static Dispatch getDispatch(Class<?> clazz, Class<?> superIf,
+            String methodName, int paramNum) {
+        ConcurrentMap<MethodKey, Dispatch> table = dispatchTables.get(clazz);
+        MethodKey key = new MethodKey(superIf, methodName, paramNum);
+        Dispatch d = table.get(key);
+        if (d == null) {
+            d = new Dispatch(getMethods(clazz, superIf, methodName, paramNum));
+            Dispatch old = table.putIfAbsent(key, d);
+            if (old != null) d = old;
+        }
+        return d;
+    }
     
     /**
      * 指定されたclazzとそのスーパーinterfaceとmethod名と引数の数の4つの情報にマッチする
@@ -97,7 +247,7 @@ public class MethodUtil {
      * このスーパーinterfaceは、RPCの対象オブジェクトのinterface、通常はRPCIfのサブinterface、
      * を指定する際に用いる。
      * <p>
-     * 効率化のため、計算した値はキャッシュに登録しておく。
+     * 計算した値は、getDispatchによってキャッシュされる。
      * 
      * @param clazz 基準となるClass
      * @param superIf スーパーinterface
@@ -107,43 +257,36 @@ public class MethodUtil {
      */
     private static Method[] getMethods(Class<?> clazz, Class<?> superIf, 
             String methodName, int paramNum) {
-        MethodKey key = new MethodKey(clazz, superIf, methodName, paramNum);
-        Method[] invocableMethods = methodCache.get(key);
+        // if superIf is not null, target classes will be sub interfaces
+        // of superIf.
+        Class<?>[] classes = (superIf == null)? new Class[]{clazz}
+            : ClassUtil.gatherLowerBoundSuperInterfaces(clazz, superIf);
         
-        // if null, make invocable Method list
-        if (invocableMethods == null) {
-            // if superIf is not null, target classes will be sub interfaces
-            // of superIf.
-            Class<?>[] classes = (superIf == null)? new Class[]{clazz}
-                : ClassUtil.gatherLowerBoundSuperInterfaces(clazz, superIf);
-            
-            List<Method> methods = new ArrayList<Method>();
-            for (Class<?> cls : classes) {
-                Method[] ms = cls.getMethods();
-                for (Method method : ms) {
-                    if (method.getName().equals(methodName)) {
-                        // if declared class is not public, skip
-                        if (!Modifier.isPublic(
-                                method.getDeclaringClass().getModifiers()))
-                            continue;
-                        if (method.isVarArgs()) {
-                            /*
-                             * 可変長引数の場合はOKとする
-                             */
-                            methods.add(method);
-                            continue;
-                        }
-                        Class<?>[] params = method.getParameterTypes();
-                        if (params.length == paramNum) {
-                            methods.add(method);
-                        }
+        List<Method> methods = new ArrayList<Method>();
+        for (Class<?> cls : classes) {
+            Method[] ms = cls.getMethods();
+            for (Method method : ms) {
+                if (method.getName().equals(methodName)) {
+                    // if declared class is not public, skip
+                    if (!Modifier.isPublic(
+                            method.getDeclaringClass().getModifiers()))
+                        continue;
+                    if (method.isVarArgs()) {
+                        /*
+                         * 可変長引数の場合はOKとする
+                         */
+                        methods.add(method);
+                        continue;
+                    }
+                    Class<?>[] params = method.getParameterTypes();
+                    if (params.length == paramNum) {
+                        methods.add(method);
                     }
                 }
             }
-            invocableMethods = new Method[methods.size()];
-            methods.toArray(invocableMethods);
-            methodCache.put(key, invocableMethods);
         }
+        Method[] invocableMethods = new Method[methods.size()];
+        methods.toArray(invocableMethods);
         return invocableMethods;
     }
     
@@ -208,18 +351,13 @@ public class MethodUtil {
      * of the interfaces which are super of specified class and are sub of
      * the specified superIf.
      * 
-     * @param clazz declared class
-     * @param superIf super interface
-     * @param methodName method name
+     * @param invocableMethods the candidates given by getMethods
      * @param args the arguments used for the method call
      * @return the matched <code>Method</code> object,
      *          <code>null</code> if not matched.
      */
-    private static Method getMethod(Class<?> clazz, Class<?> superIf,
-            String methodName, Object... args) {
-        Method[] invocableMethods = getMethods(clazz, superIf, methodName,
-                args.length);
-        
+    private static Method getMethod(Method[] invocableMethods,
+            Object... args) {
         for (Method method : invocableMethods) {
             Class<?>[] paramTypes = method.getParameterTypes();
             boolean matched = true;
@@ -307,10 +445,8 @@ public class MethodUtil {
         return invoke(target, null,methodName, args);
     }
     
-    private static void checkRemoteCallable(Method method) {
-        RemoteCallable anno = method
-                .getAnnotation(RemoteCallable.class);
-        if (anno == null) {
+    private static void checkRemoteCallable(Target t) {
+        if (!t.remoteCallable) {
             throw new IllegalRPCAccessException(
                     "could not call remotely without RemoteCallable annotation");
         }
@@ -321,6 +457,47 @@ public class MethodUtil {
             InvocationTargetException {
         return invoke(target,superIf,true,methodName,args);
     }
+
+    /**
+     * 可変長引数部を配列にpackする位置を返す。packしない場合は -1 を返す。
+     */
+    private static int packFrom(Method method, Object[] args) {
+        if (!method.isVarArgs()) return -1;
+        Class<?>[] ptypes = method.getParameterTypes();
+        int arrIx = ptypes.length - 1;
+        if (arrIx == args.length - 1 && args[arrIx] != null
+                && ptypes[arrIx].isAssignableFrom(args[arrIx].getClass())) {
+            /*
+             * 可変数引数の箇所が配列としてpackされている場合。
+             * java.lang.reflect.Proxyを使ってメソッドinvokeする場合は、このケースに相当する
+             */
+            return -1;
+        }
+        return arrIx;
+    }
+
+    /**
+     * 実引数に対して呼び出すTargetを解決する。
+     * 直前と同じ型の実引数であれば、候補のMethodの検査を行わずにTargetを返す。
+     */
+    private static Target resolve(Class<?> clazz, Class<?> superIf,
+            String methodName, Object[] args) {
+        Dispatch d = getDispatch(clazz, superIf, methodName, args.length);
+        Target t = d.last;
+        if (t != null && t.matches(args)) return t;
+        Class<?>[] types = argTypes(args);
+        ArgTypes key = new ArgTypes(types);
+        t = d.targets.get(key);
+        if (t == null) {
+            Method method = getMethod(d.methods, args);
+            if (method == null) return null;
+            t = new Target(types, method, packFrom(method, args));
+            Target old = d.targets.putIfAbsent(key, t);
+            if (old != null) t = old;
+        }
+        d.last = t;
+        return t;
+    }
     
     /**
      * Note: the specified method and its declared class should have 
@@ -341,48 +518,17 @@ public class MethodUtil {
             InvocationTargetException {
         // argsがnullで呼ばれることがあるため
         Object[] _args = args == null ? new Object[] {} : args;
-        Method method = getMethod(target.getClass(), superIf, methodName, _args);
-        if (method == null) {
+        Target t = resolve(target.getClass(), superIf, methodName, _args);
+        if (t == null) {
             throw new NoSuchMethodException(methodName + " in " 
                     + target.getClass().getName());
         }
         try {
             if (!localCall) {
                 // Remote callの場合は、RemoteCallableであることをチェック
-                checkRemoteCallable(method);
+                checkRemoteCallable(t);
             }
-            /*
-             *  可変長引数が配列にpackされている時は可変長引数であっても、次の処理は呼ばない。
-             *  java.lang.reflect.Proxyを使ってメソッドinvokeする場合は、このケースに相当する
-             */
-            if (method.isVarArgs()) {
-                /*
-                 * 可変数引数を扱う場合、配列として扱うため、引数要素が代入可能であっても
-                 * 配列としてcastできない。このため、配列を別に用意し、互換性を保つ
-                 */
-                Class<?>[] ptypes = method.getParameterTypes();
-                int arrIx = ptypes.length - 1;
-                if (arrIx == _args.length - 1 && 
-                        ptypes[arrIx].isAssignableFrom(_args[arrIx].getClass())) {
-                    /*
-                     * 可変数引数の箇所が配列としてpackされている場合
-                     */
-                    return method.invoke(target, _args);
-                }
-                Object arr = Array.newInstance(
-                        ptypes[arrIx].getComponentType(),
-                        _args.length - arrIx);
-                for (int i = 0; i < _args.length - arrIx; i++) {
-                    Array.set(arr, i, _args[i + arrIx]);
-                }
-                Object[] args1 = new Object[arrIx + 1];
-                for (int i = 0; i < arrIx; i++) {
-                    args1[i] = _args[i];
-                }
-                args1[arrIx] = arr;
-                return method.invoke(target, args1);
-            }
-            return method.invoke(target, _args);
+            return t.invoke(target, _args);
         } catch (IllegalArgumentException e) {
             logger.error("", e);
             throw e;
@@ -411,8 +557,19 @@ public class MethodUtil {
             String methodName, Object... args) throws NoSuchMethodException {
         // argsがnullで呼ばれることがあるため
         Object[] _args = args == null ? new Object[] {} : args;
-        Method[] invocableMethods = getMethods(targetClass, superIf,
-                methodName, _args.length);
+        Method[] invocableMethods = getDispatch(targetClass, superIf,
+                methodName, _args.length).methods;
+        Method method = strictGetMethod(invocableMethods, _args);
+        if (method == null) {
+            // 互換なmethodがない場合（通常はありえない）
+            throw new NoSuchMethodException(methodName + " in "
+                    + targetClass.getName());
+        }
+        return method;
+    }
+
+    private static Method strictGetMethod(Method[] invocableMethods,
+            Object[] _args) {
         if (invocableMethods.length == 1) {
             // 候補が一つに決まる場合は、そのまま返す
             return invocableMethods[0];
@@ -436,9 +593,7 @@ public class MethodUtil {
                 }
             }
         }
-        // 互換なmethodがない場合（通常はありえない）
-        throw new NoSuchMethodException(methodName + " in "
-                + targetClass.getName());
+        return null;
     }
     
     /**
@@ -463,13 +618,37 @@ public class MethodUtil {
             String methodName, Object... args) throws NoSuchMethodException,
             InvocationTargetException {
         // argsがnullで呼ばれることがあるため
-        Method method = strictGetMethod(target.getClass(),superIf,methodName,args);
+        Object[] _args = args == null ? new Object[] {} : args;
+        Dispatch d = getDispatch(target.getClass(), superIf, methodName,
+                _args.length);
+        Target t = d.strictLast;
+        if (t == null || !t.matches(_args)) {
+            if (d.methods.length == 1) {
+                // 候補が一つに決まる場合は、実引数の型によらず同じTargetを使う
+                t = new Target(null, d.methods[0], -1);
+            } else {
+                Class<?>[] types = argTypes(_args);
+                ArgTypes key = new ArgTypes(types);
+                t = d.strictTargets.get(key);
+                if (t == null) {
+                    Method method = strictGetMethod(d.methods, _args);
+                    if (method == null) {
+                        throw new NoSuchMethodException(methodName + " in "
+                                + target.getClass().getName());
+                    }
+                    t = new Target(types, method, -1);
+                    Target old = d.strictTargets.putIfAbsent(key, t);
+                    if (old != null) t = old;
+                }
+            }
+            d.strictLast = t;
+        }
         try {
             if (!localCall) {
                 // Remote callの場合は、RemoteCallableであることをチェック
-                checkRemoteCallable(method);
+                checkRemoteCallable(t);
             }
-            return method.invoke(target, args);
+            return t.invoke(target, _args);
         } catch (IllegalArgumentException e) {
             logger.error("", e);
             throw e;
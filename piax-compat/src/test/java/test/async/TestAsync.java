@@ -1,5 +1,6 @@
 package test.async;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -9,21 +10,33 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
+import org.piax.ayame.Event.Lookup;
+import org.piax.ayame.Event.TimerEvent;
 import org.piax.ayame.EventException.NetEventException;
 import org.piax.ayame.EventException.TimeoutException;
+import org.piax.ayame.EventEngine;
 import org.piax.ayame.EventExecutor;
+import org.piax.ayame.EventSender.EventSenderSim;
 import org.piax.ayame.Indirect;
+import org.piax.ayame.LatencyProvider.StarLatencyProvider;
+import org.piax.ayame.LocalNode;
 import org.piax.ayame.Node;
 import org.piax.ayame.NodeFactory;
 import org.piax.ayame.ov.ddll.DdllStrategy.DdllNodeFactory;
@@ -33,6 +46,7 @@ import org.piax.ayame.ov.rq.RQAdapter.KeyAdapter;
 import org.piax.ayame.ov.rq.RQStrategy.RQNodeFactory;
 import org.piax.ayame.ov.suzaku.SuzakuStrategy.SuzakuNodeFactory;
 import org.piax.common.DdllKey;
+import org.piax.common.PeerId;
 import org.piax.common.subspace.Range;
 import org.piax.gtrans.RemoteValue;
 import org.piax.gtrans.TransOptions;
@@ -100,6 +114,184 @@ public class TestAsync extends AsyncTestBase {
         assertFalse(chk2.val);
     }
 
+    @Test
+    public void testShardedExecutor() {
+        EventExecutor.EXECUTOR_THREADS.set(4);
+        EventExecutor.reset();
+        int nnodes = 8, njobs = 50;
+        LocalNode[] locals = new LocalNode[nnodes];
+        List<List<Integer>> executed = new ArrayList<>();
+        List<Set<String>> threads = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(nnodes * njobs);
+        for (int i = 0; i < nnodes; i++) {
+            // each peer has two LocalNodes
+            locals[i] = new LocalNode(EventSenderSim.getInstance(),
+                    new DdllKey(i * 100, new PeerId("P" + i / 2), "", null));
+            executed.add(Collections.synchronizedList(new ArrayList<>()));
+            threads.add(ConcurrentHashMap.newKeySet());
+        }
+        EventExecutor.startExecutorThread();
+        for (int j = 0; j < njobs; j++) {
+            for (int i = 0; i < nnodes; i++) {
+                int i0 = i, j0 = j;
+                EventExecutor.runNow(locals[i], "test.sharded", () -> {
+                    executed.get(i0).add(j0);
+                    threads.get(i0).add(Thread.currentThread().getName());
+                    done.countDown();
+                });
+            }
+        }
+        boolean finished;
+        try {
+            finished = done.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            finished = false;
+        }
+        EventExecutor.terminate();
+        EventExecutor.realtime.set(false);
+        EventExecutor.EXECUTOR_THREADS.set(1);
+        EventExecutor.reset();
+        assertTrue(finished);
+        List<Integer> expected = IntStream.range(0, njobs).boxed()
+                .collect(Collectors.toList());
+        for (int i = 0; i < nnodes; i++) {
+            // events for a node are executed by a single thread in order
+            assertEquals(expected, executed.get(i));
+            assertEquals(1, threads.get(i).size());
+            // the LocalNodes of a peer share the thread
+            assertEquals(threads.get(i & ~1), threads.get(i));
+        }
+    }
+
+    @Test
+    public void testTimerOrder() {
+        EventExecutor.reset();
+        Random r = new Random(1);
+        int n = 5000;
+        List<long[]> expected = new ArrayList<>();
+        List<long[]> executed = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            // include ties and delays beyond one round of the timing wheel
+            long delay = r.nextInt(10) == 0 ? r.nextInt(100000) : r.nextInt(50);
+            long[] ent = new long[] { delay, i };
+            TimerEvent ev = EventExecutor.sched("test.timerOrder", delay,
+                    () -> executed.add(ent));
+            if (r.nextInt(3) == 0) {
+                ev.cancel();
+            } else {
+                expected.add(ent);
+            }
+        }
+        EventExecutor.startSimulation(0);
+        expected.sort(Comparator.<long[]>comparingLong(e -> e[0])
+                .thenComparingLong(e -> e[1]));
+        assertEquals(expected, executed);
+    }
+
+    @Test
+    public void testIndependentEngines() throws Exception {
+        init();
+        int nengines = 2, nnodes = 4;
+        EventEngine[] engines = new EventEngine[nengines];
+        LocalNode[][] locals = new LocalNode[nengines][];
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (int e = 0; e < nengines; e++) {
+            EventEngine engine = new EventEngine();
+            engines[e] = engine;
+            int e0 = e;
+            // run each simulation in its own thread
+            results.add(CompletableFuture.runAsync(() -> engine.execute(() -> {
+                NodeFactory factory = new SuzakuNodeFactory(3);
+                StarLatencyProvider lp = new StarLatencyProvider();
+                engine.setLatencyProvider(lp);
+                LocalNode[] ns = new LocalNode[nnodes];
+                for (int i = 0; i < nnodes; i++) {
+                    ns[i] = new LocalNode(EventSenderSim.getInstance(),
+                            new DdllKey(i * 100, new PeerId("P" + i), "",
+                                    null));
+                    factory.setupNode(ns[i]);
+                    lp.add(ns[i], 50);
+                }
+                locals[e0] = ns;
+                ns[0].joinInitialNode();
+                List<CompletableFuture<Void>> fs = new ArrayList<>();
+                for (int i = 1; i < nnodes; i++) {
+                    fs.add(ns[i].joinAsync(ns[0]));
+                }
+                engine.startSimulation(30000);
+                fs.forEach(f -> checkCompleted(f));
+                checkConsistent(ns);
+            })));
+        }
+        for (CompletableFuture<Void> f : results) {
+            f.get();
+        }
+        for (int i = 0; i < nnodes; i++) {
+            // the same key is interned separately in each engine
+            assertTrue(locals[0][i] != locals[1][i]);
+            assertEquals(locals[0][i].toString(), locals[1][i].toString());
+            assertTrue(locals[0][i].getEngine() == engines[0]);
+        }
+        // the default engine is not affected
+        assertEquals(0, EventExecutor.getNumMessages());
+        assertTrue(Node.getInstance(locals[0][0].key) == null);
+        assertTrue(engines[0].getNumMessages() > 0);
+    }
+
+    @Test
+    public void testParallelSimulation() {
+        // the result must be identical to that of the sequential simulation
+        String r0 = runParallelSimulation(0);
+        logger.debug("result: {}", r0);
+        String hops = r0.substring(0, r0.indexOf(']') + 1);
+        assertFalse(hops.contains("-1"), r0);
+        assertEquals(r0, runParallelSimulation(1));
+        assertEquals(r0, runParallelSimulation(4));
+    }
+
+    // nthreads == 0 means the sequential simulation
+    private String runParallelSimulation(int nthreads) {
+        EventExecutor.PARALLEL_SIM_THREADS.set(nthreads);
+        try {
+            EventEngine engine = new EventEngine();
+            engine.setRandom(new Random(1));
+            return engine.call(() -> {
+                int nnodes = 16;
+                NodeFactory factory = new SuzakuNodeFactory(3);
+                StarLatencyProvider lp = new StarLatencyProvider();
+                engine.setLatencyProvider(lp);
+                LocalNode[] ns = new LocalNode[nnodes];
+                for (int i = 0; i < nnodes; i++) {
+                    ns[i] = new LocalNode(EventSenderSim.getInstance(),
+                            new DdllKey(i * 100, new PeerId("P" + i), "",
+                                    null));
+                    factory.setupNode(ns[i]);
+                    lp.add(ns[i], 20 + i);
+                }
+                ns[0].joinInitialNode();
+                for (int i = 1; i < nnodes; i++) {
+                    ns[i].joinAsync(ns[0]);
+                }
+                engine.startSimulation(30000);
+                checkConsistent(ns);
+                long[] hops = new long[nnodes];
+                for (int i = 0; i < nnodes; i++) {
+                    int i0 = i;
+                    Lookup ev = new Lookup(ns[i], ns[(i * 7) % nnodes].key);
+                    ev.onReply((done, exc) -> {
+                        hops[i0] = (exc != null ? -1 : done.route.size());
+                    });
+                    ns[i].post(ev);
+                }
+                engine.startSimulation(30000);
+                return Arrays.toString(hops) + ", " + engine.getNumMessages()
+                        + " msgs, T=" + engine.getVTime();
+            });
+        } finally {
+            EventExecutor.PARALLEL_SIM_THREADS.set(0);
+        }
+    }
+
     @Test
     public void testDdllBasicInsDel() {
         testBasicInsDel(new DdllNodeFactory());
@@ -579,7 +771,7 @@ public class TestAsync extends AsyncTestBase {
                 receiver -> new SlowCacheValueProvider(receiver, 10000),
                 new Range<Integer>(200, true, 400, false),
                 Arrays.asList(300));
-        logger.debug(getPrivateField(EventExecutor.class, "timeq").toString());
+        logger.debug("{}", EventExecutor.getDefaultEngine());
     }
 
     private void testRetrans(NodeFactory base,
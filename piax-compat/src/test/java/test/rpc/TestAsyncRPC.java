@@ -0,0 +1,184 @@
+package test.rpc;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.piax.common.ObjectId;
+import org.piax.common.PeerId;
+import org.piax.common.TransportId;
+import org.piax.gtrans.ChannelTransport;
+import org.piax.gtrans.DynamicStub;
+import org.piax.gtrans.IdConflictException;
+import org.piax.gtrans.NetworkTimeoutException;
+import org.piax.gtrans.Peer;
+import org.piax.gtrans.PeerLocator;
+import org.piax.gtrans.RPCException;
+import org.piax.gtrans.RPCIf;
+import org.piax.gtrans.RPCInvoker;
+import org.piax.gtrans.RPCMode;
+import org.piax.gtrans.RemoteCallable;
+
+import test.Util;
+
+public class TestAsyncRPC extends Util {
+
+    public interface AsyncAppIf extends RPCIf {
+        @RemoteCallable
+        CompletableFuture<Integer> sum(int n);
+
+        @RemoteCallable
+        CompletableFuture<Integer> delayedSum(int n, int delay);
+
+        @RemoteCallable
+        CompletableFuture<Integer> throwEx();
+
+        @RemoteCallable
+        int syncSum(int n) throws RPCException;
+    }
+
+    public static class AsyncApp<E extends PeerLocator>
+            extends RPCInvoker<AsyncAppIf, E> implements AsyncAppIf {
+        static final ScheduledExecutorService timer =
+                Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        AsyncApp(TransportId transId, ChannelTransport<E> trans)
+                throws IOException, IdConflictException {
+            super(transId, trans);
+        }
+
+        int calc(int n) {
+            int sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += i;
+            }
+            return sum;
+        }
+
+        @Override
+        public CompletableFuture<Integer> sum(int n) {
+            return CompletableFuture.completedFuture(calc(n));
+        }
+
+        @Override
+        public CompletableFuture<Integer> delayedSum(int n, int delay) {
+            // the callee completes the future asynchronously
+            CompletableFuture<Integer> f = new CompletableFuture<>();
+            timer.schedule(() -> f.complete(calc(n)), delay,
+                    TimeUnit.MILLISECONDS);
+            return f;
+        }
+
+        @Override
+        public CompletableFuture<Integer> throwEx() {
+            throw new IllegalStateException("throwEx");
+        }
+
+        @Override
+        public int syncSum(int n) {
+            return calc(n);
+        }
+    }
+
+    static AsyncApp<PeerLocator> app1, app2;
+    static ChannelTransport<PeerLocator> transport1, transport2;
+    static Peer peer1, peer2;
+    static ObjectId objId2;
+
+    @BeforeAll
+    public static void setup() throws IOException, IdConflictException {
+        peer1 = Peer.getInstance(new PeerId("apeer1"));
+        peer2 = Peer.getInstance(new PeerId("apeer2"));
+        transport1 = peer1.newBaseChannelTransport(
+                Util.<PeerLocator>genLocator(Net.NETTY, "localhost", 10011));
+        transport2 = peer2.newBaseChannelTransport(
+                Util.<PeerLocator>genLocator(Net.NETTY, "localhost", 10012));
+        TransportId appId = new TransportId("asyncApp");
+        app1 = new AsyncApp<PeerLocator>(appId, transport1);
+        app2 = new AsyncApp<PeerLocator>(appId, transport2);
+        objId2 = RPCInvoker.createObjId(transport2, appId);
+    }
+
+    @AfterAll
+    public static void fin() {
+        app1.fin();
+        app2.fin();
+        peer1.fin();
+        peer2.fin();
+    }
+
+    @Test
+    public void asyncCall() throws Exception {
+        AsyncAppIf stub = app1.getStub(transport2.getEndpoint());
+        assertEquals(55, (int) stub.sum(10).get(10, TimeUnit.SECONDS));
+        assertEquals(55, (int) stub.delayedSum(10, 100)
+                .get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void localAsyncCall() throws Exception {
+        AsyncAppIf stub = app1.getStub(transport1.getEndpoint());
+        assertEquals(55, (int) stub.sum(10).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void manyConcurrentCalls() throws Exception {
+        AsyncAppIf stub = app1.getStub(transport2.getEndpoint());
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            futures.add(stub.delayedSum(i, i % 10));
+        }
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i * (i + 1) / 2,
+                    (int) futures.get(i).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void localAsyncException() throws Exception {
+        AsyncAppIf stub = app1.getStub(transport1.getEndpoint());
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> stub.throwEx().get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void asyncTimeout() throws Exception {
+        AsyncAppIf stub = app1.getStub(transport2.getEndpoint(), 100);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> stub.delayedSum(10, 3000).get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RPCException);
+        assertTrue(e.getCause().getCause() instanceof NetworkTimeoutException);
+    }
+
+    @Test
+    public void dynamicAsyncCall() throws Throwable {
+        DynamicStub stub = app1.getStub(DynamicStub.class,
+                objId2, transport2.getEndpoint(), RPCMode.ASYNC);
+        Object f = stub.method("syncSum", 10);
+        assertTrue(f instanceof CompletableFuture);
+        assertEquals(55, ((CompletableFuture<?>) f).get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void asyncModeRequiresFuture() {
+        AsyncAppIf stub = app1.getStub(AsyncAppIf.class, objId2,
+                transport2.getEndpoint(), RPCMode.ASYNC);
+        assertThrows(UnsupportedOperationException.class,
+                () -> stub.syncSum(10));
+    }
+}
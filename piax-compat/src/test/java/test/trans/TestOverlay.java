@@ -730,6 +730,10 @@ public class TestOverlay {
         r3.setAttrib("name", "ishi", true);
         r3.setAttrib("hobby", "ski");
 
+        tr1.declareCompositeIndex("age", "hobby");
+        tr2.declareCompositeIndex("age", "hobby");
+        tr3.declareCompositeIndex("age", "hobby");
+
         l1.join(loc);
         l2.join(loc);
         l3.join(loc);
@@ -810,6 +814,25 @@ public class TestOverlay {
         assertTrue(received3, "SG3 receive failed");
         assertTrue(!received2, "SG2 falsely received");
 
+        // every condition after an equality must also be satisfied
+        l = Arrays.asList(tr1.request(
+                "age in (3..8) and hobby eq \"ski\" and name eq \"tera\"",
+                "req").getAllValues());
+        assertTrue(!l.contains("recv2"), "SG2 falsely received");
+        assertTrue(!l.contains("recv3"), "SG3 falsely received");
+
+        // the composite index follows the updates of attributes
+        r2.setAttrib("hobby", "ski");
+        l = Arrays.asList(tr1.request("age in (3..8) and hobby eq \"ski\"",
+                "req").getAllValues());
+        assertTrue(l.contains("recv2"), "SG2 receive failed");
+        assertTrue(l.contains("recv3"), "SG3 receive failed");
+        l = Arrays.asList(tr1.request("age in (3..8) and hobby eq \"golf\"",
+                "req").getAllValues());
+        assertTrue(!l.contains("recv2"), "SG2 falsely received");
+        assertTrue(!l.contains("recv3"), "SG3 falsely received");
+        r2.setAttrib("hobby", "programming");
+
         send_recv2 = false;
         send_recv3 = false;
         tr1.send("age in (3..8) and hobby eq \"ski\"", "req");
@@ -0,0 +1,534 @@
+/*
+ * AntiEntropy.java - Replica repair of DHT with Merkle trees
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import org.piax.common.subspace.KeyRange;
+import org.piax.common.subspace.KeyRanges;
+import org.piax.common.subspace.LowerUpper;
+import org.piax.gtrans.FutureQueue;
+import org.piax.gtrans.NetworkTimeoutException;
+import org.piax.gtrans.ProtocolUnsupportedException;
+import org.piax.gtrans.RemoteValue;
+import org.piax.gtrans.ov.Link;
+import org.piax.gtrans.ov.RoutingTableAccessor;
+import org.piax.kvs.dht.DHT.MultiReply;
+import org.piax.kvs.dht.DHT.QueryPack;
+import org.piax.util.KeyComparator;
+import org.piax.util.SerializingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merkle treeを用いたDHTの複製の修復（anti-entropy）。
+ * <p>
+ * hash値が [x0, x1) のkeyの複製は、その範囲の左端のピア x0 と、その左側の
+ * REPLICA_NUM-1 個のピアが持つ。x0 は、左側のピアとこの範囲のMerkle treeのダイジェストを
+ * 根から順に比較し、異なる葉に属するkey, valueペアだけを交換する。
+ * 片方にしかないペアはもう片方にコピーし、両方にあって異なるペアは、
+ * getの多数決で選ばれたvalueで両方を上書きする。
+ * <p>
+ * Merkle treeはすべてのkeyについて1つだけ持つ。範囲の境界にかかる葉には範囲外の
+ * keyも属するため、そのダイジェストは、keyごとのダイジェストの索引から範囲内のkeyの分
+ * だけを求める。境界にかかるノードのそれ以外の部分木はMerkle treeの値を用いる。この索引はputLocalのたびに更新し、ae-entriesの応答にも用いるため、
+ * 修復の1回ごとにストレージのすべてのkey, valueペアを読むことはない。
+ * <p>
+ * x1 は、OverlayのRoutingTableAccessor#getRightsから求める。x0 がId空間の最大側の
+ * ピアである場合、範囲は最小側のピアまでwraparoundする。x1 が分からない場合は、
+ * すべてのkeyを範囲とする。
+ */
+class AntiEntropy {
+    /*--- logger ---*/
+    private static final Logger logger =
+            LoggerFactory.getLogger(AntiEntropy.class);
+
+    /**
+     * ae-digest, ae-entriesのクエリー
+     */
+    static class EntryQuery implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final int[] nodes;  // Merkle treeのノードの番号
+        final HashId from;
+        final HashId to;    // nullの場合はすべてのkey
+
+        /**
+         * hが範囲 [from, to) に含まれるかを返す。from &gt; to の場合はwraparoundする。
+         */
+        boolean contains(HashId h) {
+            if (to == null) {
+                return true;
+            }
+            if (from.compareTo(to) < 0) {
+                return h.compareTo(from) >= 0 && h.compareTo(to) < 0;
+            }
+            return h.compareTo(from) >= 0 || h.compareTo(to) < 0;
+        }
+
+        EntryQuery(int[] nodes, HashId from, HashId to) {
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * ae-putのクエリー
+     */
+    static class EntryPush implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final HashMap<Comparable<?>, Object> missing = new HashMap<>();
+        final HashMap<Comparable<?>, Object> resolved = new HashMap<>();
+    }
+
+    private final DHT dht;
+    private final DHTStorage storage;
+    final MerkleTree tree;
+    /**
+     * hash値ごとの、key, valueペアのダイジェスト。updatedの中で更新する。
+     * 異なるkeyのhash値が衝突しうるため、hash値ごとにkeyからダイジェストへのmapを持つ。
+     */
+    private final NavigableMap<HashId, Map<Comparable<?>, Long>> index =
+            new TreeMap<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    AntiEntropy(DHT dht, DHTStorage storage, int depth) throws IOException {
+        this.dht = dht;
+        this.storage = storage;
+        this.tree = new MerkleTree(depth);
+        try {
+            storage.forEach((k, v) -> {
+                try {
+                    updated(k, v);
+                } catch (ObjectStreamException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private long digest(byte[] key, Object value) throws ObjectStreamException {
+        return MerkleTree.digest(key,
+                SerializingUtil.serialize((Serializable) value));
+    }
+
+    /**
+     * keyのvalueが変わったことを索引とMerkle treeに反映する。
+     * 古いダイジェストは索引から求めるため、古いvalueは不要である。
+     * putLocalから呼ばれる。
+     */
+    void updated(Comparable<?> key, Object value)
+            throws ObjectStreamException {
+        long d = value == null ? 0 : digest(
+                SerializingUtil.serialize((Serializable) key), value);
+        HashId h = dht.hash(key);
+        long old;
+        synchronized (index) {
+            Map<Comparable<?>, Long> m = index.get(h);
+            Long o = m == null ? null : m.get(key);
+            old = o == null ? 0 : o;
+            if (value != null) {
+                if (m == null) {
+                    m = new HashMap<>(2);
+                    index.put(h, m);
+                }
+                m.put(key, d);
+            } else if (m != null) {
+                m.remove(key);
+                if (m.isEmpty()) {
+                    index.remove(h);
+                }
+            }
+        }
+        if ((old ^ d) != 0) {
+            tree.update(tree.leafOf(h), old ^ d);
+        }
+    }
+
+    /**
+     * 修復をバックグラウンドで実行する。前回の修復が終わっていない場合は何もしない。
+     */
+    void runAsync() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        CompletableFuture.runAsync(() -> {
+            try {
+                run();
+            } catch (Exception e) {
+                logger.info("anti-entropy failed: {}", e.toString());
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * 自身が左端となる範囲について、左側のピアとの修復を実行する。
+     *
+     * @return 交換したkey, valueペアの数
+     * @throws IOException 左側のピアが分からない場合
+     */
+    int run() throws IOException {
+        HashId from = dht.myHashId;
+        List<HashId> lefts = leftNeighbors();
+        HashId to = successor(lefts);
+        int repaired = 0;
+        for (HashId peer : lefts) {
+            try {
+                repaired += syncWith(peer, from, to);
+            } catch (IOException e) {
+                logger.info("anti-entropy with {} failed: {}", peer,
+                        e.toString());
+            }
+        }
+        logger.debug("anti-entropy of [{}, {}): {} entries repaired", from,
+                to, repaired);
+        return repaired;
+    }
+
+    /**
+     * 右隣のピアのHashIdを返す。自身が最大側のピアである場合は最小側のピアのHashIdを、
+     * 分からない場合はnullを返す。
+     *
+     * @param lefts 左側のピアのHashId
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private HashId successor(List<HashId> lefts) {
+        HashId me = dht.myHashId;
+        HashId succ = null;
+        HashId min = null;
+        for (HashId id : lefts) {
+            if (id.compareTo(me) < 0 && (min == null || id.compareTo(min) < 0)) {
+                min = id;
+            }
+        }
+        if (dht.sg instanceof RoutingTableAccessor) {
+            try {
+                for (Link l : ((RoutingTableAccessor) dht.sg).getRights(me)) {
+                    Object k = l.key.getRawKey();
+                    if (!(k instanceof HashId)
+                            || !((HashId) k).name.equals(me.name)) {
+                        continue;
+                    }
+                    HashId id = (HashId) k;
+                    if (id.compareTo(me) > 0
+                            && (succ == null || id.compareTo(succ) < 0)) {
+                        succ = id;
+                    } else if (id.compareTo(me) < 0
+                            && (min == null || id.compareTo(min) < 0)) {
+                        min = id;
+                    }
+                }
+            } catch (ProtocolUnsupportedException | RuntimeException e) {
+                logger.debug("no routing table: {}", e.toString());
+                return null;
+            }
+        }
+        if (succ != null) {
+            return succ;
+        }
+        if (min == null) {
+            return null;
+        }
+        // 自身は最大側のピアであるため、既知の最小のピアより左側のピアを範囲検索で求める
+        NavigableMap<HashId, MultiReply> nodes = new TreeMap<>();
+        try {
+            dht.collect(dht.requestRanges(new KeyRanges<HashId>(
+                    new KeyRange(KeyComparator.getMinusInfinity(HashId.class),
+                            false, min, false)),
+                    new QueryPack<Object>("ids", null, null)), nodes);
+        } catch (IOException e) {
+            logger.debug("no smallest: {}", e.toString());
+            return null;
+        }
+        return nodes.isEmpty() ? min : nodes.firstKey();
+    }
+
+    /**
+     * 左側のREPLICA_NUM-1個のピアのHashIdを返す。
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private List<HashId> leftNeighbors() throws IOException {
+        HashId me = dht.myHashId;
+        int n = DHT.REPLICA_NUM - 1;
+        NavigableMap<HashId, MultiReply> nodes = new TreeMap<>();
+        QueryPack<?> q = new QueryPack<Object>("ids", null, null);
+        LowerUpper dst = new LowerUpper(new KeyRange(
+                KeyComparator.getMinusInfinity(HashId.class), false, me, false),
+                false, n);
+        int count = dht.collect(dht.sg.request(dht.serviceId, dht.serviceId,
+                dst, q, DHT.REQUEST_TIMEOUT), nodes);
+        if (count < n) {
+            dht.collect(dht.sg.request(dht.serviceId, dht.serviceId,
+                    dht.wrapDst(me, n - count), q, DHT.REQUEST_TIMEOUT), nodes);
+        }
+        nodes.remove(me);
+        return new ArrayList<>(nodes.keySet());
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] a = new int[list.size()];
+        for (int i = 0; i < a.length; i++) {
+            a[i] = list.get(i);
+        }
+        return a;
+    }
+
+    private int syncWith(HashId peer, HashId from, HashId to)
+            throws IOException {
+        // 範囲を覆うノードから、ダイジェストの異なる葉までたどる
+        int last = (1 << tree.depth) - 1;
+        List<Integer> frontier;
+        if (to == null) {
+            frontier = tree.cover(0, last);
+        } else if (from.compareTo(to) < 0) {
+            frontier = tree.cover(tree.leafOf(from), tree.leafOf(to));
+        } else {
+            frontier = tree.cover(tree.leafOf(from), last);
+            frontier.addAll(tree.cover(0, tree.leafOf(to)));
+        }
+        List<Integer> leaves = new ArrayList<>();
+        while (!frontier.isEmpty()) {
+            EntryQuery dq = new EntryQuery(toArray(frontier), from, to);
+            long[] remote = (long[]) ask(peer, "ae-digest", dq);
+            long[] local = digests(dq);
+            int[] nodes = dq.nodes;
+            frontier = new ArrayList<>();
+            for (int i = 0; i < nodes.length; i++) {
+                if (local[i] == remote[i]) {
+                    continue;
+                }
+                if (tree.isLeafNode(nodes[i])) {
+                    leaves.add(nodes[i]);
+                } else {
+                    frontier.add(2 * nodes[i]);
+                    frontier.add(2 * nodes[i] + 1);
+                }
+            }
+        }
+        if (leaves.isEmpty()) {
+            return 0;
+        }
+        EntryQuery eq = new EntryQuery(toArray(leaves), from, to);
+        @SuppressWarnings("unchecked")
+        Map<Comparable<?>, Long> remote =
+                (Map<Comparable<?>, Long>) ask(peer, "ae-entries", eq);
+        Map<Comparable<?>, Long> local = entries(eq);
+        EntryPush push = new EntryPush();
+        List<Comparable<?>> pull = new ArrayList<>();
+        for (Map.Entry<Comparable<?>, Long> e : local.entrySet()) {
+            Long d = remote.get(e.getKey());
+            if (d == null) {
+                Object v = storage.get(e.getKey());
+                if (v != null) {
+                    push.missing.put(e.getKey(), v);
+                }
+            } else if (!d.equals(e.getValue())) {
+                Object v = dht.get(e.getKey());
+                Object s = v == null ? DHT.Special.REMOVED : v;
+                dht.putLocal(e.getKey(), s);
+                push.resolved.put(e.getKey(), s);
+            }
+        }
+        for (Comparable<?> k : remote.keySet()) {
+            if (!local.containsKey(k)) {
+                pull.add(k);
+            }
+        }
+        if (!pull.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            Map<Comparable<?>, Object> got = (Map<Comparable<?>, Object>) ask(
+                    peer, "ae-get", pull.toArray(new Comparable<?>[0]));
+            for (Map.Entry<Comparable<?>, Object> e : got.entrySet()) {
+                dht.putLocalIfAbsent(e.getKey(), e.getValue());
+            }
+        }
+        if (!push.missing.isEmpty() || !push.resolved.isEmpty()) {
+            ask(peer, "ae-put", push);
+        }
+        return pull.size() + push.missing.size() + push.resolved.size();
+    }
+
+    private Object ask(HashId peer, String method, Object value)
+            throws IOException {
+        FutureQueue<?> fq = dht.requestRanges(
+                new KeyRanges<HashId>(new KeyRange<HashId>(peer)),
+                new QueryPack<Object>(method, null, value));
+        fq.setGetNextTimeout(DHT.FUTUREQUEUE_GETNEXT_TIMEOUT);
+        for (RemoteValue<?> rv : fq) {
+            if (rv == null) {
+                // getNextでtimeoutした場合
+                break;
+            }
+            try {
+                Object v = rv.get();
+                if (v != null) {
+                    fq.cancel();
+                    return v;
+                }
+            } catch (InvocationTargetException e) {
+                fq.cancel();
+                throw new IOException(e.getCause());
+            }
+        }
+        fq.cancel();
+        throw new NetworkTimeoutException(method + " to " + peer);
+    }
+
+    /**
+     * ノードに属するkeyのうち、hash値がqの範囲に含まれるもののダイジェストに対して
+     * actionを実行する。索引はコピーせず、subMapのビューをたどる。
+     */
+    private void forEachDigest(int node, EntryQuery q,
+            BiConsumer<Comparable<?>, Long> action) {
+        HashId lo = tree.firstId(tree.firstLeaf(node), dht.myHashId);
+        int next = tree.lastLeaf(node) + 1;
+        synchronized (index) {
+            NavigableMap<HashId, Map<Comparable<?>, Long>> sub =
+                    next == 1 << tree.depth ? index.tailMap(lo, true)
+                    : index.subMap(lo, true,
+                            tree.firstId(next, dht.myHashId), false);
+            for (Map.Entry<HashId, Map<Comparable<?>, Long>> e : sub.entrySet()) {
+                if (q.contains(e.getKey())) {
+                    e.getValue().forEach(action);
+                }
+            }
+        }
+    }
+
+    /**
+     * qのノードのダイジェストを、qの範囲に属するkeyに限って返す。
+     * 範囲の境界にかかるノードだけをrangeDigestで求め、それ以外はMerkle treeの値を用いる。
+     */
+    private long[] digests(EntryQuery q) {
+        long[] ds = tree.digests(q.nodes);
+        if (q.to == null) {
+            return ds;
+        }
+        int fromLeaf = tree.leafOf(q.from);
+        int toLeaf = tree.leafOf(q.to);
+        for (int i = 0; i < ds.length; i++) {
+            if (isBoundary(q.nodes[i], fromLeaf, toLeaf)) {
+                ds[i] = rangeDigest(q.nodes[i], q, fromLeaf, toLeaf);
+            }
+        }
+        return ds;
+    }
+
+    private boolean isBoundary(int node, int fromLeaf, int toLeaf) {
+        int first = tree.firstLeaf(node);
+        int last = tree.lastLeaf(node);
+        return (first <= fromLeaf && fromLeaf <= last)
+                || (first <= toLeaf && toLeaf <= last);
+    }
+
+    /**
+     * ノードのダイジェストのうち、qの範囲に属するkeyの分を返す。
+     * 索引から求めるのは境界の葉（高々2つ）だけであり、それ以外の部分木は
+     * Merkle treeの値を用いる。
+     */
+    private long rangeDigest(int node, EntryQuery q, int fromLeaf,
+            int toLeaf) {
+        if (!isBoundary(node, fromLeaf, toLeaf)) {
+            // 境界の葉を含まない部分木は、すべて範囲内かすべて範囲外である
+            HashId first = tree.firstId(tree.firstLeaf(node), dht.myHashId);
+            return q.contains(first) ? tree.digestOf(node) : 0;
+        }
+        if (tree.isLeafNode(node)) {
+            long[] d = new long[1];
+            forEachDigest(node, q, (k, v) -> d[0] ^= v);
+            return d[0];
+        }
+        return rangeDigest(2 * node, q, fromLeaf, toLeaf)
+                ^ rangeDigest(2 * node + 1, q, fromLeaf, toLeaf);
+    }
+
+    /**
+     * eqの葉と範囲に属するkey, valueペアのダイジェストを、索引から返す。
+     */
+    private HashMap<Comparable<?>, Long> entries(EntryQuery eq) {
+        HashMap<Comparable<?>, Long> result = new HashMap<>();
+        for (int node : eq.nodes) {
+            forEachDigest(node, eq, result::put);
+        }
+        return result;
+    }
+
+    /**
+     * 他のピアからのanti-entropyのクエリーを処理する。
+     *
+     * @param q クエリー
+     * @return 応答
+     * @throws IOException ストレージでI/Oエラーが発生した場合
+     */
+    Object onRequest(QueryPack<?> q) throws IOException {
+        switch (q.method) {
+        case "ae-digest":
+            return digests((EntryQuery) q.value);
+        case "ae-entries":
+            return entries((EntryQuery) q.value);
+        case "ae-get": {
+            HashMap<Comparable<?>, Object> values = new HashMap<>();
+            for (Comparable<?> k : (Comparable<?>[]) q.value) {
+                Object v = storage.get(k);
+                if (v != null) {
+                    values.put(k, v);
+                }
+            }
+            return values;
+        }
+        case "ae-put": {
+            EntryPush push = (EntryPush) q.value;
+            for (Map.Entry<Comparable<?>, Object> e : push.missing.entrySet()) {
+                dht.putLocalIfAbsent(e.getKey(), e.getValue());
+            }
+            for (Map.Entry<Comparable<?>, Object> e : push.resolved.entrySet()) {
+                dht.putLocal(e.getKey(), e.getValue());
+            }
+            return Boolean.TRUE;
+        }
+        default:
+            throw new ProtocolUnsupportedException(q.method);
+        }
+    }
+}
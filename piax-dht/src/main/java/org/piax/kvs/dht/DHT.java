@@ -34,14 +34,25 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -49,14 +60,21 @@ import org.piax.common.Endpoint;
 import org.piax.common.Id;
 import org.piax.common.ServiceId;
 import org.piax.common.StatusRepo;
+import org.piax.common.TransportId;
 import org.piax.common.subspace.KeyRange;
+import org.piax.common.subspace.KeyRanges;
 import org.piax.common.subspace.LowerUpper;
+import org.piax.gtrans.ChannelTransport;
 import org.piax.gtrans.FutureQueue;
+import org.piax.gtrans.IdConflictException;
 import org.piax.gtrans.NetworkTimeoutException;
 import org.piax.gtrans.Peer;
+import org.piax.gtrans.ProtocolUnsupportedException;
 import org.piax.gtrans.ReceivedMessage;
 import org.piax.gtrans.RemoteValue;
 import org.piax.gtrans.RequestTransport;
+import org.piax.gtrans.RequestTransport.Response;
+import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.Transport;
 import org.piax.gtrans.ov.Overlay;
 import org.piax.gtrans.ov.OverlayListener;
@@ -79,20 +97,17 @@ import org.slf4j.LoggerFactory;
  * <li> key, valueペアをシリアライズする必要がないため、put/getの性能が向上する。
  * <li> Collection型のvalueをセットすることで、valueへの追記が可能となる。
  * </ul>
+ * key, valueペアの格納先は {@link DHTStorage} として差し替え可能であり、
+ * {@link #STORAGE_FACTORY} に {@link LogStorage#FACTORY} を指定することで、
+ * 更新分のみをログファイルに追記する方式を用いることができる。
+ * また、{@link OffHeapStorage#FACTORY} を指定することで、valueをヒープ外のメモリーに置き、
+ * GCの負荷を減らすことができる。
  */
 public class DHT implements OverlayListener<LowerUpper, HashId> {
     /*--- logger ---*/
     private static final Logger logger = 
             LoggerFactory.getLogger(DHT.class);
 
-    /*
-     * TODO
-     * 現実装では、レポジトリのセーブ時にMap全体をシリアライズするため、効率はよくない。
-     * 以下のように機能を汎用化すべきである。
-     * ・セーブ用のDBを抽象クラスで定義し、任意の実装に差し替え可能とする。
-     * ・レポジトリをセーブするときには、更新されたkey（とvalue）のみを対象DBをセーブするようにする。
-     */
-    
     public static ServiceId DEFAULT_SERVICE_ID = new ServiceId("mdht");
     public static int ID_BYTE_LENGTH = 16;  // MD-5
     
@@ -107,7 +122,14 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
     public static int MAX_VALUE_BYTE_SIZE = 15000;
     
     /**
-     * メモリー上のレポジトリをセーブするための定時タイマー間隔（msec）
+     * key, valueペアを格納するストレージのファクトリー。
+     * デフォルトでは、メモリー上のmap全体を定期的にセーブする MemoryStorage を用いる。
+     * 追記型のログファイルに格納する場合は、LogStorage.FACTORY を指定する。
+     */
+    public static DHTStorage.Factory STORAGE_FACTORY = MemoryStorage.FACTORY;
+
+    /**
+     * レポジトリをセーブするための定時タイマー間隔（msec）
      */
     public static long REPO_SAVE_INTERVAL = 10 * 60 * 1000L;
 
@@ -129,6 +151,65 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
      * オリジナルを含めた複製の個数
      */
     public static int REPLICA_NUM = 4;
+    /**
+     * location cacheのエントリー数。0の場合、location cacheを用いない。
+     * <p>
+     * location cacheを用いる場合、getは、過去のgetの応答から分かったkeyの複製を持つピアに、
+     * overlayを介さずに直接問い合わせる。キャッシュにない場合や問い合わせに失敗した場合は、
+     * 通常通りoverlayを用いる。
+     */
+    public static int LOCATION_CACHE_SIZE = 0;
+    /**
+     * location cacheのエントリーの有効時間（msec）
+     * ピアの参加によって複製を持つピアが変わっても、この時間の間は古いピアに問い合わせる。
+     */
+    public static long LOCATION_CACHE_TTL = 30 * 1000L;
+    /**
+     * anti-entropyによる複製の修復の間隔（msec）。0の場合、修復を行わない。
+     * <p>
+     * 修復を行う場合、各ピアはkey, valueペアのダイジェストをMerkle treeとして保持し、
+     * 定期的に左側のピアとダイジェストを比較して、異なるペアだけを交換する。
+     * 複製の一致が保たれるため、READ_QUORUMを1にして、getAsyncを最初の応答で
+     * 完了させることができる。
+     */
+    public static long ANTI_ENTROPY_INTERVAL = 0;
+    /**
+     * anti-entropyに用いるMerkle treeの深さ。葉の数は 2^MERKLE_DEPTH となる。
+     */
+    public static int MERKLE_DEPTH = 10;
+
+    /**
+     * getAsyncのread quorum。
+     * この数の複製から同じvalueを取得した時点で、getAsyncの処理が完了する。
+     * 0の場合、呼び出し時のREPLICA_NUMの過半数（REPLICA_NUM / 2 + 1）を用いる。
+     */
+    public static int READ_QUORUM = 0;
+    /**
+     * putAsyncのwrite quorum。
+     * この数の複製へのputの完了を確認した時点で、putAsyncの処理が完了する。
+     */
+    public static int WRITE_QUORUM = 1;
+
+    /**
+     * 呼び出し時のREPLICA_NUMに対するread quorumを返す。
+     */
+    static int readQuorum() {
+        return READ_QUORUM > 0 ? READ_QUORUM : REPLICA_NUM / 2 + 1;
+    }
+
+    /**
+     * keyの登録がないピアが返すbyte列（nullをシリアライズしたもの）
+     */
+    private static final byte[] NULL_BYTES;
+    static {
+        byte[] b = null;
+        try {
+            b = SerializingUtil.serialize(null);
+        } catch (ObjectStreamException invariant) {
+            assert false;
+        }
+        NULL_BYTES = b;
+    }
 
     /**
      * key, valueペアのvalueの処理に用いる特殊オブジェクト
@@ -164,21 +245,79 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         }
     }
 
+    /**
+     * location cacheを用いる場合のgetの応答
+     */
+    static class Located implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final HashId id;        // 応答したDHTのHashId
+        final Endpoint ep;      // DirectAccessのEndpoint
+        final byte[] value;
+
+        Located(HashId id, Endpoint ep, byte[] value) {
+            this.id = id;
+            this.ep = ep;
+            this.value = value;
+        }
+    }
+
+    /**
+     * ids, mget, mputのクエリーに対する応答
+     */
+    static class MultiReply implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final HashId id;        // 応答したDHTのHashId
+        // mgetの場合、ピアが持つkeyとシリアライズされたvalue
+        final HashMap<Comparable<?>, byte[]> values;
+
+        MultiReply(HashId id) {
+            this(id, null);
+        }
+
+        MultiReply(HashId id, HashMap<Comparable<?>, byte[]> values) {
+            this.id = id;
+            this.values = values;
+        }
+    }
+
     /**
      * レポジトリの定期メンテナンスに用いるタイマー。デーモンとして起動させる。
      */
     private final static Timer maintainTimer = new Timer("dhtMaintain", true);
-    
+
     /**
-     * レポジトリ（メモリー）
+     * putAsync/getAsyncのタイムアウトに用いるスケジューラ。デーモンとして起動させる。
      */
-    protected final Lock memLock = new ReentrantLock();
-    private ConcurrentMap<Comparable<?>, Object> memMap;
+    private final static ScheduledThreadPoolExecutor timeoutScheduler;
+    static {
+        timeoutScheduler = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "dhtTimeout");
+            t.setDaemon(true);
+            return t;
+        });
+        // 完了した処理のタイマーをキューに残さない
+        timeoutScheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * lowerDstへのgetの応答がREPLICA_NUMに満たなかったhash値の最大値。
+     * これ以下のhash値の左側にはREPLICA_NUM個のピアがないため、getAsyncは
+     * wraparoundのためのrequestを最初から並行して発行する。
+     */
+    private volatile HashId wrapBound = null;
     
     /**
-     * レポジトリをファイルにセーブする必要があることを示すフラグ
+     * レポジトリ
      */
-    private boolean needSaving = false;
+    protected final Lock memLock = new ReentrantLock();
+    private DHTStorage storage;
+    private LocationCache locCache;
+    private DirectAccess<Endpoint> direct;
+    private AntiEntropy antiEntropy;
+    private TimerTask antiEntropyTask;
+    
     /**
      * メンテナンス用のTimerTask
      */
@@ -223,49 +362,60 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
     /**
      * fin() の後、DHTを再スタートさせるためのメソッド
      */
-    @SuppressWarnings("unchecked")
     public synchronized void init() throws IOException {
+        storage = STORAGE_FACTORY.open(repo, REPO_FNAME);
+        if (ANTI_ENTROPY_INTERVAL > 0) {
+            antiEntropy = new AntiEntropy(this, storage, MERKLE_DEPTH);
+        }
         // sgに myHashIdを登録する
         sg.setListener(serviceId, this);
         sg.addKey(serviceId, myHashId);
-        memMap = null;
-        try {
-            memMap = ((ConcurrentHashMap<Comparable<?>, Object>) 
-                    repo.restoreData(REPO_FNAME));
-            /*
-             * 通常の操作では、以下の例外も発生しない。
-             * 初期状態では、"dht" をkeyとするentryがなく、その場合はnullとなる。
-             */
-        } catch (IOException invariant) {
-        } catch (ClassNotFoundException invariant) {
-            assert false;
-            logger.error("", invariant);
-        }
-        if (memMap == null) {
-            memMap = new ConcurrentHashMap<Comparable<?>, Object>();
-        }
         /*
          * メンテタンスタイマーのセット。
          */
         maintainTask = new TimerTask() {
             @Override
             public void run() {
-                if (needSaving) {
-                    memLock.lock();
-                    try {
-                        repo.saveData(REPO_FNAME, (Serializable) memMap);
-                        needSaving = false;
-                    } catch (IOException e) {
-                        logger.error("", e);
-                    } finally {
-                        memLock.unlock();
-                    }
+                try {
+                    storage.sync();
+                } catch (IOException e) {
+                    logger.error("", e);
                 }
             }
         };
         maintainTimer.schedule(maintainTask,
                 REPO_SAVE_INTERVAL, REPO_SAVE_INTERVAL);
-        needSaving = false;
+        if (LOCATION_CACHE_SIZE > 0) {
+            initDirectAccess();
+        }
+        if (antiEntropy != null) {
+            antiEntropyTask = new TimerTask() {
+                @Override
+                public void run() {
+                    antiEntropy.runAsync();
+                }
+            };
+            maintainTimer.schedule(antiEntropyTask,
+                    ANTI_ENTROPY_INTERVAL, ANTI_ENTROPY_INTERVAL);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void initDirectAccess() {
+        Transport<?> base = sg.getBaseTransport();
+        if (!(base instanceof ChannelTransport)) {
+            logger.info("location cache is disabled on {}", base);
+            return;
+        }
+        try {
+            direct = new DirectAccess<Endpoint>(
+                    new TransportId(serviceId + "Direct"),
+                    (ChannelTransport<Endpoint>) base, this);
+            locCache = new LocationCache(LOCATION_CACHE_SIZE,
+                    LOCATION_CACHE_TTL);
+        } catch (IdConflictException | IOException e) {
+            logger.warn("location cache is disabled: {}", e.toString());
+        }
     }
     
     public void fin() {
@@ -276,19 +426,23 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         } catch (IOException e) {
             logger.warn("", e);
         }
-        if (needSaving) {
-            memLock.lock();
-            try {
-                repo.saveData(REPO_FNAME, (Serializable) memMap);
-                needSaving = false;
-            } catch (IOException e) {
-                logger.error("", e);
-            } finally {
-                memLock.unlock();
-            }
-        }
         assert maintainTask != null;
         maintainTask.cancel();
+        if (antiEntropyTask != null) {
+            antiEntropyTask.cancel();
+            antiEntropyTask = null;
+        }
+        antiEntropy = null;
+        if (direct != null) {
+            direct.fin();
+            direct = null;
+            locCache = null;
+        }
+        try {
+            storage.close();
+        } catch (IOException e) {
+            logger.error("", e);
+        }
     }
     
     /**
@@ -314,6 +468,28 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         }
     }
 
+    /**
+     * idをkeyとして持つピアから左方向にnum個のピアを指定するLowerUpperを返す。
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private LowerUpper lowerDst(HashId id, int num) {
+        KeyRange<?> range = new KeyRange(
+                KeyComparator.getMinusInfinity(HashId.class), false,
+                id, true);
+        return new LowerUpper(range, false, num);
+    }
+
+    /**
+     * Id空間の最大側から左方向にnum個のピアを指定するLowerUpperを返す。
+     * lowerDstで指定されるピアの数がREPLICA_NUMに満たない場合のwraparoundに用いる。
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    LowerUpper wrapDst(HashId id, int num) {
+        KeyRange<?> range = new KeyRange(id, false, 
+                KeyComparator.getPlusInfinity(HashId.class), false);
+        return new LowerUpper(range, false, num);
+    }
+
     /**
      * key, valueペアをDHTにputする。
      * valueにnullを指定することで、keyの登録を消去できる。
@@ -329,11 +505,7 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         assert key != null;
         assert value instanceof Serializable;
         HashId id = hash(key);
-        @SuppressWarnings({ "unchecked", "rawtypes" })
-        KeyRange<?> range = new KeyRange(
-                KeyComparator.getMinusInfinity(HashId.class), false,
-                id, true);
-        LowerUpper dst = new LowerUpper(range, false, REPLICA_NUM);
+        LowerUpper dst = lowerDst(id, REPLICA_NUM);
         FutureQueue<?> fq = sg.request(serviceId, serviceId, dst,
                 new QueryPack<K>("put", key, value), REQUEST_TIMEOUT);
         if (fq == null) {
@@ -353,10 +525,7 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
              * 最初のputでの書き込み件数がREPLICA_NUMを満たない場合は、wraparoundさせたLowerUpper
              * をセットし、再びputのためのrequestを発行する。
              */
-            @SuppressWarnings({ "unchecked", "rawtypes" })
-            KeyRange<?> range2 = new KeyRange(id, false, 
-                    KeyComparator.getPlusInfinity(HashId.class), false);
-            dst = new LowerUpper(range2, false, REPLICA_NUM - count);
+            dst = wrapDst(id, REPLICA_NUM - count);
             fq = sg.request(serviceId, serviceId, dst,
                     new QueryPack<K>("put", key, value), REQUEST_TIMEOUT);
             if (fq == null) {
@@ -382,7 +551,7 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         if (cnt == null) {
             values.put(value, 1);
         } else {
-            values.put(value, cnt++);
+            values.put(value, cnt + 1);
         }
     }
 
@@ -419,13 +588,17 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
     public <K> Object get(Comparable<K> key) throws IOException {
         assert key != null;
         HashId id = hash(key);
-        @SuppressWarnings({ "unchecked", "rawtypes" })
-        KeyRange<?> range = new KeyRange(
-                KeyComparator.getMinusInfinity(HashId.class), false,
-                id, true);
-        LowerUpper dst = new LowerUpper(range, false, REPLICA_NUM);
+        LocationCache cache = locCache;
+        if (cache != null) {
+            byte[] cand = getDirect(cache, key, id);
+            if (cand != null) {
+                return toValue(cand);
+            }
+        }
+        LowerUpper dst = lowerDst(id, REPLICA_NUM);
         FutureQueue<?> fq = sg.request(serviceId, serviceId, dst,
-                new QueryPack<K>("get", key, null), REQUEST_TIMEOUT);
+                new QueryPack<K>(cache == null ? "get" : "getl", key, null),
+                REQUEST_TIMEOUT);
         if (fq == null) {
             logger.warn("DHT invalid get: null FutureQueue");
             return null;
@@ -437,6 +610,7 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
         int count = 0;
         List<Endpoint> visited = new ArrayList<Endpoint>();
+        List<LocationCache.Replica> located = new ArrayList<>();
         for (RemoteValue<?> rv : fq) {
             count++;
             try {
@@ -449,7 +623,17 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
                     continue;
                 }
                 visited.add(rv.getPeer());
-                byte[] bytes = (byte[]) rv.get();
+                Object v = rv.get();
+                byte[] bytes;
+                if (v instanceof Located) {
+                    Located l = (Located) v;
+                    if (l.ep != null) {
+                        located.add(new LocationCache.Replica(l.id, l.ep));
+                    }
+                    bytes = l.value;
+                } else {
+                    bytes = (byte[]) v;
+                }
                 if (bytes == null) continue;
                 vote(values, bytes);
             } catch (InvocationTargetException e) {
@@ -457,15 +641,16 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
                 continue;
             }
         }
+        if (cache != null && located.size() == REPLICA_NUM) {
+            located.sort((a, b) -> b.id.compareTo(a.id));
+            cache.learn(id, located);
+        }
         if (count < REPLICA_NUM) {
             /*
              * 最初のgetでの取得件数がREPLICA_NUMを満たない場合は、wraparoundさせたLowerUpper
              * をセットし、再びgetのためのrequestを発行する。
              */
-            @SuppressWarnings({ "unchecked", "rawtypes" })
-            KeyRange<?> range2 = new KeyRange(id, false, 
-                    KeyComparator.getPlusInfinity(HashId.class), false);
-            dst = new LowerUpper(range2, false, REPLICA_NUM - count);
+            dst = wrapDst(id, REPLICA_NUM - count);
             fq = sg.request(serviceId, serviceId, dst,
                     new QueryPack<K>("get", key, null), REQUEST_TIMEOUT);
             if (fq == null) {
@@ -500,6 +685,47 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
             logger.info("get({}) failed at peer:{}", key, sg.getPeerId());
             return null;
         }
+        return toValue(cand);
+    }
+
+    /**
+     * location cacheにあるピアから、overlayを介さずにvalueを取得する。
+     * 
+     * @return 多数決で選ばれたbyte列。キャッシュにない場合や、取得に失敗した場合はnull
+     */
+    private <K> byte[] getDirect(LocationCache cache, Comparable<K> key,
+            HashId id) {
+        List<LocationCache.Replica> replicas = cache.lookup(id);
+        DirectAccess<Endpoint> da = direct;
+        if (replicas == null || da == null) {
+            return null;
+        }
+        List<CompletableFuture<byte[]>> futures = new ArrayList<>();
+        for (LocationCache.Replica r : replicas) {
+            futures.add(da.getStub(r.ep, REQUEST_TIMEOUT).getBytes(key));
+        }
+        Map<byte[], Integer> values = new TreeMap<byte[], Integer>(
+                // byte[]を比較するため、Comparatorが必要
+                ByteUtil.getComparator());
+        try {
+            for (CompletableFuture<byte[]> f : futures) {
+                vote(values, f.get(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.debug("direct get({}) failed: {}", key, e.toString());
+            cache.invalidate(id);
+            return null;
+        }
+        return selectMajority(values);
+    }
+
+    /**
+     * getで選ばれたbyte列をvalueに戻す。
+     */
+    private Object toValue(byte[] cand) {
         Object obj;
         try {
             obj = SerializingUtil.deserialize(cand);
@@ -513,12 +739,541 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
     }
 
     /**
-     * ローカルメモリ上のmapに、putする。
+     * Overlay.requestAsync を用いて、DHTのqueryを発行する。
+     * 応答ごとにreceiverが呼ばれ、すべての応答を受けた後に Response.EOR を引数として呼ばれる。
+     * 
+     * @return Overlayが requestAsync をサポートしない場合はfalse
+     */
+    private boolean requestAsync(LowerUpper dst, QueryPack<?> q,
+            BiConsumer<Object, Exception> receiver) {
+        boolean[] unsupported = new boolean[1];
+        try {
+            sg.requestAsync(serviceId, serviceId, dst, q, (v, e) -> {
+                if (e instanceof ProtocolUnsupportedException) {
+                    unsupported[0] = true;
+                    return;
+                }
+                receiver.accept(v, e);
+            }, new TransOptions(REQUEST_TIMEOUT));
+        } catch (IllegalStateException e) {
+            // not joined yet
+            receiver.accept(null, e);
+            receiver.accept(Response.EOR, null);
+        }
+        return !unsupported[0];
+    }
+
+    /**
+     * 同期版のput/getをスレッドプールで実行し、その結果でfutureを完了させる。
+     * Overlayが requestAsync をサポートしない場合に用いる。
+     */
+    private interface SyncOp<T> {
+        T run() throws IOException;
+    }
+
+    private <T> void runSync(CompletableFuture<T> future, SyncOp<T> op) {
+        CompletableFuture.runAsync(() -> {
+            try {
+                future.complete(op.run());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * key, valueペアを非同期にDHTにputする。
+     * valueにnullを指定することで、keyの登録を消去できる。
+     * <p>
+     * putはREPLICA_NUMで指定された数のピアに対して行われ、WRITE_QUORUMで指定された数の
+     * putの完了を確認した時点で、返されたfutureが完了する。
+     * putできたピアが一つもない場合は、NetworkTimeoutExceptionで完了する。
+     * 
+     * @param key key
+     * @param value value
+     * @return putの完了を示すfuture
+     */
+    public <K> CompletableFuture<Void> putAsync(Comparable<K> key, Object value) {
+        assert key != null;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        new PutOp<K>(future, key, value).start();
+        return future;
+    }
+
+    /**
+     * 指定されたkeyに対応するvalueを非同期に取得する。
+     * <p>
+     * REPLICA_NUMで指定された数のピアから、valueの取得を試みる。READ_QUORUMで指定された数の
+     * ピアから同じvalueを取得した時点で、返されたfutureが完了する。
+     * そうでなければ、すべての応答を待って多数決で候補を決める。
+     * keyの登録がない場合はnullで、応答が一つもない場合はNetworkTimeoutExceptionで完了する。
+     * <p>
+     * wraparoundのためのrequestは、最初のrequestの応答がREPLICA_NUMに満たなかった場合に
+     * 発行する。keyのhash値の左側にREPLICA_NUM個のピアがないことがlocation cacheや
+     * 過去のgetから分かっている場合は、最初のrequestと並行して発行する。
+     * 
+     * @param key key
+     * @return 対応するvalueのfuture
+     */
+    public <K> CompletableFuture<Object> getAsync(Comparable<K> key) {
+        assert key != null;
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        new GetOp<K>(future, key).start();
+        return future;
+    }
+
+    /**
+     * putAsyncの処理
+     */
+    private class PutOp<K> {
+        final CompletableFuture<Void> future;
+        final Comparable<K> key;
+        final QueryPack<K> q;
+        final HashId id;
+        int count = 0;  // the number of responses to the first request
+        int acks = 0;
+        boolean firstDone = false;
+        boolean wrapDone = true;    // until the wraparound is issued
+
+        PutOp(CompletableFuture<Void> future, Comparable<K> key, Object value) {
+            this.future = future;
+            this.key = key;
+            this.q = new QueryPack<K>("put", key, value);
+            this.id = hash(key);
+        }
+
+        void start() {
+            if (!requestAsync(lowerDst(id, REPLICA_NUM), q, this::onFirst)) {
+                runSync(future, () -> {
+                    put(key, q.value);
+                    return null;
+                });
+                return;
+            }
+            scheduleTimeout(future, this::finish);
+        }
+
+        synchronized void onFirst(Object v, Exception e) {
+            if (v == Response.EOR) {
+                firstDone = true;
+                if (count < REPLICA_NUM) {
+                    /*
+                     * 書き込み件数がREPLICA_NUMを満たない場合は、wraparoundさせたLowerUpper
+                     * をセットし、putのためのrequestを発行する。
+                     * 複製を持つべきでないピアに書き込まないよう、これは最初のrequestの完了後に行う。
+                     */
+                    wrapDone = false;
+                    requestAsync(wrapDst(id, REPLICA_NUM - count), q,
+                            this::onWrap);
+                }
+            } else {
+                count++;
+                onAck(v, e);
+            }
+            if (firstDone && wrapDone) {
+                finish();
+            }
+        }
+
+        synchronized void onWrap(Object v, Exception e) {
+            if (v == Response.EOR) {
+                wrapDone = true;
+                finish();
+            } else {
+                onAck(v, e);
+            }
+        }
+
+        private void onAck(Object v, Exception e) {
+            if (e != null) {
+                logger.info("", e);
+                return;
+            }
+            if (v == Response.EMPTY) {
+                // no DHT on the peer
+                return;
+            }
+            if (++acks >= WRITE_QUORUM) {
+                future.complete(null);
+            }
+        }
+
+        synchronized void finish() {
+            if (acks > 0) {
+                future.complete(null);
+            } else {
+                future.completeExceptionally(new NetworkTimeoutException(
+                        "put(" + key + ") failed"));
+            }
+        }
+    }
+
+    /**
+     * FUTUREQUEUE_GETNEXT_TIMEOUTの後にtaskを実行する。futureが完了した場合は取り消す。
+     */
+    private static void scheduleTimeout(CompletableFuture<?> future,
+            Runnable task) {
+        ScheduledFuture<?> timer = timeoutScheduler.schedule(task,
+                FUTUREQUEUE_GETNEXT_TIMEOUT, TimeUnit.MILLISECONDS);
+        future.whenComplete((r, e) -> timer.cancel(false));
+    }
+
+    /**
+     * idの左側にREPLICA_NUM個のピアがないことが、手元の情報から分かるかどうかを返す。
+     * location cacheにidの複製を持つピアがあればそれを用い、なければ過去のgetの結果を用いる。
+     */
+    private boolean needsWrap(HashId id) {
+        LocationCache cache = locCache;
+        List<LocationCache.Replica> replicas =
+                cache == null ? null : cache.peek(id);
+        if (replicas != null) {
+            int n = 0;
+            for (LocationCache.Replica r : replicas) {
+                if (r.id.compareTo(id) <= 0) {
+                    n++;
+                }
+            }
+            return n < REPLICA_NUM;
+        }
+        HashId bound = wrapBound;
+        return bound != null && id.compareTo(bound) <= 0;
+    }
+
+    /**
+     * getAsyncの処理
+     */
+    private class GetOp<K> {
+        final CompletableFuture<Object> future;
+        final Comparable<K> key;
+        final QueryPack<K> q;
+        final HashId id;
+        final Map<byte[], Integer> values = new TreeMap<byte[], Integer>(
+                // byte[]を比較するため、Comparatorが必要
+                ByteUtil.getComparator());
+        int count = 0;      // the number of all the responses
+        int firstCount = 0; // the number of responses to the first request
+        int pending = 1;    // the number of requests without EOR
+        boolean wrapIssued = false;
+
+        GetOp(CompletableFuture<Object> future, Comparable<K> key) {
+            this.future = future;
+            this.key = key;
+            this.q = new QueryPack<K>("get", key, null);
+            this.id = hash(key);
+        }
+
+        void start() {
+            /*
+             * wraparoundさせたLowerUpperへのrequestは、idの左側にREPLICA_NUM個のピアが
+             * ないことが分かっている場合だけ並行して発行する。そうでなければ、最初のrequestの
+             * 応答がREPLICA_NUMに満たなかった場合に発行する。
+             * 常に発行すると、すべてのgetがId空間の最大側のピアに集中する。
+             */
+            boolean wrap = needsWrap(id);
+            synchronized (this) {
+                if (!requestAsync(lowerDst(id, REPLICA_NUM), q, this::onFirst)) {
+                    runSync(future, () -> get(key));
+                    return;
+                }
+                if (wrap && !wrapIssued) {
+                    issueWrap(REPLICA_NUM);
+                }
+            }
+            scheduleTimeout(future, this::finish);
+        }
+
+        // called with the lock
+        private void issueWrap(int num) {
+            wrapIssued = true;
+            pending++;
+            requestAsync(wrapDst(id, num), q, this::onResponse);
+        }
+
+        synchronized void onFirst(Object v, Exception e) {
+            if (v == Response.EOR) {
+                if (firstCount < REPLICA_NUM) {
+                    HashId bound = wrapBound;
+                    if (bound == null || bound.compareTo(id) < 0) {
+                        wrapBound = id;
+                    }
+                    if (!wrapIssued && !future.isDone()) {
+                        issueWrap(REPLICA_NUM - firstCount);
+                    }
+                } else if (wrapIssued) {
+                    // the peers have joined since wrapBound was learned
+                    wrapBound = null;
+                }
+            } else {
+                firstCount++;
+            }
+            onResponse(v, e);
+        }
+
+        synchronized void onResponse(Object v, Exception e) {
+            if (v == Response.EOR) {
+                if (--pending == 0) {
+                    finish();
+                }
+                return;
+            }
+            count++;
+            if (e != null) {
+                logger.info("", e);
+                return;
+            }
+            if (!(v instanceof byte[]) || Arrays.equals((byte[]) v, NULL_BYTES)) {
+                // the key is not stored on the peer
+                return;
+            }
+            byte[] bytes = (byte[]) v;
+            vote(values, bytes);
+            if (values.get(bytes) >= readQuorum()) {
+                future.complete(toValue(bytes));
+            }
+        }
+
+        synchronized void finish() {
+            if (future.isDone()) {
+                return;
+            }
+            if (count == 0) {
+                future.completeExceptionally(new NetworkTimeoutException(
+                        "get(" + key + ") failed"));
+                return;
+            }
+            byte[] cand = selectMajority(values);
+            if (cand == null) {
+                logger.info("get({}) failed at peer:{}", key, sg.getPeerId());
+                future.complete(null);
+                return;
+            }
+            future.complete(toValue(cand));
+        }
+    }
+
+    /**
+     * 複数のkeyに対応するvalueをまとめて取得する。
+     * <p>
+     * keyのhash値の最小値から最大値までの範囲にあるピアと、最小値の左側のREPLICA_NUM個の
+     * ピアに、すべてのkeyを載せたQueryPackを送る。これらが、いずれかのkeyの複製を持つピア
+     * であり、各ピアには1つのメッセージだけが届く。各ピアは、手元にあるvalueをまとめて返す。
+     * keyごとに、応答したピアのHashIdから複製を持つREPLICA_NUM個のピアを求め、
+     * それらのピアのvalueで多数決を行う。
+     * 
+     * @param keys keyの集合
+     * @return keyとvalueのmap。keyの登録がない場合、そのkeyはmapに含まれない
+     * @throws IOException 応答が一つもなかった場合
+     */
+    public Map<Comparable<?>, Object> multiGet(
+            Collection<? extends Comparable<?>> keys) throws IOException {
+        Map<Comparable<?>, Object> result = new HashMap<>();
+        Map<Comparable<?>, HashId> ids = hashAll(keys);
+        if (ids.isEmpty()) {
+            return result;
+        }
+        NavigableMap<HashId, MultiReply> nodes = locate(ids.values(),
+                new QueryPack<Object>("mget", null,
+                        new ArrayList<>(ids.keySet())));
+        if (nodes.isEmpty()) {
+            throw new NetworkTimeoutException("multiGet failed");
+        }
+        for (Map.Entry<Comparable<?>, HashId> e : ids.entrySet()) {
+            Map<byte[], Integer> values = new TreeMap<byte[], Integer>(
+                    // byte[]を比較するため、Comparatorが必要
+                    ByteUtil.getComparator());
+            for (HashId h : holders(nodes, e.getValue())) {
+                byte[] bytes = nodes.get(h).values.get(e.getKey());
+                if (bytes != null) {
+                    vote(values, bytes);
+                }
+            }
+            byte[] cand = selectMajority(values);
+            Object value = cand == null ? null : toValue(cand);
+            if (value != null) {
+                result.put(e.getKey(), value);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 複数のkey, valueペアをまとめてDHTにputする。
+     * valueにnullを指定することで、keyの登録を消去できる。
+     * <p>
+     * ピアは自身が複製を持つべきkeyを知らないため、まずmultiGetと同じ範囲のピアの
+     * HashIdを集める。次に、key, valueペアを複製を持つピアごとにまとめ、各ピアに
+     * 1つのQueryPackを送る。
+     * 
+     * @param entries key, valueペアのmap
+     * @throws IOException putできたピアが一つもないkeyがあった場合
+     */
+    public void multiPut(Map<? extends Comparable<?>, ?> entries)
+            throws IOException {
+        Map<Comparable<?>, HashId> ids = hashAll(entries.keySet());
+        if (ids.isEmpty()) {
+            return;
+        }
+        NavigableMap<HashId, MultiReply> nodes = locate(ids.values(),
+                new QueryPack<Object>("ids", null, null));
+        Map<HashId, HashMap<Comparable<?>, Object>> groups = new HashMap<>();
+        for (Map.Entry<Comparable<?>, HashId> e : ids.entrySet()) {
+            Object value = entries.get(e.getKey());
+            assert value == null || value instanceof Serializable;
+            for (HashId h : holders(nodes, e.getValue())) {
+                groups.computeIfAbsent(h, k -> new HashMap<>())
+                        .put(e.getKey(), value);
+            }
+        }
+        Map<HashId, FutureQueue<?>> fqs = new HashMap<>();
+        for (Map.Entry<HashId, HashMap<Comparable<?>, Object>> g
+                : groups.entrySet()) {
+            fqs.put(g.getKey(), requestRanges(
+                    new KeyRanges<HashId>(new KeyRange<HashId>(g.getKey())),
+                    new QueryPack<Object>("mput", null, g.getValue())));
+        }
+        Set<Comparable<?>> stored = new HashSet<>();
+        for (Map.Entry<HashId, FutureQueue<?>> e : fqs.entrySet()) {
+            Map<HashId, MultiReply> acks = new HashMap<>();
+            collect(e.getValue(), acks);
+            if (acks.containsKey(e.getKey())) {
+                stored.addAll(groups.get(e.getKey()).keySet());
+            }
+        }
+        if (stored.size() < ids.size()) {
+            throw new NetworkTimeoutException("multiPut failed for "
+                    + (ids.size() - stored.size()) + " keys");
+        }
+    }
+
+    /**
+     * 重複を除いたkeyと、そのhash値のmapを返す。
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Map<Comparable<?>, HashId> hashAll(
+            Collection<? extends Comparable<?>> keys) {
+        Map<Comparable<?>, HashId> ids = new LinkedHashMap<>();
+        for (Comparable<?> key : keys) {
+            if (!ids.containsKey(key)) {
+                ids.put(key, hash((Comparable) key));
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * hash値がidsのいずれかであるkeyの複製を持つピアにqを送り、応答を集める。
+     * (min, max] の範囲検索と、minの左側のREPLICA_NUM個のピアへのrequestを発行し、
+     * 後者がREPLICA_NUMに満たない場合は、maxより右側のピアにwraparoundさせる。
+     * 宛先は重ならないため、各ピアには1つのメッセージだけが届く。
+     * 
+     * @return 応答したピアのHashIdと応答のmap
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private NavigableMap<HashId, MultiReply> locate(Collection<HashId> ids,
+            QueryPack<?> q) throws IOException {
+        HashId min = Collections.min(ids);
+        HashId max = Collections.max(ids);
+        NavigableMap<HashId, MultiReply> nodes = new TreeMap<>();
+        FutureQueue<?> fq = null;
+        if (min.compareTo(max) < 0) {
+            fq = requestRanges(new KeyRanges<HashId>(
+                    new KeyRange(min, false, max, true)), q);
+        }
+        int count = collect(sg.request(serviceId, serviceId,
+                lowerDst(min, REPLICA_NUM), q, REQUEST_TIMEOUT), nodes);
+        collect(fq, nodes);
+        if (count < REPLICA_NUM) {
+            collect(sg.request(serviceId, serviceId,
+                    wrapDst(max, REPLICA_NUM - count), q, REQUEST_TIMEOUT),
+                    nodes);
+        }
+        return nodes;
+    }
+
+    /**
+     * nodesのうち、hash値がidであるkeyの複製を持つ（最大）REPLICA_NUM個のピアを返す。
+     * idの左側のピアが足りない場合は、Id空間の最大側のピアで補う。
+     */
+    private static List<HashId> holders(NavigableMap<HashId, ?> nodes,
+            HashId id) {
+        List<HashId> holders = new ArrayList<>();
+        for (HashId h : nodes.headMap(id, true).descendingKeySet()) {
+            if (holders.size() == REPLICA_NUM) {
+                return holders;
+            }
+            holders.add(h);
+        }
+        for (HashId h : nodes.tailMap(id, false).descendingKeySet()) {
+            if (holders.size() == REPLICA_NUM) {
+                break;
+            }
+            holders.add(h);
+        }
+        return holders;
+    }
+
+    /**
+     * anti-entropyによる複製の修復を1回実行する。
+     * 自身が左端となるhash値の範囲について、その範囲の複製を持つ左側のピアと
+     * Merkle treeのダイジェストを比較し、異なるkey, valueペアを交換する。
+     *
+     * @return 交換したkey, valueペアの数
+     * @throws IOException 左側のピアが分からない場合
+     * @throws IllegalStateException ANTI_ENTROPY_INTERVALが0の場合
+     */
+    public int antiEntropy() throws IOException {
+        AntiEntropy ae = antiEntropy;
+        if (ae == null) {
+            throw new IllegalStateException("anti-entropy is disabled");
+        }
+        return ae.run();
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    FutureQueue<?> requestRanges(KeyRanges<HashId> dst, QueryPack<?> q)
+            throws ProtocolUnsupportedException, IOException {
+        // sgの宛先の型はLowerUpperであるが、範囲検索も受け付ける
+        return ((Overlay) sg).request(serviceId, serviceId, dst, q,
+                REQUEST_TIMEOUT);
+    }
+
+    /**
+     * fqからMultiReplyを集めてrepliesに加え、その数を返す。
+     */
+    int collect(FutureQueue<?> fq, Map<HashId, MultiReply> replies) {
+        if (fq == null) {
+            return 0;
+        }
+        fq.setGetNextTimeout(FUTUREQUEUE_GETNEXT_TIMEOUT);
+        int count = 0;
+        for (RemoteValue<?> rv : fq) {
+            if (rv == null) {
+                // getNextでtimeoutした場合
+                fq.cancel();
+                break;
+            }
+            try {
+                Object v = rv.get();
+                if (v instanceof MultiReply) {
+                    replies.put(((MultiReply) v).id, (MultiReply) v);
+                    count++;
+                }
+            } catch (InvocationTargetException e) {
+                logger.info("", e.getCause());
+            }
+        }
+        return count;
+    }
+
+    /**
+     * ローカルのストレージに、putする。
      * 
      * @param key key
      * @param value value
+     * @throws IOException ストレージでI/Oエラーが発生した場合
      */
-    protected <K> Object putLocal(Comparable<K> key, Object value) {
+    protected <K> void putLocal(Comparable<K> key, Object value)
+            throws IOException {
         logger.trace("ENTRY:");
         logger.debug("key:{} value:{}", key, value);
         assert key != null;
@@ -527,30 +1282,31 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         }
         memLock.lock();
         try {
-            Object old = memMap.put(key, value);
-            needSaving = true;
-            return old == Special.REMOVED ? null : old;
+            storage.set(key, value);
+            if (antiEntropy != null) {
+                antiEntropy.updated(key, value);
+            }
         } finally {
             memLock.unlock();
         }
     }
     
-    protected <K> Object putLocalIfAbsent(Comparable<K> key, Object value) {
+    protected <K> Object putLocalIfAbsent(Comparable<K> key, Object value)
+            throws IOException {
         logger.trace("ENTRY:");
         logger.debug("key:{} value:{}", key, value);
         assert key != null;
         assert value != null;
         memLock.lock();
         try {
-            Object o = memMap.putIfAbsent(key, value);
+            Object o = storage.putIfAbsent(key, value);
             if (o == Special.REMOVED) {
-                memMap.put(key, value);
-                o = null;
+                storage.set(key, value);
             }
-            if (o == null) {
-                needSaving = true;
+            if (antiEntropy != null && (o == null || o == Special.REMOVED)) {
+                antiEntropy.updated(key, value);
             }
-            return o;
+            return o == Special.REMOVED ? null : o;
         } finally {
             memLock.unlock();
         }
@@ -558,20 +1314,37 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
 
     /**
      * keyに対するvalueを取得する。
+     * 
+     * @param key key
+     * @return value
+     * @throws IOException ストレージでI/Oエラーが発生した場合
+     */
+    protected <K> Object getLocal(Comparable<K> key) throws IOException {
+        logger.trace("ENTRY:");
+        logger.debug("key:{}", key);
+        assert key != null;
+        return storage.get(key);
+    }
+
+    /**
+     * keyに対するvalueを、シリアライズされたbyte列として取得する。
      * putLocalとは非対称にbyte列が返される。これはcallerで収集したget値を多数決処理するため、
      * byte列として返される方が都合が良いため。
      * byte列は、caller側でselectされた後、再びデシリアライズされるが、効率的に損はしていない。
-     * それは、getLocalがそのままのオブジェクトを返した場合もネットワーク上に送信する際にbyte列に
+     * それは、valueをそのまま返した場合もネットワーク上に送信する際にbyte列に
      * シリアライズするため、である。
+     * valueをシリアライズした状態で格納するストレージでは、デシリアライズも行われない。
      * 
      * @param key key
      * @return byte列にシリアライズされたvalue
+     * @throws IOException ストレージでI/Oエラーが発生した場合
      */
-    protected <K> Object getLocal(Comparable<K> key) {
+    protected <K> byte[] getLocalBytes(Comparable<K> key) throws IOException {
         logger.trace("ENTRY:");
         logger.debug("key:{}", key);
         assert key != null;
-        return memMap.get(key);
+        byte[] b = storage.getBytes(key);
+        return b == null ? NULL_BYTES : b;
     }
 
     /**
@@ -585,20 +1358,83 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
         logger.debug("peerId:{} {}", sg.getPeerId(), dhtq);
         assert dhtq != null;
         if (dhtq.method.equals("put")) {
-            putLocal(dhtq.key, dhtq.value);
-            return FutureQueue.singletonQueue(new RemoteValue(sg.getPeerId()));
+            RemoteValue<?> val = new RemoteValue(sg.getPeerId());
+            try {
+                putLocal(dhtq.key, dhtq.value);
+            } catch (IOException e) {
+                logger.error("", e);
+                val.setException(e);
+            }
+            return FutureQueue.singletonQueue(val);
         } else if (dhtq.method.equals("get")) {
             byte[] b = null;
             Exception ex = null;;
             try {
-                Object o = getLocal(dhtq.key);
-                b = SerializingUtil.serialize((Serializable) o);
-            } catch (ObjectStreamException e) {
+                b = getLocalBytes(dhtq.key);
+            } catch (IOException e) {
                 ex = e;
             }
             RemoteValue<byte[]> val = new RemoteValue<byte[]>(sg.getPeerId(), b);
             if (ex != null) val.setException(ex);
             return FutureQueue.singletonQueue(val);
+        } else if (dhtq.method.equals("getl")) {
+            RemoteValue<Located> val;
+            try {
+                DirectAccess<Endpoint> da = direct;
+                val = new RemoteValue<Located>(sg.getPeerId(),
+                        new Located(myHashId,
+                                da == null ? null : da.getEndpoint(),
+                                getLocalBytes(dhtq.key)));
+            } catch (IOException e) {
+                val = new RemoteValue<Located>(sg.getPeerId(), null, e);
+            }
+            return FutureQueue.singletonQueue(val);
+        } else if (dhtq.method.equals("ids")) {
+            return FutureQueue.singletonQueue(new RemoteValue<MultiReply>(
+                    sg.getPeerId(), new MultiReply(myHashId)));
+        } else if (dhtq.method.equals("mget")) {
+            RemoteValue<MultiReply> val;
+            try {
+                HashMap<Comparable<?>, byte[]> values = new HashMap<>();
+                for (Comparable<?> key : (List<Comparable<?>>) dhtq.value) {
+                    byte[] b = getLocalBytes(key);
+                    if (!Arrays.equals(b, NULL_BYTES)) {
+                        values.put(key, b);
+                    }
+                }
+                val = new RemoteValue<MultiReply>(sg.getPeerId(),
+                        new MultiReply(myHashId, values));
+            } catch (IOException e) {
+                val = new RemoteValue<MultiReply>(sg.getPeerId(), null, e);
+            }
+            return FutureQueue.singletonQueue(val);
+        } else if (dhtq.method.equals("mput")) {
+            RemoteValue<MultiReply> val;
+            try {
+                for (Map.Entry<Comparable<?>, Object> e
+                        : ((Map<Comparable<?>, Object>) dhtq.value).entrySet()) {
+                    putLocal(e.getKey(), e.getValue());
+                }
+                val = new RemoteValue<MultiReply>(sg.getPeerId(),
+                        new MultiReply(myHashId));
+            } catch (IOException e) {
+                val = new RemoteValue<MultiReply>(sg.getPeerId(), null, e);
+            }
+            return FutureQueue.singletonQueue(val);
+        } else if (dhtq.method.startsWith("ae-")) {
+            RemoteValue<Object> val;
+            try {
+                AntiEntropy ae = antiEntropy;
+                if (ae == null) {
+                    throw new ProtocolUnsupportedException(
+                            "anti-entropy is disabled");
+                }
+                val = new RemoteValue<Object>(sg.getPeerId(),
+                        ae.onRequest(dhtq));
+            } catch (IOException e) {
+                val = new RemoteValue<Object>(sg.getPeerId(), null, e);
+            }
+            return FutureQueue.singletonQueue(val);
         } else {
             assert false;
             return FutureQueue.emptyQueue();
@@ -613,9 +1449,11 @@ public class DHT implements OverlayListener<LowerUpper, HashId> {
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
-        str.append(memMap.size() + " entries\n");
-        for (Map.Entry<Comparable<?>, Object> e : memMap.entrySet()) {
-            str.append(" - key:" + e.getKey() + ", val:" + e.getValue() + "\n");
+        str.append(storage.size() + " entries\n");
+        try {
+            storage.forEach((k, v) -> str.append(" - key:" + k + ", val:" + v + "\n"));
+        } catch (IOException e) {
+            str.append(" - " + e + "\n");
         }
         return str.toString();
     }
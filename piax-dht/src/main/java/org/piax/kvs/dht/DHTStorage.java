@@ -0,0 +1,143 @@
+/*
+ * DHTStorage.java - A storage engine of DHT
+ * 
+ * Copyright (c) 2021 PIAX development team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the 
+ * "Software"), to deal in the Software without restriction, including 
+ * without limitation the rights to use, copy, modify, merge, publish, 
+ * distribute, sublicense, and/or sell copies of the Software, and to 
+ * permit persons to whom the Software is furnished to do so, subject to 
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be 
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.function.BiConsumer;
+
+import org.piax.common.StatusRepo;
+import org.piax.util.SerializingUtil;
+
+/**
+ * DHTのkey, valueペアを格納するストレージのインターフェース。
+ * <p>
+ * DHTは、putLocal/getLocalの処理をこのインターフェースを介して行う。
+ * valueには、削除済みを示す特殊オブジェクトも格納される。
+ * 実装はスレッドセーフでなければならない。
+ */
+public interface DHTStorage {
+    /**
+     * ストレージを生成するファクトリー
+     */
+    interface Factory {
+        /**
+         * ストレージをオープンし、保存されているkey, valueペアを復元する。
+         * 
+         * @param repo ピアのStatusRepo
+         * @param name ストレージの名前
+         * @return ストレージ
+         * @throws IOException I/Oエラーが発生した場合
+         */
+        DHTStorage open(StatusRepo repo, String name) throws IOException;
+    }
+
+    /**
+     * keyに対するvalueを取得する。
+     * 
+     * @param key key
+     * @return value。keyがない場合はnull
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    Object get(Comparable<?> key) throws IOException;
+
+    /**
+     * keyに対するvalueを、シリアライズされたbyte列として取得する。
+     * valueをシリアライズした状態で格納する実装は、デシリアライズを省くために
+     * このメソッドをオーバーライドする。
+     * 
+     * @param key key
+     * @return シリアライズされたvalue。keyがない場合はnull
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    default byte[] getBytes(Comparable<?> key) throws IOException {
+        Object value = get(key);
+        return value == null ? null
+                : SerializingUtil.serialize((Serializable) value);
+    }
+
+    /**
+     * key, valueペアを格納する。
+     * 
+     * @param key key
+     * @param value value (not null)
+     * @return 以前のvalue。keyがなかった場合はnull
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    Object put(Comparable<?> key, Object value) throws IOException;
+
+    /**
+     * key, valueペアを格納する。以前のvalueを返さない点を除き、
+     * {@link #put(Comparable, Object)}と同じである。
+     * 以前のvalueの読み出しとデシリアライズを省ける実装は、
+     * このメソッドをオーバーライドする。
+     * 
+     * @param key key
+     * @param value value (not null)
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    default void set(Comparable<?> key, Object value) throws IOException {
+        put(key, value);
+    }
+
+    /**
+     * keyがない場合に限り、key, valueペアを格納する。
+     * 
+     * @param key key
+     * @param value value (not null)
+     * @return 格納されていたvalue。keyがなかった場合はnull
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    Object putIfAbsent(Comparable<?> key, Object value) throws IOException;
+
+    /**
+     * 格納されているkeyの数を返す。
+     * 
+     * @return keyの数
+     */
+    int size();
+
+    /**
+     * 格納されているすべてのkey, valueペアに対してactionを実行する。
+     * 
+     * @param action action
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    void forEach(BiConsumer<Comparable<?>, Object> action) throws IOException;
+
+    /**
+     * 更新を永続化する。DHTのメンテナンスタイマーから定期的に呼ばれる。
+     * 
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    void sync() throws IOException;
+
+    /**
+     * 更新を永続化し、ストレージをクローズする。
+     * 
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,62 @@
+/*
+ * DirectAccess.java - An RPC to read DHT replicas without the overlay
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import org.piax.common.Endpoint;
+import org.piax.common.TransportId;
+import org.piax.gtrans.ChannelTransport;
+import org.piax.gtrans.IdConflictException;
+import org.piax.gtrans.RPCInvoker;
+
+/**
+ * location cacheで得たピアのDHTから、overlayを介さずにvalueを取得するためのRPC。
+ * overlayのベーストランスポート上で動作する。
+ */
+public class DirectAccess<E extends Endpoint>
+        extends RPCInvoker<DirectAccessIf, E>
+        implements DirectAccessIf {
+
+    private final DHT dht;
+
+    DirectAccess(TransportId transId, ChannelTransport<E> trans, DHT dht)
+            throws IdConflictException, IOException {
+        super(transId, trans);
+        this.dht = dht;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> getBytes(Comparable<?> key) {
+        CompletableFuture<byte[]> f = new CompletableFuture<>();
+        try {
+            f.complete(dht.getLocalBytes(key));
+        } catch (IOException e) {
+            f.completeExceptionally(e);
+        }
+        return f;
+    }
+}
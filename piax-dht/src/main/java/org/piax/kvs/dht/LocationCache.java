@@ -0,0 +1,196 @@
+/*
+ * LocationCache.java - A cache of the replica locations of DHT
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.piax.common.Endpoint;
+
+/**
+ * keyのhash値から、そのkeyの複製を持つピアを引くLRUキャッシュ。
+ * <p>
+ * getの応答から、hash値 h に対する複製を持つピア n1 &gt; n2 &gt; ... が分かると、
+ * [n1, h] の範囲には他のピアがないため、この範囲のhash値の複製も同じピアが持つ。
+ * キャッシュは、このような範囲ごとのエントリーを n1 をkeyとして持つ。
+ * ピアの参加による複製の移動は検知できないため、エントリーは一定時間で失効する。
+ */
+class LocationCache {
+    /**
+     * 複製を持つピア
+     */
+    static class Replica {
+        final HashId id;
+        final Endpoint ep;
+
+        Replica(HashId id, Endpoint ep) {
+            this.id = id;
+            this.ep = ep;
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode() ^ ep.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Replica)) {
+                return false;
+            }
+            Replica r = (Replica) o;
+            return id.equals(r.id) && ep.equals(r.ep);
+        }
+
+        @Override
+        public String toString() {
+            return id + "@" + ep;
+        }
+    }
+
+    private static class Entry {
+        final HashId from;
+        HashId to;
+        final List<Replica> replicas;
+        final long expire;
+
+        Entry(HashId from, HashId to, List<Replica> replicas, long expire) {
+            this.from = from;
+            this.to = to;
+            this.replicas = replicas;
+            this.expire = expire;
+        }
+    }
+
+    private final int capacity;
+    private final long ttl;
+    private final TreeMap<HashId, Entry> ranges = new TreeMap<>();
+    // ranges in the access order
+    private final LinkedHashMap<HashId, Entry> lru =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long hits = 0;
+    private long misses = 0;
+
+    LocationCache(int capacity, long ttl) {
+        this.capacity = capacity;
+        this.ttl = ttl;
+    }
+
+    /**
+     * idの複製を持つピアを返す。
+     *
+     * @param id keyのhash値
+     * @return 複製を持つピアのリスト。キャッシュにない場合はnull
+     */
+    synchronized List<Replica> lookup(HashId id) {
+        Map.Entry<HashId, Entry> e = ranges.floorEntry(id);
+        if (e == null || e.getValue().to.compareTo(id) < 0) {
+            misses++;
+            return null;
+        }
+        Entry ent = e.getValue();
+        if (ent.expire < System.currentTimeMillis()) {
+            remove(ent.from);
+            misses++;
+            return null;
+        }
+        lru.get(ent.from);
+        hits++;
+        return ent.replicas;
+    }
+
+    /**
+     * lookupと同様にidの複製を持つピアを返すが、統計とLRUの順序を更新しない。
+     *
+     * @param id keyのhash値
+     * @return 複製を持つピアのリスト。キャッシュにないか失効している場合はnull
+     */
+    synchronized List<Replica> peek(HashId id) {
+        Map.Entry<HashId, Entry> e = ranges.floorEntry(id);
+        if (e == null || e.getValue().to.compareTo(id) < 0
+                || e.getValue().expire < System.currentTimeMillis()) {
+            return null;
+        }
+        return e.getValue().replicas;
+    }
+
+    /**
+     * idの複製を持つピアを登録する。
+     *
+     * @param id keyのhash値
+     * @param replicas 複製を持つピアのリスト。HashIdの降順に並べられていること
+     */
+    synchronized void learn(HashId id, List<Replica> replicas) {
+        HashId from = replicas.get(0).id;
+        Entry ent = lru.get(from);
+        if (ent != null && ent.replicas.equals(replicas)
+                && ent.expire >= System.currentTimeMillis()) {
+            if (ent.to.compareTo(id) < 0) {
+                ent.to = id;
+            }
+            return;
+        }
+        ent = new Entry(from, id, replicas, System.currentTimeMillis() + ttl);
+        ranges.put(from, ent);
+        lru.put(from, ent);
+        if (lru.size() > capacity) {
+            Iterator<HashId> it = lru.keySet().iterator();
+            ranges.remove(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * idを含むエントリーを削除する。
+     *
+     * @param id keyのhash値
+     */
+    synchronized void invalidate(HashId id) {
+        Map.Entry<HashId, Entry> e = ranges.floorEntry(id);
+        if (e != null && e.getValue().to.compareTo(id) >= 0) {
+            remove(e.getKey());
+        }
+    }
+
+    private void remove(HashId from) {
+        ranges.remove(from);
+        lru.remove(from);
+    }
+
+    synchronized int size() {
+        return lru.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
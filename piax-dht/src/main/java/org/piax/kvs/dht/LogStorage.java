@@ -0,0 +1,558 @@
+/*
+ * LogStorage.java - A log-structured storage engine of DHT
+ * 
+ * Copyright (c) 2021 PIAX development team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the 
+ * "Software"), to deal in the Software without restriction, including 
+ * without limitation the rights to use, copy, modify, merge, publish, 
+ * distribute, sublicense, and/or sell copies of the Software, and to 
+ * permit persons to whom the Software is furnished to do so, subject to 
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be 
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.piax.util.SerializingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * key, valueペアを追記型のログファイルに格納するストレージ。
+ * <p>
+ * put はログファイルへの1レコードの追記であり、{@link #sync()} ではファイルの
+ * fsyncのみが行われる。key からレコードの位置への索引はメモリー上に持ち、
+ * value はgetのたびにログファイルから読み出す。
+ * <p>
+ * 上書きされたレコードはゴミとしてログに残るため、ゴミの割合が
+ * COMPACTION_GARBAGE_RATIO を超えると、sync の際に有効なレコードだけを
+ * 新しいログファイルにコピーする（compaction）。コピーはロックなしで行い、
+ * その間に追記されたレコードのコピーとファイルの置き換えだけを
+ * writeロックの下で行うため、compaction中もget/putは止まらない。
+ * <p>
+ * compaction とclose の際には、索引をヒントファイルに書き出す。再起動時は
+ * ヒントファイルをメモリーマップして索引を復元し、ヒントファイルの作成後に
+ * 追記された部分のログだけをスキャンする。ログの末尾の不完全なレコードは
+ * 切り詰められる。
+ * <p>
+ * ログファイルの形式:
+ * <pre>
+ * header: MAGIC(long) generation(long)
+ * record: length(int) crc32(int) keyLength(int) key(byte[]) value(byte[])
+ * </pre>
+ * length は keyLength以降のバイト数、crc32 はその部分のCRCである。key と value は
+ * Javaのシリアライズ形式である。
+ */
+public class LogStorage implements DHTStorage {
+    /*--- logger ---*/
+    private static final Logger logger = 
+            LoggerFactory.getLogger(LogStorage.class);
+
+    public static final Factory FACTORY =
+            (repo, name) -> new LogStorage(repo.getPath(), name);
+
+    /**
+     * compactionを行うログファイルの最小サイズ（byte）
+     */
+    public static long COMPACTION_MIN_BYTES = 16 * 1024 * 1024L;
+    /**
+     * compactionを行うゴミの割合
+     */
+    public static double COMPACTION_GARBAGE_RATIO = 0.5;
+
+    private static final long LOG_MAGIC = 0x504941584c4f4731L;  // PIAXLOG1
+    private static final long HINT_MAGIC = 0x5049415848494e31L; // PIAXHIN1
+    private static final int LOG_HEADER_SIZE = 16;
+    // length(int) crc32(int)
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /**
+     * ログファイル上のレコードの位置
+     */
+    private static class Loc {
+        final long offset;
+        final int length;   // including the record header
+
+        Loc(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File logFile;
+    private final File hintFile;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // the index is replaced under the write lock on compaction
+    private final Map<Comparable<?>, Loc> index = new ConcurrentHashMap<>();
+    private FileChannel ch;
+    // the identifier of the log file, which is renewed on compaction
+    private long generation;
+    private long end;
+    private long liveBytes;
+    private boolean dirty = false;
+
+    /**
+     * ログストレージをオープンする。
+     * 
+     * @param dir ファイルを置くディレクトリ
+     * @param name ストレージの名前
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    public LogStorage(File dir, String name) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        logFile = new File(dir, name + ".log");
+        hintFile = new File(dir, name + ".hint");
+        ch = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (ch.size() < LOG_HEADER_SIZE) {
+            generation = newLog(ch);
+        } else {
+            ByteBuffer hdr = read(ch, 0, LOG_HEADER_SIZE);
+            if (hdr.getLong() != LOG_MAGIC) {
+                ch.close();
+                throw new IOException("not a DHT log: " + logFile);
+            }
+            generation = hdr.getLong();
+        }
+        long from = loadHint();
+        scan(from);
+        logger.debug("{}: {} keys restored, {} bytes", logFile,
+                index.size(), end);
+    }
+
+    private static long newLog(FileChannel c) throws IOException {
+        long gen = ThreadLocalRandom.current().nextLong();
+        ByteBuffer hdr = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        hdr.putLong(LOG_MAGIC).putLong(gen).flip();
+        c.truncate(0);
+        write(c, hdr, 0);
+        return gen;
+    }
+
+    private static ByteBuffer read(FileChannel c, long pos, int len)
+            throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        while (buf.hasRemaining()) {
+            if (c.read(buf, pos + buf.position()) < 0) {
+                break;
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void write(FileChannel c, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            c.write(buf, pos + buf.position());
+        }
+    }
+
+    /**
+     * ヒントファイルから索引を復元する。
+     * 
+     * @return ヒントファイルが索引を含むログの長さ。ヒントファイルが使えない場合は
+     *         ログのヘッダーの長さ
+     */
+    private long loadHint() {
+        if (!hintFile.isFile()) {
+            return LOG_HEADER_SIZE;
+        }
+        try (FileChannel hc = FileChannel.open(hintFile.toPath(),
+                StandardOpenOption.READ)) {
+            MappedByteBuffer map = hc.map(FileChannel.MapMode.READ_ONLY, 0,
+                    hc.size());
+            if (map.getLong() != HINT_MAGIC || map.getLong() != generation) {
+                // the hint of another log
+                return LOG_HEADER_SIZE;
+            }
+            long covered = map.getLong();
+            int count = map.getInt();
+            if (covered > ch.size()) {
+                return LOG_HEADER_SIZE;
+            }
+            for (int i = 0; i < count; i++) {
+                long off = map.getLong();
+                int len = map.getInt();
+                byte[] k = new byte[map.getInt()];
+                map.get(k);
+                index.put((Comparable<?>) SerializingUtil.deserialize(k),
+                        new Loc(off, len));
+                liveBytes += len;
+            }
+            return covered;
+        } catch (Exception e) {
+            logger.warn("ignoring the hint file {}: {}", hintFile, e);
+            index.clear();
+            liveBytes = 0;
+            return LOG_HEADER_SIZE;
+        }
+    }
+
+    /**
+     * ログファイルをposからスキャンして索引を更新する。
+     * 不完全なレコード以降は切り詰める。
+     */
+    private void scan(long pos) throws IOException {
+        long size = ch.size();
+        while (pos + RECORD_HEADER_SIZE <= size) {
+            ByteBuffer hdr = read(ch, pos, RECORD_HEADER_SIZE);
+            int len = hdr.getInt();
+            int crc = hdr.getInt();
+            if (len < 4 || pos + RECORD_HEADER_SIZE + len > size) {
+                break;
+            }
+            ByteBuffer body = read(ch, pos + RECORD_HEADER_SIZE, len);
+            CRC32 c = new CRC32();
+            c.update(body.array(), 0, len);
+            if ((int) c.getValue() != crc) {
+                break;
+            }
+            int klen = body.getInt();
+            if (klen < 0 || klen > len - 4) {
+                break;
+            }
+            Comparable<?> key;
+            try {
+                key = (Comparable<?>) SerializingUtil.deserialize(
+                        body.array(), 4, klen);
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+            int total = RECORD_HEADER_SIZE + len;
+            Loc prev = index.put(key, new Loc(pos, total));
+            liveBytes += total - (prev == null ? 0 : prev.length);
+            pos += total;
+        }
+        if (pos < size) {
+            logger.warn("{}: truncating an incomplete record at {}",
+                    logFile, pos);
+            ch.truncate(pos);
+        }
+        end = pos;
+    }
+
+    private ByteBuffer readValueBytes(Loc loc) throws IOException {
+        ByteBuffer rec = read(ch, loc.offset, loc.length);
+        rec.position(RECORD_HEADER_SIZE);
+        int klen = rec.getInt();
+        rec.position(RECORD_HEADER_SIZE + 4 + klen);
+        return rec;
+    }
+
+    private Object readValue(Loc loc) throws IOException {
+        ByteBuffer v = readValueBytes(loc);
+        try {
+            return SerializingUtil.deserialize(v.array(), v.position(),
+                    v.remaining());
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public Object get(Comparable<?> key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Loc loc = index.get(key);
+            return loc == null ? null : readValue(loc);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] getBytes(Comparable<?> key) throws IOException {
+        lock.readLock().lock();
+        try {
+            Loc loc = index.get(key);
+            if (loc == null) {
+                return null;
+            }
+            ByteBuffer v = readValueBytes(loc);
+            return Arrays.copyOfRange(v.array(), v.position(), v.limit());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static ByteBuffer newRecord(Comparable<?> key, Object value)
+            throws ObjectStreamException {
+        byte[] k = SerializingUtil.serialize((Serializable) key);
+        byte[] v = SerializingUtil.serialize((Serializable) value);
+        int len = 4 + k.length + v.length;
+        ByteBuffer rec = ByteBuffer.allocate(RECORD_HEADER_SIZE + len);
+        rec.position(RECORD_HEADER_SIZE);
+        rec.putInt(k.length).put(k).put(v);
+        CRC32 c = new CRC32();
+        c.update(rec.array(), RECORD_HEADER_SIZE, len);
+        rec.putInt(0, len).putInt(4, (int) c.getValue());
+        rec.flip();
+        return rec;
+    }
+
+    // called with the write lock
+    private void append(Comparable<?> key, ByteBuffer rec) throws IOException {
+        int total = rec.remaining();
+        write(ch, rec, end);
+        Loc prev = index.put(key, new Loc(end, total));
+        liveBytes += total - (prev == null ? 0 : prev.length);
+        end += total;
+        dirty = true;
+    }
+
+    @Override
+    public Object put(Comparable<?> key, Object value) throws IOException {
+        ByteBuffer rec = newRecord(key, value);
+        lock.writeLock().lock();
+        try {
+            Loc prev = index.get(key);
+            Object old = prev == null ? null : readValue(prev);
+            append(key, rec);
+            return old;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void set(Comparable<?> key, Object value) throws IOException {
+        ByteBuffer rec = newRecord(key, value);
+        lock.writeLock().lock();
+        try {
+            append(key, rec);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Object putIfAbsent(Comparable<?> key, Object value)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            Loc loc = index.get(key);
+            if (loc != null) {
+                return readValue(loc);
+            }
+            append(key, newRecord(key, value));
+            return null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<Comparable<?>, Object> action)
+            throws IOException {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Comparable<?>, Loc> e : index.entrySet()) {
+                action.accept(e.getKey(), readValue(e.getValue()));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * ログファイルの長さを返す。
+     * 
+     * @return ログファイルの長さ
+     */
+    public long getLogSize() {
+        return end;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        boolean compaction;
+        lock.writeLock().lock();
+        try {
+            if (!ch.isOpen()) {
+                return;
+            }
+            if (dirty) {
+                ch.force(false);
+                dirty = false;
+            }
+            long garbage = end - LOG_HEADER_SIZE - liveBytes;
+            compaction = end >= COMPACTION_MIN_BYTES && garbage
+                    >= (end - LOG_HEADER_SIZE) * COMPACTION_GARBAGE_RATIO;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (compaction) {
+            compact();
+        }
+    }
+
+    /**
+     * 有効なレコードだけを新しいログファイルにコピーする。
+     * <p>
+     * まず、その時点のログの末尾までにある有効なレコードを、ロックなしで
+     * コピーする。次に、writeロックの下で、コピー中に追記された部分をそのまま
+     * コピーしてファイルと索引を置き換える。ログファイルは追記のみであり、
+     * chを置き換えるのはcompactとcloseだけ（どちらもsynchronized）なので、
+     * ロックなしで読み出してよい。
+     * 
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    public synchronized void compact() throws IOException {
+        long copied;
+        lock.readLock().lock();
+        try {
+            if (!ch.isOpen()) {
+                return;
+            }
+            copied = end;
+        } finally {
+            lock.readLock().unlock();
+        }
+        File tmp = new File(logFile.getPath() + ".tmp");
+        // the locations of the records before 'copied' in the new log
+        Map<Comparable<?>, Loc> copiedIndex = new HashMap<>();
+        Map<Comparable<?>, Loc> newIndex = new HashMap<>();
+        long gen;
+        long before;
+        long pos = LOG_HEADER_SIZE;
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            gen = newLog(out);
+            for (Map.Entry<Comparable<?>, Loc> e : index.entrySet()) {
+                Loc loc = e.getValue();
+                if (loc.offset >= copied) {
+                    // appended after the start of compaction
+                    continue;
+                }
+                write(out, read(ch, loc.offset, loc.length), pos);
+                copiedIndex.put(e.getKey(), new Loc(pos, loc.length));
+                pos += loc.length;
+            }
+            lock.writeLock().lock();
+            try {
+                // copy the records appended in the meantime as they are
+                before = end;
+                long tail = pos;
+                while (pos < tail + before - copied) {
+                    pos += out.transferFrom(ch.position(copied + pos - tail),
+                            pos, tail + before - copied - pos);
+                }
+                out.force(true);
+                for (Map.Entry<Comparable<?>, Loc> e : index.entrySet()) {
+                    Loc loc = e.getValue();
+                    Loc nloc = loc.offset >= copied
+                            ? new Loc(tail + loc.offset - copied, loc.length)
+                            : copiedIndex.get(e.getKey());
+                    assert nloc != null;
+                    newIndex.put(e.getKey(), nloc);
+                }
+                ch.close();
+                Files.move(tmp.toPath(), logFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                ch = FileChannel.open(logFile.toPath(),
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                generation = gen;
+                index.clear();
+                index.putAll(newIndex);
+                // liveBytes does not change
+                end = pos;
+                dirty = false;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        // newIndex exactly covers the new log up to pos
+        writeHint(gen, pos, newIndex);
+        logger.debug("{}: compacted {} -> {} bytes", logFile, before, pos);
+    }
+
+    private void writeHint(long gen, long covered,
+            Map<Comparable<?>, Loc> idx) throws IOException {
+        File tmp = new File(hintFile.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            buf.putLong(HINT_MAGIC).putLong(gen).putLong(covered)
+                    .putInt(idx.size());
+            for (Map.Entry<Comparable<?>, Loc> e : idx.entrySet()) {
+                byte[] k = SerializingUtil.serialize((Serializable) e.getKey());
+                if (buf.remaining() < 16 + k.length) {
+                    buf.flip();
+                    while (buf.hasRemaining()) {
+                        out.write(buf);
+                    }
+                    buf.clear();
+                    if (buf.remaining() < 16 + k.length) {
+                        buf = ByteBuffer.allocate(16 + k.length);
+                    }
+                }
+                buf.putLong(e.getValue().offset).putInt(e.getValue().length)
+                        .putInt(k.length).put(k);
+            }
+            buf.flip();
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
+            out.force(true);
+        }
+        Files.move(tmp.toPath(), hintFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!ch.isOpen()) {
+                return;
+            }
+            ch.force(false);
+            writeHint(generation, end, index);
+            ch.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * MemoryStorage.java - An on-memory storage engine of DHT
+ * 
+ * Copyright (c) 2021 PIAX development team
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining 
+ * a copy of this software and associated documentation files (the 
+ * "Software"), to deal in the Software without restriction, including 
+ * without limitation the rights to use, copy, modify, merge, publish, 
+ * distribute, sublicense, and/or sell copies of the Software, and to 
+ * permit persons to whom the Software is furnished to do so, subject to 
+ * the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be 
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, 
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF 
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. 
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY 
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, 
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE 
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+import org.piax.common.StatusRepo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * key, valueペアをメモリー上のmapに格納するストレージ。
+ * <p>
+ * 更新がある場合、{@link #sync()} の呼び出し時にmap全体をシリアライズし、
+ * StatusRepoにセーブする。DHTのデフォルトのストレージである。
+ */
+public class MemoryStorage implements DHTStorage {
+    /*--- logger ---*/
+    private static final Logger logger = 
+            LoggerFactory.getLogger(MemoryStorage.class);
+
+    public static final Factory FACTORY = MemoryStorage::new;
+
+    private final StatusRepo repo;
+    private final String name;
+    private ConcurrentHashMap<Comparable<?>, Object> memMap;
+    /**
+     * レポジトリをファイルにセーブする必要があることを示すフラグ
+     */
+    private volatile boolean needSaving = false;
+
+    @SuppressWarnings("unchecked")
+    public MemoryStorage(StatusRepo repo, String name) {
+        this.repo = repo;
+        this.name = name;
+        try {
+            memMap = ((ConcurrentHashMap<Comparable<?>, Object>) 
+                    repo.restoreData(name));
+            /*
+             * 通常の操作では、以下の例外も発生しない。
+             * 初期状態では、nameをkeyとするentryがなく、その場合はnullとなる。
+             */
+        } catch (IOException invariant) {
+        } catch (ClassNotFoundException invariant) {
+            assert false;
+            logger.error("", invariant);
+        }
+        if (memMap == null) {
+            memMap = new ConcurrentHashMap<Comparable<?>, Object>();
+        }
+    }
+
+    @Override
+    public Object get(Comparable<?> key) {
+        return memMap.get(key);
+    }
+
+    @Override
+    public Object put(Comparable<?> key, Object value) {
+        Object old = memMap.put(key, value);
+        needSaving = true;
+        return old;
+    }
+
+    @Override
+    public Object putIfAbsent(Comparable<?> key, Object value) {
+        Object o = memMap.putIfAbsent(key, value);
+        if (o == null) {
+            needSaving = true;
+        }
+        return o;
+    }
+
+    @Override
+    public int size() {
+        return memMap.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<Comparable<?>, Object> action) {
+        memMap.forEach(action);
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        if (needSaving) {
+            needSaving = false;
+            repo.saveData(name, (Serializable) memMap);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        sync();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * MerkleTree.java - A digest tree of the key, value pairs of DHT
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DHTのkey, valueペアのダイジェストを、keyのhash値の範囲ごとにまとめた二分木。
+ * <p>
+ * hash値の上位 depth ビットで決まる 2^depth 個の葉を持ち、葉のダイジェストは
+ * その葉に属するkey, valueペアのダイジェストのXORである。内部ノードのダイジェストは
+ * 子のダイジェストのXORである。XORを用いることで、putのたびに葉から根までの
+ * ダイジェストを O(depth) で更新できる。
+ * <p>
+ * ノードは配列上のヒープ形式で表す。根は1、ノード i の子は 2i と 2i+1 であり、
+ * 葉は 2^depth から 2^(depth+1)-1 である。
+ */
+class MerkleTree {
+    final int depth;
+    private final long[] tree;
+
+    MerkleTree(int depth) {
+        this.depth = depth;
+        this.tree = new long[2 << depth];
+    }
+
+    /**
+     * key, valueペアのダイジェストを返す。
+     *
+     * @param key シリアライズされたkey
+     * @param value シリアライズされたvalue
+     * @return ダイジェスト
+     */
+    static long digest(byte[] key, byte[] value) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(key);
+            md.update(value);
+            return ByteBuffer.wrap(md.digest()).getLong();
+        } catch (NoSuchAlgorithmException invariant) {
+            throw new Error(invariant);
+        }
+    }
+
+    /**
+     * hash値の属する葉の番号（0 から 2^depth-1）を返す。
+     *
+     * @param id keyのhash値
+     * @return 葉の番号
+     */
+    int leafOf(HashId id) {
+        byte[] b = id.key.getBytes();
+        int v = 0;
+        for (int i = 0; i < 4; i++) {
+            v = v << 8 | (i < b.length ? b[i] & 0xff : 0);
+        }
+        return v >>> (32 - depth);
+    }
+
+    /**
+     * 葉に属する最小のhash値を返す。
+     *
+     * @param leaf 葉の番号
+     * @param like 名前とバイト長を合わせるhash値
+     * @return hash値
+     */
+    HashId firstId(int leaf, HashId like) {
+        byte[] b = new byte[like.key.getBytes().length];
+        int v = leaf << (32 - depth);
+        for (int i = 0; i < 4 && i < b.length; i++) {
+            b[i] = (byte) (v >>> (24 - 8 * i));
+        }
+        return new HashId(like.name, b);
+    }
+
+    int leafNode(int leaf) {
+        return (1 << depth) + leaf;
+    }
+
+    boolean isLeafNode(int node) {
+        return node >= 1 << depth;
+    }
+
+    int leafOfNode(int node) {
+        return node - (1 << depth);
+    }
+
+    /**
+     * ノードが覆う最初の葉の番号を返す。
+     */
+    int firstLeaf(int node) {
+        while (!isLeafNode(node)) {
+            node = 2 * node;
+        }
+        return leafOfNode(node);
+    }
+
+    /**
+     * ノードが覆う最後の葉の番号を返す。
+     */
+    int lastLeaf(int node) {
+        while (!isLeafNode(node)) {
+            node = 2 * node + 1;
+        }
+        return leafOfNode(node);
+    }
+
+    /**
+     * 葉のダイジェストにdeltaをXORし、根までのダイジェストを更新する。
+     *
+     * @param leaf 葉の番号
+     * @param delta 古いダイジェストと新しいダイジェストのXOR
+     */
+    synchronized void update(int leaf, long delta) {
+        for (int node = leafNode(leaf); node >= 1; node >>= 1) {
+            tree[node] ^= delta;
+        }
+    }
+
+    synchronized long digestOf(int node) {
+        return tree[node];
+    }
+
+    synchronized long[] digests(int[] nodes) {
+        long[] ds = new long[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            ds[i] = tree[nodes[i]];
+        }
+        return ds;
+    }
+
+    /**
+     * 葉の区間 [from, to] をちょうど覆うノードの列を返す。
+     *
+     * @param from 最初の葉の番号
+     * @param to 最後の葉の番号
+     * @return ノードの列
+     */
+    List<Integer> cover(int from, int to) {
+        List<Integer> nodes = new ArrayList<>();
+        int l = leafNode(from);
+        int r = leafNode(to) + 1;
+        List<Integer> rights = new ArrayList<>();
+        while (l < r) {
+            if ((l & 1) == 1) {
+                nodes.add(l++);
+            }
+            if ((r & 1) == 1) {
+                rights.add(0, --r);
+            }
+            l >>= 1;
+            r >>= 1;
+        }
+        nodes.addAll(rights);
+        return nodes;
+    }
+}
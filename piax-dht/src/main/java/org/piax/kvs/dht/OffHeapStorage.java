@@ -0,0 +1,625 @@
+/*
+ * OffHeapStorage.java - A storage engine of DHT which keeps values off heap
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY
+ * CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT,
+ * TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package org.piax.kvs.dht;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+
+import org.piax.util.SerializingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * valueをシリアライズした状態でヒープ外のメモリー（direct ByteBuffer）に格納するストレージ。
+ * <p>
+ * 多数の小さなvalueを持つピアで、valueがGCの対象となることを避けるために用いる。
+ * ヒープ上に置かれるのは、keyと、valueの位置を示すlong値の索引だけである。
+ * <p>
+ * ヒープ外のメモリーは SLAB_SIZE 単位のslabとして確保し、slabを2のべき乗の大きさの
+ * chunkに分割して用いる（slabアロケーター）。各slabは1つの大きさのchunk専用であり、
+ * 解放されたchunkは同じ大きさのchunkのフリーリストに戻される。slabより大きな
+ * valueには専用の領域を確保する。chunkの先頭4バイトはvalueの長さである。
+ * <p>
+ * {@link #sync()} では、前回のsync以降に更新されたvalueだけをログファイルに追記する。
+ * 書き込みがブロックされるのは、更新されたvalueをコピーする間だけである。
+ * ログファイルが COMPACTION_MIN_BYTES 以上かつvalueの合計より大きくなると、
+ * 全体のスナップショットを書き出してログファイルを空にする（compaction）。
+ * スナップショットのvalueはslabからファイルへ直接書き出されるため、ヒープには
+ * コピーされない。書き出し中に更新されたvalueは次のsyncでログファイルに追記される。
+ * <p>
+ * 再起動時は、スナップショットを復元した後、同じgenerationのログファイルを再生する。
+ * ログの末尾の不完全なレコードは切り詰められる。
+ * <p>
+ * ファイルの形式:
+ * <pre>
+ * snapshot: MAGIC(long) generation(long) count(int)
+ *           (keyLength(int) key(byte[]) valueLength(int) value(byte[]))*
+ * log:      MAGIC(long) generation(long)
+ *           (length(int) crc32(int) keyLength(int) key(byte[]) value(byte[]))*
+ * </pre>
+ * ログのレコードは {@link LogStorage} と同じ形式である。
+ */
+public class OffHeapStorage implements DHTStorage {
+    /*--- logger ---*/
+    private static final Logger logger =
+            LoggerFactory.getLogger(OffHeapStorage.class);
+
+    public static final Factory FACTORY =
+            (repo, name) -> new OffHeapStorage(repo.getPath(), name);
+
+    /**
+     * slabの大きさ（byte）。2のべき乗でなければならない。
+     */
+    public static int SLAB_SIZE = 1024 * 1024;
+    /**
+     * compactionを行うログファイルの最小サイズ（byte）
+     */
+    public static long COMPACTION_MIN_BYTES = 16 * 1024 * 1024L;
+
+    private static final long SNAPSHOT_MAGIC = 0x5049415853444d31L; // PIAXSDM1
+    private static final long LOG_MAGIC = 0x5049415853444c31L;      // PIAXSDL1
+    private static final int SNAPSHOT_HEADER_SIZE = 20;
+    private static final int LOG_HEADER_SIZE = 16;
+    // length(int) crc32(int)
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_CHUNK_SHIFT = 4;   // 16 bytes
+    private static final int LENGTH_SIZE = 4;
+
+    private final File snapshotFile;
+    private final File logFile;
+    private final int slabSize;
+    // the class of chunks larger than a slab
+    private final int hugeClass;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // key -> (slab id << 32 | offset)
+    private final Map<Comparable<?>, Long> index = new ConcurrentHashMap<>();
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private final long[][] freeChunks;
+    private final int[] freeChunkNum;
+    private final int[] curSlab;
+    private final int[] curPos;
+    private int[] freeSlabIds = new int[16];
+    private int freeSlabNum = 0;
+    private long allocatedBytes = 0;
+    private long usedBytes = 0;
+    // the keys updated after the last sync, guarded by the write lock
+    private Set<Comparable<?>> updated = new HashSet<>();
+    // the following fields are guarded by this
+    private FileChannel log;
+    // the identifier of the snapshot, which is renewed on compaction
+    private long generation = 0;
+    private long logEnd;
+
+    /**
+     * ストレージをオープンし、スナップショットとログファイルがあれば復元する。
+     *
+     * @param dir ファイルを置くディレクトリ
+     * @param name ストレージの名前
+     * @throws IOException I/Oエラーが発生した場合
+     */
+    public OffHeapStorage(File dir, String name) throws IOException {
+        slabSize = SLAB_SIZE;
+        if (Integer.bitCount(slabSize) != 1
+                || slabSize < 1 << MIN_CHUNK_SHIFT) {
+            throw new IllegalArgumentException("invalid slab size: " + slabSize);
+        }
+        hugeClass = Integer.numberOfTrailingZeros(slabSize) - MIN_CHUNK_SHIFT + 1;
+        freeChunks = new long[hugeClass][];
+        freeChunkNum = new int[hugeClass];
+        curSlab = new int[hugeClass];
+        curPos = new int[hugeClass];
+        Arrays.fill(curSlab, -1);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory: " + dir);
+        }
+        snapshotFile = new File(dir, name + ".snap");
+        logFile = new File(dir, name + ".log");
+        restore();
+    }
+
+    private int classOf(int chunkLen) {
+        if (chunkLen > slabSize) {
+            return hugeClass;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(chunkLen - 1);
+        return Math.max(0, shift - MIN_CHUNK_SHIFT);
+    }
+
+    private int newSlab(int size) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(size);
+        allocatedBytes += size;
+        if (freeSlabNum > 0) {
+            int id = freeSlabIds[--freeSlabNum];
+            slabs.set(id, slab);
+            return id;
+        }
+        slabs.add(slab);
+        return slabs.size() - 1;
+    }
+
+    // called with the write lock
+    private long alloc(int chunkLen) {
+        int c = classOf(chunkLen);
+        if (c == hugeClass) {
+            return (long) newSlab(chunkLen) << 32;
+        }
+        if (freeChunkNum[c] > 0) {
+            return freeChunks[c][--freeChunkNum[c]];
+        }
+        int chunk = 1 << (c + MIN_CHUNK_SHIFT);
+        if (curSlab[c] < 0 || curPos[c] + chunk > slabSize) {
+            curSlab[c] = newSlab(slabSize);
+            curPos[c] = 0;
+        }
+        long addr = (long) curSlab[c] << 32 | curPos[c];
+        curPos[c] += chunk;
+        return addr;
+    }
+
+    // called with the write lock
+    private void free(long addr) {
+        int id = (int) (addr >>> 32);
+        int len = slabs.get(id).getInt((int) addr);
+        usedBytes -= LENGTH_SIZE + len;
+        int c = classOf(LENGTH_SIZE + len);
+        if (c == hugeClass) {
+            allocatedBytes -= slabs.get(id).capacity();
+            slabs.set(id, null);
+            if (freeSlabNum == freeSlabIds.length) {
+                freeSlabIds = Arrays.copyOf(freeSlabIds, freeSlabNum * 2);
+            }
+            freeSlabIds[freeSlabNum++] = id;
+            return;
+        }
+        if (freeChunks[c] == null) {
+            freeChunks[c] = new long[16];
+        } else if (freeChunkNum[c] == freeChunks[c].length) {
+            freeChunks[c] = Arrays.copyOf(freeChunks[c], freeChunkNum[c] * 2);
+        }
+        freeChunks[c][freeChunkNum[c]++] = addr;
+    }
+
+    /**
+     * addrのchunkを指すByteBufferを返す。position はvalueの先頭、limit はvalueの末尾である。
+     */
+    private ByteBuffer chunk(long addr) {
+        ByteBuffer b = slabs.get((int) (addr >>> 32)).duplicate();
+        int off = (int) addr;
+        int len = b.getInt(off);
+        b.limit(off + LENGTH_SIZE + len).position(off + LENGTH_SIZE);
+        return b;
+    }
+
+    private static byte[] toBytes(ByteBuffer b) {
+        byte[] bytes = new byte[b.remaining()];
+        b.get(bytes);
+        return bytes;
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException {
+        try {
+            return SerializingUtil.deserialize(bytes);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // called with the write lock
+    private void store(Comparable<?> key, ByteBuffer value) {
+        int len = value.remaining();
+        long addr = alloc(LENGTH_SIZE + len);
+        ByteBuffer b = slabs.get((int) (addr >>> 32)).duplicate();
+        b.position((int) addr);
+        b.putInt(len).put(value);
+        usedBytes += LENGTH_SIZE + len;
+        Long prev = index.put(key, addr);
+        if (prev != null) {
+            free(prev);
+        }
+        updated.add(key);
+    }
+
+    @Override
+    public Object get(Comparable<?> key) throws IOException {
+        byte[] bytes = getBytes(key);
+        return bytes == null ? null : deserialize(bytes);
+    }
+
+    @Override
+    public byte[] getBytes(Comparable<?> key) {
+        lock.readLock().lock();
+        try {
+            Long addr = index.get(key);
+            return addr == null ? null : toBytes(chunk(addr));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Object put(Comparable<?> key, Object value) throws IOException {
+        ByteBuffer v = ByteBuffer.wrap(
+                SerializingUtil.serialize((Serializable) value));
+        byte[] old = null;
+        lock.writeLock().lock();
+        try {
+            Long prev = index.get(key);
+            if (prev != null) {
+                old = toBytes(chunk(prev));
+            }
+            store(key, v);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return old == null ? null : deserialize(old);
+    }
+
+    @Override
+    public void set(Comparable<?> key, Object value) throws IOException {
+        ByteBuffer v = ByteBuffer.wrap(
+                SerializingUtil.serialize((Serializable) value));
+        lock.writeLock().lock();
+        try {
+            store(key, v);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Object putIfAbsent(Comparable<?> key, Object value)
+            throws IOException {
+        ByteBuffer v = ByteBuffer.wrap(
+                SerializingUtil.serialize((Serializable) value));
+        byte[] old = null;
+        lock.writeLock().lock();
+        try {
+            Long prev = index.get(key);
+            if (prev != null) {
+                old = toBytes(chunk(prev));
+            } else {
+                store(key, v);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return old == null ? null : deserialize(old);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<Comparable<?>, Object> action)
+            throws IOException {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<Comparable<?>, Long> e : index.entrySet()) {
+                action.accept(e.getKey(),
+                        deserialize(toBytes(chunk(e.getValue()))));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 格納されているvalueが占めるヒープ外のメモリーの大きさを返す。
+     *
+     * @return valueとその長さの合計（byte）
+     */
+    public long getUsedBytes() {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 確保されているヒープ外のメモリーの大きさを返す。
+     *
+     * @return slabの大きさの合計（byte）
+     */
+    public long getAllocatedBytes() {
+        lock.readLock().lock();
+        try {
+            return allocatedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void restore() throws IOException {
+        if (snapshotFile.isFile()) {
+            try (FileChannel fc = FileChannel.open(snapshotFile.toPath(),
+                    StandardOpenOption.READ)) {
+                MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0,
+                        fc.size());
+                if (map.getLong() != SNAPSHOT_MAGIC) {
+                    throw new IOException("not a DHT snapshot: " + snapshotFile);
+                }
+                generation = map.getLong();
+                int count = map.getInt();
+                lock.writeLock().lock();
+                try {
+                    for (int i = 0; i < count; i++) {
+                        byte[] k = new byte[map.getInt()];
+                        map.get(k);
+                        int vlen = map.getInt();
+                        ByteBuffer v = map.duplicate();
+                        v.limit(v.position() + vlen);
+                        map.position(map.position() + vlen);
+                        store((Comparable<?>) deserialize(k), v);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (RuntimeException e) {
+                // BufferUnderflowException or ClassCastException
+                throw new IOException("broken DHT snapshot: " + snapshotFile, e);
+            }
+        }
+        replayLog();
+        updated.clear();
+        logger.debug("{}: {} keys restored", snapshotFile, index.size());
+    }
+
+    /**
+     * スナップショットと同じgenerationのログファイルのレコードを再生する。
+     * generationが異なるログファイルは、compactionによってスナップショットに
+     * 取り込まれた後のものであるため、空にする。
+     */
+    private void replayLog() throws IOException {
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = log.size();
+        logEnd = 0;
+        if (size >= LOG_HEADER_SIZE) {
+            MappedByteBuffer map = log.map(FileChannel.MapMode.READ_ONLY, 0,
+                    size);
+            if (map.getLong() == LOG_MAGIC && map.getLong() == generation) {
+                logEnd = LOG_HEADER_SIZE;
+                lock.writeLock().lock();
+                try {
+                    while (map.remaining() >= RECORD_HEADER_SIZE) {
+                        int len = map.getInt();
+                        int crc = map.getInt();
+                        if (len < 4 || len > map.remaining()) {
+                            break;
+                        }
+                        ByteBuffer rec = map.duplicate();
+                        rec.limit(rec.position() + len);
+                        map.position(map.position() + len);
+                        CRC32 c = new CRC32();
+                        c.update(rec.duplicate());
+                        if ((int) c.getValue() != crc) {
+                            break;
+                        }
+                        byte[] k = new byte[rec.getInt()];
+                        rec.get(k);
+                        store((Comparable<?>) deserialize(k), rec);
+                        logEnd = map.position();
+                    }
+                } catch (RuntimeException e) {
+                    // BufferUnderflowException or ClassCastException
+                    throw new IOException("broken DHT log: " + logFile, e);
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+        }
+        if (logEnd == 0) {
+            newLog();
+        } else if (logEnd < size) {
+            logger.debug("{}: truncated {} -> {} bytes", logFile, size, logEnd);
+            log.truncate(logEnd);
+        }
+    }
+
+    // called with this
+    private void newLog() throws IOException {
+        log.truncate(0);
+        ByteBuffer hdr = ByteBuffer.allocate(LOG_HEADER_SIZE);
+        hdr.putLong(LOG_MAGIC).putLong(generation).flip();
+        writeFully(log, hdr, 0);
+        log.force(false);
+        logEnd = LOG_HEADER_SIZE;
+    }
+
+    /**
+     * ログファイルの長さを返す。
+     *
+     * @return ログファイルの長さ
+     */
+    public synchronized long getLogSize() {
+        return logEnd;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        // copies the updated values so that writers are not blocked by I/O
+        Map<Comparable<?>, byte[]> values = new HashMap<>();
+        lock.writeLock().lock();
+        try {
+            if (updated.isEmpty()) {
+                return;
+            }
+            for (Comparable<?> key : updated) {
+                values.put(key, toBytes(chunk(index.get(key))));
+            }
+            updated = new HashSet<>();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        long pos = logEnd;
+        try {
+            for (Map.Entry<Comparable<?>, byte[]> e : values.entrySet()) {
+                byte[] k = SerializingUtil.serialize((Serializable) e.getKey());
+                ByteBuffer v = ByteBuffer.wrap(e.getValue());
+                ByteBuffer hdr = ByteBuffer.allocate(
+                        RECORD_HEADER_SIZE + 4 + k.length);
+                hdr.position(RECORD_HEADER_SIZE);
+                hdr.putInt(k.length).put(k);
+                CRC32 c = new CRC32();
+                c.update(hdr.array(), RECORD_HEADER_SIZE,
+                        hdr.capacity() - RECORD_HEADER_SIZE);
+                c.update(v.duplicate());
+                hdr.putInt(0, 4 + k.length + v.remaining())
+                        .putInt(4, (int) c.getValue()).flip();
+                writeFully(log, hdr, pos);
+                pos += hdr.limit();
+                writeFully(log, v, pos);
+                pos += v.limit();
+            }
+            log.force(false);
+        } catch (IOException e) {
+            // discards the partial records. the values are appended again
+            // by the next sync.
+            try {
+                log.truncate(logEnd);
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            lock.writeLock().lock();
+            try {
+                updated.addAll(values.keySet());
+            } finally {
+                lock.writeLock().unlock();
+            }
+            throw e;
+        }
+        logEnd = pos;
+        if (logEnd >= Math.max(COMPACTION_MIN_BYTES, getUsedBytes())) {
+            compact();
+        }
+    }
+
+    /**
+     * 全体のスナップショットを書き出し、ログファイルを空にする。
+     * 書き込みは、1つのvalueを書き出す間だけブロックされる。
+     */
+    // called with this
+    private void compact() throws IOException {
+        File tmp = new File(snapshotFile.getPath() + ".tmp");
+        long gen = generation + 1;
+        int count = 0;
+        try (FileChannel out = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer hdr = ByteBuffer.allocate(SNAPSHOT_HEADER_SIZE);
+            hdr.putLong(SNAPSHOT_MAGIC).putLong(gen).putInt(0).flip();
+            writeFully(out, hdr);
+            for (Comparable<?> key : index.keySet()) {
+                byte[] k = SerializingUtil.serialize((Serializable) key);
+                lock.readLock().lock();
+                try {
+                    ByteBuffer v = chunk(index.get(key));
+                    ByteBuffer rec = ByteBuffer.allocate(8 + k.length);
+                    rec.putInt(k.length).put(k).putInt(v.remaining()).flip();
+                    writeFully(out, rec);
+                    writeFully(out, v);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                count++;
+            }
+            hdr.clear();
+            hdr.putInt(count).flip();
+            writeFully(out, hdr, SNAPSHOT_HEADER_SIZE - 4);
+            out.force(false);
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        // the logged values are in the snapshot. the old log is ignored on
+        // restore even if the following truncation is not completed.
+        long before = logEnd;
+        generation = gen;
+        newLog();
+        logger.debug("{}: compacted {} log bytes into {} keys", logFile,
+                before, count);
+    }
+
+    private static void writeFully(FileChannel c, ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            c.write(buf);
+        }
+    }
+
+    private static void writeFully(FileChannel c, ByteBuffer buf, long pos)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            pos += c.write(buf, pos);
+        }
+    }
+
+    /**
+     * 更新をログファイルに書き出し、slabを手放す。
+     * slabのメモリーは、direct ByteBufferがGCで回収される際に解放される。
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!log.isOpen()) {
+            return;
+        }
+        sync();
+        log.close();
+        lock.writeLock().lock();
+        try {
+            index.clear();
+            slabs.clear();
+            Arrays.fill(freeChunkNum, 0);
+            Arrays.fill(curSlab, -1);
+            freeSlabNum = 0;
+            allocatedBytes = 0;
+            usedBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package test.kvs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.piax.kvs.dht.LogStorage;
+
+public class TestLogStorage {
+    File dir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("logstorage").toFile();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void putGet() throws IOException {
+        LogStorage s = new LogStorage(dir, "t");
+        assertNull(s.put("a", "A"));
+        assertNull(s.putIfAbsent(1, 100));
+        assertEquals(100, s.putIfAbsent(1, 200));
+        assertEquals("A", s.put("a", "AA"));
+        assertEquals("AA", s.get("a"));
+        assertEquals(100, s.get(1));
+        assertNull(s.get("b"));
+        assertEquals(2, s.size());
+        Map<Comparable<?>, Object> all = new HashMap<>();
+        s.forEach(all::put);
+        assertEquals(2, all.size());
+        s.close();
+    }
+
+    @Test
+    public void reopen() throws IOException {
+        LogStorage s = new LogStorage(dir, "t");
+        for (int i = 0; i < 100; i++) {
+            s.put(i, "v" + i);
+        }
+        s.close();
+        // restored from the hint file
+        s = new LogStorage(dir, "t");
+        assertEquals(100, s.size());
+        assertEquals("v42", s.get(42));
+        s.put(42, "w42");
+        s.sync();
+        // the log written after the hint is scanned
+        s = new LogStorage(dir, "t");
+        assertEquals("w42", s.get(42));
+        assertEquals(100, s.size());
+        s.close();
+    }
+
+    @Test
+    public void truncatedTail() throws IOException {
+        LogStorage s = new LogStorage(dir, "t");
+        s.put("a", "A");
+        s.put("b", "B");
+        s.sync();
+        long len = s.getLogSize();
+        // a crash in the middle of writing the last record
+        try (RandomAccessFile f = new RandomAccessFile(
+                new File(dir, "t.log"), "rw")) {
+            f.setLength(len - 3);
+        }
+        s = new LogStorage(dir, "t");
+        assertEquals("A", s.get("a"));
+        assertNull(s.get("b"));
+        assertEquals(1, s.size());
+        s.put("b", "B2");
+        s.close();
+        s = new LogStorage(dir, "t");
+        assertEquals("B2", s.get("b"));
+        s.close();
+    }
+
+    @Test
+    public void compaction() throws IOException {
+        LogStorage s = new LogStorage(dir, "t");
+        for (int j = 0; j < 10; j++) {
+            for (int i = 0; i < 50; i++) {
+                s.put(i, "v" + j + "-" + i);
+            }
+        }
+        long before = s.getLogSize();
+        s.compact();
+        assertTrue(s.getLogSize() < before / 5);
+        assertEquals(50, s.size());
+        assertEquals("v9-7", s.get(7));
+        s.put(7, "x");
+        s.close();
+        s = new LogStorage(dir, "t");
+        assertEquals("x", s.get(7));
+        assertEquals("v9-8", s.get(8));
+        assertFalse(new File(dir, "t.log.tmp").exists());
+        s.close();
+    }
+
+    @Test
+    public void compactionWithConcurrentPuts() throws Exception {
+        LogStorage s = new LogStorage(dir, "t");
+        for (int i = 0; i < 50; i++) {
+            s.set(i, "v" + i);
+        }
+        int n = 20000;
+        Thread writer = new Thread(() -> {
+            try {
+                for (int i = 0; i < n; i++) {
+                    s.set(i % 50, "w" + i);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        // the records appended during compaction must survive
+        while (writer.isAlive()) {
+            s.compact();
+        }
+        writer.join();
+        s.compact();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("w" + (n - 50 + i), s.get(i));
+        }
+        s.set(7, "x");
+        s.close();
+        LogStorage s2 = new LogStorage(dir, "t");
+        assertEquals(50, s2.size());
+        assertEquals("x", s2.get(7));
+        assertEquals("w" + (n - 50 + 8), s2.get(8));
+        s2.close();
+    }
+}
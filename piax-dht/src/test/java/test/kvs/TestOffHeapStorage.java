@@ -0,0 +1,190 @@
+package test.kvs;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.piax.kvs.dht.OffHeapStorage;
+import org.piax.util.SerializingUtil;
+
+public class TestOffHeapStorage {
+    File dir;
+
+    @BeforeEach
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("offheap").toFile();
+    }
+
+    @AfterEach
+    public void cleanup() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void putGet() throws IOException {
+        OffHeapStorage s = new OffHeapStorage(dir, "t");
+        assertNull(s.put("a", "A"));
+        assertNull(s.putIfAbsent(1, 100));
+        assertEquals(100, s.putIfAbsent(1, 200));
+        assertEquals("A", s.put("a", "AA"));
+        assertEquals("AA", s.get("a"));
+        assertEquals(100, s.get(1));
+        assertNull(s.get("b"));
+        assertNull(s.getBytes("b"));
+        assertArrayEquals(SerializingUtil.serialize("AA"), s.getBytes("a"));
+        Map<Comparable<?>, Object> all = new HashMap<>();
+        s.forEach(all::put);
+        assertEquals(2, all.size());
+        s.close();
+    }
+
+    @Test
+    public void chunkReuse() throws IOException {
+        OffHeapStorage s = new OffHeapStorage(dir, "t");
+        for (int i = 0; i < 1000; i++) {
+            s.put(i, new byte[100]);
+        }
+        long allocated = s.getAllocatedBytes();
+        long used = s.getUsedBytes();
+        // overwriting with the values of the same size reuses the chunks
+        for (int i = 0; i < 1000; i++) {
+            s.put(i, new byte[100]);
+        }
+        assertEquals(allocated, s.getAllocatedBytes());
+        assertEquals(used, s.getUsedBytes());
+        s.close();
+    }
+
+    @Test
+    public void hugeValue() throws IOException {
+        OffHeapStorage s = new OffHeapStorage(dir, "t");
+        byte[] big = new byte[3 * OffHeapStorage.SLAB_SIZE];
+        big[big.length - 1] = 1;
+        s.put("big", big);
+        assertArrayEquals(big, (byte[]) s.get("big"));
+        long allocated = s.getAllocatedBytes();
+        s.put("big", "small");
+        assertTrue(s.getAllocatedBytes() < allocated);
+        assertEquals("small", s.get("big"));
+        s.close();
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        OffHeapStorage s = new OffHeapStorage(dir, "t");
+        for (int i = 0; i < 100; i++) {
+            s.put(i, "v" + i);
+        }
+        s.close();
+        s = new OffHeapStorage(dir, "t");
+        assertEquals(100, s.size());
+        assertEquals("v42", s.get(42));
+        s.put(42, "w42");
+        s.sync();
+        s = new OffHeapStorage(dir, "t");
+        assertEquals("w42", s.get(42));
+        assertFalse(new File(dir, "t.snap.tmp").exists());
+        s.close();
+    }
+
+    @Test
+    public void incrementalSync() throws IOException {
+        long min = OffHeapStorage.COMPACTION_MIN_BYTES;
+        OffHeapStorage.COMPACTION_MIN_BYTES = 4096;
+        try {
+            OffHeapStorage s = new OffHeapStorage(dir, "t");
+            for (int i = 0; i < 10; i++) {
+                s.put(i, "v" + i);
+            }
+            s.sync();
+            long size = s.getLogSize();
+            // only the updated value is appended
+            s.put(3, "w3");
+            s.sync();
+            assertTrue(s.getLogSize() - size < size / 5);
+            // the log is compacted into the snapshot
+            for (int i = 0; i < 1000; i++) {
+                s.put(i % 10, "x" + i);
+                s.sync();
+            }
+            assertTrue(s.getLogSize() < 4096);
+            assertTrue(new File(dir, "t.snap").exists());
+            s.put(5, "y5");
+            s.sync();
+            s.close();
+            // a torn record at the tail is truncated
+            try (RandomAccessFile f =
+                    new RandomAccessFile(new File(dir, "t.log"), "rw")) {
+                f.seek(f.length());
+                f.write(new byte[] { 0, 0, 1, 0, 1, 2 });
+            }
+            s = new OffHeapStorage(dir, "t");
+            assertEquals(10, s.size());
+            assertEquals("y5", s.get(5));
+            assertEquals("x999", s.get(9));
+            s.put(0, "z0");
+            s.close();
+            s = new OffHeapStorage(dir, "t");
+            assertEquals("z0", s.get(0));
+            s.close();
+        } finally {
+            OffHeapStorage.COMPACTION_MIN_BYTES = min;
+        }
+    }
+
+    @Test
+    public void concurrentSync() throws Exception {
+        long min = OffHeapStorage.COMPACTION_MIN_BYTES;
+        OffHeapStorage.COMPACTION_MIN_BYTES = 4096;
+        try {
+            OffHeapStorage s = new OffHeapStorage(dir, "t");
+            List<CompletableFuture<Void>> fs = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                int base = t * 1000;
+                fs.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        for (int i = 0; i < 1000; i++) {
+                            s.put(base + i % 100, "v" + i);
+                            if (i % 10 == 0) {
+                                s.sync();
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+            }
+            for (CompletableFuture<Void> f : fs) {
+                f.get();
+            }
+            s.close();
+            OffHeapStorage r = new OffHeapStorage(dir, "t");
+            assertEquals(400, r.size());
+            for (int t = 0; t < 4; t++) {
+                for (int i = 900; i < 1000; i++) {
+                    assertEquals("v" + i, r.get(t * 1000 + i % 100));
+                }
+            }
+            r.close();
+        } finally {
+            OffHeapStorage.COMPACTION_MIN_BYTES = min;
+        }
+    }
+}
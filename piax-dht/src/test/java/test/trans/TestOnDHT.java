@@ -1,9 +1,17 @@
 package test.trans;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 import org.piax.common.ComparableKey;
@@ -13,6 +21,7 @@ import org.piax.common.PeerId;
 import org.piax.common.StatusRepo;
 import org.piax.common.subspace.LowerUpper;
 import org.piax.gtrans.ChannelTransport;
+import org.piax.gtrans.FutureQueue;
 import org.piax.gtrans.GTransConfigValues;
 import org.piax.gtrans.IdConflictException;
 import org.piax.gtrans.Peer;
@@ -22,6 +31,7 @@ import org.piax.gtrans.netty.bootstrap.NettyBootstrap;
 import org.piax.gtrans.netty.bootstrap.NettyBootstrap.SerializerType;
 import org.piax.gtrans.netty.idtrans.PrimaryKey;
 import org.piax.gtrans.ov.Overlay;
+import org.piax.gtrans.ov.OverlayReceivedMessage;
 import org.piax.gtrans.ov.ddll.NodeMonitor;
 import org.piax.gtrans.ov.sg.MSkipGraph;
 import org.piax.gtrans.ov.suzaku.Suzaku;
@@ -85,6 +95,10 @@ public class TestOnDHT {
         SG, OCS, CS, SZK
     }
 
+    enum M {
+        SYNC, ASYNC, MULTI, CACHED, REPAIR
+    }
+
     @Test
     public void DHTOnSuzakuOnEmuTest() throws Exception {
         DHTRun(O.SZK, L.EMU);
@@ -110,6 +124,46 @@ public class TestOnDHT {
         DHTRun(O.SZK, L.ID);
     }
     
+    @Test
+    public void DHTAsyncOnSuzakuOnEmuTest() throws Exception {
+        DHTRun(O.SZK, L.EMU, true);
+    }
+
+    @Test
+    public void DHTAsyncOnSuzakuOnNettyTest() throws Exception {
+        DHTRun(O.SZK, L.NETTY, true);
+    }
+
+    @Test
+    public void DHTAsyncOnSkipGraphOnEmuTest() throws Exception {
+        DHTRun(O.SG, L.EMU, true);
+    }
+
+    @Test
+    public void DHTMultiOnSuzakuOnEmuTest() throws Exception {
+        DHTRun(O.SZK, L.EMU, M.MULTI);
+    }
+
+    @Test
+    public void DHTMultiOnSkipGraphOnEmuTest() throws Exception {
+        DHTRun(O.SG, L.EMU, M.MULTI);
+    }
+
+    @Test
+    public void DHTCachedOnSuzakuOnEmuTest() throws Exception {
+        DHTRun(O.SZK, L.EMU, M.CACHED);
+    }
+
+    @Test
+    public void DHTCachedOnSuzakuOnNettyTest() throws Exception {
+        DHTRun(O.SZK, L.NETTY, M.CACHED);
+    }
+
+    @Test
+    public void DHTRepairOnSuzakuOnEmuTest() throws Exception {
+        DHTRun(O.SZK, L.EMU, M.REPAIR);
+    }
+
     @Test
     public void DHTOnOCSOnNettyTest() throws Exception {
         try {
@@ -169,8 +223,25 @@ public class TestOnDHT {
     }
 
     public static long DHTRun(O ovt, L loc) throws Exception {
+        return DHTRun(ovt, loc, M.SYNC);
+    }
+
+    public static long DHTRun(O ovt, L loc, boolean async) throws Exception {
+        return DHTRun(ovt, loc, async ? M.ASYNC : M.SYNC);
+    }
+
+    public static long DHTRun(O ovt, L loc, M mode) throws Exception {
         BaseTransportMgr.BASE_TRANSPORT_MANAGER_CLASS.set("org.piax.gtrans.impl.DefaultBaseTransportGenerator");
 
+        int cacheSize = DHT.LOCATION_CACHE_SIZE;
+        if (mode == M.CACHED) {
+            DHT.LOCATION_CACHE_SIZE = 1024;
+        }
+        long antiEntropyInterval = DHT.ANTI_ENTROPY_INTERVAL;
+        if (mode == M.REPAIR) {
+            // anti-entropy is invoked explicitly by the test
+            DHT.ANTI_ENTROPY_INTERVAL = 60 * 60 * 1000L;
+        }
         DHT[] dhts = new DHT[numPeer];
         StatusRepo.ON_MEMORY = true;
         NodeMonitor.PING_TIMEOUT = 100 * 1000;
@@ -219,7 +290,8 @@ public class TestOnDHT {
                 ovs[i] = genOv(ovt, peers[i], l);
                 // Id id = new Id(new byte[]{(byte)(i * 256 / numPeer)});
                 // dhts[i] = new DHT(new ServiceId("dht"), ovs[i], id, true);
-                dhts[i] = new DHT(ovs[i], true);
+                dhts[i] = mode == M.MULTI || mode == M.REPAIR
+                        ? new CountingDHT(ovs[i]) : new DHT(ovs[i], true);
             } catch (IdConflictException e) {
                 logger.debug(e.toString());
             }
@@ -242,6 +314,28 @@ public class TestOnDHT {
         final DHT dht = dhts[0];
         int n = 100;
         long ret;
+        if (mode != M.SYNC) {
+            try {
+                switch (mode) {
+                case ASYNC:
+                    ret = asyncPutGet(dht, n);
+                    break;
+                case MULTI:
+                    ret = multiPutGet(dhts, n);
+                    break;
+                case REPAIR:
+                    ret = repairPutGet(dhts, n);
+                    break;
+                default:
+                    ret = cachedPutGet(dht, n);
+                }
+            } finally {
+                fin(dhts, ovs, peers);
+                DHT.LOCATION_CACHE_SIZE = cacheSize;
+                DHT.ANTI_ENTROPY_INTERVAL = antiEntropyInterval;
+            }
+            return ret;
+        }
         try {
             printf("%n** put (%d)%n", n);
             for (int i = 0; i < n; i++) {
@@ -294,6 +388,200 @@ public class TestOnDHT {
         return ret;
     }
     
+    static long asyncPutGet(DHT dht, int n) throws Exception {
+        printf("%n** putAsync (%d)%n", n);
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            puts.add(dht.putAsync("hoge" + i, "hage" + i));
+        }
+        CompletableFuture.allOf(puts.toArray(new CompletableFuture[0]))
+                .get(30, TimeUnit.SECONDS);
+        // wait for the remaining replicas
+        sleep(500);
+        long start = System.currentTimeMillis();
+        printf("%n** getAsync (%d)%n", n);
+        List<CompletableFuture<Object>> gets = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            gets.add(dht.getAsync("hoge" + i));
+        }
+        for (int i = 0; i < n; i++) {
+            assertEquals("hage" + i, gets.get(i).get(30, TimeUnit.SECONDS));
+        }
+        assertNull(dht.getAsync("nokey").get(30, TimeUnit.SECONDS));
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * A DHT that counts the requests it receives.
+     */
+    static class CountingDHT extends DHT {
+        static final AtomicInteger requests = new AtomicInteger();
+        // the anti-entropy requests for the entries of differing leaves
+        static final AtomicInteger entryRequests = new AtomicInteger();
+        // the multiGet/multiPut requests this DHT receives
+        final AtomicInteger multiRequests = new AtomicInteger();
+
+        CountingDHT(Overlay<LowerUpper, HashId> ov) throws IOException {
+            super(ov, true);
+        }
+
+        @Override
+        public FutureQueue<?> onReceiveRequest(Overlay<LowerUpper, HashId> ov,
+                OverlayReceivedMessage<HashId> rmsg) {
+            requests.incrementAndGet();
+            String m = String.valueOf(rmsg.getMessage());
+            if (m.startsWith("qpack[ae-entries")) {
+                entryRequests.incrementAndGet();
+            }
+            if (m.startsWith("qpack[mget") || m.startsWith("qpack[mput")) {
+                multiRequests.incrementAndGet();
+            }
+            return super.onReceiveRequest(ov, rmsg);
+        }
+
+        boolean holdsAny(Collection<String> keys) throws IOException {
+            for (String key : keys) {
+                if (getLocal(key) != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * asserts that each peer holding the replicas of some keys has received
+     * exactly one multi-key request, and the other peers none.
+     */
+    static void assertOneRequestPerHolder(DHT[] dhts, Collection<String> keys)
+            throws IOException {
+        int holders = 0;
+        for (int i = 0; i < dhts.length; i++) {
+            CountingDHT c = (CountingDHT) dhts[i];
+            int expected = c.holdsAny(keys) ? 1 : 0;
+            holders += expected;
+            assertEquals(expected, c.multiRequests.getAndSet(0), "peer " + i);
+        }
+        printf("%d holders%n", holders);
+    }
+
+    static long multiPutGet(DHT[] dhts, int n) throws Exception {
+        DHT dht = dhts[0];
+        printf("%n** multiPut (%d)%n", n);
+        Map<String, String> entries = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            if (i % 2 == 0) {
+                entries.put("hoge" + i, "hage" + i);
+            } else {
+                dht.put("hoge" + i, "hage" + i);
+            }
+        }
+        for (DHT d : dhts) {
+            ((CountingDHT) d).multiRequests.set(0);
+        }
+        dht.multiPut(entries);
+        sleep(500);
+        // the entries reach each holder in one request
+        assertOneRequestPerHolder(dhts, entries.keySet());
+        long start = System.currentTimeMillis();
+        printf("%n** multiGet (%d)%n", n);
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            keys.add("hoge" + i);
+        }
+        keys.add("nokey");
+        Map<Comparable<?>, Object> values = dhts[dhts.length - 1].multiGet(keys);
+        assertEquals(n, values.size());
+        sleep(500);
+        // the keys reach each holder in one request
+        assertOneRequestPerHolder(dhts, keys);
+        for (int i = 0; i < n; i++) {
+            assertEquals("hage" + i, values.get("hoge" + i));
+            // multiPut stores the values on the same peers as put
+            assertEquals("hage" + i, dhts[i % dhts.length].get("hoge" + i));
+        }
+        long ret = System.currentTimeMillis() - start;
+        entries.clear();
+        entries.put("hoge0", null);
+        dht.multiPut(entries);
+        assertNull(dht.get("hoge0"));
+        assertFalse(dht.multiGet(keys).containsKey("hoge0"));
+        return ret;
+    }
+
+    static long cachedPutGet(DHT dht, int n) throws Exception {
+        printf("%n** put (%d)%n", n);
+        for (int i = 0; i < n; i++) {
+            dht.put("hoge" + i, "hage" + i);
+        }
+        // the first round fills the location cache
+        for (int i = 0; i < n; i++) {
+            assertEquals("hage" + i, dht.get("hoge" + i));
+        }
+        long start = System.currentTimeMillis();
+        printf("%n** get (%d)%n", n);
+        for (int i = 0; i < n; i++) {
+            assertEquals("hage" + i, dht.get("hoge" + i));
+        }
+        long ret = System.currentTimeMillis() - start;
+        dht.put("hoge0", "updated");
+        assertEquals("updated", dht.get("hoge0"));
+        assertNull(dht.get("nokey"));
+        return ret;
+    }
+
+    static long repairPutGet(DHT[] dhts, int n) throws Exception {
+        DHT dht = dhts[0];
+        int replicaNum = DHT.REPLICA_NUM;
+        printf("%n** put without replicas (%d)%n", n);
+        DHT.REPLICA_NUM = 1;
+        try {
+            for (int i = 0; i < n; i++) {
+                dht.put("hoge" + i, "hage" + i);
+            }
+        } finally {
+            DHT.REPLICA_NUM = replicaNum;
+        }
+        printf("%n** anti-entropy%n");
+        long start = System.currentTimeMillis();
+        int repaired = 0;
+        for (DHT d : dhts) {
+            repaired += d.antiEntropy();
+        }
+        long ret = System.currentTimeMillis() - start;
+        printf("%d entries repaired%n", repaired);
+        assertTrue(repaired >= n);
+        for (int i = 0; i < n; i++) {
+            assertEquals("hage" + i, dht.get("hoge" + i));
+        }
+        // the replicas are consistent after the repair
+        repaired = 0;
+        CountingDHT.entryRequests.set(0);
+        for (DHT d : dhts) {
+            repaired += d.antiEntropy();
+        }
+        assertEquals(0, repaired);
+        // the digests are restricted to the range of each peer, so the keys
+        // of the neighboring ranges do not make the boundary leaves differ
+        assertEquals(0, CountingDHT.entryRequests.get());
+        return ret;
+    }
+
+    static void fin(DHT[] dhts, Overlay<?, ?>[] ovs, Peer[] peers) {
+        printf("%n** fin%n");
+        for (int i = 0; i < dhts.length; i++) {
+            dhts[i].fin();
+            try {
+                ovs[i].leave();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        for (int i = 0; i < peers.length; i++) {
+            peers[i].fin();
+        }
+    }
+
     public static void eval(O ovt, L loc) throws Exception {
         int TRIAL = 10;
         List<Integer> results = new ArrayList<>();
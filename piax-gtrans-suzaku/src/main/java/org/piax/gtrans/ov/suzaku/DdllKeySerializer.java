@@ -0,0 +1,47 @@
+/*
+ * DdllKeySerializer.java - A Serializer of DdllKey
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.ov.suzaku;
+
+import org.piax.common.DdllKey;
+import org.piax.common.PeerId;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * A Serializer of DdllKey.
+ * <p>
+ * Only the portions of a key are written; the hash is computed again by
+ * the receiver. The raw key is written by its own serializer, so that
+ * integral keys are varint-encoded. The nonce is written as a fixed-length
+ * int because it is a random number.
+ */
+public class DdllKeySerializer extends Serializer<DdllKey> {
+    public void write (Kryo kryo, Output output, DdllKey key) {
+        kryo.writeClassAndObject(output, key.getRawKey());
+        kryo.writeClassAndObject(output, key.getPeerId());
+        output.writeString(key.getId());
+        output.writeInt(key.getNonce());
+        kryo.writeClassAndObject(output, key.appData);
+    }
+
+    public DdllKey read (Kryo kryo, Input input, Class<DdllKey> type) {
+        Comparable<?> rawKey = (Comparable<?>) kryo.readClassAndObject(input);
+        PeerId peerId = (PeerId) kryo.readClassAndObject(input);
+        String id = input.readString();
+        int nonce = input.readInt();
+        Object appData = kryo.readClassAndObject(input);
+        return DdllKey.newKey(rawKey, peerId, id, nonce, appData);
+    }
+}
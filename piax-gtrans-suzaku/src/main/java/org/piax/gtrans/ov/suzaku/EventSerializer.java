@@ -0,0 +1,90 @@
+/*
+ * EventSerializer.java - A Serializer of Event
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.ov.suzaku;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.piax.ayame.Event;
+import org.piax.ayame.Node;
+import org.piax.common.Option.BooleanOption;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.FieldSerializer;
+
+/**
+ * A Serializer of Event and its subclasses.
+ * <p>
+ * The fields other than the route are written by FieldSerializer.
+ * The route and the route with failed nodes are written only if
+ * {@link #TRACE_ROUTE} is set. Otherwise, only the number of hops is
+ * written, so that {@link Event#hops()} is kept at the receiver.
+ *
+ * @param <T> the type of the event
+ */
+public class EventSerializer<T extends Event> extends FieldSerializer<T> {
+    /** send the route of events for tracing */
+    public static final BooleanOption TRACE_ROUTE
+        = new BooleanOption(false, "-trace-route");
+
+    public EventSerializer(Kryo kryo, Class<T> type) {
+        super(kryo, type);
+        removeField("route");
+        removeField("routeWithFailed");
+        removeField("omittedHops");
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, T ev) {
+        super.write(kryo, output, ev);
+        if (TRACE_ROUTE.value()) {
+            output.writeVarInt((ev.omittedHops << 1) | 1, true);
+            writeRoute(kryo, output, ev.route);
+            writeRoute(kryo, output, ev.routeWithFailed);
+        } else {
+            output.writeVarInt((ev.omittedHops + ev.route.size()) << 1, true);
+        }
+    }
+
+    @Override
+    public T read(Kryo kryo, Input input, Class<T> type) {
+        T ev = super.read(kryo, input, type);
+        int v = input.readVarInt(true);
+        ev.omittedHops = v >>> 1;
+        if ((v & 1) != 0) {
+            ev.route = readRoute(kryo, input);
+            ev.routeWithFailed = readRoute(kryo, input);
+        } else {
+            ev.route = new ArrayList<>();
+            ev.routeWithFailed = new ArrayList<>();
+        }
+        return ev;
+    }
+
+    private void writeRoute(Kryo kryo, Output output, List<Node> route) {
+        output.writeVarInt(route.size(), true);
+        for (Node n : route) {
+            kryo.writeObjectOrNull(output, n, Node.class);
+        }
+    }
+
+    private List<Node> readRoute(Kryo kryo, Input input) {
+        int size = input.readVarInt(true);
+        List<Node> route = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            route.add(kryo.readObjectOrNull(input, Node.class));
+        }
+        return route;
+    }
+}
@@ -15,38 +15,92 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.piax.ayame.Event;
+import org.piax.ayame.EventEngine;
 import org.piax.ayame.EventExecutor;
 import org.piax.ayame.EventSender;
 import org.piax.ayame.Node;
+import org.piax.ayame.ov.suzaku.SuzakuEvent.FTEntRemoveEvent;
+import org.piax.ayame.ov.suzaku.SuzakuEvent.FTEntUpdateEvent;
+import org.piax.ayame.ov.suzaku.SuzakuEvent.RemoveReversePointerEvent;
 import org.piax.common.Endpoint;
 import org.piax.common.TransportId;
 import org.piax.gtrans.ChannelTransport;
 import org.piax.gtrans.ReceivedMessage;
 import org.piax.gtrans.Transport;
 import org.piax.gtrans.TransportListener;
+import org.piax.gtrans.netty.FlowControlledTransport;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
 
 public class NetEventSender<E extends Endpoint> implements EventSender, TransportListener<E> {
     TransportId transId;
     ChannelTransport<E> trans;
+    final EventEngine engine;
+    // the number of senders using the default engine
     public static AtomicInteger count = new AtomicInteger(0);
 
     public NetEventSender(TransportId transId, ChannelTransport<E> trans) {
+        this(transId, trans, EventExecutor.getDefaultEngine());
+    }
+
+    /**
+     * create a NetEventSender that uses the specified engine.
+     * the engine must share the Node instances with the default engine
+     * (see {@link EventEngine#EventEngine(boolean)}).
+     * the caller is responsible for starting and terminating the engine
+     * unless it is the default engine.
+     *
+     * @param transId the transport ID
+     * @param trans the underlying transport
+     * @param engine the engine
+     */
+    public NetEventSender(TransportId transId, ChannelTransport<E> trans,
+            EventEngine engine) {
         this.transId = transId;
         this.trans = trans;
+        this.engine = engine;
         trans.setListener(transId, this);
-        if (count.incrementAndGet() == 1) {
-            EventExecutor.reset();
-            EventExecutor.startExecutorThread();
+        if (trans instanceof FlowControlledTransport) {
+            ((FlowControlledTransport<?>) trans)
+                    .setPolicySelector(NetEventSender::outboundPolicy);
+        }
+        if (engine == EventExecutor.getDefaultEngine()
+                && count.incrementAndGet() == 1) {
+            engine.reset();
+            engine.startExecutorThread();
         }
     }
 
+    /**
+     * the policy when the outbound queue to a neighbor is full.
+     * the finger table maintenance events are superseded by the newer
+     * ones, and their loss is recovered by the periodic maintenance.
+     * so the oldest ones are dropped instead of failing the new ones.
+     *
+     * @param msg the message
+     * @return the policy, or null to use the default policy
+     */
+    static Policy outboundPolicy(Object msg) {
+        if (msg instanceof FTEntUpdateEvent
+                || msg instanceof FTEntRemoveEvent
+                || msg instanceof RemoveReversePointerEvent) {
+            return Policy.DROP_OLDEST;
+        }
+        return null;
+    }
+
     public Endpoint getEndpoint() {
         return trans.getEndpoint();
     }
 
+    @Override
+    public EventEngine getEngine() {
+        return engine;
+    }
+
     public void fin() {
-        if (count.decrementAndGet() == 0) {
-            EventExecutor.terminate();
+        if (engine == EventExecutor.getDefaultEngine()
+                && count.decrementAndGet() == 0) {
+            engine.terminate();
         }
     }
 
@@ -73,7 +127,7 @@ public class NetEventSender<E extends Endpoint> implements EventSender, Transpor
     }
 
     public void recv(Event ev) {
-        EventExecutor.enqueue(ev);
+        engine.enqueue(ev);
     }
     
     public boolean isRunning() {
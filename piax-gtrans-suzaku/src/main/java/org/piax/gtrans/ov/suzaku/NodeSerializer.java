@@ -14,40 +14,71 @@ package org.piax.gtrans.ov.suzaku;
 import org.piax.ayame.Node;
 import org.piax.common.DdllKey;
 import org.piax.common.Endpoint;
+import org.piax.gtrans.netty.kryo.ConnectionDictionary;
 import org.piax.gtrans.netty.kryo.KryoUtil;
 
 import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
 import com.esotericsoftware.kryo.Serializer;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 
+/**
+ * A Serializer of Node.
+ * <p>
+ * When a Node is sent on a stream connection, it is written in full only
+ * the first time together with a slot of the dictionary of the connection
+ * (see {@link ConnectionDictionary}), and is written as the slot afterwards.
+ * <p>
+ * A Node starts with a varint tag:
+ * <ul>
+ * <li>0: the key and the endpoint follow.
+ * <li>(slot + 1) &lt;&lt; 1: the key and the endpoint follow, and the node
+ * is stored at the slot.
+ * <li>(slot &lt;&lt; 1) | 1: the node stored at the slot.
+ * </ul>
+ */
 public class NodeSerializer extends Serializer<Node> {
     public void write (Kryo kryo, Output output, Node node) {
-        byte[] keyBytes = KryoUtil.encode(node.key, 256, 256);
-        output.writeShort(keyBytes.length);
-        output.writeBytes(keyBytes);
-        byte[] epBytes = KryoUtil.encode(node.addr, 256, 256);
-        output.writeShort(epBytes.length);
-        output.writeBytes(epBytes);
+        // wildcard nodes are not interned
+        ConnectionDictionary dict = node.key == null ? null
+                : KryoUtil.getDictionary();
+        if (dict == null) {
+            output.writeVarInt(0, true);
+        } else {
+            int slot = dict.lookup(node);
+            if (slot >= 0) {
+                output.writeVarInt((slot << 1) | 1, true);
+                return;
+            }
+            slot = dict.assign(node);
+            output.writeVarInt((slot + 1) << 1, true);
+        }
+        kryo.writeObjectOrNull(output, node.key, DdllKey.class);
+        kryo.writeClassAndObject(output, node.addr);
     }
 
     public Node read (Kryo kryo, Input input, Class<Node> type) {
-        short len = input.readShort();
-        byte[] buf = new byte[len];
-        input.readBytes(buf);
-        Object obj = KryoUtil.decode(buf);
-        DdllKey key = null;
-        if (obj instanceof DdllKey) {
-            key = (DdllKey)obj;
+        int tag = input.readVarInt(true);
+        ConnectionDictionary dict = tag == 0 ? null : KryoUtil.getDictionary();
+        if (tag != 0 && dict == null) {
+            throw new KryoException("no dictionary for node slot " + tag);
         }
-        len = input.readShort();
-        byte[] epbuf = new byte[len];
-        input.readBytes(epbuf);
-        obj = KryoUtil.decode(epbuf);
+        if ((tag & 1) != 0) {
+            Node n = (Node) dict.get(tag >>> 1);
+            // the instance may have been reset after it is stored
+            return Node.getInstance(n.key, n.addr);
+        }
+        DdllKey key = kryo.readObjectOrNull(input, DdllKey.class);
+        Object obj = kryo.readClassAndObject(input);
         Endpoint ep = null;
         if (obj instanceof Endpoint) {
             ep = (Endpoint)obj;
         }
-        return Node.getInstance(key, ep);
+        Node n = Node.getInstance(key, ep);
+        if (dict != null) {
+            dict.put((tag >>> 1) - 1, n);
+        }
+        return n;
     }
-} 
+}
@@ -13,6 +13,7 @@
 package org.piax.gtrans.ov.suzaku;
 
 import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -48,11 +49,13 @@ import org.piax.common.TransportId;
 import org.piax.common.subspace.KeyRange;
 import org.piax.common.subspace.KeyRanges;
 import org.piax.common.subspace.LowerUpper;
+import org.piax.common.subspace.Range;
 import org.piax.gtrans.ChannelTransport;
 import org.piax.gtrans.FutureQueue;
 import org.piax.gtrans.IdConflictException;
 import org.piax.gtrans.Peer;
 import org.piax.gtrans.ProtocolUnsupportedException;
+import org.piax.gtrans.RangeScan;
 import org.piax.gtrans.RemoteValue;
 import org.piax.gtrans.RequestTransportListener;
 import org.piax.gtrans.TransOptions;
@@ -87,6 +90,9 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
     static {
         // ayame related classes
         // XXX need to think where these registration should be located
+        // the default serializer must be registered before the events
+        KryoUtil.registerDefault(org.piax.ayame.Event.class, EventSerializer.class);
+        KryoUtil.register(org.piax.common.DdllKey.class, new DdllKeySerializer());
         KryoUtil.register(org.piax.ayame.Event.class);
         KryoUtil.register(org.piax.ayame.ov.ddll.DdllKeyRange.class);
         KryoUtil.register(org.piax.ayame.ov.rq.DKRangeRValue.class);
@@ -108,6 +114,8 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
         KryoUtil.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntReply.class);
         KryoUtil.register(org.piax.ayame.ov.suzaku.SuzakuStrategy.FTEntrySet.class);
         KryoUtil.register(org.piax.gtrans.ov.suzaku.Suzaku.ExecQueryAdapter.class);
+        KryoUtil.register(org.piax.gtrans.ov.suzaku.Suzaku.ScanQueryAdapter.class);
+        KryoUtil.register(org.piax.gtrans.ov.suzaku.Suzaku.ScanResult.class);
         KryoUtil.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntRequest.class);
         KryoUtil.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidates.class);
         KryoUtil.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidatesReply.class);
@@ -213,6 +221,43 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
         }
     }
     
+    /**
+     * A value returned by a node to {@link Suzaku#scan}, with the key of the node.
+     */
+    public static class ScanResult implements Serializable {
+        private static final long serialVersionUID = 1L;
+        public final Comparable<?> key;
+        public final Object value;
+        // distinguishes the nodes that share the same key
+        public final DdllKey ddllKey;
+        public ScanResult(DdllKey ddllKey, Object value) {
+            this.key = ddllKey.getRawKey();
+            this.value = value;
+            this.ddllKey = ddllKey;
+        }
+    }
+
+    /**
+     * An adapter for {@link Suzaku#scan}. The scanner uses the keys in
+     * the results to advance its cursor.
+     */
+    public static class ScanQueryAdapter extends ExecQueryAdapter {
+        private static final long serialVersionUID = 1L;
+        public ScanQueryAdapter(NestedMessage nmsg, Consumer<RemoteValue<Object>> resultsReceiver) {
+            super(null, nmsg, resultsReceiver);
+        }
+        @SuppressWarnings("rawtypes")
+        public ScanQueryAdapter(Suzaku szk) { // for executor side.
+            super(szk);
+        }
+
+        @Override
+        public CompletableFuture<Object> get(RQAdapter<Object> received, DdllKey key) {
+            return super.get(received, key)
+                    .thenApply(v -> new ScanResult(key, v));
+        }
+    }
+
     LocalNode getEntryPoint() {
         // XXX the first entry.
         return nodes.entrySet().iterator().next().getValue();
@@ -347,6 +392,191 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
         }), opts);
     }
 
+    /*
+     * Scans the range from its right end, pageSize nodes at a time, with
+     * forwardQueryLeft. The next page is requested only when the consumer
+     * starts reading the current one.
+     */
+    @Override
+    public RangeScan<?> scan(ObjectId sender, ObjectId receiver,
+            KeyRange<?> range, Object msg, int pageSize, TransOptions opts) {
+        if (!isJoined) {
+            throw new IllegalStateException("Not joined to the network yet.");
+        }
+        if (sender == null) {
+            sender = getDefaultAppId();
+        }
+        if (receiver == null) {
+            receiver = getDefaultAppId();
+        }
+        NestedMessage nmsg = new NestedMessage(sender, receiver, null, peerId, msg);
+        // the cursor is a range of DdllKeys so that a page boundary can
+        // fall between the nodes that share the same key.
+        Range<DdllKey> r = new Range<DdllKey>(
+                new DdllKey(range.from, range.fromInclusive
+                        ? PeerId.MINUS_INFINITY : PeerId.PLUS_INFINITY),
+                true,
+                new DdllKey(range.to, range.toInclusive
+                        ? PeerId.PLUS_INFINITY : PeerId.MINUS_INFINITY),
+                false);
+        return new RangeScan<Object>(new ScanPager(nmsg, r, pageSize,
+                opts == null ? new TransOptions() : opts));
+    }
+
+    /*
+     * Thrown by ScanPager#advance if a page returned only errors.
+     */
+    private static class PageLostException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PageLostException(Throwable cause) {
+            super(cause);
+        }
+    }
+
+    private class ScanPager implements RangeScan.Pager<Object> {
+        // the number of times a page that returned no node is requested again
+        static final int MAX_PAGE_RETRIES = 2;
+        final NestedMessage nmsg;
+        final int pageSize;
+        final TransOptions opts;
+        // the part of the range that is not scanned yet. null if finished.
+        // if the right end is inclusive, the node at the right end has been
+        // scanned already; the next page starts from it and skips it.
+        Range<DdllKey> cursor;
+
+        ScanPager(NestedMessage nmsg, Range<DdllKey> range, int pageSize,
+                TransOptions opts) {
+            this.nmsg = nmsg;
+            this.cursor = range;
+            this.pageSize = pageSize;
+            this.opts = opts;
+        }
+
+        @Override
+        public CompletableFuture<List<RemoteValue<Object>>> next() {
+            return next(0);
+        }
+
+        private CompletableFuture<List<RemoteValue<Object>>> next(int retries) {
+            Range<DdllKey> r;
+            synchronized (this) {
+                r = cursor;
+            }
+            if (r == null) {
+                return RangeScan.lastPage();
+            }
+            CompletableFuture<List<RemoteValue<Object>>> f = new CompletableFuture<>();
+            List<RemoteValue<Object>> received = new ArrayList<>();
+            getEntryPoint().forwardQueryLeftAsync(r,
+                    r.toInclusive ? pageSize + 1 : pageSize,
+                    new ScanQueryAdapter(nmsg, (ret) -> {
+                        if (ret != null) {
+                            synchronized (received) {
+                                received.add(ret);
+                            }
+                            return;
+                        }
+                        List<RemoteValue<Object>> page;
+                        try {
+                            synchronized (received) {
+                                page = advance(r, received);
+                            }
+                        } catch (PageLostException e) {
+                            // the cursor cannot be moved without a node
+                            if (retries >= MAX_PAGE_RETRIES) {
+                                f.completeExceptionally(e.getCause());
+                                return;
+                            }
+                            logger.debug("retrying a lost page: {}",
+                                    e.getCause().toString());
+                            next(retries + 1).whenComplete((p, ex) -> {
+                                if (ex != null) {
+                                    f.completeExceptionally(ex);
+                                } else {
+                                    f.complete(p);
+                                }
+                            });
+                            return;
+                        } catch (RuntimeException e) {
+                            f.completeExceptionally(e);
+                            return;
+                        }
+                        if (page.isEmpty()) {
+                            // no listener on the nodes in this page
+                            next().whenComplete((p, ex) -> {
+                                if (ex != null) {
+                                    f.completeExceptionally(ex);
+                                } else {
+                                    f.complete(p);
+                                }
+                            });
+                        } else {
+                            f.complete(page);
+                        }
+                    }), opts);
+            return f;
+        }
+
+        /*
+         * Extracts the values in the range r from the received results, and
+         * moves the cursor to the smallest DdllKey.
+         *
+         * If no node in the range returned a ScanResult, the scan has reached
+         * r.from only when no error was received either. Otherwise the page
+         * is lost and PageLostException is thrown with the cursor unchanged.
+         *
+         * The cursor includes the smallest DdllKey rather than excluding it,
+         * because forwardQueryLeft with an exclusive DdllKey would start from
+         * the node with that DdllKey and find it out of the range.
+         */
+        private List<RemoteValue<Object>> advance(Range<DdllKey> r,
+                List<RemoteValue<Object>> received) {
+            List<RemoteValue<Object>> page = new ArrayList<>();
+            DdllKey min = null;
+            Throwable error = null;
+            for (RemoteValue<Object> rv : received) {
+                Object v = rv.getValue();
+                if (!(v instanceof ScanResult)) {
+                    if (rv.getException() != null) {
+                        page.add(rv);
+                        error = rv.getException();
+                    }
+                    continue;
+                }
+                ScanResult sr = (ScanResult) v;
+                if (!r.contains(sr.ddllKey)) {
+                    // forwardQueryLeft wraps around the ring
+                    continue;
+                }
+                if (r.toInclusive && sr.ddllKey.compareTo(r.to) == 0) {
+                    // returned in the previous page
+                    continue;
+                }
+                if (min == null || min.compareTo(sr.ddllKey) > 0) {
+                    min = sr.ddllKey;
+                }
+                if (!Response.EMPTY.equals(sr.value)) {
+                    page.add(new RemoteValue<Object>(rv.getPeer(), sr.value,
+                            rv.getException()));
+                }
+            }
+            if (min == null && error != null) {
+                throw new PageLostException(error);
+            }
+            synchronized (this) {
+                if (min == null || min.compareTo(r.from) <= 0) {
+                    // no more nodes in the range
+                    cursor = null;
+                } else {
+                    cursor = new Range<DdllKey>(r.from, r.fromInclusive,
+                            min, true);
+                }
+            }
+            return page;
+        }
+    }
+
     public void forwardQueryToMaxLessThanAsync(ObjectId sender,
             ObjectId receiver, LowerUpper lu, Object msg,
             BiConsumer<Object, Exception> responseReceiver, TransOptions opts)
@@ -579,6 +809,7 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
             factory.setupNode(node);
             RQStrategy s = (RQStrategy)node.getTopStrategy();
             s.registerAdapter(new ExecQueryAdapter(this));
+            s.registerAdapter(new ScanQueryAdapter(this));
 
             if (initial) {
                 logger.debug("initial=" + node.key + "self=" + node.addr);
@@ -631,6 +862,7 @@ public class Suzaku<D extends Destination, K extends ComparableKey<?>>
         factory.setupNode(node);
         RQStrategy s = (RQStrategy)node.getTopStrategy();
         s.registerAdapter(new ExecQueryAdapter(this));
+        s.registerAdapter(new ScanQueryAdapter(this));
 
         logger.debug("seed=" + (seed == null ? node.addr : seed) + ","+ node.key + "self=" + node.addr);
         lowerret = node.addKeyAsync(seed != null ? seed : node.addr);
@@ -4,6 +4,9 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -21,7 +24,9 @@ import org.piax.common.wrapper.DoubleKey;
 import org.piax.common.wrapper.StringKey;
 import org.piax.gtrans.FutureQueue;
 import org.piax.gtrans.Peer;
+import org.piax.gtrans.RangeScan;
 import org.piax.gtrans.RequestTransport.Response;
+import org.piax.gtrans.RequestTransportListener;
 import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.TransOptions.ResponseType;
 import org.piax.gtrans.TransOptions.RetransMode;
@@ -166,6 +171,141 @@ class TestSuzaku {
         }
     }
 
+    @Test
+    public void scanTest() throws Exception {
+        Suzaku<KeyRange<DoubleKey>, DoubleKey> s1 = new Suzaku<>("tcp:localhost:12367");
+        Suzaku<KeyRange<DoubleKey>, DoubleKey> s2 = new Suzaku<>("tcp:localhost:12368");
+        try {
+            s1.join("tcp:localhost:12367");
+            s2.join("tcp:localhost:12367");
+            for (int i = 0; i < 20; i++) {
+                (i % 2 == 0 ? s1 : s2).addKey(new DoubleKey(i / 20.0));
+            }
+            s1.setRequestListener((szk, msg) -> { // returns the matched key
+                return ((OverlayReceivedMessage<?>) msg).getMatchedKeys().iterator().next();
+            });
+            s2.setRequestListener((szk, msg) -> {
+                return ((OverlayReceivedMessage<?>) msg).getMatchedKeys().iterator().next();
+            });
+            Set<Object> keys = new HashSet<>();
+            int count = 0;
+            try (RangeScan<?> scan = s1.scan(null, null,
+                    new KeyRange<DoubleKey>(new DoubleKey(0.1), true, new DoubleKey(0.8), false),
+                    "scan", 3, null)) {
+                while (scan.hasNext()) {
+                    keys.add(scan.next().getValue());
+                    count++;
+                }
+                assertNull(scan.getException());
+            }
+            // 0.10, 0.15, ..., 0.75
+            assertEquals(14, count);
+            assertEquals(14, keys.size());
+            assertTrue(keys.contains(new DoubleKey(0.1)));
+            assertFalse(keys.contains(new DoubleKey(0.8)));
+        }
+        finally {
+            s1.close();
+            s2.close();
+        }
+    }
+
+    @Test
+    public void scanDuplicateKeysTest() throws Exception {
+        List<Suzaku<KeyRange<DoubleKey>, DoubleKey>> ss = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                Suzaku<KeyRange<DoubleKey>, DoubleKey> s =
+                        new Suzaku<>("tcp:localhost:" + (12367 + i));
+                ss.add(s);
+                s.join("tcp:localhost:12367");
+                // every key is shared by the three nodes
+                for (int j = 0; j < 5; j++) {
+                    s.addKey(new DoubleKey(j / 10.0));
+                }
+                s.setRequestListener((szk, msg) -> {
+                    return szk.getPeerId() + "/" + ((OverlayReceivedMessage<?>) msg)
+                            .getMatchedKeys().iterator().next();
+                });
+            }
+            // the page boundaries fall between the nodes with the same key
+            for (int pageSize = 1; pageSize <= 2; pageSize++) {
+                Set<Object> values = new HashSet<>();
+                int count = 0;
+                try (RangeScan<?> scan = ss.get(0).scan(null, null,
+                        new KeyRange<DoubleKey>(new DoubleKey(0.1), true, new DoubleKey(0.4), false),
+                        "scan", pageSize, null)) {
+                    while (scan.hasNext()) {
+                        values.add(scan.next().getValue());
+                        count++;
+                    }
+                    assertNull(scan.getException());
+                }
+                // 0.1, 0.2, 0.3 on each node
+                assertEquals(9, count);
+                assertEquals(9, values.size());
+            }
+        }
+        finally {
+            for (Suzaku<?, ?> s : ss) {
+                s.close();
+            }
+        }
+    }
+
+    @Test
+    public void scanDropPageTest() throws Exception {
+        Suzaku<KeyRange<DoubleKey>, DoubleKey> s1 = new Suzaku<>("tcp:localhost:12367");
+        Suzaku<KeyRange<DoubleKey>, DoubleKey> s2 = new Suzaku<>("tcp:localhost:12368");
+        try {
+            s1.join("tcp:localhost:12367");
+            s2.join("tcp:localhost:12367");
+            for (int i = 0; i < 20; i++) {
+                (i % 2 == 0 ? s1 : s2).addKey(new DoubleKey(i / 20.0));
+            }
+            // the node with 0.5 fails the number of times in 'failures'
+            AtomicInteger failures = new AtomicInteger(1);
+            RequestTransportListener<KeyRange<DoubleKey>> listener = (szk, msg) -> {
+                Object key = ((OverlayReceivedMessage<?>) msg).getMatchedKeys().iterator().next();
+                if (key.equals(new DoubleKey(0.5)) && failures.getAndDecrement() > 0) {
+                    throw new IllegalStateException("page dropped");
+                }
+                return key;
+            };
+            s1.setRequestListener(listener);
+            s2.setRequestListener(listener);
+            // a page of one node whose result is lost is requested again
+            Set<Object> keys = new HashSet<>();
+            try (RangeScan<?> scan = s1.scan(null, null,
+                    new KeyRange<DoubleKey>(new DoubleKey(0.1), true, new DoubleKey(0.8), false),
+                    "scan", 1, null)) {
+                while (scan.hasNext()) {
+                    keys.add(scan.next().getValue());
+                }
+                assertNull(scan.getException());
+            }
+            assertEquals(14, keys.size());
+            assertTrue(keys.contains(new DoubleKey(0.5)));
+            // the scan fails rather than ends silently if the page is lost
+            failures.set(Integer.MAX_VALUE);
+            keys.clear();
+            try (RangeScan<?> scan = s1.scan(null, null,
+                    new KeyRange<DoubleKey>(new DoubleKey(0.1), true, new DoubleKey(0.8), false),
+                    "scan", 1, null)) {
+                while (scan.hasNext()) {
+                    keys.add(scan.next().getValue());
+                }
+                assertNotNull(scan.getException());
+            }
+            // 0.55, ..., 0.75
+            assertEquals(5, keys.size());
+        }
+        finally {
+            s1.close();
+            s2.close();
+        }
+    }
+
     @Test
     public void wildcardJoinTest() throws Exception {
         Suzaku<StringKey, StringKey> s1 = new Suzaku<>("id:p1:tcp:localhost:12367");
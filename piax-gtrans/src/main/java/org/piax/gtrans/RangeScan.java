@@ -0,0 +1,182 @@
+/*
+ * RangeScan.java - A streaming iterator for range query results
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A streaming iterator for the results of a range query.
+ * <p>
+ * Unlike {@link FutureQueue}, which buffers every result of a query,
+ * a RangeScan pulls the results page by page from a {@link Pager}.
+ * The next page is requested when the consumer starts reading the
+ * current one, so at most two pages are held in memory and a slow
+ * consumer throttles the remote peers.
+ * <p>
+ * As with FutureQueue, the iteration ends when the results are exhausted,
+ * when a page is not received within the getNext timeout or when the
+ * thread is interrupted. The cause of an abnormal end is available from
+ * {@link #getException()}.
+ *
+ * @param <E> the type of the result values
+ */
+public class RangeScan<E> implements Iterator<RemoteValue<E>>, Closeable {
+    /*--- logger ---*/
+    private static final Logger logger =
+            LoggerFactory.getLogger(RangeScan.class);
+
+    /**
+     * A source of the pages of a range scan.
+     *
+     * @param <E> the type of the result values
+     */
+    public interface Pager<E> {
+        /**
+         * Starts fetching the next page. The page following the last one
+         * must be empty.
+         *
+         * @return a CompletableFuture that provides the next page
+         */
+        CompletableFuture<List<RemoteValue<E>>> next();
+    }
+
+    private final Pager<E> pager;
+    private final ArrayDeque<RemoteValue<E>> buf = new ArrayDeque<>();
+    private CompletableFuture<List<RemoteValue<E>>> pending;
+    private int timeout = GTransConfigValues.futureQueueGetNextTimeout;
+    private boolean isEnd = false;
+    private Exception exception = null;
+
+    public RangeScan(Pager<E> pager) {
+        this.pager = pager;
+    }
+
+    /**
+     * Returns a RangeScan that reads a FutureQueue in pages.
+     * Used by the transports that cannot fetch the results on demand.
+     *
+     * @param <E> the type of the result values
+     * @param fq the FutureQueue
+     * @param pageSize the number of results in a page
+     * @return a RangeScan
+     */
+    public static <E> RangeScan<E> of(FutureQueue<E> fq, int pageSize) {
+        Iterator<RemoteValue<E>> it = fq.iterator();
+        return new RangeScan<E>(() -> {
+            List<RemoteValue<E>> page = new ArrayList<>();
+            while (page.size() < pageSize && it.hasNext()) {
+                page.add(it.next());
+            }
+            return CompletableFuture.completedFuture(page);
+        });
+    }
+
+    public void setGetNextTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (buf.isEmpty() && !isEnd) {
+            if (pending == null) {
+                pending = pager.next();
+            }
+            List<RemoteValue<E>> page;
+            try {
+                page = pending.get(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                end(e);
+                break;
+            } catch (ExecutionException e) {
+                end(e.getCause() instanceof Exception
+                        ? (Exception) e.getCause() : e);
+                break;
+            } catch (TimeoutException e) {
+                end(e);
+                break;
+            }
+            pending = null;
+            if (page.isEmpty()) {
+                isEnd = true;
+                break;
+            }
+            buf.addAll(page);
+            // prefetch the next page while the consumer reads this one
+            pending = pager.next();
+        }
+        return !buf.isEmpty();
+    }
+
+    private void end(Exception e) {
+        logger.debug("scan ended: {}", e.toString());
+        exception = e;
+        isEnd = true;
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    @Override
+    public synchronized RemoteValue<E> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return buf.poll();
+    }
+
+    /**
+     * Returns the exception that ended the iteration abnormally.
+     *
+     * @return the exception, or null if the scan has not failed
+     */
+    public synchronized Exception getException() {
+        return exception;
+    }
+
+    /**
+     * Stops the scan. The pages that are not fetched yet are not requested.
+     */
+    @Override
+    public synchronized void close() {
+        isEnd = true;
+        buf.clear();
+        if (pending != null) {
+            pending.cancel(false);
+            pending = null;
+        }
+    }
+
+    /**
+     * Returns an empty page that ends a scan.
+     *
+     * @param <E> the type of the result values
+     * @return an empty page
+     */
+    public static <E> CompletableFuture<List<RemoteValue<E>>> lastPage() {
+        return CompletableFuture.completedFuture(Collections.emptyList());
+    }
+}
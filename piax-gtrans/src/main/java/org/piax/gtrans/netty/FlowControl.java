@@ -0,0 +1,105 @@
+/*
+ * FlowControl.java - The outbound queues of a transport
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.netty;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.piax.gtrans.netty.FlowControlledTransport.WritabilityListener;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+
+/**
+ * The outbound queues of a transport, by destination.
+ * A transport that implements {@link FlowControlledTransport} delegates
+ * to this class.
+ *
+ * @param <E> the type of the destination.
+ */
+public class FlowControl<E> implements FlowControlledTransport<E> {
+    private static final Logger logger = LoggerFactory.getLogger(FlowControl.class.getName());
+
+    private final ConcurrentHashMap<E, OutboundQueue<E>> queues =
+            new ConcurrentHashMap<>();
+    private volatile WritabilityListener<E> listener = null;
+    private volatile Function<Object, Policy> selector = null;
+
+    /**
+     * Returns the queue of the destination on the channel.
+     * A queue is created if the destination has no queue on the channel.
+     *
+     * @param channel the channel.
+     * @param dst the destination.
+     * @return the queue.
+     */
+    public OutboundQueue<E> getQueue(Channel channel, E dst) {
+        OutboundQueue<E> q = queues.get(dst);
+        if (q != null && q.channel == channel) {
+            return q;
+        }
+        return queues.compute(dst, (k, cur) -> {
+            return (cur != null && cur.channel == channel) ? cur
+                    : new OutboundQueue<E>(channel, k, this);
+        });
+    }
+
+    void remove(OutboundQueue<E> q) {
+        queues.remove(q.dst, q);
+    }
+
+    /**
+     * Returns the policy for the message.
+     *
+     * @param msg the message. a NettyMessage is unwrapped.
+     * @return the policy.
+     */
+    public Policy policy(Object msg) {
+        Function<Object, Policy> s = selector;
+        Policy p = null;
+        if (s != null) {
+            p = s.apply(msg instanceof NettyMessage<?>
+                    ? ((NettyMessage<?>) msg).getMsg() : msg);
+        }
+        return p == null ? OutboundQueue.POLICY.value() : p;
+    }
+
+    void fireWritabilityChanged(E dst, boolean writable) {
+        logger.debug("writability changed: dst={}, writable={}", dst, writable);
+        WritabilityListener<E> l = listener;
+        if (l != null) {
+            try {
+                l.onWritabilityChanged(dst, writable);
+            } catch (Throwable e) {
+                logger.warn("writability listener failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void setWritabilityListener(WritabilityListener<E> listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setPolicySelector(Function<Object, Policy> selector) {
+        this.selector = selector;
+    }
+
+    @Override
+    public boolean isWritable(E dst) {
+        OutboundQueue<E> q = queues.get(dst);
+        return q == null || q.isWritable();
+    }
+}
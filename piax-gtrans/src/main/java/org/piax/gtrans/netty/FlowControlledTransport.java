@@ -0,0 +1,66 @@
+/*
+ * FlowControlledTransport.java - A Transport with bounded outbound queues
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.netty;
+
+import java.util.function.Function;
+
+import org.piax.gtrans.netty.OutboundQueue.Policy;
+
+/**
+ * A transport that queues the outbound messages per destination in
+ * bounded {@link OutboundQueue}s instead of buffering them without limit.
+ * <p>
+ * The upper layers can select the policy for each message, and can be
+ * notified when a destination becomes congested (its messages are queued)
+ * or writable again, for example, to route around congested neighbors.
+ *
+ * @param <E> the type of the endpoint.
+ */
+public interface FlowControlledTransport<E> {
+
+    /**
+     * The listener of the writability of the destinations.
+     * It is called on a Netty event loop or on a sending thread, and
+     * must return quickly.
+     *
+     * @param <E> the type of the endpoint.
+     */
+    @FunctionalInterface
+    interface WritabilityListener<E> {
+        void onWritabilityChanged(E dst, boolean writable);
+    }
+
+    /**
+     * Sets the writability listener.
+     *
+     * @param listener the listener, or null to remove.
+     */
+    void setWritabilityListener(WritabilityListener<E> listener);
+
+    /**
+     * Sets the function that selects the policy when the outbound queue
+     * of a message is full. The function receives the message given to
+     * send, and returns null to use {@link OutboundQueue#POLICY}.
+     *
+     * @param selector the function, or null to use the default policy.
+     */
+    void setPolicySelector(Function<Object, Policy> selector);
+
+    /**
+     * Returns true if a message to the destination is sent without being
+     * queued.
+     *
+     * @param dst the destination.
+     * @return false if the destination is congested.
+     */
+    boolean isWritable(E dst);
+}
@@ -0,0 +1,356 @@
+/*
+ * OutboundQueue.java - A bounded queue of outbound messages
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.netty;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.piax.common.Option.EnumOption;
+import org.piax.common.Option.IntegerOption;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.AttributeKey;
+
+/**
+ * A bounded queue of the messages to a destination, driven by the
+ * writability of the Netty channel.
+ * <p>
+ * A message is written to the channel immediately if the channel is
+ * writable and no message is queued. Otherwise, it is queued and written
+ * when the channel becomes writable again, that is, when the bytes pending
+ * in the outbound buffer of the channel fall below the low water mark
+ * (see {@link org.piax.gtrans.netty.bootstrap.NettyBootstrap}).
+ * When the queue is full, the message is handled according to the
+ * {@link Policy}.
+ * <p>
+ * Several queues may share a channel (e.g., the destinations of a UDP
+ * socket). They are drained in round-robin order.
+ *
+ * @param <E> the type of the destination.
+ */
+public class OutboundQueue<E> {
+    private static final Logger logger = LoggerFactory.getLogger(OutboundQueue.class.getName());
+
+    public enum Policy {
+        /**
+         * discards the oldest queued message that is also DROP_OLDEST, or
+         * fails the new message if there is none. suitable for the periodic
+         * maintenance messages that are superseded by newer ones.
+         */
+        DROP_OLDEST,
+        /**
+         * blocks the sender until the queue has room, up to BLOCK_TIMEOUT.
+         * a sender on the event loop of the channel is not blocked but fails.
+         */
+        BLOCK,
+        /** fails the new message immediately. */
+        FAIL_FAST
+    }
+
+    /** the policy used when the transport does not select one */
+    public static EnumOption<Policy> POLICY
+        = new EnumOption<>(Policy.class, Policy.FAIL_FAST, "-outbound-policy");
+    /** the number of the messages queued for a destination */
+    public static IntegerOption CAPACITY
+        = new IntegerOption(1024, "-outbound-queue-size");
+    /** the time in milliseconds the BLOCK policy waits for room */
+    public static IntegerOption BLOCK_TIMEOUT
+        = new IntegerOption(10000, "-outbound-block-timeout");
+
+    /**
+     * The exception for the messages that are rejected or dropped because
+     * the queue is full.
+     */
+    public static class OverflowException extends IOException {
+        private static final long serialVersionUID = 1L;
+        public OverflowException(String msg) {
+            super(msg);
+        }
+    }
+
+    private static final AttributeKey<List<OutboundQueue<?>>> QUEUES =
+            AttributeKey.valueOf("outboundQueues");
+
+    static class Entry {
+        final Object msg;
+        final ChannelPromise promise;
+        final Policy policy;
+        Entry(Object msg, ChannelPromise promise, Policy policy) {
+            this.msg = msg;
+            this.promise = promise;
+            this.policy = policy;
+        }
+    }
+
+    final Channel channel;
+    final E dst;
+    private final FlowControl<E> flow;
+    private final int capacity;
+    // the following fields are guarded by this.
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private boolean closed = false;
+    private boolean writable = true; // the last notified writability
+
+    OutboundQueue(Channel channel, E dst, FlowControl<E> flow) {
+        this.channel = channel;
+        this.dst = dst;
+        this.flow = flow;
+        this.capacity = Math.max(1, CAPACITY.value());
+        List<OutboundQueue<?>> queues = channel.attr(QUEUES).get();
+        if (queues == null) {
+            List<OutboundQueue<?>> created = new CopyOnWriteArrayList<>();
+            queues = channel.attr(QUEUES).setIfAbsent(created);
+            if (queues == null) {
+                queues = created;
+            }
+        }
+        queues.add(this);
+        if (!channel.isOpen()) {
+            // closed before registered.
+            close();
+        }
+    }
+
+    /**
+     * Offers a message to the queue.
+     * If true is returned, the caller must write the message to the
+     * channel with the promise. Otherwise, the message is queued and
+     * written later, or the promise is failed.
+     *
+     * @param msg the message.
+     * @param promise the promise of the channel to complete.
+     * @param policy the policy when the queue is full.
+     * @return true if the message should be written by the caller now.
+     */
+    public boolean offer(Object msg, ChannelPromise promise, Policy policy) {
+        return offer(msg, promise, policy, false);
+    }
+
+    /**
+     * Offers a message to the queue.
+     *
+     * @param msg the message.
+     * @param promise the promise of the channel to complete.
+     * @param policy the policy when the queue is full.
+     * @param force true if the message is queued even if the queue is full.
+     * (e.g., the messages that have been accepted before the channel is
+     * established.)
+     * @return true if the message should be written by the caller now.
+     */
+    public boolean offer(Object msg, ChannelPromise promise, Policy policy,
+            boolean force) {
+        Entry dropped = null;
+        synchronized (this) {
+            if (closed) {
+                promise.tryFailure(new IOException("the channel is closed: " + dst));
+                return false;
+            }
+            if (queue.isEmpty() && channel.isWritable()) {
+                return true;
+            }
+            if (!force && queue.size() >= capacity) {
+                switch (policy) {
+                case DROP_OLDEST:
+                    // the messages of the other policies are not dropped.
+                    dropped = pollDroppable(queue);
+                    if (dropped == null) {
+                        promise.tryFailure(new OverflowException("the outbound queue is full: " + dst));
+                        return false;
+                    }
+                    break;
+                case BLOCK:
+                    if (!channel.eventLoop().inEventLoop() && awaitRoom()) {
+                        if (queue.isEmpty() && channel.isWritable()) {
+                            return true;
+                        }
+                        break;
+                    }
+                    // fall through
+                case FAIL_FAST:
+                default:
+                    if (closed) {
+                        promise.tryFailure(new IOException("the channel is closed: " + dst));
+                    } else {
+                        promise.tryFailure(new OverflowException("the outbound queue is full: " + dst));
+                    }
+                    return false;
+                }
+            }
+            queue.add(new Entry(msg, promise, policy));
+        }
+        if (dropped != null) {
+            logger.debug("dropped the oldest message to {}", dst);
+            dropped.promise.tryFailure(new OverflowException("dropped from the outbound queue: " + dst));
+        }
+        updateWritability();
+        return false;
+    }
+
+    // called with the lock. removes the oldest entry of DROP_OLDEST.
+    private static Entry pollDroppable(ArrayDeque<Entry> queue) {
+        for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+            Entry e = it.next();
+            if (e.policy == Policy.DROP_OLDEST) {
+                it.remove();
+                return e;
+            }
+        }
+        return null;
+    }
+
+    // called with the lock. returns true if there is room.
+    private boolean awaitRoom() {
+        long deadline = System.currentTimeMillis() + BLOCK_TIMEOUT.value();
+        while (!closed && queue.size() >= capacity) {
+            long rest = deadline - System.currentTimeMillis();
+            if (rest <= 0) {
+                return false;
+            }
+            try {
+                wait(rest);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    /**
+     * Returns true if a message to the destination is written without
+     * being queued.
+     *
+     * @return true if the queue is empty and the channel is writable.
+     */
+    public synchronized boolean isWritable() {
+        return !closed && queue.isEmpty() && channel.isWritable();
+    }
+
+    public synchronized int size() {
+        return queue.size();
+    }
+
+    // notifies the change of the writability to the upper layer.
+    private void updateWritability() {
+        boolean w = isWritable();
+        synchronized (this) {
+            if (w == writable) {
+                return;
+            }
+            writable = w;
+        }
+        flow.fireWritabilityChanged(dst, w);
+    }
+
+    // called in the event loop.
+    private boolean writeOne() {
+        synchronized (this) {
+            Entry e = queue.poll();
+            if (e == null) {
+                return false;
+            }
+            channel.write(e.msg, e.promise);
+            notifyAll();
+            return true;
+        }
+    }
+
+    void close() {
+        ArrayDeque<Entry> rest;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            rest = new ArrayDeque<>(queue);
+            queue.clear();
+            notifyAll();
+        }
+        flow.remove(this);
+        IOException e = new IOException("the channel is closed: " + dst);
+        for (Entry ent : rest) {
+            ent.promise.tryFailure(e);
+        }
+    }
+
+    /**
+     * Called when the writability of the channel is changed.
+     * Should be called from channelWritabilityChanged of a handler.
+     *
+     * @param channel the channel.
+     */
+    public static void writabilityChanged(Channel channel) {
+        List<OutboundQueue<?>> queues = channel.attr(QUEUES).get();
+        if (queues == null) {
+            return;
+        }
+        if (channel.isWritable()) {
+            // the writes submitted to the event loop before this point
+            // are performed before the queued messages.
+            channel.eventLoop().execute(() -> drain(channel, queues));
+        } else {
+            for (OutboundQueue<?> q : queues) {
+                q.updateWritability();
+            }
+        }
+    }
+
+    private static void drain(Channel channel, List<OutboundQueue<?>> queues) {
+        boolean wrote = false;
+        boolean progress = true;
+        while (progress && channel.isWritable()) {
+            progress = false;
+            for (OutboundQueue<?> q : queues) {
+                if (!channel.isWritable()) {
+                    break;
+                }
+                if (q.writeOne()) {
+                    progress = wrote = true;
+                }
+            }
+        }
+        if (wrote) {
+            channel.flush();
+        }
+        for (OutboundQueue<?> q : queues) {
+            q.updateWritability();
+        }
+    }
+
+    /**
+     * Called when the channel is closed. The queued messages are failed.
+     * Should be called from channelInactive of a handler.
+     *
+     * @param channel the channel.
+     */
+    public static void channelInactive(Channel channel) {
+        List<OutboundQueue<?>> queues = channel.attr(QUEUES).get();
+        if (queues == null) {
+            return;
+        }
+        for (OutboundQueue<?> q : queues) {
+            q.close();
+        }
+        queues.clear();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundQueue[" + dst + ", size=" + size() + "]";
+    }
+}
@@ -11,12 +11,16 @@
  
 package org.piax.gtrans.netty.bootstrap;
 
+import org.piax.common.Option.BooleanOption;
 import org.piax.common.Option.EnumOption;
+import org.piax.common.Option.IntegerOption;
 import org.piax.gtrans.GTransConfigValues;
 import org.piax.gtrans.netty.NettyEndpoint;
 import org.piax.gtrans.netty.NettyLocator;
 import org.piax.gtrans.netty.kryo.KryoDecoder;
 import org.piax.gtrans.netty.kryo.KryoEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.AbstractBootstrap;
 import io.netty.bootstrap.Bootstrap;
@@ -24,14 +28,98 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.serialization.ClassResolvers;
 import io.netty.handler.codec.serialization.ObjectDecoder;
 import io.netty.handler.codec.serialization.ObjectEncoder;
 
 public abstract class NettyBootstrap<E extends NettyEndpoint> {
 
-    static int NUMBER_OF_THREADS_FOR_CLIENT = 1;
-    static int NUMBER_OF_THREADS_FOR_SERVER = 1;
+    private static final Logger logger = LoggerFactory.getLogger(NettyBootstrap.class.getName());
+
+    public static IntegerOption NUMBER_OF_THREADS_FOR_CLIENT
+        = new IntegerOption(1, "-client-threads");
+    public static IntegerOption NUMBER_OF_THREADS_FOR_SERVER
+        = new IntegerOption(1, "-server-threads");
+
+    // use the native epoll transport if it is available (Linux only).
+    public static BooleanOption NATIVE_TRANSPORT
+        = new BooleanOption(false, "-native-transport");
+
+    /*
+     * the water marks of the outbound buffer of a channel in bytes.
+     * a channel becomes unwritable when the bytes pending in the buffer
+     * exceed the high water mark, and writable again when they fall below
+     * the low water mark. the messages are queued in the OutboundQueues
+     * while the channel is unwritable.
+     */
+    public static IntegerOption WRITE_BUFFER_HIGH_WATER_MARK
+        = new IntegerOption(64 * 1024, "-write-high-water-mark");
+    public static IntegerOption WRITE_BUFFER_LOW_WATER_MARK
+        = new IntegerOption(32 * 1024, "-write-low-water-mark");
+
+    private static volatile boolean epollWarned = false;
+
+    /**
+     * returns true if the native epoll transport is used.
+     * 
+     * @return true if NATIVE_TRANSPORT is set and epoll is available.
+     */
+    public static boolean useEpoll() {
+        if (!NATIVE_TRANSPORT.value()) {
+            return false;
+        }
+        if (!Epoll.isAvailable()) {
+            if (!epollWarned) {
+                epollWarned = true;
+                logger.warn("epoll is not available. using NIO: {}",
+                        Epoll.unavailabilityCause().toString());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * the following methods take the result of useEpoll(), so that
+     * the event loop groups and the channels of a bootstrap match even if
+     * NATIVE_TRANSPORT is changed.
+     */
+    public static EventLoopGroup newEventLoopGroup(boolean epoll, int nThreads) {
+        return epoll ? new EpollEventLoopGroup(nThreads)
+                : new NioEventLoopGroup(nThreads);
+    }
+
+    public static Class<? extends SocketChannel> socketChannelClass(boolean epoll) {
+        return epoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    public static Class<? extends ServerSocketChannel> serverSocketChannelClass(boolean epoll) {
+        return epoll ? EpollServerSocketChannel.class
+                : NioServerSocketChannel.class;
+    }
+
+    public static Class<? extends DatagramChannel> datagramChannelClass(boolean epoll) {
+        return epoll ? EpollDatagramChannel.class : NioDatagramChannel.class;
+    }
+
+    public static WriteBufferWaterMark writeBufferWaterMark() {
+        int high = WRITE_BUFFER_HIGH_WATER_MARK.value();
+        int low = Math.min(WRITE_BUFFER_LOW_WATER_MARK.value(), high);
+        return new WriteBufferWaterMark(low, high);
+    }
 
     public abstract EventLoopGroup getParentEventLoopGroup();
     public abstract EventLoopGroup getChildEventLoopGroup();
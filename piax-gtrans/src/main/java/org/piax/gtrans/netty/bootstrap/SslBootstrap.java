@@ -48,8 +48,8 @@ public class SslBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
 
     public SslBootstrap(String host, int port) {
         parentGroup = new NioEventLoopGroup(1);
-        childGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER);
-        clientGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT);
+        childGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER.value());
+        clientGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT.value());
         this.host = host;
         this.port = port;
     }
@@ -127,7 +127,8 @@ public class SslBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
         ServerBootstrap b = new ServerBootstrap();
         b.group(parentGroup, childGroup)
         .channel(NioServerSocketChannel.class)
-        .option(ChannelOption.AUTO_READ, true);
+        .option(ChannelOption.AUTO_READ, true)
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark());
         b.handler(new LoggingHandler(LogLevel.INFO))
         .childHandler(getChannelInboundInitializer(ihandler));
         return b;
@@ -138,6 +139,7 @@ public class SslBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
         Bootstrap b = new Bootstrap();
         b.group(clientGroup)
         .channel(NioSocketChannel.class)
+        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark())
         .handler(getChannelOutboundInitializer(locator, ohandler));
         return b;
     }
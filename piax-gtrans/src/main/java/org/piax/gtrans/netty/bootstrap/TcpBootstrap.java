@@ -22,20 +22,22 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
 
 public class TcpBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
     EventLoopGroup parentGroup;
     EventLoopGroup childGroup;
     EventLoopGroup clientGroup;
+    // the transport is chosen when the bootstrap is created
+    final boolean epoll;
     
     public TcpBootstrap() {
-        parentGroup = new NioEventLoopGroup(1);
-        childGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER);
-        clientGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT);
+        epoll = useEpoll();
+        parentGroup = newEventLoopGroup(epoll, 1);
+        childGroup = newEventLoopGroup(epoll, NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER.value());
+        clientGroup = newEventLoopGroup(epoll, NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT.value());
     }
 
     @Override
@@ -58,8 +60,14 @@ public class TcpBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
             ChannelInboundHandlerAdapter ohandler) {
         Bootstrap b = new Bootstrap();
         b.group(clientGroup)
-        .channel(NioSocketChannel.class)
+        .channel(socketChannelClass(epoll))
+        .option(ChannelOption.TCP_NODELAY, true)
+        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark())
         .handler(getChannelOutboundInitializer(dst, ohandler));
+        if (epoll) {
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+            .option(EpollChannelOption.TCP_QUICKACK, true);
+        }
         return b;
     }
 
@@ -81,8 +89,15 @@ public class TcpBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
             ChannelInboundHandlerAdapter ihandler) {
         ServerBootstrap b = new ServerBootstrap();
         b.group(parentGroup, childGroup)
-        .channel(NioServerSocketChannel.class)
-        .option(ChannelOption.AUTO_READ, true);
+        .channel(serverSocketChannelClass(epoll))
+        .option(ChannelOption.AUTO_READ, true)
+        .childOption(ChannelOption.TCP_NODELAY, true)
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark());
+        if (epoll) {
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+            .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+            .childOption(EpollChannelOption.TCP_QUICKACK, true);
+        }
         //b.handler(new LoggingHandler(LogLevel.INFO))
         b.childHandler(getChannelInboundInitializer(ihandler));
         return b;
@@ -42,8 +42,8 @@ public class UdtBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
         ThreadFactory clientFactory = new DefaultThreadFactory("client");
 
         parentGroup = new NioEventLoopGroup(1, bossFactory, NioUdtProvider.BYTE_PROVIDER);
-        childGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER, serverFactory, NioUdtProvider.BYTE_PROVIDER);
-        clientGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT, clientFactory, NioUdtProvider.BYTE_PROVIDER);
+        childGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_SERVER.value(), serverFactory, NioUdtProvider.BYTE_PROVIDER);
+        clientGroup = new NioEventLoopGroup(NettyBootstrap.NUMBER_OF_THREADS_FOR_CLIENT.value(), clientFactory, NioUdtProvider.BYTE_PROVIDER);
     }
 
     @Override
@@ -68,6 +68,7 @@ public class UdtBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
         b.group(clientGroup)
         //.channel(transType.getChannelClass())
         .channelFactory(NioUdtProvider.BYTE_CONNECTOR)
+        .option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark())
         .handler(getChannelOutboundInitializer(dst, ohandler));
         return b;
     }
@@ -93,7 +94,8 @@ public class UdtBootstrap<E extends NettyEndpoint> extends NettyBootstrap<E> {
         .channelFactory(NioUdtProvider.BYTE_ACCEPTOR)
         //.channel(transType.getServerChannelClass())//NioServerSocketChannel.class)
         .option(ChannelOption.SO_BACKLOG, 10)
-        .option(ChannelOption.SO_REUSEADDR, true);
+        .option(ChannelOption.SO_REUSEADDR, true)
+        .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark());
         //.option(ChannelOption.AUTO_READ, true)
         b.handler(new LoggingHandler(LogLevel.INFO))
         .childHandler(getChannelInboundInitializer(ihandler));
@@ -20,6 +20,7 @@ import java.util.Random;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.piax.common.ObjectId;
 import org.piax.common.Option.IntegerOption;
@@ -38,8 +39,12 @@ import org.piax.gtrans.TransportListener;
 import org.piax.gtrans.impl.ChannelTransportImpl;
 import org.piax.gtrans.netty.ControlMessage;
 import org.piax.gtrans.netty.ControlMessage.ControlType;
+import org.piax.gtrans.netty.FlowControl;
+import org.piax.gtrans.netty.FlowControlledTransport;
 import org.piax.gtrans.netty.NettyLocator;
 import org.piax.gtrans.netty.NettyMessage;
+import org.piax.gtrans.netty.OutboundQueue;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
 import org.piax.gtrans.netty.bootstrap.NettyBootstrap;
 import org.piax.gtrans.netty.bootstrap.SslBootstrap;
 import org.piax.gtrans.netty.bootstrap.TcpBootstrap;
@@ -67,7 +72,7 @@ import io.netty.util.concurrent.GlobalEventExecutor;
  * - locator change notification / periodic ping / failure detector.
  * - 
  */
-public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> implements ChannelTransport<PrimaryKey> {
+public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> implements ChannelTransport<PrimaryKey>, FlowControlledTransport<PrimaryKey> {
     LocatorManager mgr;
     protected static final Logger logger = LoggerFactory.getLogger(IdChannelTransport.class.getName());
     protected final ConcurrentHashMap<String,IdChannel> ichannels = new ConcurrentHashMap<String,IdChannel>();
@@ -78,6 +83,8 @@ public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> impleme
     boolean supportsDuplex = true;
     protected PrimaryKey ep = null;
     final protected PeerId peerId;
+    // the outbound queues of the locator channels by destination.
+    final FlowControl<PrimaryKey> flow = new FlowControl<>();
     // a map to hold active raw channels;
 
     private ConcurrentHashMap<NettyLocator, LocatorChannelEntry> raws;
@@ -138,9 +145,16 @@ public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> impleme
         public void channelReadComplete(ChannelHandlerContext ctx) {
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            OutboundQueue.writabilityChanged(ctx.channel());
+            ctx.fireChannelWritabilityChanged();
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
             logger.debug("Inactive={}", ctx);
+            OutboundQueue.channelInactive(ctx.channel());
             trans.inboundInactive(ctx);
         }
 
@@ -178,10 +192,17 @@ public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> impleme
             ctx.flush();
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            OutboundQueue.writabilityChanged(ctx.channel());
+            ctx.fireChannelWritabilityChanged();
+        }
+
         @Override
         public void channelInactive(ChannelHandlerContext ctx) {
             // this handler is a client-side handler.
             logger.debug("Inactive={}", ctx);
+            OutboundQueue.channelInactive(ctx.channel());
             trans.outboundInactive(ctx);
         }
 
@@ -798,7 +819,12 @@ public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> impleme
                 try {
                     logger.debug("sending async when completed: {} {}", ret, nmsg);
                     ret.sendAsync(nmsg).addListener((cf) -> {
-                        retf.complete(null);
+                        if (cf.cause() instanceof OutboundQueue.OverflowException) {
+                            retf.completeExceptionally(cf.cause());
+                        }
+                        else {
+                            retf.complete(null);
+                        }
                     });
                 } catch (Exception e1) {
                     retf.completeExceptionally(e1);
@@ -817,4 +843,19 @@ public class IdChannelTransport extends ChannelTransportImpl<PrimaryKey> impleme
         return ep;
     }
 
+    @Override
+    public void setWritabilityListener(WritabilityListener<PrimaryKey> listener) {
+        flow.setWritabilityListener(listener);
+    }
+
+    @Override
+    public void setPolicySelector(Function<Object, Policy> selector) {
+        flow.setPolicySelector(selector);
+    }
+
+    @Override
+    public boolean isWritable(PrimaryKey dst) {
+        return flow.isWritable(dst);
+    }
+
 }
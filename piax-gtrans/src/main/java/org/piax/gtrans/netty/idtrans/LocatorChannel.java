@@ -18,11 +18,13 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.piax.common.PeerId;
 import org.piax.gtrans.netty.NettyLocator;
 import org.piax.gtrans.netty.NettyMessage;
+import org.piax.gtrans.netty.OutboundQueue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelPromise;
 
 public class LocatorChannel {
 
@@ -167,7 +169,17 @@ public class LocatorChannel {
         if (!(stat == Stat.RUN && channel.isOpen())) {
             new IOException("the sending channel is closed.");
         }
-        return channel.writeAndFlush(msg);
+        PrimaryKey key = getPrimaryKey();
+        if (key == null || key.getRawKey() == null) {
+            return channel.writeAndFlush(msg);
+        }
+        // queued while the channel is unwritable.
+        ChannelPromise promise = channel.newPromise();
+        OutboundQueue<PrimaryKey> q = trans.flow.getQueue(channel, key);
+        if (q.offer(msg, promise, trans.flow.policy(msg))) {
+            channel.writeAndFlush(msg, promise);
+        }
+        return promise;
     }
 
 }
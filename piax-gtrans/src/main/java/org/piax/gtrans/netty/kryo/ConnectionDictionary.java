@@ -0,0 +1,161 @@
+/*
+ * ConnectionDictionary.java - A per-connection dictionary of objects
+ *
+ * Copyright (c) 2021 PIAX development team
+ *
+ * You can redistribute it and/or modify it under either the terms of
+ * the AGPLv3 or PIAX binary code license. See the file COPYING
+ * included in the PIAX package for more in detail.
+ *
+ */
+
+package org.piax.gtrans.netty.kryo;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.piax.common.Option.IntegerOption;
+
+import com.esotericsoftware.kryo.KryoException;
+
+/**
+ * A dictionary that assigns small integers (slots) to the objects sent
+ * over a stream connection.
+ * <p>
+ * A KryoEncoder and a KryoDecoder of a connection have a dictionary each.
+ * A serializer that obtains the dictionary by
+ * {@link KryoUtil#getDictionary()} writes an object in full together with
+ * a newly assigned slot the first time, and writes only the slot afterwards.
+ * Since the messages on a connection are decoded in the order they are
+ * encoded, the receiver can maintain the same assignment by storing the
+ * decoded object at the slot.
+ * <p>
+ * The number of slots is bounded. When all the slots are used, the slot
+ * that was assigned the earliest is reused.
+ * <p>
+ * A dictionary is not thread-safe. It is used only by the event loop
+ * thread of the connection.
+ */
+public class ConnectionDictionary {
+    /** the number of slots of a dictionary */
+    public static IntegerOption CAPACITY
+        = new IntegerOption(4096, "-dictionary-capacity");
+
+    private final Object[] entries;
+    // sender side: object -> slot
+    private final Map<Object, Integer> slots = new IdentityHashMap<>();
+    private int next = 0;
+    private boolean used = false;
+
+    // the state at the beginning of the current message
+    private int markNext;
+    // pairs of a newly assigned slot and the object it replaced
+    private final ArrayList<Object> undo = new ArrayList<>();
+
+    public ConnectionDictionary() {
+        this(CAPACITY.value());
+    }
+
+    public ConnectionDictionary(int capacity) {
+        entries = new Object[capacity];
+    }
+
+    /**
+     * returns the slot assigned to the object.
+     *
+     * @param obj the object
+     * @return the slot, or -1 if no slot is assigned
+     */
+    public int lookup(Object obj) {
+        Integer slot = slots.get(obj);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     * assigns a slot to the object. the object must be written in full
+     * with the slot.
+     *
+     * @param obj the object
+     * @return the slot
+     */
+    public int assign(Object obj) {
+        int slot = next;
+        next = (next + 1) % entries.length;
+        Object old = entries[slot];
+        if (old != null) {
+            slots.remove(old);
+        }
+        undo.add(slot);
+        undo.add(old);
+        entries[slot] = obj;
+        slots.put(obj, slot);
+        used = true;
+        return slot;
+    }
+
+    /**
+     * returns the object stored at the slot.
+     *
+     * @param slot the slot
+     * @return the object
+     * @throws KryoException if the slot is not defined
+     */
+    public Object get(int slot) {
+        Object obj = slot >= 0 && slot < entries.length ? entries[slot] : null;
+        if (obj == null) {
+            throw new KryoException("undefined slot: " + slot);
+        }
+        return obj;
+    }
+
+    /**
+     * stores the object at the slot. called on the receiver side.
+     *
+     * @param slot the slot
+     * @param obj the object
+     * @throws KryoException if the slot is out of range
+     */
+    public void put(int slot, Object obj) {
+        if (slot < 0 || slot >= entries.length) {
+            throw new KryoException("slot out of range: " + slot);
+        }
+        entries[slot] = obj;
+        used = true;
+    }
+
+    /**
+     * returns true if any slot has been defined.
+     *
+     * @return true if the dictionary is in use
+     */
+    public boolean isUsed() {
+        return used;
+    }
+
+    /**
+     * marks the beginning of a message.
+     */
+    void begin() {
+        markNext = next;
+        undo.clear();
+    }
+
+    /**
+     * cancels the slots assigned since the beginning of the message,
+     * so that a message that is not sent does not define them.
+     */
+    void rollback() {
+        for (int i = undo.size() - 2; i >= 0; i -= 2) {
+            int slot = (Integer) undo.get(i);
+            Object old = undo.get(i + 1);
+            slots.remove(entries[slot]);
+            entries[slot] = old;
+            if (old != null) {
+                slots.put(old, slot);
+            }
+        }
+        undo.clear();
+        next = markNext;
+    }
+}
@@ -18,23 +18,34 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 
 public class KryoDecoder extends ByteToMessageDecoder {
+    // the dictionary of the objects received on this connection
+    final ConnectionDictionary dict = new ConnectionDictionary();
+
     public KryoDecoder() {
     }
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in,
             List<Object> out) throws Exception {
-        if (in.readableBytes() < 2)
+        if (in.readableBytes() < 4)
             return;
-        in.markReaderIndex();
-        int len = in.readInt();
-        if (in.readableBytes() < len) {
-            in.resetReaderIndex();
+        int len = in.getInt(in.readerIndex());
+        if (in.readableBytes() < 4 + len) {
             return;
         }
-        byte[] buf = new byte[len];
-        in.readBytes(buf);
-        Object object = KryoUtil.decode(buf);
+        in.skipBytes(4);
+        // decode directly from the cumulation buffer
+        Object object;
+        try {
+            object = KryoUtil.decode(in, len, dict);
+        } catch (RuntimeException e) {
+            if (dict.isUsed()) {
+                // the slots defined in the rest of the object are lost.
+                // the dictionary cannot be used any more.
+                ctx.close();
+            }
+            throw e;
+        }
         out.add(object);
     }
 }
@@ -13,20 +13,41 @@ package org.piax.gtrans.netty.kryo;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
 import io.netty.handler.codec.MessageToByteEncoder;
 
 public class KryoEncoder extends MessageToByteEncoder<Object> {
 
     static int KRYO_BUFSIZE = 1024;
     static int KRYO_BUFSIZE_MAX = 256 * 1024 * 1024; // 256 MB
+
+    // the dictionary of the objects sent on this connection
+    final ConnectionDictionary dict = new ConnectionDictionary();
     
     public KryoEncoder() {
+        // the ByteBuf is allocated from the pooled direct allocator of
+        // the channel.
+        super(true);
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, Object msg,
+            boolean preferDirect) throws Exception {
+        return ctx.alloc().ioBuffer(KRYO_BUFSIZE);
     }
 
     @Override
     protected void encode(ChannelHandlerContext ctx, Object obj, ByteBuf out) throws Exception {
-        byte[] buf = KryoUtil.encode(obj, KRYO_BUFSIZE, KRYO_BUFSIZE_MAX);
-        out.writeInt(buf.length);
-        out.writeBytes(buf);
+        // the length is filled after the object is written
+        int start = out.writerIndex();
+        out.writeInt(0);
+        int len = KryoUtil.encode(obj, out, dict);
+        if (len > KRYO_BUFSIZE_MAX) {
+            // the message is not sent
+            dict.rollback();
+            throw new EncoderException("too large message: " + len
+                    + " bytes");
+        }
+        out.setInt(start, len);
     }
 }
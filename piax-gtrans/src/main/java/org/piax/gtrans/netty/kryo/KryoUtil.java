@@ -11,7 +11,7 @@
  
 package org.piax.gtrans.netty.kryo;
 
-import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 
 import org.objenesis.strategy.StdInstantiatorStrategy;
@@ -22,20 +22,29 @@ import org.slf4j.LoggerFactory;
 
 import com.esotericsoftware.kryo.Kryo;
 import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.ByteBufferInput;
 import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.minlog.Log;
 
+import io.netty.buffer.ByteBuf;
+
 public class KryoUtil {
     private static final Logger logger = LoggerFactory.getLogger(KryoUtil.class.getName());
     static boolean DEBUG = false;
     static ArrayList<RegistrationPair> registrations = new ArrayList<>();
-    static long initialLastRegistered = System.nanoTime();
-    static long lastRegistered = initialLastRegistered;
+    // a snapshot of registrations that is read without locking
+    static volatile RegistrationPair[] registered = new RegistrationPair[0];
+    // incremented on every registration
+    static volatile long lastRegistered = 0;
+    // the size of the buffer used to encode into a ByteBuf
+    static final int STREAM_BUFSIZE = 4096;
 
     static class RegistrationPair {
         Class clazz;
         Serializer serializer;
+        // the default serializer for the subclasses of clazz
+        Class<? extends Serializer> defaultSerializer;
         public RegistrationPair(Class clazz, Serializer serializer) {
             this.clazz = clazz;
             this.serializer = serializer;
@@ -45,7 +54,8 @@ public class KryoUtil {
     public synchronized static void register(Class clazz) {
         if (!registrations.contains(clazz)) {
             registrations.add(new RegistrationPair(clazz, null));
-            lastRegistered = System.nanoTime();
+            registered = registrations.toArray(new RegistrationPair[0]);
+            lastRegistered++;
             logger.trace("last registered={}", lastRegistered);
         }
     }
@@ -53,146 +63,364 @@ public class KryoUtil {
     public synchronized static void register(Class clazz, Serializer serializer) {
         if (!registrations.contains(clazz)) {
             registrations.add(new RegistrationPair(clazz, serializer));
-            lastRegistered = System.nanoTime();
+            registered = registrations.toArray(new RegistrationPair[0]);
+            lastRegistered++;
             logger.trace("last registered={}", lastRegistered);
         }
     }
     
-    public synchronized static void reRegisterIfModified() {
-        if (lasts.get() < lastRegistered) {
+    /**
+     * register the default serializer for a class and its subclasses.
+     * it must be called before the classes are registered or serialized.
+     *
+     * @param clazz the class
+     * @param serializerClass the class of the serializer. it is instantiated
+     * for each subclass.
+     */
+    public synchronized static void registerDefault(Class clazz,
+            Class<? extends Serializer> serializerClass) {
+        RegistrationPair p = new RegistrationPair(clazz, null);
+        p.defaultSerializer = serializerClass;
+        registrations.add(p);
+        registered = registrations.toArray(new RegistrationPair[0]);
+        lastRegistered++;
+        logger.trace("last registered={}", lastRegistered);
+    }
+
+    public static void reRegisterIfModified() {
+        reRegisterIfModified(contexts.get());
+    }
+
+    /*
+     * the registrations are checked on every message, so that this method
+     * does not take any lock.  lastRegistered is read before the snapshot
+     * so that a registration made concurrently is applied next time.
+     */
+    private static Kryo reRegisterIfModified(KryoContext ctx) {
+        long last = lastRegistered;
+        if (ctx.lastRegistered != last) {
             logger.trace("re-register because the registration is modified on thread {}", Thread.currentThread());
-            Kryo kryo = kryos.get();
-            for (RegistrationPair p : registrations) {
-                if (p.serializer == null) {
-                    kryo.register(p.clazz);
+            RegistrationPair[] pairs = registered;
+            // the registrations are only appended
+            for (int i = ctx.applied; i < pairs.length; i++) {
+                RegistrationPair p = pairs[i];
+                if (p.defaultSerializer != null) {
+                    ctx.kryo.addDefaultSerializer(p.clazz, p.defaultSerializer);
+                }
+                else if (p.serializer == null) {
+                    ctx.kryo.register(p.clazz);
                 }
                 else {
-                    kryo.register(p.clazz, p.serializer);
+                    ctx.kryo.register(p.clazz, p.serializer);
                 }
             }
-            lasts.set(lastRegistered);
-        }
-        else {
-            logger.trace("Not registered because the registration is not modified on thread {}", Thread.currentThread());
+            ctx.applied = pairs.length;
+            ctx.lastRegistered = last;
         }
+        return ctx.kryo;
     }
     
     // for debugging
     // throws an exception if not registered.
     public synchronized static int getRegistrationId(Class clazz) {
         int ret = -1;
-        boolean required = kryos.get().isRegistrationRequired();
-        kryos.get().setRegistrationRequired(true);
-        ret = kryos.get().getRegistration(clazz).getId();
-        kryos.get().setRegistrationRequired(required);
+        Kryo kryo = contexts.get().kryo;
+        boolean required = kryo.isRegistrationRequired();
+        kryo.setRegistrationRequired(true);
+        ret = kryo.getRegistration(clazz).getId();
+        kryo.setRegistrationRequired(required);
         return ret;
     }
-    
-    private static final ThreadLocal<Long> lasts = new ThreadLocal<Long>() {
-        protected Long initialValue() {
-            logger.trace("initial last registered={} on thread {}", lastRegistered, Thread.currentThread());
-            return initialLastRegistered;
+
+    /**
+     * an OutputStream that appends to a ByteBuf.
+     */
+    static class ByteBufOutputStream extends OutputStream {
+        ByteBuf buf;
+        @Override
+        public void write(int b) {
+            buf.writeByte(b);
         }
-    };
-
-    private static final ThreadLocal<Kryo> kryos = new ThreadLocal<Kryo>() {
-        protected Kryo initialValue() {
-            Kryo kryo = new Kryo();
-            kryo.setClassLoader(GTransConfigValues.classLoaderForDeserialize);
-            if (DEBUG) {
-                Log.TRACE();
-            }
-            ((Kryo.DefaultInstantiatorStrategy) kryo.getInstantiatorStrategy()).setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
-            // the size becomes small if registered because registered classes are represented as a number, not name.
-            kryo.register(java.util.ArrayList.class);
-            kryo.register(java.util.HashSet.class);
-            kryo.register(java.util.HashMap.class);
-            kryo.register(java.lang.Class.class);
-            kryo.register(byte[].class);
-            kryo.register(Integer[].class);
-            kryo.register(org.piax.common.ObjectId.class);
-            kryo.register(org.piax.common.PeerId.class);
-            kryo.register(org.piax.common.subspace.Range.class);
-            kryo.register(org.piax.common.TransportId.class);
-            kryo.register(org.piax.common.wrapper.DoubleKey.class);
-            kryo.register(org.piax.common.wrapper.StringKey.class);
-            kryo.register(org.piax.common.wrapper.ByteKey.class);
-            kryo.register(org.piax.common.wrapper.IntegerKey.class);
-            kryo.register(org.piax.common.wrapper.BooleanKey.class);
-            kryo.register(org.piax.common.wrapper.LongKey.class);
-            kryo.register(org.piax.common.PeerId.SpecialId.class);
-            kryo.register(org.piax.gtrans.RemoteValue.class);
-            kryo.register(org.piax.common.DdllKey.class);
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buf.writeBytes(b, off, len);
+        }
+    }
+
+    /**
+     * per-thread state: a Kryo instance and reusable buffers.
+     */
+    static class KryoContext {
+        final Kryo kryo = newKryo();
+        // the value of lastRegistered that is applied to kryo
+        long lastRegistered = 0;
+        // the number of registrations that are applied to kryo
+        int applied = 0;
+        // the dictionary of the connection being encoded or decoded
+        ConnectionDictionary dict;
+        final Output output = new Output(STREAM_BUFSIZE);
+        final ByteBufOutputStream stream = new ByteBufOutputStream();
+        final Input input = new Input();
+        final ByteBufferInput bbInput = new ByteBufferInput();
+        // true while the buffers above are in use
+        boolean busy;
+    }
+
+    private static final ThreadLocal<KryoContext> contexts
+        = ThreadLocal.withInitial(KryoContext::new);
+
+    private static Kryo newKryo() {
+        Kryo kryo = new Kryo();
+        kryo.setClassLoader(GTransConfigValues.classLoaderForDeserialize);
+        if (DEBUG) {
+            Log.TRACE();
+        }
+        ((Kryo.DefaultInstantiatorStrategy) kryo.getInstantiatorStrategy()).setFallbackInstantiatorStrategy(new StdInstantiatorStrategy());
+        // the size becomes small if registered because registered classes are represented as a number, not name.
+        kryo.register(java.util.ArrayList.class);
+        kryo.register(java.util.HashSet.class);
+        kryo.register(java.util.HashMap.class);
+        kryo.register(java.lang.Class.class);
+        kryo.register(byte[].class);
+        kryo.register(Integer[].class);
+        kryo.register(org.piax.common.ObjectId.class);
+        kryo.register(org.piax.common.PeerId.class);
+        kryo.register(org.piax.common.subspace.Range.class);
+        kryo.register(org.piax.common.TransportId.class);
+        kryo.register(org.piax.common.wrapper.DoubleKey.class);
+        kryo.register(org.piax.common.wrapper.StringKey.class);
+        kryo.register(org.piax.common.wrapper.ByteKey.class);
+        kryo.register(org.piax.common.wrapper.IntegerKey.class);
+        kryo.register(org.piax.common.wrapper.BooleanKey.class);
+        kryo.register(org.piax.common.wrapper.LongKey.class);
+        kryo.register(org.piax.common.PeerId.SpecialId.class);
+        kryo.register(org.piax.gtrans.RemoteValue.class);
+        kryo.register(org.piax.common.DdllKey.class);
 
 //            kryo.register(org.piax.gtrans.impl.RequestTransportImpl.IsEasySend.class);
 //            kryo.register(org.piax.gtrans.impl.NestedMessage.class);
-            kryo.register(org.piax.gtrans.TransOptions.class);
-            kryo.register(org.piax.gtrans.netty.ControlMessage.class);
-            kryo.register(org.piax.gtrans.netty.NettyMessage.class);
-            kryo.register(org.piax.gtrans.netty.NettyEndpoint.class);
-            kryo.register(org.piax.gtrans.netty.NettyLocator.class);
-            kryo.register(org.piax.gtrans.netty.NettyLocator.TYPE.class);
-            kryo.register(org.piax.gtrans.netty.ControlMessage.ControlType.class);
-            kryo.register(org.piax.gtrans.netty.idtrans.PrimaryKey.class);
-            kryo.register(org.piax.gtrans.netty.udp.direct.DirectSignaling.AddressNotification.class);
-            kryo.register(org.piax.gtrans.netty.NettyLocator[].class);
-            kryo.register(org.piax.gtrans.netty.udp.UdpPrimaryKey.class, new UdpPrimaryKeySerializer());
-            
-            logger.debug("registered basic classes on thread {}", Thread.currentThread());
-
-            /*
-            kryo.register(org.piax.ayame.Event.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllKeyRange.class);
-            kryo.register(org.piax.ayame.ov.rq.DKRangeRValue.class);
-            kryo.register(org.piax.ayame.ov.ddll.LinkSeq.class);
-            
-            kryo.register(org.piax.ayame.Node.class, new NodeSerializer());
-            kryo.register(org.piax.ayame.LocalNode.class, new NodeSerializer());
-            kryo.register(org.piax.ayame.FTEntry.class);
-            kryo.register(org.piax.ayame.FTEntry[].class);
-            kryo.register(org.piax.ayame.Event.Lookup.class);
-            kryo.register(org.piax.ayame.Event.AckEvent.class);
-            kryo.register(org.piax.ayame.Event.LookupDone.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetRAck.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetR.class);
-            kryo.register(org.piax.ayame.ov.rq.RQAdapter.InsertionPointAdapter.class);
-            kryo.register(org.piax.ayame.ov.rq.RQAdapter.KeyAdapter.class);
-            kryo.register(org.piax.ayame.ov.rq.RQRange.class);
-            kryo.register(org.piax.ayame.ov.rq.RQReply.class);
-            kryo.register(org.piax.ayame.ov.rq.RQRequest.class); 
-            kryo.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntReply.class);
-            kryo.register(org.piax.ayame.ov.suzaku.SuzakuStrategy.FTEntrySet.class);
-            // XXX not registering class leads a performance issue 
-            //kryo.register(org.piax.gtrans.ov.suzaku.Suzaku.ExecQueryAdapter.class);
-            kryo.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntRequest.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidates.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidatesResponse.class);
-            kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetL.class);
+        kryo.register(org.piax.gtrans.TransOptions.class);
+        kryo.register(org.piax.gtrans.netty.ControlMessage.class);
+        kryo.register(org.piax.gtrans.netty.NettyMessage.class);
+        kryo.register(org.piax.gtrans.netty.NettyEndpoint.class);
+        kryo.register(org.piax.gtrans.netty.NettyLocator.class);
+        kryo.register(org.piax.gtrans.netty.NettyLocator.TYPE.class);
+        kryo.register(org.piax.gtrans.netty.ControlMessage.ControlType.class);
+        kryo.register(org.piax.gtrans.netty.idtrans.PrimaryKey.class);
+        kryo.register(org.piax.gtrans.netty.udp.direct.DirectSignaling.AddressNotification.class);
+        kryo.register(org.piax.gtrans.netty.NettyLocator[].class);
+        kryo.register(org.piax.gtrans.netty.udp.UdpPrimaryKey.class, new UdpPrimaryKeySerializer());
+        
+        logger.debug("registered basic classes on thread {}", Thread.currentThread());
+
+        /*
+        kryo.register(org.piax.ayame.Event.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllKeyRange.class);
+        kryo.register(org.piax.ayame.ov.rq.DKRangeRValue.class);
+        kryo.register(org.piax.ayame.ov.ddll.LinkSeq.class);
+        
+        kryo.register(org.piax.ayame.Node.class, new NodeSerializer());
+        kryo.register(org.piax.ayame.LocalNode.class, new NodeSerializer());
+        kryo.register(org.piax.ayame.FTEntry.class);
+        kryo.register(org.piax.ayame.FTEntry[].class);
+        kryo.register(org.piax.ayame.Event.Lookup.class);
+        kryo.register(org.piax.ayame.Event.AckEvent.class);
+        kryo.register(org.piax.ayame.Event.LookupDone.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetRAck.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetR.class);
+        kryo.register(org.piax.ayame.ov.rq.RQAdapter.InsertionPointAdapter.class);
+        kryo.register(org.piax.ayame.ov.rq.RQAdapter.KeyAdapter.class);
+        kryo.register(org.piax.ayame.ov.rq.RQRange.class);
+        kryo.register(org.piax.ayame.ov.rq.RQReply.class);
+        kryo.register(org.piax.ayame.ov.rq.RQRequest.class); 
+        kryo.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntReply.class);
+        kryo.register(org.piax.ayame.ov.suzaku.SuzakuStrategy.FTEntrySet.class);
+        // XXX not registering class leads a performance issue 
+        //kryo.register(org.piax.gtrans.ov.suzaku.Suzaku.ExecQueryAdapter.class);
+        kryo.register(org.piax.ayame.ov.suzaku.SuzakuEvent.GetEntRequest.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidates.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllEvent.GetCandidatesResponse.class);
+        kryo.register(org.piax.ayame.ov.ddll.DdllEvent.SetL.class);
 */
-            return kryo;
-        };
-    };
+        return kryo;
+    }
 
     static public byte[] encode(Object obj, int bufsize, int bufsizeMax) {
-        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-        Output o = new Output(bufsize, bufsizeMax);
-        o.setOutputStream(outStream);
+        // bufsizeMax used to be the size of the buffer flushed to a stream,
+        // so that the size of the result is not limited.
+        Output o = new Output(bufsize, -1);
+        KryoContext ctx = contexts.get();
+        // the bytes may be decoded out of the order of the connection
+        ConnectionDictionary dict = ctx.dict;
+        ctx.dict = null;
         try {
-            KryoUtil.reRegisterIfModified();
-            kryos.get().writeClassAndObject(o, obj);
+            reRegisterIfModified(ctx).writeClassAndObject(o, obj);
         }
         catch(Exception e) {
             e.printStackTrace();
         }
-        o.flush();
-        byte[] outArray = outStream.toByteArray();
-        return outArray;
+        finally {
+            ctx.dict = dict;
+        }
+        return o.toBytes();
     }
 
     static public Object decode(byte[] bytes) {
         Input input = new Input(bytes);
-        KryoUtil.reRegisterIfModified();
-        Object obj = kryos.get().readClassAndObject(input);
-        return obj;
+        KryoContext ctx = contexts.get();
+        ConnectionDictionary dict = ctx.dict;
+        ctx.dict = null;
+        try {
+            return reRegisterIfModified(ctx).readClassAndObject(input);
+        } finally {
+            ctx.dict = dict;
+        }
+    }
+
+    /**
+     * returns the dictionary of the connection on which the object being
+     * serialized is sent or received.
+     *
+     * @return the dictionary, or null if the object is not serialized
+     * directly on a stream connection
+     */
+    static public ConnectionDictionary getDictionary() {
+        return contexts.get().dict;
+    }
+
+    /**
+     * encode an object and append it to a ByteBuf.
+     * the object is serialized through a per-thread buffer that is flushed
+     * to the ByteBuf, so that no intermediate byte array is allocated.
+     *
+     * @param obj the object to encode
+     * @param out the ByteBuf to write to
+     * @return the number of bytes written
+     */
+    static public int encode(Object obj, ByteBuf out) {
+        return encode(obj, out, null);
+    }
+
+    /**
+     * encode an object and append it to a ByteBuf using the dictionary of
+     * the connection.  the slots assigned while encoding the object are
+     * canceled if the object cannot be encoded.
+     *
+     * @param obj the object to encode
+     * @param out the ByteBuf to write to
+     * @param dict the dictionary of the connection, or null
+     * @return the number of bytes written
+     */
+    static public int encode(Object obj, ByteBuf out, ConnectionDictionary dict) {
+        KryoContext ctx = contexts.get();
+        Kryo kryo = reRegisterIfModified(ctx);
+        int start = out.writerIndex();
+        if (ctx.busy) {
+            // called from a serializer.  do not reuse the buffer.
+            Output o = new Output(STREAM_BUFSIZE);
+            ByteBufOutputStream s = new ByteBufOutputStream();
+            s.buf = out;
+            o.setOutputStream(s);
+            ConnectionDictionary outer = ctx.dict;
+            ctx.dict = null;
+            try {
+                kryo.writeClassAndObject(o, obj);
+                o.flush();
+            } finally {
+                ctx.dict = outer;
+            }
+            return out.writerIndex() - start;
+        }
+        ctx.busy = true;
+        ctx.dict = dict;
+        boolean done = false;
+        if (dict != null) {
+            dict.begin();
+        }
+        try {
+            ctx.stream.buf = out;
+            ctx.output.setOutputStream(ctx.stream);
+            kryo.writeClassAndObject(ctx.output, obj);
+            ctx.output.flush();
+            done = true;
+        } finally {
+            if (!done && dict != null) {
+                dict.rollback();
+            }
+            ctx.output.setOutputStream(null);
+            ctx.stream.buf = null;
+            ctx.dict = null;
+            ctx.busy = false;
+        }
+        return out.writerIndex() - start;
+    }
+
+    /**
+     * decode an object from a ByteBuf without copying the bytes.
+     * the reader index of the ByteBuf is advanced by len, even if an
+     * exception is thrown.
+     *
+     * @param in the ByteBuf to read from
+     * @param len the length of the encoded object
+     * @return the decoded object
+     */
+    static public Object decode(ByteBuf in, int len) {
+        return decode(in, len, null);
+    }
+
+    /**
+     * decode an object from a ByteBuf using the dictionary of the
+     * connection.
+     * the reader index of the ByteBuf is advanced by len, even if an
+     * exception is thrown.
+     *
+     * @param in the ByteBuf to read from
+     * @param len the length of the encoded object
+     * @param dict the dictionary of the connection, or null
+     * @return the decoded object
+     */
+    static public Object decode(ByteBuf in, int len, ConnectionDictionary dict) {
+        KryoContext ctx = contexts.get();
+        Kryo kryo = reRegisterIfModified(ctx);
+        int index = in.readerIndex();
+        try {
+            if (ctx.busy) {
+                // a nested call
+                byte[] bytes = new byte[len];
+                in.getBytes(index, bytes);
+                ConnectionDictionary outer = ctx.dict;
+                ctx.dict = null;
+                try {
+                    return kryo.readClassAndObject(new Input(bytes));
+                } finally {
+                    ctx.dict = outer;
+                }
+            } else {
+                Input input;
+                if (in.hasArray()) {
+                    input = ctx.input;
+                    input.setBuffer(in.array(), in.arrayOffset() + index, len);
+                } else if (in.nioBufferCount() == 1) {
+                    ctx.bbInput.setBuffer(in.nioBuffer(index, len));
+                    input = ctx.bbInput;
+                } else {
+                    // a composite buffer
+                    byte[] bytes = new byte[len];
+                    in.getBytes(index, bytes);
+                    input = new Input(bytes);
+                }
+                ctx.busy = true;
+                ctx.dict = dict;
+                try {
+                    return kryo.readClassAndObject(input);
+                } finally {
+                    ctx.dict = null;
+                    ctx.busy = false;
+                }
+            }
+        } finally {
+            // skip the object even if it cannot be decoded
+            in.readerIndex(index + len);
+        }
     }
 }
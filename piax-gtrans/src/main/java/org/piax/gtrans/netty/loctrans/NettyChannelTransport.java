@@ -12,11 +12,16 @@
 package org.piax.gtrans.netty.loctrans;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import org.piax.common.ObjectId;
@@ -35,9 +40,12 @@ import org.piax.gtrans.TransportListener;
 import org.piax.gtrans.impl.ChannelTransportImpl;
 import org.piax.gtrans.netty.ControlMessage;
 import org.piax.gtrans.netty.ControlMessage.ControlType;
+import org.piax.gtrans.netty.FlowControl;
+import org.piax.gtrans.netty.FlowControlledTransport;
 import org.piax.gtrans.netty.NettyEndpoint;
 import org.piax.gtrans.netty.NettyLocator;
 import org.piax.gtrans.netty.NettyMessage;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
 import org.piax.gtrans.netty.bootstrap.NettyBootstrap;
 import org.piax.gtrans.netty.bootstrap.SslBootstrap;
 import org.piax.gtrans.netty.bootstrap.TcpBootstrap;
@@ -48,6 +56,7 @@ import org.slf4j.LoggerFactory;
 
 import io.netty.bootstrap.AbstractBootstrap;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.group.ChannelGroup;
@@ -55,7 +64,7 @@ import io.netty.channel.group.DefaultChannelGroup;
 import io.netty.util.AttributeKey;
 import io.netty.util.concurrent.GlobalEventExecutor;
 
-public abstract class NettyChannelTransport<E extends NettyEndpoint> extends ChannelTransportImpl<E> implements ChannelTransport<E> {
+public abstract class NettyChannelTransport<E extends NettyEndpoint> extends ChannelTransportImpl<E> implements ChannelTransport<E>, FlowControlledTransport<E> {
 
     protected static final Logger logger = LoggerFactory.getLogger(NettyChannelTransport.class.getName());
     protected EventLoopGroup bossGroup;
@@ -67,8 +76,14 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
     // a map to hold active raw channels;
     protected final ConcurrentHashMap<E,NettyRawChannel<E>> raws =
             new ConcurrentHashMap<E,NettyRawChannel<E>>();
+    // raw channels being connected as a client, until they become RUN or fail.
+    // concurrent connection attempts to a destination share an entry.
+    protected final ConcurrentHashMap<E,NettyRawChannel<E>> connecting =
+            new ConcurrentHashMap<E,NettyRawChannel<E>>();
     protected final ConcurrentHashMap<String,NettyChannel<E>> channels =
             new ConcurrentHashMap<String,NettyChannel<E>>();
+    // the outbound queues of the raw channels by destination.
+    final FlowControl<E> flow = new FlowControl<>();
     protected final Random rand = new Random(System.currentTimeMillis());
     protected boolean isRunning = false;
     
@@ -153,6 +168,24 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
         raw.send(nmsg);
     }
 
+    @Override
+    public CompletableFuture<Void> sendAsync(ObjectId sender, ObjectId receiver,
+            E dst, Object msg, TransOptions opts) {
+        E src = ep;
+        channelSendHook(src, dst);
+        NettyMessage<E> nmsg = new NettyMessage<E>(receiver, src, dst, null, getPeerId(), msg, false, 0);
+        // never blocks: the message is queued in the raw channel
+        // until the connection is established.
+        NettyRawChannel<E> raw = getRawConnecting(dst);
+        if (raw == null) {
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            f.completeExceptionally(new IOException("transport is not running"));
+            return f;
+        }
+        logger.debug("oneway async send to {} from {} msg={}", dst, ep, msg);
+        return raw.sendAsync(nmsg);
+    }
+
     void putChannel(NettyChannel<E> ch) {
         logger.debug("" + ch.getChannelNo() + ch.channelInitiator.hashCode() + "->" + ch + " on " + ep);
         channels.put("" + ch.getChannelNo() + ch.channelInitiator.hashCode(), ch);
@@ -228,76 +261,98 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
     // do nothing by default.
     protected void channelSendHook(E src, E dst) {}
     
-    protected NettyRawChannel<E> getRawCreateAsClient0(E dst) throws IOException {
+    /**
+     * Returns a future of the raw channel to the destination.
+     * A new connection is initiated if there is no raw channel to the
+     * destination. This method never blocks.
+     * 
+     * @param dst the destination.
+     * @return the future that is completed when the raw channel becomes RUN.
+     */
+    public CompletableFuture<NettyRawChannel<E>> getRawCreateAsClientAsync(E dst) {
+        NettyRawChannel<E> raw = getRawConnecting(dst);
+        if (raw == null) {
+            CompletableFuture<NettyRawChannel<E>> f = new CompletableFuture<>();
+            f.completeExceptionally(new IOException("transport is not running"));
+            return f;
+        }
+        return raw.getEstablishedFuture();
+    }
+
+    /*
+     * Returns the raw channel to the destination, which may not be
+     * established yet. Messages sent to the raw channel are queued until it
+     * becomes RUN.
+     * No global lock is held: the concurrent connection attempts to a
+     * destination are deduplicated by the connecting map.
+     */
+    protected NettyRawChannel<E> getRawConnecting(E dst) {
         if (!isRunning) return null;
-        final NettyRawChannel<E> raw;
-        synchronized (raws) {
-            NettyRawChannel<E> cached = getRaw(dst);
-            if (cached != null) {
-                while (cached.getStat() == Stat.INIT || cached.getStat() == Stat.WAIT || cached.getStat() == Stat.DENIED) {
-                    try {
-                        synchronized(cached) {
-                            cached.wait(CHANNEL_ESTABLISH_TIMEOUT);
-                        }
-                    } catch (InterruptedException e) {
-                    }
-                }
-                // next state should be RUN
-                if (cached.getStat() == Stat.RUN) {
-                    return cached;
-                }
-                else {
-                    // DEFUNCT. Try a new connection.
-                }
-            }
-            int count = 0;
-            for (NettyRawChannel<E> r : getCreatedRawChannels()) {
-                // in order of most recently used. 
-                if (RAW_POOL_SIZE - 1 <= count) {
-                    logger.debug("closing {}, curtime={}", r, System.currentTimeMillis());
-                    r.close(); // should close gracefully.
-                }
-                count++;
-            }
-            raw = new NettyRawChannel<E>(dst, this, true);
-            NettyLocator l = directLocator(dst);
-            if (l != null) {
-                Bootstrap b = bs.getBootstrap(l, new NettyOutboundHandler(raw, this));
-                bs.connect(b, l.getHost(), l.getPort());
-            }
-            else {
-                logger.debug("destination is not directly connectable.");
-            }
+        NettyRawChannel<E> cached = getRaw(dst);
+        if (cached != null && !cached.isClosed()) {
+            // RUN, or being established (INIT, WAIT or DENIED).
+            return cached;
         }
-        while (raw.getStat() == Stat.INIT || raw.getStat() == Stat.WAIT) {
-            try {
-                synchronized(raw) {
-                    raw.wait(CHANNEL_ESTABLISH_TIMEOUT);
-                }
-            } catch (InterruptedException e) {
+        NettyRawChannel<E> created = new NettyRawChannel<E>(dst, this, true);
+        NettyRawChannel<E> raw = connecting.compute(dst, (k, cur) -> {
+            return (cur != null && !cur.isClosed()) ? cur : created;
+        });
+        if (raw == created) {
+            connect(created);
+        }
+        return raw;
+    }
+
+    private void connect(NettyRawChannel<E> raw) {
+        E dst = raw.getRemote();
+        raw.getEstablishedFuture().whenComplete((r, e) -> {
+            connecting.remove(dst, raw);
+        });
+        int count = 0;
+        for (NettyRawChannel<E> r : getCreatedRawChannels()) {
+            // in order of most recently used. 
+            if (RAW_POOL_SIZE - 1 <= count) {
+                logger.debug("closing {}, curtime={}", r, System.currentTimeMillis());
+                r.close(); // should close gracefully.
             }
+            count++;
         }
-        if (raw.getStat() == Stat.RUN) {
-            return raw;
+        NettyLocator l = directLocator(dst);
+        if (l == null) {
+            logger.debug("destination is not directly connectable.");
+            raw.abort(new IOException("destination is not directly connectable: " + dst));
+            return;
         }
-        else {
-            while (raw.getStat() == Stat.DENIED) {
-                try {
-                    synchronized(raw) {
-                        raw.wait(CHANNEL_ESTABLISH_TIMEOUT);
-                    }
-                }
-                catch (InterruptedException e) {
+        Bootstrap b = bs.getBootstrap(l, new NettyOutboundHandler(raw, this));
+        ChannelFuture f = bs.connect(b, l.getHost(), l.getPort());
+        if (f != null) {
+            f.addListener((future) -> {
+                if (!future.isSuccess()) {
+                    raw.abort(new IOException("connection failed to " + l, future.cause()));
                 }
+            });
+        }
+        // the channel may stay WAIT or DENIED if the peer does not respond.
+        GlobalEventExecutor.INSTANCE.schedule(() -> {
+            if (raw.abort(new IOException("channel establish timed out: " + dst))) {
+                logger.debug("channel establish timed out: {} on {}", dst, ep);
             }
-            // accepted other side. 
-            if (raw.getStat() == Stat.RUN) {
-                return raw;
+        }, CHANNEL_ESTABLISH_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    protected NettyRawChannel<E> getRawCreateAsClient0(E dst) throws IOException {
+        if (!isRunning) return null;
+        try {
+            // blocks only the caller, until the channel to dst is established.
+            return getRawCreateAsClientAsync(dst).get();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            logger.debug("getRawChannelAsClient: {}", e.getCause().getMessage());
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
-            // the channel was established but was closed 
-            logger.error("getRawChannelAsClient: illegal state: " + raw.getStat());
-            raw.close();
-            throw new IOException("Channel establish failed.");
+            throw new IOException("Channel establish failed.", e.getCause());
         }
     }
     
@@ -387,8 +442,8 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
                         // loop back.
                         synchronized (raw) {
                             raw.touch();
-                            raw.setStat(Stat.RUN);
                             raw.setContext(ctx);
+                            raw.setStat(Stat.RUN);
                             ctx.writeAndFlush(new ControlMessage<E>(
                                     ControlType.ACK, ep, ep, null));
                         }
@@ -411,7 +466,6 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
                                 // if NACK is already received, it goes to RUN state.
                                     raw.setContext(ctx);
                                     raw.setStat(Stat.RUN);
-                                    raw.notifyAll();
                                 //}
                             }
                         } // synchronized raw
@@ -423,8 +477,8 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
                         synchronized(raw) {
                             ctx.channel().attr(rawChannelKey).set(raw.getRemote().getKeyString());
                             // accept attempt.
-                            raw.setStat(Stat.RUN);
                             raw.setContext(ctx);
+                            raw.setStat(Stat.RUN);
                             logger.debug("set run stat for raw from source="
                                     + cmsg.getSource());
                         }
@@ -508,10 +562,7 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
             case ACK:
                 synchronized(raws) {
 //                    NettyRawChannel raw = getRaw(resp.getSource());
-                    synchronized(raw) {
-                        raw.setStat(Stat.RUN);
-                        raw.notifyAll();
-                    }
+                    raw.setStat(Stat.RUN);
                 }
                 break;
             case NACK:
@@ -528,7 +579,6 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
                         case WAIT:
                             raw.setStat(Stat.DENIED);
                             raw.setContext(null); // not valid context.
-                            raw.notifyAll();
                             break;
                         default:
                             logger.debug("illegal raw state {}" + raw);
@@ -607,6 +657,21 @@ public abstract class NettyChannelTransport<E extends NettyEndpoint> extends Cha
         return (E)ep;
     }
 
+    @Override
+    public void setWritabilityListener(WritabilityListener<E> listener) {
+        flow.setWritabilityListener(listener);
+    }
+
+    @Override
+    public void setPolicySelector(Function<Object, Policy> selector) {
+        flow.setPolicySelector(selector);
+    }
+
+    @Override
+    public boolean isWritable(E dst) {
+        return flow.isWritable(dst);
+    }
+
     @Override
     public Channel<E> newChannel(ObjectId sender, ObjectId receiver,
             E dst, boolean isDuplex, int timeout)
@@ -11,6 +11,8 @@
  
 package org.piax.gtrans.netty.loctrans;
 
+import org.piax.gtrans.netty.OutboundQueue;
+
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -38,8 +40,15 @@ public class NettyInboundHandler extends ChannelInboundHandlerAdapter {
     public void channelReadComplete(ChannelHandlerContext ctx) {
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        OutboundQueue.writabilityChanged(ctx.channel());
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
+        OutboundQueue.channelInactive(ctx.channel());
         trans.inboundInactive(ctx);
     }
 
@@ -11,6 +11,8 @@
  
 package org.piax.gtrans.netty.loctrans;
 
+import org.piax.gtrans.netty.OutboundQueue;
+
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 
@@ -43,9 +45,16 @@ public class NettyOutboundHandler extends ChannelInboundHandlerAdapter {
         ctx.flush();
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+        OutboundQueue.writabilityChanged(ctx.channel());
+        ctx.fireChannelWritabilityChanged();
+    }
+
     @Override
     public void channelInactive(ChannelHandlerContext ctx) {
         // this handler is a client-side handler.
+        OutboundQueue.channelInactive(ctx.channel());
         trans.outboundInactive(ctx);
     }
 
@@ -12,18 +12,30 @@
 package org.piax.gtrans.netty.loctrans;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.piax.common.ObjectId;
+import org.piax.common.Option.BooleanOption;
+import org.piax.common.Option.IntegerOption;
 import org.piax.common.PeerId;
 import org.piax.common.TransportId;
 import org.piax.gtrans.Channel;
 import org.piax.gtrans.NetworkTimeoutException;
 import org.piax.gtrans.netty.NettyEndpoint;
 import org.piax.gtrans.netty.NettyMessage;
+import org.piax.gtrans.netty.OutboundQueue;
+import org.piax.gtrans.netty.OutboundQueue.OverflowException;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.EventLoop;
 
 public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
 
@@ -35,6 +47,22 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
     long lastUse;
     boolean isCreatorSide; // true if the raw channel is generated as a client.
     int priority; // 1 or 0; 
+
+    /*
+     * write batching.  if enabled, messages are written without flushing
+     * and the channel is flushed when BATCH_MAX_MESSAGES messages are
+     * pending, or when the event loop has processed the writes queued so
+     * far (after BATCH_FLUSH_DELAY microseconds if it is positive).
+     */
+    static public BooleanOption WRITE_BATCHING
+        = new BooleanOption(false, "-write-batching");
+    static public IntegerOption BATCH_MAX_MESSAGES
+        = new IntegerOption(64, "-batch-max-messages");
+    static public IntegerOption BATCH_FLUSH_DELAY
+        = new IntegerOption(0, "-batch-flush-delay");
+    // the following fields are accessed only in the event loop
+    private int pendingWrites = 0;
+    private boolean flushScheduled = false;
     
     enum Stat {
         INIT,
@@ -45,6 +73,28 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
     }
     Stat stat;
 
+    /*
+     * completed when the channel becomes RUN, or completed exceptionally
+     * when the channel becomes DEFUNCT before it becomes RUN.
+     */
+    final CompletableFuture<NettyRawChannel<E>> established =
+            new CompletableFuture<>();
+    // the messages sent before the channel becomes RUN (guarded by this).
+    // bounded by OutboundQueue.CAPACITY.
+    private final ArrayDeque<PendingMessage> pending = new ArrayDeque<>();
+
+    static class PendingMessage {
+        final Object msg;
+        final CompletableFuture<Void> future; // null if not needed
+        final Policy policy;
+        PendingMessage(Object msg, CompletableFuture<Void> future,
+                Policy policy) {
+            this.msg = msg;
+            this.future = future;
+            this.policy = policy;
+        }
+    }
+
     public NettyRawChannel(NettyChannelTransport<E> mother) {
         this.remote = null; // loopback
         this.mother = mother;
@@ -54,6 +104,7 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
         isCreatorSide = false;
         lastUse = System.currentTimeMillis();
         priority = 0;
+        established.complete(this);
     }
     
     public NettyRawChannel(E remote, NettyChannelTransport<E> mother) {
@@ -96,10 +147,46 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
             //mother.raws.remove(getRemote());
             mother.deleteRaw(this);
             setStat(Stat.DEFUNCT);
-            ctx.close();//.syncUninterruptibly();
+            ChannelHandlerContext c = getContext();
+            if (c != null) { // null if not connected yet.
+                c.close();//.syncUninterruptibly();
+            }
         }
     }
 
+    /**
+     * Closes the channel if it has not become RUN.
+     * The pending messages are discarded and the future returned by
+     * {@link #getEstablishedFuture()} is completed with the cause.
+     * 
+     * @param cause the cause of the failure.
+     * @return true if the channel was aborted.
+     */
+    boolean abort(IOException cause) {
+        ChannelHandlerContext c;
+        synchronized (this) {
+            if (stat == Stat.RUN || stat == Stat.DEFUNCT) {
+                return false;
+            }
+            c = ctx;
+        }
+        mother.deleteRaw(this);
+        setStat(Stat.DEFUNCT, cause);
+        if (c != null) {
+            c.close();
+        }
+        return true;
+    }
+
+    /**
+     * Returns a future that is completed when the channel becomes RUN.
+     * 
+     * @return the future.
+     */
+    public CompletableFuture<NettyRawChannel<E>> getEstablishedFuture() {
+        return established;
+    }
+
     @Override
     public boolean isClosed() {
         //return !ctx.channel().isOpen();
@@ -170,8 +257,46 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
         }
     }
 
-    synchronized public void setStat(Stat stat) {
-        this.stat = stat;
+    public void setStat(Stat stat) {
+        setStat(stat, null);
+    }
+
+    private void setStat(Stat stat, IOException cause) {
+        ArrayDeque<PendingMessage> discarded = null;
+        synchronized (this) {
+            this.stat = stat;
+            if (stat == Stat.RUN) {
+                // the pending messages are written before the messages
+                // sent after this point, since send also locks this.
+                if (ctx != null) {
+                    PendingMessage p;
+                    while ((p = pending.poll()) != null) {
+                        // the pending messages have been accepted.
+                        write(ctx, p.msg, p.future, true);
+                    }
+                }
+            } else if (stat == Stat.DEFUNCT && !pending.isEmpty()) {
+                discarded = new ArrayDeque<>(pending);
+                pending.clear();
+            }
+        }
+        // complete the futures outside the lock.
+        if (stat == Stat.RUN) {
+            established.complete(this);
+        } else if (stat == Stat.DEFUNCT) {
+            IOException e = cause != null ? cause
+                    : new IOException("the channel is closed: " + remote);
+            established.completeExceptionally(e);
+            if (discarded != null) {
+                logger.debug("discarded {} pending messages to {}",
+                        discarded.size(), remote);
+                for (PendingMessage p : discarded) {
+                    if (p.future != null) {
+                        p.future.completeExceptionally(e);
+                    }
+                }
+            }
+        }
     }
     
     synchronized public Stat getStat() {
@@ -184,6 +309,23 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
 
     @Override
     public void send(Object msg) throws IOException {
+        send(msg, null);
+    }
+
+    /**
+     * Sends a message without blocking. If the channel is not established
+     * yet, the message is queued and sent when the channel becomes RUN.
+     * 
+     * @param msg the message.
+     * @return a future that is completed when the message is written.
+     */
+    public CompletableFuture<Void> sendAsync(Object msg) {
+        CompletableFuture<Void> f = new CompletableFuture<>();
+        send(msg, f);
+        return f;
+    }
+
+    private void send(Object msg, CompletableFuture<Void> f) {
         touch();
         //if (NettyChannelTransport.NAT_SUPPORT) {
             // just for count
@@ -194,12 +336,130 @@ public class NettyRawChannel<E extends NettyEndpoint> implements Channel<E> {
         //}
         // object is supposed to be a NettyMessage
         logger.debug("sending {} from {} to {}", ((NettyMessage)msg).getMsg(), getLocal(), getRemote());
-        if (stat == Stat.RUN && ctx.channel().isOpen()) {
-            ctx.writeAndFlush(msg);//.syncUninterruptibly();
+        ChannelHandlerContext c = null;
+        Policy policy = mother.flow.policy(msg);
+        PendingMessage dropped = null;
+        IOException failure = null;
+        synchronized (this) {
+            switch (stat) {
+            case INIT:
+            case WAIT:
+            case DENIED:
+                // sent when the channel becomes RUN.
+                if (pending.size() >= Math.max(1, OutboundQueue.CAPACITY.value())) {
+                    // only the messages of DROP_OLDEST are dropped.
+                    if (policy == Policy.DROP_OLDEST) {
+                        dropped = pollDroppable();
+                    }
+                    if (dropped == null) {
+                        failure = new OverflowException("too many messages pending: " + remote);
+                        break;
+                    }
+                }
+                pending.add(new PendingMessage(msg, f, policy));
+                logger.debug("queued {} from {} to {}", ((NettyMessage)msg).getMsg(), getLocal(), getRemote());
+                break;
+            case RUN:
+                if (ctx != null && ctx.channel().isOpen()) {
+                    c = ctx;
+                    break;
+                }
+                // fall through
+            default:
+                failure = new IOException("the sending channel is closed.");
+                break;
+            }
+        }
+        if (dropped != null && dropped.future != null) {
+            dropped.future.completeExceptionally(
+                    new OverflowException("dropped from the pending messages: " + remote));
+        }
+        if (c != null) {
+            // written outside the lock since the BLOCK policy may wait.
+            write(c, msg, f, false);
             logger.debug("sent {} from {} to {}", ((NettyMessage)msg).getMsg(), getLocal(), getRemote());
+            return;
+        }
+        if (failure != null && f != null) {
+            f.completeExceptionally(failure);
+        }
+    }
+
+    // called with the lock. removes the oldest pending message of DROP_OLDEST.
+    private PendingMessage pollDroppable() {
+        for (Iterator<PendingMessage> it = pending.iterator(); it.hasNext();) {
+            PendingMessage p = it.next();
+            if (p.policy == Policy.DROP_OLDEST) {
+                it.remove();
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * writes the message through the outbound queue of the remote.
+     * the message is queued while the channel is unwritable.
+     */
+    private void write(ChannelHandlerContext c, Object msg,
+            CompletableFuture<Void> f, boolean force) {
+        ChannelPromise promise = c.newPromise();
+        if (f != null) {
+            complete(promise, f);
+        }
+        OutboundQueue<E> q = mother.flow.getQueue(c.channel(), remote);
+        if (!q.offer(msg, promise, mother.flow.policy(msg), force)) {
+            return;
+        }
+        if (WRITE_BATCHING.value()) {
+            EventLoop loop = c.channel().eventLoop();
+            if (loop.inEventLoop()) {
+                batchWrite(c, msg, promise);
+            } else {
+                loop.execute(() -> batchWrite(c, msg, promise));
+            }
+        } else {
+            c.writeAndFlush(msg, promise);
+        }
+    }
+
+    private static void complete(ChannelFuture cf, CompletableFuture<Void> f) {
+        cf.addListener(future -> {
+            if (future.isSuccess()) {
+                f.complete(null);
+            } else {
+                f.completeExceptionally(future.cause());
+            }
+        });
+    }
+
+    // called in the event loop
+    private void batchWrite(ChannelHandlerContext ctx, Object msg,
+            ChannelPromise promise) {
+        ctx.write(msg, promise);
+        if (++pendingWrites >= BATCH_MAX_MESSAGES.value()) {
+            flushBatch(ctx);
+            return;
         }
-        else {
-            new IOException("the sending channel is closed.");
+        if (!flushScheduled) {
+            // the flush task is queued after the writes that are already
+            // queued in the event loop, so that they are flushed at once.
+            flushScheduled = true;
+            EventLoop loop = ctx.channel().eventLoop();
+            int delay = BATCH_FLUSH_DELAY.value();
+            if (delay > 0) {
+                loop.schedule(() -> flushBatch(ctx), delay, TimeUnit.MICROSECONDS);
+            } else {
+                loop.execute(() -> flushBatch(ctx));
+            }
+        }
+    }
+
+    private void flushBatch(ChannelHandlerContext ctx) {
+        flushScheduled = false;
+        if (pendingWrites > 0) {
+            pendingWrites = 0;
+            ctx.flush();
         }
     }
 
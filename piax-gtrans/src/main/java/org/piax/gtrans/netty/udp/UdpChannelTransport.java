@@ -19,8 +19,10 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 import org.piax.common.ObjectId;
+import org.piax.common.Option.IntegerOption;
 import org.piax.common.PeerId;
 import org.piax.common.TransportId;
 import org.piax.gtrans.Channel;
@@ -34,8 +36,13 @@ import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.Transport;
 import org.piax.gtrans.TransportListener;
 import org.piax.gtrans.impl.ChannelTransportImpl;
+import org.piax.gtrans.netty.FlowControl;
+import org.piax.gtrans.netty.FlowControlledTransport;
 import org.piax.gtrans.netty.NettyLocator;
 import org.piax.gtrans.netty.NettyMessage;
+import org.piax.gtrans.netty.OutboundQueue;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
+import org.piax.gtrans.netty.bootstrap.NettyBootstrap;
 import org.piax.gtrans.netty.kryo.KryoUtil;
 import org.piax.gtrans.netty.udp.Signaling.Request;
 import org.piax.gtrans.netty.udp.Signaling.Response;
@@ -50,22 +57,36 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollChannelOption;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.DatagramChannel;
 import io.netty.channel.socket.DatagramPacket;
-import io.netty.channel.socket.nio.NioDatagramChannel;
 
-public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> implements ChannelTransport<UdpPrimaryKey> {
+public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> implements ChannelTransport<UdpPrimaryKey>, FlowControlledTransport<UdpPrimaryKey> {
+
+    // the number of the sockets bound to the port with SO_REUSEPORT.
+    // the kernel spreads the received datagrams across the sockets, each of
+    // which is served by its own event loop.
+    // effective only with the native epoll transport.
+    public static IntegerOption NUMBER_OF_SOCKETS
+        = new IntegerOption(1, "-udp-sockets");
 
     final UdpPrimaryKey ep;
     private EventLoopGroup workerGroup;
     io.netty.channel.Channel bindChannel;
+    // all the bound sockets. bindChannel is the first one.
+    io.netty.channel.Channel[] bindChannels;
     boolean isRunning;
     Signaling signaling;
     AtomicInteger seq;
+    // the outbound queues by destination. the queues of the destinations
+    // on a socket share the writability of the socket.
+    final FlowControl<UdpPrimaryKey> flow = new FlowControl<>();
     protected static final Logger logger = LoggerFactory.getLogger(UdpChannelTransport.class.getName());
     
     // key=>id channel future.
@@ -89,6 +110,18 @@ public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> imp
             ctx.close();
         }
 
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+            OutboundQueue.writabilityChanged(ctx.channel());
+            ctx.fireChannelWritabilityChanged();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            OutboundQueue.channelInactive(ctx.channel());
+            ctx.fireChannelInactive();
+        }
+
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket msg) throws Exception {
             ByteBuf buf = msg.content();
@@ -130,8 +163,10 @@ public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> imp
     public void fin() {
         logger.debug("running fin.");
         isRunning = false;
-        if (bindChannel.isOpen()) {
-            bindChannel.close().awaitUninterruptibly();
+        for (io.netty.channel.Channel ch : bindChannels) {
+            if (ch.isOpen()) {
+                ch.close().awaitUninterruptibly();
+            }
         }
         workerGroup.shutdownGracefully();
     }
@@ -159,12 +194,27 @@ public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> imp
         this.ep = key;
         int port = key.getLocator().getPort();
 
-        workerGroup = new NioEventLoopGroup();
+        boolean epoll = NettyBootstrap.useEpoll();
+        int nsockets = Math.max(1, NUMBER_OF_SOCKETS.value());
+        if (nsockets > 1 && (!epoll || port == 0)) {
+            logger.warn("SO_REUSEPORT requires the native transport and a fixed port. using a single socket.");
+            nsockets = 1;
+        }
+        workerGroup = epoll ? NettyBootstrap.newEventLoopGroup(true, nsockets)
+                : new NioEventLoopGroup();
         Bootstrap bootstrap = new Bootstrap();
         bootstrap.group(workerGroup)
-                .channel(NioDatagramChannel.class)
+                .channel(NettyBootstrap.datagramChannelClass(epoll))
+                .option(ChannelOption.WRITE_BUFFER_WATER_MARK, NettyBootstrap.writeBufferWaterMark())
                 .handler(new ServerChannelInitializer());
-        bindChannel = bootstrap.bind(new InetSocketAddress(port)).syncUninterruptibly().channel();
+        if (nsockets > 1) {
+            bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+        }
+        bindChannels = new io.netty.channel.Channel[nsockets];
+        for (int i = 0; i < nsockets; i++) {
+            bindChannels[i] = bootstrap.bind(new InetSocketAddress(port)).syncUninterruptibly().channel();
+        }
+        bindChannel = bindChannels[0];
         isRunning = true;
         seq = new AtomicInteger(0);
         if (key.sigType.equals(SIGTYPE.DIRECT)) {
@@ -203,7 +253,52 @@ public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> imp
         assert(addr != null) : "destination addr is null";
         ByteBuf buf = Unpooled.wrappedBuffer(KryoUtil.encode(obj, 256, 256));
         logger.trace("writing length={}, to={}", buf.readableBytes(), addr);
-        return bindChannel.writeAndFlush(new DatagramPacket(buf, addr));
+        return socketFor(addr).writeAndFlush(new DatagramPacket(buf, addr));
+    }
+
+    /**
+     * Sends a message to the destination through its outbound queue.
+     * The message is queued while the socket is unwritable.
+     *
+     * @param dst the destination.
+     * @param addr the address of the destination.
+     * @param obj the message.
+     * @return the future of the write.
+     */
+    public ChannelFuture rawSend(UdpPrimaryKey dst, InetSocketAddress addr, Object obj) {
+        if (dst.getRawKey() == null) {
+            return rawSend(addr, obj);
+        }
+        logger.trace("raw send to={}, addr={}", dst, addr);
+        io.netty.channel.Channel ch = socketFor(addr);
+        ChannelPromise promise = ch.newPromise();
+        OutboundQueue<UdpPrimaryKey> q = flow.getQueue(ch, dst);
+        Object packet = new DatagramPacket(Unpooled.wrappedBuffer(KryoUtil.encode(obj, 256, 256)), addr);
+        if (q.offer(packet, promise, flow.policy(obj))) {
+            ch.writeAndFlush(packet, promise);
+        }
+        return promise;
+    }
+
+    // the datagrams to a destination are sent from the same socket.
+    private io.netty.channel.Channel socketFor(InetSocketAddress addr) {
+        return bindChannels.length == 1 ? bindChannel
+                : bindChannels[Math.floorMod(addr.hashCode(), bindChannels.length)];
+    }
+
+    @Override
+    public void setWritabilityListener(WritabilityListener<UdpPrimaryKey> listener) {
+        flow.setWritabilityListener(listener);
+    }
+
+    @Override
+    public void setPolicySelector(Function<Object, Policy> selector) {
+        flow.setPolicySelector(selector);
+    }
+
+    @Override
+    public boolean isWritable(UdpPrimaryKey dst) {
+        return flow.isWritable(dst);
     }
     
     public CompletableFuture<UdpIdChannel> newChannelAsync(ObjectId sender, ObjectId receiver, UdpPrimaryKey dst) {
@@ -278,7 +373,12 @@ public class UdpChannelTransport extends ChannelTransportImpl<UdpPrimaryKey> imp
                     try {
                         logger.debug("sending async when completed: {} {}", ret, nmsg);
                         ret.sendAsync(nmsg).addListener((cf) -> {
-                            retf.complete(null);
+                            if (cf.cause() instanceof OutboundQueue.OverflowException) {
+                                retf.completeExceptionally(cf.cause());
+                            }
+                            else {
+                                retf.complete(null);
+                            }
                         });
                     } catch (Exception e1) {
                         retf.completeExceptionally(e1);
@@ -30,7 +30,7 @@ public class DirectUdpChannel extends UdpRawChannel {
         logger.debug("dst={} src={}", dst, src);
         NettyLocator loc = trans.getPrimaryLocator(dst.getRawKey());
         logger.debug("loc={}", loc);
-        return trans.rawSend(loc.getSocketAddress(), obj);
+        return trans.rawSend(dst, loc.getSocketAddress(), obj);
     }
 
     @Override
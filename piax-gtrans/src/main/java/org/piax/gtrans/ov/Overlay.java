@@ -24,8 +24,10 @@ import org.piax.common.Endpoint;
 import org.piax.common.ObjectId;
 import org.piax.common.Option.StringOption;
 import org.piax.common.TransportId;
+import org.piax.common.subspace.KeyRange;
 import org.piax.gtrans.FutureQueue;
 import org.piax.gtrans.ProtocolUnsupportedException;
+import org.piax.gtrans.RangeScan;
 import org.piax.gtrans.RequestTransport;
 import org.piax.gtrans.TransOptions;
 import org.piax.gtrans.dcl.parser.ParseException;
@@ -149,6 +151,33 @@ public interface Overlay<D extends Destination, K extends Destination> extends
             BiConsumer<Object, Exception> responseReceiver) {
         requestAsync(new ObjectId(appIdStr), new ObjectId(appIdStr), dst, msg, responseReceiver, null);
     }
+
+    /**
+     * 範囲検索を行い、その結果を順に取り出すRangeScanを返す。
+     * <p>
+     * requestが返すFutureQueueはすべての結果をメモリー上に保持するが、
+     * RangeScanは結果をpageSize個ずつ取得し、利用者が読み進めた分だけ次を要求する。
+     * 結果の順序は実装による。
+     * このデフォルトの実装は、requestで得たFutureQueueをpageSize個ずつ読み出す。
+     * 結果を要求に応じて取得できるオーバーレイは、このメソッドを上書きする。
+     * 
+     * @param sender 送信元のObjectId
+     * @param receiver 受信側のObjectId
+     * @param range 検索する範囲
+     * @param msg メッセージ
+     * @param pageSize 一度に取得する結果の最大数
+     * @param opts TransOptions
+     * @return 結果を取り出すRangeScan
+     * @throws ProtocolUnsupportedException オーバーレイが範囲検索をサポートしない場合
+     * @throws IOException 実装クラス特有の例外が発生した場合
+     */
+    @SuppressWarnings("unchecked")
+    default RangeScan<?> scan(ObjectId sender, ObjectId receiver,
+            KeyRange<?> range, Object msg, int pageSize, TransOptions opts)
+            throws ProtocolUnsupportedException, IOException {
+        return RangeScan.of((FutureQueue<Object>) request(sender, receiver,
+                (D) range, msg, opts), pageSize);
+    }
     
     /**
      * 指定されたkeyをオーバレイに登録する。
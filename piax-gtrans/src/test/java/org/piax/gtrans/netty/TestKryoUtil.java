@@ -2,9 +2,24 @@ package org.piax.gtrans.netty;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.jupiter.api.Test;
+import org.piax.gtrans.netty.kryo.ConnectionDictionary;
 import org.piax.gtrans.netty.kryo.KryoUtil;
 
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
 class TestKryoUtil {
 
     static class TestClass {
@@ -41,4 +56,132 @@ class TestKryoUtil {
         }
     }
 
+
+    @Test
+    void testByteBuf() {
+        List<Object> objs = new ArrayList<>();
+        objs.add("hello");
+        objs.add(Long.MAX_VALUE);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            sb.append(i);
+        }
+        // larger than the internal buffer
+        objs.add(sb.toString());
+        for (ByteBuf buf : new ByteBuf[] {
+                Unpooled.buffer(16),
+                PooledByteBufAllocator.DEFAULT.directBuffer(16) }) {
+            for (Object obj : objs) {
+                buf.writeByte(0xff);
+                int len = KryoUtil.encode(obj, buf);
+                assertEquals(1 + len, buf.readableBytes());
+                assertArrayEquals(KryoUtil.encode(obj, 16, 16),
+                        copy(buf, 1, len));
+                buf.skipBytes(1);
+                assertEquals(obj, KryoUtil.decode(buf, len));
+                assertEquals(0, buf.readableBytes());
+                buf.clear();
+            }
+            buf.release();
+        }
+        // composite buffer
+        byte[] bytes = KryoUtil.encode("composite", 16, 16);
+        CompositeByteBuf comp = Unpooled.compositeBuffer();
+        comp.addComponent(true, Unpooled.wrappedBuffer(bytes, 0, 3));
+        comp.addComponent(true, Unpooled.wrappedBuffer(bytes, 3,
+                bytes.length - 3));
+        assertEquals("composite", KryoUtil.decode(comp, bytes.length));
+        comp.release();
+    }
+
+    static class Named {
+        final String name;
+        Named(String name) {
+            this.name = name;
+        }
+    }
+
+    // writes a Named as a slot of the dictionary after the first time
+    static class NamedSerializer extends Serializer<Named> {
+        @Override
+        public void write(Kryo kryo, Output output, Named obj) {
+            if (obj.name.equals("bad")) {
+                throw new KryoException("bad");
+            }
+            ConnectionDictionary dict = KryoUtil.getDictionary();
+            if (dict == null) {
+                output.writeVarInt(0, true);
+            } else {
+                int slot = dict.lookup(obj);
+                if (slot >= 0) {
+                    output.writeVarInt((slot << 1) | 1, true);
+                    return;
+                }
+                output.writeVarInt((dict.assign(obj) + 1) << 1, true);
+            }
+            output.writeString(obj.name);
+        }
+
+        @Override
+        public Named read(Kryo kryo, Input input, Class<Named> type) {
+            int tag = input.readVarInt(true);
+            ConnectionDictionary dict = KryoUtil.getDictionary();
+            if ((tag & 1) != 0) {
+                return (Named) dict.get(tag >>> 1);
+            }
+            Named obj = new Named(input.readString());
+            if (tag != 0) {
+                dict.put((tag >>> 1) - 1, obj);
+            }
+            return obj;
+        }
+    }
+
+    @Test
+    void testDictionary() {
+        KryoUtil.register(Named.class, new NamedSerializer());
+        ConnectionDictionary sdict = new ConnectionDictionary(2);
+        ConnectionDictionary rdict = new ConnectionDictionary(2);
+        Named a = new Named("aaaaaaaa");
+        Named b = new Named("bbbbbbbb");
+        Named c = new Named("cccccccc");
+        ByteBuf buf = Unpooled.buffer(16);
+        int len1 = KryoUtil.encode(a, buf, sdict);
+        Named a1 = (Named) KryoUtil.decode(buf, len1, rdict);
+        assertEquals("aaaaaaaa", a1.name);
+        // the second time, only the slot is sent
+        int len2 = KryoUtil.encode(a, buf, sdict);
+        assertTrue(len2 < len1);
+        assertSame(a1, KryoUtil.decode(buf, len2, rdict));
+        // a message that is not encoded does not define the slots
+        ArrayList<Named> list = new ArrayList<>();
+        list.add(b);
+        list.add(new Named("bad"));
+        assertThrows(KryoException.class,
+                () -> KryoUtil.encode(list, buf, sdict));
+        buf.clear();
+        assertEquals(-1, sdict.lookup(b));
+        assertEquals(len1, KryoUtil.encode(b, buf, sdict));
+        assertEquals("bbbbbbbb",
+                ((Named) KryoUtil.decode(buf, len1, rdict)).name);
+        // the earliest slot is reused
+        int len = KryoUtil.encode(c, buf, sdict);
+        assertEquals("cccccccc",
+                ((Named) KryoUtil.decode(buf, len, rdict)).name);
+        assertEquals(-1, sdict.lookup(a));
+        len = KryoUtil.encode(a, buf, sdict);
+        assertEquals(len1, len);
+        assertEquals("aaaaaaaa",
+                ((Named) KryoUtil.decode(buf, len, rdict)).name);
+        // the dictionary is not used for a byte array
+        assertEquals("bbbbbbbb",
+                ((Named) KryoUtil.decode(KryoUtil.encode(b, 16, 16))).name);
+        buf.release();
+    }
+
+    private static byte[] copy(ByteBuf buf, int index, int len) {
+        byte[] bytes = new byte[len];
+        buf.getBytes(buf.readerIndex() + index, bytes);
+        return bytes;
+    }
 }
@@ -0,0 +1,121 @@
+package org.piax.gtrans.netty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.piax.common.PeerId;
+import org.piax.gtrans.Peer;
+import org.piax.gtrans.Transport;
+import org.piax.gtrans.netty.loctrans.NettyRawChannel;
+
+class TestLocatorChannelTransport {
+    boolean received2;
+
+    @Test
+    public void testAsyncSendToDeadPeer() throws Exception {
+        Peer p3 = Peer.getInstance(new PeerId("p3"));
+        Peer p4 = Peer.getInstance(new PeerId("p4"));
+        try {
+            Transport<NettyLocator> tr3 = p3.newBaseTransport(
+                    new NettyLocator(new InetSocketAddress("localhost", 12370)));
+            Transport<NettyLocator> tr4 = p4.newBaseTransport(
+                    new NettyLocator(new InetSocketAddress("localhost", 12371)));
+            // sendAsync(dst, msg) is received by the listener of the transport id.
+            tr4.setListener(tr4.getTransportId(), (trans, msg) -> {
+                received2 = "123456".equals(msg.getMessage());
+            });
+            received2 = false;
+
+            // nobody listens on the port.
+            long start = System.currentTimeMillis();
+            CompletableFuture<Void> f = tr3.sendAsync(
+                    new NettyLocator(new InetSocketAddress("localhost", 12372)), "dead");
+            // sends to the other peers are not blocked.
+            CompletableFuture<Void> g = tr3.sendAsync((NettyLocator)tr4.getEndpoint(), "123456");
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            g.get(3, TimeUnit.SECONDS);
+            assertThrows(ExecutionException.class, () -> f.get(15, TimeUnit.SECONDS));
+            for (int i = 0; i < 20 && !received2; i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(received2);
+        } finally {
+            p3.fin();
+            p4.fin();
+        }
+    }
+
+    @Test
+    public void testWriteBatching() throws Exception {
+        NettyRawChannel.WRITE_BATCHING.set(true);
+        try {
+            // flushed by the limit, and by the flush task for the rest
+            NettyRawChannel.BATCH_MAX_MESSAGES.set(4);
+            NettyRawChannel.BATCH_FLUSH_DELAY.set(0);
+            sendInOrder(103);
+            // flushed only by the delayed flush task
+            NettyRawChannel.BATCH_MAX_MESSAGES.set(1000);
+            NettyRawChannel.BATCH_FLUSH_DELAY.set(500);
+            sendInOrder(103);
+        } finally {
+            NettyRawChannel.WRITE_BATCHING.set(false);
+            NettyRawChannel.BATCH_MAX_MESSAGES.set(64);
+            NettyRawChannel.BATCH_FLUSH_DELAY.set(0);
+        }
+    }
+
+    private void sendInOrder(int n) throws Exception {
+        Peer p3 = Peer.getInstance(new PeerId("p3"));
+        Peer p4 = Peer.getInstance(new PeerId("p4"));
+        try {
+            Transport<NettyLocator> tr3 = p3.newBaseTransport(
+                    new NettyLocator(new InetSocketAddress("localhost", 12370)));
+            Transport<NettyLocator> tr4 = p4.newBaseTransport(
+                    new NettyLocator(new InetSocketAddress("localhost", 12371)));
+            List<Object> received = new ArrayList<>();
+            CountDownLatch[] done = { new CountDownLatch(n) };
+            tr4.setListener(tr4.getTransportId(), (trans, msg) -> {
+                synchronized (received) {
+                    received.add(msg.getMessage());
+                }
+                done[0].countDown();
+            });
+            NettyLocator dst = (NettyLocator) tr4.getEndpoint();
+            List<CompletableFuture<Void>> fs = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                fs.add(tr3.sendAsync(dst, i));
+            }
+            // the last partial batch must be flushed without further writes
+            assertTrue(done[0].await(5, TimeUnit.SECONDS));
+            for (CompletableFuture<Void> f : fs) {
+                f.get(1, TimeUnit.SECONDS);
+            }
+            List<Object> expected = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                expected.add(i);
+            }
+            synchronized (received) {
+                assertEquals(expected, received);
+            }
+            // a single message after the channel becomes idle
+            done[0] = new CountDownLatch(1);
+            Thread.sleep(100);
+            tr3.sendAsync(dst, n).get(1, TimeUnit.SECONDS);
+            assertTrue(done[0].await(5, TimeUnit.SECONDS));
+            synchronized (received) {
+                assertEquals(n, received.get(n));
+            }
+        } finally {
+            p3.fin();
+            p4.fin();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.piax.gtrans.netty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.piax.gtrans.netty.OutboundQueue.OverflowException;
+import org.piax.gtrans.netty.OutboundQueue.Policy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+class TestOutboundQueue {
+
+    static EmbeddedChannel newChannel() {
+        EmbeddedChannel ch = new EmbeddedChannel(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+                OutboundQueue.writabilityChanged(ctx.channel());
+                ctx.fireChannelWritabilityChanged();
+            }
+
+            @Override
+            public void channelInactive(ChannelHandlerContext ctx) {
+                OutboundQueue.channelInactive(ctx.channel());
+                ctx.fireChannelInactive();
+            }
+        });
+        ch.config().setOption(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                new WriteBufferWaterMark(8, 16));
+        return ch;
+    }
+
+    static ByteBuf buf(int size) {
+        return Unpooled.wrappedBuffer(new byte[size]);
+    }
+
+    @Test
+    public void testQueuedWhileUnwritable() {
+        EmbeddedChannel ch = newChannel();
+        FlowControl<String> flow = new FlowControl<>();
+        List<Boolean> events = new ArrayList<>();
+        flow.setWritabilityListener((dst, w) -> {
+            assertEquals("dst", dst);
+            events.add(w);
+        });
+        OutboundQueue<String> q = flow.getQueue(ch, "dst");
+
+        // written immediately while writable.
+        ChannelPromise p0 = ch.newPromise();
+        assertTrue(q.offer("m0", p0, Policy.FAIL_FAST));
+        // exceeds the high water mark without flush.
+        ch.write(buf(32));
+        assertFalse(ch.isWritable());
+
+        ChannelPromise p1 = ch.newPromise();
+        assertFalse(q.offer("m1", p1, Policy.FAIL_FAST));
+        assertEquals(1, q.size());
+        assertFalse(flow.isWritable("dst"));
+        assertEquals(Arrays.asList(false), events);
+
+        // the queued message is written when the channel becomes writable.
+        ch.flush();
+        ch.runPendingTasks();
+        assertTrue(p1.isSuccess());
+        assertEquals(0, q.size());
+        assertTrue(flow.isWritable("dst"));
+        assertEquals(Arrays.asList(false, true), events);
+        ((ByteBuf) ch.readOutbound()).release();
+        assertEquals("m1", ch.readOutbound());
+        ch.finishAndReleaseAll();
+    }
+
+    @Test
+    public void testPolicies() {
+        int capacity = OutboundQueue.CAPACITY.value();
+        OutboundQueue.CAPACITY.set(2);
+        try {
+            EmbeddedChannel ch = newChannel();
+            FlowControl<String> flow = new FlowControl<>();
+            OutboundQueue<String> q = flow.getQueue(ch, "dst");
+            ch.write(buf(32));
+            ChannelPromise p1 = ch.newPromise();
+            ChannelPromise p2 = ch.newPromise();
+            assertFalse(q.offer("m1", p1, Policy.DROP_OLDEST));
+            assertFalse(q.offer("m2", p2, Policy.FAIL_FAST));
+
+            // fail fast
+            ChannelPromise p3 = ch.newPromise();
+            assertFalse(q.offer("m3", p3, Policy.FAIL_FAST));
+            assertTrue(p3.cause() instanceof OverflowException);
+
+            // drop oldest
+            ChannelPromise p4 = ch.newPromise();
+            assertFalse(q.offer("m4", p4, Policy.DROP_OLDEST));
+            assertTrue(p1.cause() instanceof OverflowException);
+            assertEquals(2, q.size());
+
+            // the sender on the event loop is not blocked.
+            ChannelPromise p5 = ch.newPromise();
+            assertFalse(q.offer("m5", p5, Policy.BLOCK));
+            assertTrue(p5.cause() instanceof OverflowException);
+
+            // the queued messages fail when the channel is closed.
+            ch.close();
+            assertFalse(p2.isSuccess());
+            assertFalse(p4.isSuccess());
+            assertTrue(p2.isDone() && p4.isDone());
+            ch.finishAndReleaseAll();
+        } finally {
+            OutboundQueue.CAPACITY.set(capacity);
+        }
+    }
+
+    @Test
+    public void testMixedPolicies() {
+        int capacity = OutboundQueue.CAPACITY.value();
+        OutboundQueue.CAPACITY.set(3);
+        try {
+            EmbeddedChannel ch = newChannel();
+            FlowControl<String> flow = new FlowControl<>();
+            OutboundQueue<String> q = flow.getQueue(ch, "dst");
+            ch.write(buf(32));
+            ChannelPromise p1 = ch.newPromise();
+            ChannelPromise p2 = ch.newPromise();
+            ChannelPromise p3 = ch.newPromise();
+            assertFalse(q.offer("m1", p1, Policy.FAIL_FAST));
+            assertFalse(q.offer("m2", p2, Policy.DROP_OLDEST));
+            assertFalse(q.offer("m3", p3, Policy.BLOCK));
+
+            // only the messages of DROP_OLDEST are dropped.
+            ChannelPromise p4 = ch.newPromise();
+            assertFalse(q.offer("m4", p4, Policy.DROP_OLDEST));
+            assertTrue(p2.cause() instanceof OverflowException);
+            ChannelPromise p5 = ch.newPromise();
+            assertFalse(q.offer("m5", p5, Policy.DROP_OLDEST));
+            assertTrue(p4.cause() instanceof OverflowException);
+            assertFalse(p1.isDone() || p3.isDone() || p5.isDone());
+
+            // the new message fails if no message can be dropped.
+            OutboundQueue.CAPACITY.set(1);
+            OutboundQueue<String> q2 = flow.getQueue(ch, "dst2");
+            ChannelPromise p6 = ch.newPromise();
+            ChannelPromise p7 = ch.newPromise();
+            assertFalse(q2.offer("n1", p6, Policy.FAIL_FAST));
+            assertFalse(q2.offer("n2", p7, Policy.DROP_OLDEST));
+            assertTrue(p7.cause() instanceof OverflowException);
+            assertFalse(p6.isDone());
+
+            // the rest are written in order for each destination.
+            ch.flush();
+            ch.runPendingTasks();
+            assertTrue(p1.isSuccess() && p3.isSuccess() && p5.isSuccess()
+                    && p6.isSuccess());
+            ((ByteBuf) ch.readOutbound()).release();
+            List<Object> out = new ArrayList<>();
+            Object m;
+            while ((m = ch.readOutbound()) != null) {
+                out.add(m);
+            }
+            assertEquals(4, out.size());
+            out.remove("n1");
+            assertEquals(Arrays.asList("m1", "m3", "m5"), out);
+            ch.finishAndReleaseAll();
+        } finally {
+            OutboundQueue.CAPACITY.set(capacity);
+        }
+    }
+}